@@ -0,0 +1,217 @@
+/*
+ * Copyright (c) 2015, Arjuna Technologies Limited, Newcastle-upon-Tyne, England. All rights reserved.
+ */
+
+package com.arjuna.dbplugins.azure.benchmarks;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import com.arjuna.dbplugins.azure.sqlserver.AzureSQLServerDataService;
+
+/**
+ * Drives AzureSQLServerDataService through its data consumer methods against an embedded
+ * H2 database standing in for SQL Server, see EmbeddedSQLServerDriver. Payloads are JSON
+ * arrays of records; run with -prof gc for allocation rate per op. Each insert mode, one
+ * statement per record, batched statements and bulk copy, is measured in turn, bytes/sec
+ * giving the ingest rate. Bulk copy needs a real server: set the system properties
+ * benchmark.sqlserver.server, .database, .user and .password, passed with -jvmArgsAppend,
+ * to run every mode against one, otherwise the bulk copy runs fail.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(value = 1, jvmArgsAppend = { "-Xms4g", "-Xmx4g" })
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 10)
+public class AzureSQLServerDataServiceBenchmark
+{
+    private static final String TABLE_NAME = "benchmark";
+
+    private static final String SERVER_PROPERTYNAME   = "benchmark.sqlserver.server";
+    private static final String DATABASE_PROPERTYNAME = "benchmark.sqlserver.database";
+    private static final String USER_PROPERTYNAME     = "benchmark.sqlserver.user";
+    private static final String PASSWORD_PROPERTYNAME = "benchmark.sqlserver.password";
+
+    private static final String SINGLE_INSERTMODE   = "Single";
+    private static final String BATCH_INSERTMODE    = "Batch";
+    private static final String BULKCOPY_INSERTMODE = "BulkCopy";
+
+    @Param({ "100", "4096", "1048576", "16777216" })
+    public int payloadSize;
+
+    @Param({ SINGLE_INSERTMODE, BATCH_INSERTMODE, BULKCOPY_INSERTMODE })
+    public String insertMode;
+
+    @Param({ "1000" })
+    public int batchSize;
+
+    @Setup
+    public void setup()
+        throws Exception
+    {
+        _serverName = System.getProperty(SERVER_PROPERTYNAME);
+        if (_serverName == null)
+        {
+            EmbeddedSQLServerDriver.register();
+            execute("CREATE TABLE IF NOT EXISTS [" + TABLE_NAME + "] ([id] BIGINT, [name] VARCHAR(64), [amount] DOUBLE)");
+
+            _serverName   = "localhost";
+            _databaseName = "benchmark";
+            _user         = "benchmark";
+            _password     = "benchmark";
+        }
+        else
+        {
+            _databaseName = System.getProperty(DATABASE_PROPERTYNAME, "benchmark");
+            _user         = System.getProperty(USER_PROPERTYNAME);
+            _password     = System.getProperty(PASSWORD_PROPERTYNAME);
+            execute("IF OBJECT_ID(N'" + TABLE_NAME + "', N'U') IS NULL CREATE TABLE [" + TABLE_NAME + "] ([id] BIGINT, [name] VARCHAR(64), [amount] FLOAT)");
+        }
+
+        Map<String, String> properties = new HashMap<String, String>();
+        properties.put(AzureSQLServerDataService.SERVERNAME_PROPERTYNAME, _serverName);
+        properties.put(AzureSQLServerDataService.DATABASENAME_PROPERTYNAME, _databaseName);
+        properties.put(AzureSQLServerDataService.USER_PROPERTYNAME, _user);
+        properties.put(AzureSQLServerDataService.PASSWORD_PROPERTYNAME, _password);
+        properties.put(AzureSQLServerDataService.TABLENAME_PROPERTYNAME, TABLE_NAME);
+        properties.put(AzureSQLServerDataService.COLUMNMAPPING_PROPERTYNAME, "id,name,amount");
+        properties.put(AzureSQLServerDataService.RECORDFORMAT_PROPERTYNAME, "JSON");
+        if (SINGLE_INSERTMODE.equals(insertMode))
+        {
+            properties.put(AzureSQLServerDataService.INSERTMODE_PROPERTYNAME, "Batch");
+            properties.put(AzureSQLServerDataService.BATCHSIZE_PROPERTYNAME, "1");
+        }
+        else
+        {
+            properties.put(AzureSQLServerDataService.INSERTMODE_PROPERTYNAME, BULKCOPY_INSERTMODE.equals(insertMode) ? "Bulk Copy" : "Batch");
+            properties.put(AzureSQLServerDataService.BATCHSIZE_PROPERTYNAME, Integer.toString(batchSize));
+        }
+
+        _azureSQLServerDataService = new AzureSQLServerDataService("benchmark", properties);
+        _azureSQLServerDataService.setup();
+
+        _payloadString = createPayload(payloadSize);
+        _payload       = _payloadString.getBytes("UTF-8");
+    }
+
+    @TearDown(Level.Iteration)
+    public void truncate()
+        throws Exception
+    {
+        execute("TRUNCATE TABLE [" + TABLE_NAME + "]");
+    }
+
+    @TearDown
+    public void teardown()
+    {
+        _azureSQLServerDataService.teardown();
+    }
+
+    @Benchmark
+    public void consumeString(ByteCounters byteCounters)
+    {
+        _azureSQLServerDataService.consumeString(_payloadString);
+        byteCounters.bytes += _payload.length;
+    }
+
+    @Benchmark
+    public void consumeBytes(ByteCounters byteCounters)
+    {
+        _azureSQLServerDataService.consumeBytes(_payload);
+        byteCounters.bytes += _payload.length;
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void consumeBytesThreads4(ByteCounters byteCounters)
+    {
+        _azureSQLServerDataService.consumeBytes(_payload);
+        byteCounters.bytes += _payload.length;
+    }
+
+    @Benchmark
+    @Threads(16)
+    public void consumeBytesThreads16(ByteCounters byteCounters)
+    {
+        _azureSQLServerDataService.consumeBytes(_payload);
+        byteCounters.bytes += _payload.length;
+    }
+
+    @Benchmark
+    public void consumeMap()
+    {
+        Map<String, Object> map = new HashMap<String, Object>();
+        map.put("id", Long.valueOf(1L));
+        map.put("name", "record-1");
+        map.put("amount", Double.valueOf(1.5));
+
+        _azureSQLServerDataService.consumeMap(map);
+    }
+
+    private void execute(String sql)
+        throws SQLException
+    {
+        if (System.getProperty(SERVER_PROPERTYNAME) == null)
+            EmbeddedSQLServerDriver.execute(sql);
+        else
+        {
+            Connection connection = DriverManager.getConnection("jdbc:sqlserver://" + _serverName + ":1433;databaseName=" + _databaseName + ";user=" + _user + ";password=" + _password);
+            try
+            {
+                Statement statement = connection.createStatement();
+                statement.execute(sql);
+                statement.close();
+            }
+            finally
+            {
+                connection.close();
+            }
+        }
+    }
+
+    private static String createPayload(int payloadSize)
+    {
+        StringBuilder payload = new StringBuilder(payloadSize + 64);
+
+        payload.append('[');
+        long id = 0L;
+        do
+        {
+            if (id > 0L)
+                payload.append(',');
+            payload.append("{\"id\":").append(id).append(",\"name\":\"record-").append(id).append("\",\"amount\":").append(id * 0.5).append('}');
+            id++;
+        }
+        while (payload.length() < payloadSize - 1);
+        payload.append(']');
+
+        return payload.toString();
+    }
+
+    private String                    _serverName;
+    private String                    _databaseName;
+    private String                    _user;
+    private String                    _password;
+    private AzureSQLServerDataService _azureSQLServerDataService;
+    private String                    _payloadString;
+    private byte[]                    _payload;
+}
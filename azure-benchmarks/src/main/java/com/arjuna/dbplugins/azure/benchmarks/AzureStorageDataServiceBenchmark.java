@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) 2015, Arjuna Technologies Limited, Newcastle-upon-Tyne, England. All rights reserved.
+ */
+
+package com.arjuna.dbplugins.azure.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import com.arjuna.dbplugins.azure.storage.AzureStorageDataService;
+
+/**
+ * Drives AzureStorageDataService through its data consumer methods against an in-process
+ * blob service stub. To run against Azurite or a real account instead, pass
+ * -jvmArgsAppend "-Dazure.benchmarks.serviceBaseURL=... -Dazure.benchmarks.containerSAS=...".
+ * Run with -prof gc for allocation rate per op.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(value = 1, jvmArgsAppend = { "-Xms4g", "-Xmx4g" })
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 10)
+public class AzureStorageDataServiceBenchmark
+{
+    public static final String SERVICEBASEURL_SYSTEMPROPERTY = "azure.benchmarks.serviceBaseURL";
+    public static final String CONTAINERSAS_SYSTEMPROPERTY   = "azure.benchmarks.containerSAS";
+
+    @Param({ "100", "65536", "4194304", "67108864", "268435456" })
+    public int payloadSize;
+
+    @Param({ AzureStorageDataService.SYNCHRONOUS_UPLOADMODE, AzureStorageDataService.ASYNCHRONOUS_UPLOADMODE })
+    public String uploadMode;
+
+    @Setup
+    public void setup()
+        throws Exception
+    {
+        String serviceBaseURL = System.getProperty(SERVICEBASEURL_SYSTEMPROPERTY);
+        String containerSAS   = System.getProperty(CONTAINERSAS_SYSTEMPROPERTY, "sv=2014-02-14&sr=c&sp=rw&sig=benchmark");
+        if (serviceBaseURL == null)
+        {
+            _blobServiceStub = new BlobServiceStub();
+            serviceBaseURL   = _blobServiceStub.getServiceBaseURL();
+        }
+
+        Map<String, String> properties = new HashMap<String, String>();
+        properties.put(AzureStorageDataService.SERVICEBASEURL_PROPERTYNAME, serviceBaseURL);
+        properties.put(AzureStorageDataService.CONTAINERNAME_PROPERTYNAME, "benchmark");
+        properties.put(AzureStorageDataService.CONTAINERSAS_PROPERTYNAME, containerSAS);
+        properties.put(AzureStorageDataService.UPLOADMODE_PROPERTYNAME, uploadMode);
+        properties.put(AzureStorageDataService.CHUNKTHRESHOLD_PROPERTYNAME, Integer.toString(32 * 1024 * 1024));
+
+        _azureStorageDataService = new AzureStorageDataService("benchmark", properties);
+        _azureStorageDataService.setup();
+
+        _payload = new byte[payloadSize];
+        new Random(payloadSize).nextBytes(_payload);
+    }
+
+    @TearDown
+    public void teardown()
+    {
+        _azureStorageDataService.teardown();
+        if (_blobServiceStub != null)
+            _blobServiceStub.stop();
+    }
+
+    @Benchmark
+    public void consumeBytes(ByteCounters byteCounters)
+    {
+        _azureStorageDataService.consumeBytes(_payload);
+        byteCounters.bytes += _payload.length;
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void consumeBytesThreads4(ByteCounters byteCounters)
+    {
+        _azureStorageDataService.consumeBytes(_payload);
+        byteCounters.bytes += _payload.length;
+    }
+
+    @Benchmark
+    @Threads(16)
+    public void consumeBytesThreads16(ByteCounters byteCounters)
+    {
+        _azureStorageDataService.consumeBytes(_payload);
+        byteCounters.bytes += _payload.length;
+    }
+
+    @Benchmark
+    public void consumeInputStream(ByteCounters byteCounters)
+    {
+        _azureStorageDataService.consumeInputStream(new ByteArrayInputStream(_payload));
+        byteCounters.bytes += _payload.length;
+    }
+
+    @Benchmark
+    public void consumeMap(ByteCounters byteCounters)
+    {
+        Map<String, Object> map = new HashMap<String, Object>();
+        map.put("data", _payload);
+        map.put("filename", "benchmark");
+        map.put("resourcename", "benchmark");
+        map.put("resourceformat", "binary");
+
+        _azureStorageDataService.consumeMap(map);
+        byteCounters.bytes += _payload.length;
+    }
+
+    private BlobServiceStub         _blobServiceStub;
+    private AzureStorageDataService _azureStorageDataService;
+    private byte[]                  _payload;
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2015, Arjuna Technologies Limited, Newcastle-upon-Tyne, England. All rights reserved.
+ */
+
+package com.arjuna.dbplugins.azure.benchmarks;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import com.arjuna.dbplugins.azure.storage.AzureStorageDataService;
+
+/**
+ * Drives AzureStorageDataService with small records batched into blobs, against the in-process
+ * blob service stub, so per record costs are not hidden by upload time. Records include a
+ * non-ASCII character, so they are encoded as UTF-8 in full. Run with -prof gc, where
+ * gc.alloc.rate.norm is the allocation per record, including its share of each batch upload.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(value = 1, jvmArgsAppend = { "-Xms2g", "-Xmx2g" })
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 10)
+public class BlobBatchingBenchmark
+{
+    private static final int BATCH_MAXRECORDS = 10000;
+    private static final int BATCH_MAXBYTES   = 4 * 1024 * 1024;
+
+    @Param({ "100", "1024", "16384" })
+    public int recordSize;
+
+    @Setup
+    public void setup()
+        throws Exception
+    {
+        _blobServiceStub = new BlobServiceStub();
+
+        Map<String, String> properties = new HashMap<String, String>();
+        properties.put(AzureStorageDataService.SERVICEBASEURL_PROPERTYNAME, _blobServiceStub.getServiceBaseURL());
+        properties.put(AzureStorageDataService.CONTAINERNAME_PROPERTYNAME, "benchmark");
+        properties.put(AzureStorageDataService.CONTAINERSAS_PROPERTYNAME, "sv=2014-02-14&sr=c&sp=rw&sig=benchmark");
+        properties.put(AzureStorageDataService.UPLOADMODE_PROPERTYNAME, AzureStorageDataService.ASYNCHRONOUS_UPLOADMODE);
+        properties.put(AzureStorageDataService.BATCHMAXRECORDS_PROPERTYNAME, Integer.toString(BATCH_MAXRECORDS));
+        properties.put(AzureStorageDataService.BATCHMAXBYTES_PROPERTYNAME, Integer.toString(BATCH_MAXBYTES));
+
+        _azureStorageDataService = new AzureStorageDataService("benchmark", properties);
+        _azureStorageDataService.setup();
+
+        StringBuilder record = new StringBuilder(recordSize);
+        while (record.length() < recordSize)
+            record.append("{\"id\":").append(record.length()).append(",\"name\":\"r\u00e9cord\"}");
+        record.setLength(recordSize);
+
+        _record      = record.toString();
+        _recordBytes = _record.getBytes("UTF-8");
+    }
+
+    @TearDown
+    public void teardown()
+    {
+        _azureStorageDataService.teardown();
+        _blobServiceStub.stop();
+    }
+
+    @Benchmark
+    public void consumeString(ByteCounters byteCounters)
+    {
+        _azureStorageDataService.consumeString(_record);
+        byteCounters.bytes += _recordBytes.length;
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void consumeStringThreads4(ByteCounters byteCounters)
+    {
+        _azureStorageDataService.consumeString(_record);
+        byteCounters.bytes += _recordBytes.length;
+    }
+
+    private BlobServiceStub         _blobServiceStub;
+    private AzureStorageDataService _azureStorageDataService;
+    private String                  _record;
+    private byte[]                  _recordBytes;
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) 2015, Arjuna Technologies Limited, Newcastle-upon-Tyne, England. All rights reserved.
+ */
+
+package com.arjuna.dbplugins.azure.benchmarks;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import com.arjuna.dbplugins.azure.storage.AzureStorageDataService;
+
+/**
+ * Compares blob naming schemes against a blob service stub modelling range partitions, each
+ * serving one request at a time for PARTITION_SERVICETIME microseconds, keyed by the first
+ * PARTITION_KEYLENGTH characters of the blob name. Sequential and time bucketed names share a
+ * partition, so throughput stays at one partition's capacity however many threads write;
+ * with a hash prefix writes spread over partitions and throughput scales with threads. The
+ * partitions written to are reported alongside ops/s.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(value = 1, jvmArgsAppend = { "-Xms2g", "-Xmx2g" })
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 10)
+public class BlobNamingBenchmark
+{
+    private static final int  PARTITION_KEYLENGTH   = 2;
+    private static final long PARTITION_SERVICETIME = 1000L;
+    private static final int  PAYLOAD_SIZE          = 1024;
+
+    @Param({ AzureStorageDataService.SEQUENCE_BLOBNAMING, AzureStorageDataService.UUID_BLOBNAMING })
+    public String blobNaming;
+
+    @Param({ "", "yyyy/MM/dd/HH" })
+    public String blobNameTimeBucket;
+
+    @Param({ "0", "2" })
+    public int blobNameHashPrefix;
+
+    @Setup
+    public void setup()
+        throws Exception
+    {
+        _blobServiceStub = new BlobServiceStub(PARTITION_KEYLENGTH, PARTITION_SERVICETIME);
+
+        Map<String, String> properties = new HashMap<String, String>();
+        properties.put(AzureStorageDataService.SERVICEBASEURL_PROPERTYNAME, _blobServiceStub.getServiceBaseURL());
+        properties.put(AzureStorageDataService.CONTAINERNAME_PROPERTYNAME, "benchmark");
+        properties.put(AzureStorageDataService.CONTAINERSAS_PROPERTYNAME, "sv=2014-02-14&sr=c&sp=rw&sig=benchmark");
+        properties.put(AzureStorageDataService.UPLOADMODE_PROPERTYNAME, AzureStorageDataService.SYNCHRONOUS_UPLOADMODE);
+        properties.put(AzureStorageDataService.BLOBNAMING_PROPERTYNAME, blobNaming);
+        properties.put(AzureStorageDataService.BLOBNAMEBUCKET_PROPERTYNAME, blobNameTimeBucket);
+        properties.put(AzureStorageDataService.BLOBNAMEHASH_PROPERTYNAME, Integer.toString(blobNameHashPrefix));
+
+        _azureStorageDataService = new AzureStorageDataService("benchmark", properties);
+        _azureStorageDataService.setup();
+
+        _payload = new byte[PAYLOAD_SIZE];
+        new Random(PAYLOAD_SIZE).nextBytes(_payload);
+
+        _reportedPartitionCount = new AtomicInteger();
+    }
+
+    @Setup(Level.Iteration)
+    public void resetPartitionCount()
+    {
+        _reportedPartitionCount.set(0);
+    }
+
+    @TearDown
+    public void teardown()
+    {
+        _azureStorageDataService.teardown();
+        _blobServiceStub.stop();
+    }
+
+    @Benchmark
+    public void consumeBytes(PartitionCounters partitionCounters)
+    {
+        _azureStorageDataService.consumeBytes(_payload);
+        countPartitions(partitionCounters);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void consumeBytesThreads4(PartitionCounters partitionCounters)
+    {
+        _azureStorageDataService.consumeBytes(_payload);
+        countPartitions(partitionCounters);
+    }
+
+    @Benchmark
+    @Threads(16)
+    public void consumeBytesThreads16(PartitionCounters partitionCounters)
+    {
+        _azureStorageDataService.consumeBytes(_payload);
+        countPartitions(partitionCounters);
+    }
+
+    @Benchmark
+    @Threads(64)
+    public void consumeBytesThreads64(PartitionCounters partitionCounters)
+    {
+        _azureStorageDataService.consumeBytes(_payload);
+        countPartitions(partitionCounters);
+    }
+
+    // Partitions first seen in an iteration are counted by whichever thread sees them
+    private void countPartitions(PartitionCounters partitionCounters)
+    {
+        int partitionCount         = _blobServiceStub.getPartitionCount();
+        int reportedPartitionCount = _reportedPartitionCount.get();
+        while (reportedPartitionCount < partitionCount)
+        {
+            if (_reportedPartitionCount.compareAndSet(reportedPartitionCount, partitionCount))
+                partitionCounters.partitions += partitionCount - reportedPartitionCount;
+            reportedPartitionCount = _reportedPartitionCount.get();
+        }
+    }
+
+    private BlobServiceStub         _blobServiceStub;
+    private AzureStorageDataService _azureStorageDataService;
+    private byte[]                  _payload;
+    private AtomicInteger           _reportedPartitionCount;
+}
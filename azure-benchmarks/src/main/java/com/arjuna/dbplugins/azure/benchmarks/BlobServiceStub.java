@@ -0,0 +1,187 @@
+/*
+ * Copyright (c) 2015, Arjuna Technologies Limited, Newcastle-upon-Tyne, England. All rights reserved.
+ */
+
+package com.arjuna.dbplugins.azure.benchmarks;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * In-process stand-in for the Azure blob service, accepting blob, block and block list
+ * PUTs and discarding their content, so benchmarks measure the plugin rather than the network.
+ * Optionally models range partitioning: blobs whose names share a leading key are served by
+ * one partition, which handles one request at a time, taking the given service time for each.
+ */
+public class BlobServiceStub
+{
+    public static final String ACCOUNT_NAME = "devstoreaccount1";
+
+    private static final int DISCARDBUFFER_SIZE = 64 * 1024;
+
+    public BlobServiceStub()
+        throws IOException
+    {
+        this(0, 0L);
+    }
+
+    public BlobServiceStub(int partitionKeyLength, long partitionServiceTime)
+        throws IOException
+    {
+        _partitionKeyLength   = partitionKeyLength;
+        _partitionServiceTime = partitionServiceTime;
+        _partitions           = new ConcurrentHashMap<String, Object>();
+        _requestCount         = new AtomicLong();
+        _byteCount            = new AtomicLong();
+
+        _discardBuffer = new ThreadLocal<byte[]>()
+        {
+            @Override
+            protected byte[] initialValue()
+            {
+                return new byte[DISCARDBUFFER_SIZE];
+            }
+        };
+
+        _executorService = Executors.newCachedThreadPool(new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable runnable)
+            {
+                Thread thread = new Thread(runnable, "BlobServiceStub");
+                thread.setDaemon(true);
+
+                return thread;
+            }
+        });
+
+        _httpServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        _httpServer.createContext("/", new HttpHandler()
+        {
+            @Override
+            public void handle(HttpExchange exchange)
+                throws IOException
+            {
+                handleRequest(exchange);
+            }
+        });
+        _httpServer.setExecutor(_executorService);
+        _httpServer.start();
+    }
+
+    public String getServiceBaseURL()
+    {
+        return "http://127.0.0.1:" + _httpServer.getAddress().getPort() + "/" + ACCOUNT_NAME;
+    }
+
+    public int getPartitionCount()
+    {
+        return _partitions.size();
+    }
+
+    public long getRequestCount()
+    {
+        return _requestCount.get();
+    }
+
+    public long getByteCount()
+    {
+        return _byteCount.get();
+    }
+
+    public void stop()
+    {
+        _httpServer.stop(0);
+        _executorService.shutdownNow();
+    }
+
+    private void handleRequest(HttpExchange exchange)
+        throws IOException
+    {
+        try
+        {
+            InputStream requestBody = exchange.getRequestBody();
+            byte[]      buffer      = _discardBuffer.get();
+            long        length      = 0L;
+            int         read        = requestBody.read(buffer);
+            while (read >= 0)
+            {
+                length += read;
+                read    = requestBody.read(buffer);
+            }
+            _requestCount.incrementAndGet();
+            _byteCount.addAndGet(length);
+
+            if (_partitionKeyLength > 0)
+                servePartition(exchange.getRequestURI().getPath());
+
+            SimpleDateFormat dateFormat = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+            dateFormat.setTimeZone(TimeZone.getTimeZone("GMT"));
+            String date = dateFormat.format(new Date());
+
+            Headers responseHeaders = exchange.getResponseHeaders();
+            responseHeaders.set("x-ms-request-id", Long.toString(_requestCount.get()));
+            responseHeaders.set("x-ms-version", "2014-02-14");
+            responseHeaders.set("Date", date);
+            if ("PUT".equals(exchange.getRequestMethod()))
+            {
+                responseHeaders.set("ETag", "\"0x" + Long.toHexString(System.nanoTime()) + "\"");
+                responseHeaders.set("Last-Modified", date);
+                exchange.sendResponseHeaders(201, -1);
+            }
+            else
+                exchange.sendResponseHeaders(404, -1);
+        }
+        finally
+        {
+            exchange.close();
+        }
+    }
+
+    private void servePartition(String path)
+    {
+        // Path is /account/container/blob
+        int    blobStart    = path.indexOf('/', path.indexOf('/', 1) + 1) + 1;
+        String partitionKey = path.substring(blobStart, Math.min(path.length(), blobStart + _partitionKeyLength));
+
+        Object partition = _partitions.get(partitionKey);
+        if (partition == null)
+        {
+            Object newPartition = new Object();
+            partition = _partitions.putIfAbsent(partitionKey, newPartition);
+            if (partition == null)
+                partition = newPartition;
+        }
+
+        synchronized (partition)
+        {
+            LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(_partitionServiceTime));
+        }
+    }
+
+    private int                               _partitionKeyLength;
+    private long                              _partitionServiceTime;
+    private ConcurrentHashMap<String, Object> _partitions;
+    private AtomicLong                        _requestCount;
+    private AtomicLong                        _byteCount;
+    private ThreadLocal<byte[]>               _discardBuffer;
+    private ExecutorService                   _executorService;
+    private HttpServer                        _httpServer;
+}
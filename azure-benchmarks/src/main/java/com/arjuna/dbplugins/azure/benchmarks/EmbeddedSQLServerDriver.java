@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) 2015, Arjuna Technologies Limited, Newcastle-upon-Tyne, England. All rights reserved.
+ */
+
+package com.arjuna.dbplugins.azure.benchmarks;
+
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.DriverManager;
+import java.sql.DriverPropertyInfo;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Statement;
+import java.util.Enumeration;
+import java.util.Properties;
+import java.util.logging.Logger;
+
+/**
+ * Takes over "jdbc:sqlserver:" URLs from the SQL Server driver and routes them to an in-memory
+ * H2 database in SQL Server compatibility mode, so the SQL Server data service can be driven
+ * unmodified without a database server.
+ */
+public class EmbeddedSQLServerDriver implements Driver
+{
+    public static final String URL_PREFIX   = "jdbc:sqlserver:";
+    public static final String EMBEDDED_URL = "jdbc:h2:mem:azurebenchmark;MODE=MSSQLServer;DB_CLOSE_DELAY=-1";
+
+    private static EmbeddedSQLServerDriver driver = null;
+
+    public static synchronized void register()
+        throws SQLException
+    {
+        if (driver == null)
+        {
+            driver = new EmbeddedSQLServerDriver();
+
+            Enumeration<Driver> drivers = DriverManager.getDrivers();
+            while (drivers.hasMoreElements())
+            {
+                Driver registeredDriver = drivers.nextElement();
+                if (registeredDriver.acceptsURL(URL_PREFIX))
+                    DriverManager.deregisterDriver(registeredDriver);
+            }
+            DriverManager.registerDriver(driver);
+        }
+    }
+
+    public static void execute(String sql)
+        throws SQLException
+    {
+        Connection connection = DriverManager.getConnection(EMBEDDED_URL);
+        try
+        {
+            Statement statement = connection.createStatement();
+            statement.execute(sql);
+            statement.close();
+        }
+        finally
+        {
+            connection.close();
+        }
+    }
+
+    @Override
+    public Connection connect(String url, Properties info)
+        throws SQLException
+    {
+        if (acceptsURL(url))
+            return DriverManager.getConnection(EMBEDDED_URL);
+        else
+            return null;
+    }
+
+    @Override
+    public boolean acceptsURL(String url)
+    {
+        return (url != null) && url.startsWith(URL_PREFIX);
+    }
+
+    @Override
+    public DriverPropertyInfo[] getPropertyInfo(String url, Properties info)
+    {
+        return new DriverPropertyInfo[0];
+    }
+
+    @Override
+    public int getMajorVersion()
+    {
+        return 1;
+    }
+
+    @Override
+    public int getMinorVersion()
+    {
+        return 0;
+    }
+
+    @Override
+    public boolean jdbcCompliant()
+    {
+        return false;
+    }
+
+    @Override
+    public Logger getParentLogger()
+        throws SQLFeatureNotSupportedException
+    {
+        throw new SQLFeatureNotSupportedException();
+    }
+}
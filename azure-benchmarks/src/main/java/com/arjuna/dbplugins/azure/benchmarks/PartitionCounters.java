@@ -0,0 +1,29 @@
+/*
+ * Copyright (c) 2015, Arjuna Technologies Limited, Newcastle-upon-Tyne, England. All rights reserved.
+ */
+
+package com.arjuna.dbplugins.azure.benchmarks;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Per-thread count of blob service stub partitions seen written to, reported by JMH as the
+ * number of partitions a benchmark spread its writes over. JMH sums the count over threads and
+ * measurement iterations, so divide by the iteration count.
+ */
+@State(Scope.Thread)
+@AuxCounters(AuxCounters.Type.EVENTS)
+public class PartitionCounters
+{
+    public long partitions;
+
+    @Setup(Level.Iteration)
+    public void reset()
+    {
+        partitions = 0L;
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright (c) 2015, Arjuna Technologies Limited, Newcastle-upon-Tyne, England. All rights reserved.
+ */
+
+package com.arjuna.dbplugins.azure.benchmarks;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import com.arjuna.dbplugins.azure.common.CircuitBreaker;
+import com.arjuna.dbplugins.azure.common.ResilientExecutor;
+import com.arjuna.dbplugins.azure.common.RetryPolicy;
+import com.arjuna.dbplugins.azure.common.ServiceMetrics;
+import com.arjuna.dbplugins.azure.storage.AzureQueueStorageDataService;
+import com.arjuna.dbplugins.azure.storage.QueueMessage;
+import com.arjuna.dbplugins.azure.storage.QueueMessageHandler;
+import com.arjuna.dbplugins.azure.storage.QueueSender;
+import com.arjuna.dbplugins.azure.storage.QueueSource;
+import com.arjuna.dbplugins.azure.storage.StorageErrorClassifier;
+import com.microsoft.azure.storage.CloudStorageAccount;
+import com.microsoft.azure.storage.queue.CloudQueue;
+
+/**
+ * Measures queue throughput, in messages per second, against the local storage emulator
+ * (Azurite) by default, or the account in -jvmArgsAppend "-Dazure.benchmarks.queueConnection=...".
+ * send drives AzureQueueStorageDataService.consumeBytes, which returns once a message is in
+ * flight, so in steady state measures the rate messages are added. receive takes messages
+ * emitted by a queue source from a queue filled beforehand with PREFILL_COUNT messages, so
+ * measurement must end before it is drained.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(value = 1, jvmArgsAppend = { "-Xms2g", "-Xmx2g" })
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 10)
+public class QueueBenchmark
+{
+    public static final String QUEUECONNECTION_SYSTEMPROPERTY = "azure.benchmarks.queueConnection";
+
+    private static final String DEFAULT_QUEUECONNECTION = "UseDevelopmentStorage=true";
+    private static final int    PAYLOAD_SIZE            = 1024;
+    private static final int    PREFILL_COUNT           = 500000;
+    private static final long   RECEIVE_TIMEOUT         = 10000L;
+
+    @State(Scope.Benchmark)
+    public static class SendState
+    {
+        @Param({ "1", "8", "32" })
+        public int sendConcurrency;
+
+        @Setup
+        public void setup()
+        {
+            Map<String, String> properties = new HashMap<String, String>();
+            properties.put(AzureQueueStorageDataService.STORAGECONNECTION_PROPERTYNAME, System.getProperty(QUEUECONNECTION_SYSTEMPROPERTY, DEFAULT_QUEUECONNECTION));
+            properties.put(AzureQueueStorageDataService.QUEUENAME_PROPERTYNAME, "benchmark-send-" + System.currentTimeMillis());
+            properties.put(AzureQueueStorageDataService.SENDCONCURRENCY_PROPERTYNAME, Integer.toString(sendConcurrency));
+            properties.put(AzureQueueStorageDataService.SENDMAXINFLIGHT_PROPERTYNAME, Integer.toString(8 * sendConcurrency));
+
+            _azureQueueStorageDataService = new AzureQueueStorageDataService("benchmark", properties);
+            _azureQueueStorageDataService.setup();
+
+            _payload = new byte[PAYLOAD_SIZE];
+            new Random(PAYLOAD_SIZE).nextBytes(_payload);
+        }
+
+        @TearDown
+        public void teardown()
+        {
+            _azureQueueStorageDataService.teardown();
+        }
+
+        private AzureQueueStorageDataService _azureQueueStorageDataService;
+        private byte[]                       _payload;
+    }
+
+    @State(Scope.Benchmark)
+    public static class ReceiveState
+    {
+        @Param({ "1", "4", "16" })
+        public int receiveConcurrency;
+
+        @Setup
+        public void setup()
+            throws Exception
+        {
+            CloudStorageAccount storageAccount = CloudStorageAccount.parse(System.getProperty(QUEUECONNECTION_SYSTEMPROPERTY, DEFAULT_QUEUECONNECTION));
+            CloudQueue          queue          = storageAccount.createCloudQueueClient().getQueueReference("benchmark-receive-" + System.currentTimeMillis());
+            queue.createIfNotExists();
+
+            RetryPolicy       retryPolicy       = new RetryPolicy(5, 100L, 5000L);
+            ResilientExecutor resilientExecutor = new ResilientExecutor("benchmark", retryPolicy, new CircuitBreaker("benchmark", 100, 1000L), new StorageErrorClassifier());
+
+            byte[] payload = new byte[PAYLOAD_SIZE];
+            new Random(PAYLOAD_SIZE).nextBytes(payload);
+
+            QueueSender queueSender = new QueueSender("benchmark", queue, 32, 256, null, resilientExecutor, new ServiceMetrics("QueueBenchmark"));
+            for (int messageIndex = 0; messageIndex < PREFILL_COUNT; messageIndex++)
+                queueSender.send(payload);
+            queueSender.shutdown(Long.MAX_VALUE);
+
+            _receivedMessages = new LinkedBlockingQueue<QueueMessage>(1024);
+            QueueMessageHandler queueMessageHandler = new QueueMessageHandler()
+            {
+                @Override
+                public void received(QueueMessage queueMessage)
+                {
+                    try
+                    {
+                        _receivedMessages.put(queueMessage);
+                    }
+                    catch (InterruptedException interruptedException)
+                    {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            };
+
+            _queueSource = new QueueSource("benchmark", queue, receiveConcurrency, 256, 60000L, 8, 100L, resilientExecutor, queueMessageHandler);
+        }
+
+        @TearDown
+        public void teardown()
+        {
+            _queueSource.shutdown(30000L);
+        }
+
+        private QueueSource                 _queueSource;
+        private BlockingQueue<QueueMessage> _receivedMessages;
+    }
+
+    @Benchmark
+    public void send(SendState sendState)
+    {
+        sendState._azureQueueStorageDataService.consumeBytes(sendState._payload);
+    }
+
+    @Benchmark
+    public QueueMessage receive(ReceiveState receiveState)
+        throws InterruptedException
+    {
+        QueueMessage queueMessage = receiveState._receivedMessages.poll(RECEIVE_TIMEOUT, TimeUnit.MILLISECONDS);
+        if (queueMessage == null)
+            throw new IllegalStateException("No message received, queue drained or unreachable");
+
+        return queueMessage;
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright (c) 2015, Arjuna Technologies Limited, Newcastle-upon-Tyne, England. All rights reserved.
+ */
+
+package com.arjuna.dbplugins.azure.common;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * A small file whose contents are replaced whole. Each write goes to a temporary file alongside,
+ * which is synced and then renamed into place, so a crash leaves either the previous or the new
+ * contents, never a mixture.
+ */
+public class AtomicFile
+{
+    private static final String TEMPFILE_SUFFIX = ".tmp";
+
+    public AtomicFile(File file)
+    {
+        _file     = file;
+        _tempFile = new File(file.getPath() + TEMPFILE_SUFFIX);
+    }
+
+    // Returns null if the file has not been written
+    public byte[] read()
+        throws IOException
+    {
+        if (! _file.exists())
+            return null;
+
+        return Files.readAllBytes(_file.toPath());
+    }
+
+    public void write(byte[] data)
+        throws IOException
+    {
+        FileOutputStream output = new FileOutputStream(_tempFile);
+        try
+        {
+            output.write(data);
+            output.getFD().sync();
+        }
+        finally
+        {
+            output.close();
+        }
+        Files.move(_tempFile.toPath(), _file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private File _file;
+    private File _tempFile;
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) 2015, Arjuna Technologies Limited, Newcastle-upon-Tyne, England. All rights reserved.
+ */
+
+package com.arjuna.dbplugins.azure.common;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Opens after a run of consecutive transient failures, rejecting requests until the open
+ * duration has passed, then lets a single trial request through to decide whether to close.
+ */
+public class CircuitBreaker
+{
+    private static final Logger logger = Logger.getLogger(CircuitBreaker.class.getName());
+
+    public enum State
+    {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    public CircuitBreaker(String name, int failureThreshold, long openDuration)
+    {
+        _name                = name;
+        _failureThreshold    = Math.max(failureThreshold, 1);
+        _openDuration        = openDuration;
+        _state               = State.CLOSED;
+        _consecutiveFailures = 0;
+        _openedTime          = 0L;
+        _trialInProgress     = false;
+        _openedCount         = 0L;
+        _rejectedCount       = 0L;
+    }
+
+    public synchronized boolean allowRequest()
+    {
+        if ((_state == State.OPEN) && (System.currentTimeMillis() - _openedTime >= _openDuration))
+        {
+            logger.log(Level.INFO, "Circuit breaker half open: " + _name);
+            _state           = State.HALF_OPEN;
+            _trialInProgress = false;
+        }
+
+        if ((_state == State.OPEN) || ((_state == State.HALF_OPEN) && _trialInProgress))
+        {
+            _rejectedCount++;
+            return false;
+        }
+
+        if (_state == State.HALF_OPEN)
+            _trialInProgress = true;
+
+        return true;
+    }
+
+    public synchronized void recordSuccess()
+    {
+        if (_state != State.CLOSED)
+            logger.log(Level.INFO, "Circuit breaker closed: " + _name);
+
+        _state               = State.CLOSED;
+        _consecutiveFailures = 0;
+        _trialInProgress     = false;
+    }
+
+    public synchronized void recordFailure()
+    {
+        _consecutiveFailures++;
+        if ((_state == State.HALF_OPEN) || ((_state == State.CLOSED) && (_consecutiveFailures >= _failureThreshold)))
+        {
+            logger.log(Level.WARNING, "Circuit breaker open: " + _name + ", after " + _consecutiveFailures + " consecutive failures");
+            _state           = State.OPEN;
+            _openedTime      = System.currentTimeMillis();
+            _trialInProgress = false;
+            _openedCount++;
+        }
+    }
+
+    public synchronized void recordAbandoned()
+    {
+        _trialInProgress = false;
+    }
+
+    public synchronized State getState()
+    {
+        return _state;
+    }
+
+    public synchronized long getOpenedCount()
+    {
+        return _openedCount;
+    }
+
+    public synchronized long getRejectedCount()
+    {
+        return _rejectedCount;
+    }
+
+    private String  _name;
+    private int     _failureThreshold;
+    private long    _openDuration;
+    private State   _state;
+    private int     _consecutiveFailures;
+    private long    _openedTime;
+    private boolean _trialInProgress;
+    private long    _openedCount;
+    private long    _rejectedCount;
+}
@@ -0,0 +1,15 @@
+/*
+ * Copyright (c) 2015, Arjuna Technologies Limited, Newcastle-upon-Tyne, England. All rights reserved.
+ */
+
+package com.arjuna.dbplugins.azure.common;
+
+public class CircuitBreakerOpenException extends Exception
+{
+    private static final long serialVersionUID = 4726871094431255318L;
+
+    public CircuitBreakerOpenException(String message)
+    {
+        super(message);
+    }
+}
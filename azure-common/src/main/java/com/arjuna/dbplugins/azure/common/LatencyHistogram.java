@@ -0,0 +1,121 @@
+/*
+ * Copyright (c) 2015, Arjuna Technologies Limited, Newcastle-upon-Tyne, England. All rights reserved.
+ */
+
+package com.arjuna.dbplugins.azure.common;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free latency histogram with exponential buckets, each power of two split into
+ * four linear sub-buckets, giving percentiles to within 25% at any scale.
+ */
+public class LatencyHistogram
+{
+    private static final int SUBBUCKET_BITS  = 2;
+    private static final int SUBBUCKET_COUNT = 1 << SUBBUCKET_BITS;
+    private static final int BUCKET_COUNT    = (64 - SUBBUCKET_BITS) * SUBBUCKET_COUNT;
+
+    public LatencyHistogram()
+    {
+        _buckets = new AtomicLongArray(BUCKET_COUNT);
+        _count   = new AtomicLong();
+        _total   = new AtomicLong();
+        _maximum = new AtomicLong();
+    }
+
+    public void record(long nanos)
+    {
+        if (nanos < 0L)
+            nanos = 0L;
+
+        _buckets.incrementAndGet(bucketIndex(nanos));
+        _count.incrementAndGet();
+        _total.addAndGet(nanos);
+
+        long maximum = _maximum.get();
+        while ((nanos > maximum) && (! _maximum.compareAndSet(maximum, nanos)))
+            maximum = _maximum.get();
+    }
+
+    public long getCount()
+    {
+        return _count.get();
+    }
+
+    public long getMean()
+    {
+        long count = _count.get();
+
+        return (count == 0L) ? 0L : (_total.get() / count);
+    }
+
+    public long getMaximum()
+    {
+        return _maximum.get();
+    }
+
+    public long getPercentile(double percentile)
+    {
+        long   count        = 0L;
+        long[] bucketCounts = new long[BUCKET_COUNT];
+        for (int bucketIndex = 0; bucketIndex < BUCKET_COUNT; bucketIndex++)
+        {
+            bucketCounts[bucketIndex] = _buckets.get(bucketIndex);
+            count += bucketCounts[bucketIndex];
+        }
+        if (count == 0L)
+            return 0L;
+
+        long target     = (long) Math.ceil(count * percentile / 100.0);
+        long cumulative = 0L;
+        for (int bucketIndex = 0; bucketIndex < BUCKET_COUNT; bucketIndex++)
+        {
+            cumulative += bucketCounts[bucketIndex];
+            if (cumulative >= target)
+                return Math.min(bucketUpperBound(bucketIndex), _maximum.get());
+        }
+
+        return _maximum.get();
+    }
+
+    public void reset()
+    {
+        for (int bucketIndex = 0; bucketIndex < BUCKET_COUNT; bucketIndex++)
+            _buckets.set(bucketIndex, 0L);
+        _count.set(0L);
+        _total.set(0L);
+        _maximum.set(0L);
+    }
+
+    private static int bucketIndex(long value)
+    {
+        if (value < SUBBUCKET_COUNT)
+            return (int) value;
+
+        int exponent    = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket   = (int) (value >>> (exponent - SUBBUCKET_BITS)) & (SUBBUCKET_COUNT - 1);
+        int bucketIndex = ((exponent - SUBBUCKET_BITS + 1) << SUBBUCKET_BITS) + subBucket;
+
+        return Math.min(bucketIndex, BUCKET_COUNT - 1);
+    }
+
+    private static long bucketUpperBound(int bucketIndex)
+    {
+        if (bucketIndex < SUBBUCKET_COUNT)
+            return bucketIndex;
+
+        int exponent  = (bucketIndex >>> SUBBUCKET_BITS) + SUBBUCKET_BITS - 1;
+        int subBucket = bucketIndex & (SUBBUCKET_COUNT - 1);
+        if (exponent >= 62)
+            return Long.MAX_VALUE;
+
+        return ((long) (SUBBUCKET_COUNT + subBucket + 1) << (exponent - SUBBUCKET_BITS)) - 1L;
+    }
+
+    private AtomicLongArray _buckets;
+    private AtomicLong      _count;
+    private AtomicLong      _total;
+    private AtomicLong      _maximum;
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright (c) 2015, Arjuna Technologies Limited, Newcastle-upon-Tyne, England. All rights reserved.
+ */
+
+package com.arjuna.dbplugins.azure.common;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs calls to an Azure endpoint through a circuit breaker, retrying those failing with
+ * transient errors according to the retry policy. Permanent errors are not retried and,
+ * since the endpoint answered, do not count against the circuit breaker.
+ */
+public class ResilientExecutor
+{
+    private static final Logger logger = Logger.getLogger(ResilientExecutor.class.getName());
+
+    public ResilientExecutor(String name, RetryPolicy retryPolicy, CircuitBreaker circuitBreaker, ErrorClassifier errorClassifier)
+    {
+        _name                  = name;
+        _retryPolicy           = retryPolicy;
+        _circuitBreaker        = circuitBreaker;
+        _errorClassifier       = errorClassifier;
+        _retryCount            = new AtomicLong();
+        _transientFailureCount = new AtomicLong();
+        _permanentFailureCount = new AtomicLong();
+    }
+
+    public <T> T execute(Callable<T> callable)
+        throws Exception
+    {
+        return execute(callable, _retryPolicy.getMaxAttempts());
+    }
+
+    public <T> T executeOnce(Callable<T> callable)
+        throws Exception
+    {
+        return execute(callable, 1);
+    }
+
+    public boolean isTransient(Throwable throwable)
+    {
+        return (throwable instanceof CircuitBreakerOpenException) || _errorClassifier.isTransient(throwable);
+    }
+
+    public RetryPolicy getRetryPolicy()
+    {
+        return _retryPolicy;
+    }
+
+    public CircuitBreaker getCircuitBreaker()
+    {
+        return _circuitBreaker;
+    }
+
+    public long getRetryCount()
+    {
+        return _retryCount.get();
+    }
+
+    public long getTransientFailureCount()
+    {
+        return _transientFailureCount.get();
+    }
+
+    public long getPermanentFailureCount()
+    {
+        return _permanentFailureCount.get();
+    }
+
+    private <T> T execute(Callable<T> callable, int maxAttempts)
+        throws Exception
+    {
+        long delay = 0L;
+        for (int attempt = 1; true; attempt++)
+        {
+            if (! _circuitBreaker.allowRequest())
+                throw new CircuitBreakerOpenException("Circuit breaker open: " + _name);
+
+            try
+            {
+                T result = callable.call();
+                _circuitBreaker.recordSuccess();
+
+                return result;
+            }
+            catch (InterruptedException interruptedException)
+            {
+                _circuitBreaker.recordAbandoned();
+                throw interruptedException;
+            }
+            catch (Throwable throwable)
+            {
+                if (! _errorClassifier.isTransient(throwable))
+                {
+                    _circuitBreaker.recordSuccess();
+                    _permanentFailureCount.incrementAndGet();
+                    throw throwable;
+                }
+
+                _circuitBreaker.recordFailure();
+                _transientFailureCount.incrementAndGet();
+                if (attempt >= maxAttempts)
+                    throw throwable;
+
+                delay = _retryPolicy.nextDelay(delay);
+                _retryCount.incrementAndGet();
+                logger.log(Level.FINE, "Transient failure on " + _name + ", attempt " + attempt + ", retrying in " + delay + "ms", throwable);
+
+                Thread.sleep(delay);
+            }
+        }
+    }
+
+    private String          _name;
+    private RetryPolicy     _retryPolicy;
+    private CircuitBreaker  _circuitBreaker;
+    private ErrorClassifier _errorClassifier;
+    private AtomicLong      _retryCount;
+    private AtomicLong      _transientFailureCount;
+    private AtomicLong      _permanentFailureCount;
+}
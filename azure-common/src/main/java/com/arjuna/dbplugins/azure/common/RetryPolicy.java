@@ -0,0 +1,48 @@
+/*
+ * Copyright (c) 2015, Arjuna Technologies Limited, Newcastle-upon-Tyne, England. All rights reserved.
+ */
+
+package com.arjuna.dbplugins.azure.common;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Exponential backoff with decorrelated jitter: each delay is drawn uniformly between the
+ * base delay and three times the previous delay, capped at the maximum delay.
+ */
+public class RetryPolicy
+{
+    public RetryPolicy(int maxAttempts, long baseDelay, long maxDelay)
+    {
+        _maxAttempts = Math.max(maxAttempts, 1);
+        _baseDelay   = Math.max(baseDelay, 1L);
+        _maxDelay    = Math.max(maxDelay, _baseDelay);
+    }
+
+    public int getMaxAttempts()
+    {
+        return _maxAttempts;
+    }
+
+    public long getBaseDelay()
+    {
+        return _baseDelay;
+    }
+
+    public long getMaxDelay()
+    {
+        return _maxDelay;
+    }
+
+    public long nextDelay(long previousDelay)
+    {
+        long upperBound = Math.max(_baseDelay, Math.min(previousDelay, _maxDelay) * 3L);
+        long delay      = _baseDelay + (long) (ThreadLocalRandom.current().nextDouble() * (upperBound - _baseDelay));
+
+        return Math.min(delay, _maxDelay);
+    }
+
+    private int  _maxAttempts;
+    private long _baseDelay;
+    private long _maxDelay;
+}
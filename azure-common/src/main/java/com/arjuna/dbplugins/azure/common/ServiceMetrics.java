@@ -0,0 +1,289 @@
+/*
+ * Copyright (c) 2015, Arjuna Technologies Limited, Newcastle-upon-Tyne, England. All rights reserved.
+ */
+
+package com.arjuna.dbplugins.azure.common;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+public class ServiceMetrics implements ServiceMetricsMXBean
+{
+    private static final Logger logger = Logger.getLogger(ServiceMetrics.class.getName());
+
+    public static final String OBJECTNAME_DOMAIN = "com.arjuna.dbplugins.azure";
+
+    private static final double NANOS_PER_MILLI = 1000000.0;
+
+    public interface Gauge
+    {
+        public long getValue();
+    }
+
+    public ServiceMetrics(String type)
+    {
+        _type             = type;
+        _messagesIn       = new AtomicLong();
+        _bytesIn          = new AtomicLong();
+        _successes        = new AtomicLong();
+        _failures         = new AtomicLong();
+        _failuresByCause  = new ConcurrentHashMap<String, AtomicLong>();
+        _inFlight         = new AtomicInteger();
+        _latencyHistogram = new LatencyHistogram();
+        _gauges           = new ConcurrentHashMap<String, Gauge>();
+    }
+
+    // Names are qualified by data flow, and a name already taken, by another node, gets an instance number rather than displacing it
+    public synchronized void register(String dataFlowName, String name)
+    {
+        unregister();
+
+        try
+        {
+            StringBuilder baseObjectName = new StringBuilder(OBJECTNAME_DOMAIN).append(":type=").append(_type);
+            if (dataFlowName != null)
+                baseObjectName.append(",dataFlow=").append(ObjectName.quote(dataFlowName));
+            baseObjectName.append(",name=").append(ObjectName.quote(String.valueOf(name)));
+
+            MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+            ObjectName  objectName  = new ObjectName(baseObjectName.toString());
+            for (int instance = 2; _objectName == null; instance++)
+            {
+                try
+                {
+                    mBeanServer.registerMBean(this, objectName);
+                    _objectName = objectName;
+                }
+                catch (InstanceAlreadyExistsException instanceAlreadyExistsException)
+                {
+                    objectName = new ObjectName(baseObjectName + ",instance=" + instance);
+                }
+            }
+        }
+        catch (Throwable throwable)
+        {
+            logger.log(Level.WARNING, "Problems registering metrics MBean for: " + name, throwable);
+        }
+    }
+
+    public synchronized void unregister()
+    {
+        if (_objectName != null)
+        {
+            try
+            {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(_objectName);
+            }
+            catch (Throwable throwable)
+            {
+                logger.log(Level.FINE, "Problems unregistering metrics MBean: " + _objectName, throwable);
+            }
+            _objectName = null;
+        }
+    }
+
+    public void addGauge(String name, Gauge gauge)
+    {
+        _gauges.put(name, gauge);
+    }
+
+    public void recordMessage(long bytes)
+    {
+        _messagesIn.incrementAndGet();
+        if (bytes > 0L)
+            _bytesIn.addAndGet(bytes);
+    }
+
+    public void recordBytes(long bytes)
+    {
+        if (bytes > 0L)
+            _bytesIn.addAndGet(bytes);
+    }
+
+    public long startRequest()
+    {
+        _inFlight.incrementAndGet();
+
+        return System.nanoTime();
+    }
+
+    public void recordSuccess(long startTime)
+    {
+        _inFlight.decrementAndGet();
+        _latencyHistogram.record(System.nanoTime() - startTime);
+        _successes.incrementAndGet();
+    }
+
+    public void recordFailure(long startTime, String cause)
+    {
+        _inFlight.decrementAndGet();
+        _latencyHistogram.record(System.nanoTime() - startTime);
+        recordFailure(cause);
+    }
+
+    public void recordFailure(String cause)
+    {
+        _failures.incrementAndGet();
+
+        AtomicLong causeCount = _failuresByCause.get(cause);
+        if (causeCount == null)
+        {
+            AtomicLong newCauseCount = new AtomicLong();
+            causeCount = _failuresByCause.putIfAbsent(cause, newCauseCount);
+            if (causeCount == null)
+                causeCount = newCauseCount;
+        }
+        causeCount.incrementAndGet();
+    }
+
+    public static String causeOf(Throwable throwable)
+    {
+        return throwable.getClass().getSimpleName();
+    }
+
+    // The length of the string once UTF-8 encoded, without encoding it; an unpaired surrogate is encoded as '?'
+    public static long utf8Length(CharSequence data)
+    {
+        long length = 0L;
+        for (int index = 0; index < data.length(); index++)
+        {
+            char character = data.charAt(index);
+            if (character < 0x80)
+                length += 1;
+            else if (character < 0x800)
+                length += 2;
+            else if (Character.isHighSurrogate(character) && (index + 1 < data.length()) && Character.isLowSurrogate(data.charAt(index + 1)))
+            {
+                length += 4;
+                index++;
+            }
+            else if (Character.isSurrogate(character))
+                length += 1;
+            else
+                length += 3;
+        }
+
+        return length;
+    }
+
+    @Override
+    public long getMessagesIn()
+    {
+        return _messagesIn.get();
+    }
+
+    @Override
+    public long getBytesIn()
+    {
+        return _bytesIn.get();
+    }
+
+    @Override
+    public long getSuccesses()
+    {
+        return _successes.get();
+    }
+
+    @Override
+    public long getFailures()
+    {
+        return _failures.get();
+    }
+
+    @Override
+    public Map<String, Long> getFailuresByCause()
+    {
+        Map<String, Long> failuresByCause = new TreeMap<String, Long>();
+        for (Map.Entry<String, AtomicLong> causeCount: _failuresByCause.entrySet())
+            failuresByCause.put(causeCount.getKey(), causeCount.getValue().get());
+
+        return failuresByCause;
+    }
+
+    @Override
+    public int getInFlight()
+    {
+        return _inFlight.get();
+    }
+
+    @Override
+    public long getRequestCount()
+    {
+        return _latencyHistogram.getCount();
+    }
+
+    @Override
+    public double getLatencyMeanMillis()
+    {
+        return _latencyHistogram.getMean() / NANOS_PER_MILLI;
+    }
+
+    @Override
+    public double getLatencyP50Millis()
+    {
+        return _latencyHistogram.getPercentile(50.0) / NANOS_PER_MILLI;
+    }
+
+    @Override
+    public double getLatencyP99Millis()
+    {
+        return _latencyHistogram.getPercentile(99.0) / NANOS_PER_MILLI;
+    }
+
+    @Override
+    public double getLatencyMaxMillis()
+    {
+        return _latencyHistogram.getMaximum() / NANOS_PER_MILLI;
+    }
+
+    @Override
+    public Map<String, Long> getGauges()
+    {
+        Map<String, Long> gauges = new TreeMap<String, Long>();
+        for (Map.Entry<String, Gauge> gauge: _gauges.entrySet())
+        {
+            try
+            {
+                gauges.put(gauge.getKey(), gauge.getValue().getValue());
+            }
+            catch (Throwable throwable)
+            {
+                logger.log(Level.FINE, "Problems reading gauge: " + gauge.getKey(), throwable);
+            }
+        }
+
+        return gauges;
+    }
+
+    @Override
+    public void reset()
+    {
+        _messagesIn.set(0L);
+        _bytesIn.set(0L);
+        _successes.set(0L);
+        _failures.set(0L);
+        _failuresByCause.clear();
+        _latencyHistogram.reset();
+    }
+
+    private String                            _type;
+    private ObjectName                        _objectName;
+    private AtomicLong                        _messagesIn;
+    private AtomicLong                        _bytesIn;
+    private AtomicLong                        _successes;
+    private AtomicLong                        _failures;
+    private ConcurrentMap<String, AtomicLong> _failuresByCause;
+    private AtomicInteger                     _inFlight;
+    private LatencyHistogram                  _latencyHistogram;
+    private ConcurrentMap<String, Gauge>      _gauges;
+}
@@ -0,0 +1,36 @@
+/*
+ * Copyright (c) 2015, Arjuna Technologies Limited, Newcastle-upon-Tyne, England. All rights reserved.
+ */
+
+package com.arjuna.dbplugins.azure.common;
+
+import java.util.Map;
+
+public interface ServiceMetricsMXBean
+{
+    public long getMessagesIn();
+
+    public long getBytesIn();
+
+    public long getSuccesses();
+
+    public long getFailures();
+
+    public Map<String, Long> getFailuresByCause();
+
+    public int getInFlight();
+
+    public long getRequestCount();
+
+    public double getLatencyMeanMillis();
+
+    public double getLatencyP50Millis();
+
+    public double getLatencyP99Millis();
+
+    public double getLatencyMaxMillis();
+
+    public Map<String, Long> getGauges();
+
+    public void reset();
+}
@@ -0,0 +1,11 @@
+/*
+ * Copyright (c) 2015, Arjuna Technologies Limited, Newcastle-upon-Tyne, England. All rights reserved.
+ */
+
+package com.arjuna.dbplugins.azure.common;
+
+public interface SpillHandler
+{
+    public void replay(byte[] record)
+        throws Exception;
+}
@@ -0,0 +1,496 @@
+/*
+ * Copyright (c) 2015, Arjuna Technologies Limited, Newcastle-upon-Tyne, England. All rights reserved.
+ */
+
+package com.arjuna.dbplugins.azure.common;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only, segmented, on-disk FIFO of records. Appends are made durable with a group
+ * fsync: concurrent appenders wait on a single force of the channel rather than one each.
+ * Records are read back in order and only removed once replayed, the read position being
+ * checkpointed so that, after a restart, replay resumes where it stopped. Replay is at least
+ * once, records replayed just before a crash may be replayed again.
+ */
+public class SpillJournal
+{
+    private static final Logger logger = Logger.getLogger(SpillJournal.class.getName());
+
+    private static final String SEGMENTFILE_SUFFIX  = ".journal";
+    private static final String CHECKPOINTFILE_NAME = "checkpoint";
+    private static final String LOCKFILE_NAME       = "lock";
+    private static final int    HEADER_SIZE         = 16;
+
+    public SpillJournal(String name, File directory, long maxBytes, long segmentSize)
+        throws IOException
+    {
+        _name        = name;
+        _directory   = directory;
+        _maxBytes    = maxBytes;
+        _segmentSize = segmentSize;
+        _segments    = new LinkedList<Segment>();
+        _syncLock    = new Object();
+
+        if ((! _directory.isDirectory()) && (! _directory.mkdirs()))
+            throw new IOException("Unable to create spill journal directory: " + _directory);
+
+        _lockChannel = new RandomAccessFile(new File(_directory, LOCKFILE_NAME), "rw").getChannel();
+        try
+        {
+            _lock = _lockChannel.tryLock();
+        }
+        catch (OverlappingFileLockException overlappingFileLockException)
+        {
+            _lock = null;
+        }
+        if (_lock == null)
+        {
+            _lockChannel.close();
+            throw new IOException("Spill journal directory in use: " + _directory);
+        }
+
+        try
+        {
+            _checkpointChannel = new RandomAccessFile(new File(_directory, CHECKPOINTFILE_NAME), "rw").getChannel();
+            recover();
+        }
+        catch (IOException ioException)
+        {
+            close();
+            throw ioException;
+        }
+    }
+
+    public File getDirectory()
+    {
+        return _directory;
+    }
+
+    public boolean append(byte[] data)
+        throws IOException
+    {
+        long sequence;
+        synchronized (this)
+        {
+            if (_closed)
+                return false;
+
+            int recordSize = HEADER_SIZE + data.length;
+            if (_pendingBytes + recordSize > _maxBytes)
+            {
+                _rejectedCount++;
+                return false;
+            }
+
+            Segment segment = _segments.getLast();
+            if ((segment.size > 0L) && (segment.size + recordSize > _segmentSize))
+                segment = rollSegment();
+
+            CRC32 crc = new CRC32();
+            crc.update(data);
+
+            ByteBuffer buffer = ByteBuffer.allocate(recordSize);
+            buffer.putInt(data.length);
+            buffer.putInt((int) crc.getValue());
+            buffer.putLong(System.currentTimeMillis());
+            buffer.put(data);
+            buffer.flip();
+            while (buffer.hasRemaining())
+                segment.channel.write(buffer, segment.size + buffer.position());
+
+            segment.size  += recordSize;
+            segment.count++;
+            _pendingBytes += recordSize;
+            _pendingCount++;
+            _appendedCount++;
+            sequence = ++_writtenSequence;
+
+            notifyAll();
+        }
+
+        sync(sequence);
+
+        return true;
+    }
+
+    public synchronized byte[] peek(long timeout)
+        throws IOException, InterruptedException
+    {
+        if (_head == null)
+        {
+            _head = readHead();
+            if ((_head == null) && (! _closed) && (timeout > 0L))
+            {
+                wait(timeout);
+                _head = readHead();
+            }
+        }
+
+        return (_head == null) ? null : _head.data;
+    }
+
+    public synchronized void remove()
+        throws IOException
+    {
+        if ((_head == null) || _closed)
+            return;
+
+        _readPosition += _head.size;
+        _readCount++;
+        _pendingBytes -= _head.size;
+        _pendingCount--;
+        _replayedCount++;
+        _head = null;
+
+        writeCheckpoint();
+    }
+
+    public synchronized long getPendingBytes()
+    {
+        return _pendingBytes;
+    }
+
+    public synchronized long getPendingCount()
+    {
+        return _pendingCount;
+    }
+
+    public synchronized long getLag()
+    {
+        if (_pendingCount == 0L)
+            return 0L;
+
+        try
+        {
+            if (_head == null)
+                _head = readHead();
+
+            return (_head == null) ? 0L : System.currentTimeMillis() - _head.timestamp;
+        }
+        catch (IOException ioException)
+        {
+            return 0L;
+        }
+    }
+
+    public synchronized long getAppendedCount()
+    {
+        return _appendedCount;
+    }
+
+    public synchronized long getReplayedCount()
+    {
+        return _replayedCount;
+    }
+
+    public synchronized long getRejectedCount()
+    {
+        return _rejectedCount;
+    }
+
+    public void close()
+    {
+        synchronized (_syncLock)
+        {
+            synchronized (this)
+            {
+                if (_closed)
+                    return;
+                _closed = true;
+                notifyAll();
+
+                for (Segment segment: _segments)
+                {
+                    try
+                    {
+                        segment.channel.force(false);
+                        segment.channel.close();
+                    }
+                    catch (IOException ioException)
+                    {
+                        logger.log(Level.WARNING, "Problems closing spill journal segment: " + segment.file, ioException);
+                    }
+                }
+                _segments.clear();
+
+                try
+                {
+                    if (_checkpointChannel != null)
+                        _checkpointChannel.close();
+                    _lock.release();
+                    _lockChannel.close();
+                }
+                catch (IOException ioException)
+                {
+                    logger.log(Level.WARNING, "Problems closing spill journal: " + _name, ioException);
+                }
+            }
+        }
+    }
+
+    private void sync(long sequence)
+        throws IOException
+    {
+        synchronized (_syncLock)
+        {
+            if (_syncedSequence >= sequence)
+                return;
+
+            long        target;
+            FileChannel channel;
+            synchronized (this)
+            {
+                if (_closed)
+                    return;
+                target  = _writtenSequence;
+                channel = _segments.getLast().channel;
+            }
+
+            channel.force(false);
+            _syncedSequence = target;
+        }
+    }
+
+    private Segment rollSegment()
+        throws IOException
+    {
+        Segment segment = _segments.getLast();
+        segment.channel.force(false);
+
+        Segment nextSegment = openSegment(segment.index + 1L);
+        _segments.add(nextSegment);
+
+        return nextSegment;
+    }
+
+    private Record readHead()
+        throws IOException
+    {
+        while (! _segments.isEmpty())
+        {
+            Segment segment = _segments.getFirst();
+            if (_readPosition < segment.size)
+            {
+                Record record = readRecord(segment, _readPosition, true);
+                if (record != null)
+                    return record;
+
+                logger.log(Level.WARNING, "Corrupt spill journal record, discarding remainder of segment: " + segment.file);
+                _pendingBytes -= segment.size - _readPosition;
+                _pendingCount -= segment.count - _readCount;
+                _readPosition  = segment.size;
+                _readCount     = segment.count;
+            }
+
+            if (segment == _segments.getLast())
+                return null;
+
+            _segments.removeFirst();
+            segment.channel.close();
+            if (! segment.file.delete())
+                logger.log(Level.WARNING, "Unable to delete spill journal segment: " + segment.file);
+            _readPosition = 0L;
+            _readCount    = 0L;
+
+            writeCheckpoint();
+        }
+
+        return null;
+    }
+
+    private Record readRecord(Segment segment, long position, boolean verify)
+        throws IOException
+    {
+        if (position + HEADER_SIZE > segment.size)
+            return null;
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        readFully(segment.channel, header, position);
+        header.flip();
+
+        int  length    = header.getInt();
+        int  checksum  = header.getInt();
+        long timestamp = header.getLong();
+        if ((length < 0) || (position + HEADER_SIZE + length > segment.size))
+            return null;
+
+        byte[] data = new byte[length];
+        readFully(segment.channel, ByteBuffer.wrap(data), position + HEADER_SIZE);
+        if (verify)
+        {
+            CRC32 crc = new CRC32();
+            crc.update(data);
+            if ((int) crc.getValue() != checksum)
+                return null;
+        }
+
+        return new Record(data, timestamp, HEADER_SIZE + length);
+    }
+
+    private void recover()
+        throws IOException
+    {
+        long checkpointIndex    = 0L;
+        long checkpointPosition = 0L;
+        if (_checkpointChannel.size() >= 16L)
+        {
+            ByteBuffer checkpoint = ByteBuffer.allocate(16);
+            readFully(_checkpointChannel, checkpoint, 0L);
+            checkpoint.flip();
+            checkpointIndex    = checkpoint.getLong();
+            checkpointPosition = checkpoint.getLong();
+        }
+
+        File[] files = _directory.listFiles(_segmentFileFilter);
+        if (files == null)
+            files = new File[0];
+        Arrays.sort(files);
+
+        for (File file: files)
+        {
+            long index = Long.parseLong(file.getName().substring(0, file.getName().length() - SEGMENTFILE_SUFFIX.length()));
+            if (index < checkpointIndex)
+            {
+                if (! file.delete())
+                    logger.log(Level.WARNING, "Unable to delete spill journal segment: " + file);
+                continue;
+            }
+
+            Segment segment  = openSegment(index);
+            long    position = 0L;
+            Record  record   = readRecord(segment, position, true);
+            while (record != null)
+            {
+                if ((index > checkpointIndex) || (position >= checkpointPosition))
+                {
+                    _pendingBytes += record.size;
+                    _pendingCount++;
+                }
+                else
+                    _readCount++;
+                segment.count++;
+                position += record.size;
+                record    = readRecord(segment, position, true);
+            }
+
+            if (position < segment.size)
+            {
+                logger.log(Level.WARNING, "Truncating spill journal segment: " + file + ", at " + position + " of " + segment.size);
+                segment.channel.truncate(position);
+                segment.size = position;
+            }
+            _segments.add(segment);
+        }
+
+        if (_segments.isEmpty())
+            _segments.add(openSegment(checkpointIndex));
+        else if (_segments.getFirst().index == checkpointIndex)
+            _readPosition = Math.min(checkpointPosition, _segments.getFirst().size);
+
+        if (_pendingCount > 0L)
+            logger.log(Level.INFO, "Recovered spill journal: " + _name + ", " + _pendingCount + " records, " + _pendingBytes + " bytes");
+    }
+
+    private void writeCheckpoint()
+        throws IOException
+    {
+        ByteBuffer checkpoint = ByteBuffer.allocate(16);
+        checkpoint.putLong(_segments.getFirst().index);
+        checkpoint.putLong(_readPosition);
+        checkpoint.flip();
+        while (checkpoint.hasRemaining())
+            _checkpointChannel.write(checkpoint, checkpoint.position());
+    }
+
+    private Segment openSegment(long index)
+        throws IOException
+    {
+        File        file    = new File(_directory, String.format("%020d", index) + SEGMENTFILE_SUFFIX);
+        FileChannel channel = new RandomAccessFile(file, "rw").getChannel();
+
+        return new Segment(index, file, channel, channel.size());
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position)
+        throws IOException
+    {
+        int start = buffer.position();
+        while (buffer.hasRemaining())
+            if (channel.read(buffer, position + buffer.position() - start) < 0)
+                throw new IOException("Unexpected end of spill journal file");
+    }
+
+    private static class Segment
+    {
+        public Segment(long index, File file, FileChannel channel, long size)
+        {
+            this.index   = index;
+            this.file    = file;
+            this.channel = channel;
+            this.size    = size;
+        }
+
+        public final long        index;
+        public final File        file;
+        public final FileChannel channel;
+        public long              size;
+        public long              count;
+    }
+
+    private static class Record
+    {
+        public Record(byte[] data, long timestamp, int size)
+        {
+            this.data      = data;
+            this.timestamp = timestamp;
+            this.size      = size;
+        }
+
+        public final byte[] data;
+        public final long   timestamp;
+        public final int    size;
+    }
+
+    private static final FilenameFilter _segmentFileFilter = new FilenameFilter()
+    {
+        @Override
+        public boolean accept(File directory, String name)
+        {
+            return name.endsWith(SEGMENTFILE_SUFFIX);
+        }
+    };
+
+    private String              _name;
+    private File                _directory;
+    private long                _maxBytes;
+    private long                _segmentSize;
+    private LinkedList<Segment> _segments;
+    private long                _readPosition;
+    private long                _readCount;
+    private Record              _head;
+    private long                _pendingBytes;
+    private long                _pendingCount;
+    private long                _appendedCount;
+    private long                _replayedCount;
+    private long                _rejectedCount;
+    private long                _writtenSequence;
+    private long                _syncedSequence;
+    private Object              _syncLock;
+    private FileChannel         _checkpointChannel;
+    private FileChannel         _lockChannel;
+    private FileLock            _lock;
+    private boolean             _closed;
+}
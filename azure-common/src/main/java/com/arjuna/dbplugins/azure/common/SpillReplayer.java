@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) 2015, Arjuna Technologies Limited, Newcastle-upon-Tyne, England. All rights reserved.
+ */
+
+package com.arjuna.dbplugins.azure.common;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Drains a spill journal, in order, on a single background thread. A record is removed only
+ * once replayed; transient failures back off using the retry policy and retry the same record,
+ * while records failing with permanent errors are discarded so they cannot block the journal.
+ */
+public class SpillReplayer
+{
+    private static final Logger logger = Logger.getLogger(SpillReplayer.class.getName());
+
+    private static final long POLL_INTERVAL = 500L;
+
+    public SpillReplayer(String name, SpillJournal spillJournal, ResilientExecutor resilientExecutor, SpillHandler spillHandler)
+    {
+        _name              = name;
+        _spillJournal      = spillJournal;
+        _resilientExecutor = resilientExecutor;
+        _spillHandler      = spillHandler;
+        _running           = true;
+        _backoffLock       = new Object();
+
+        _thread = new Thread(new Replayer(), "AzureSpillReplayer-" + name);
+        _thread.setDaemon(true);
+        _thread.start();
+    }
+
+    public void shutdown(long timeout)
+    {
+        // Not interrupted, as an interrupt during journal I/O would close its file channel
+        _running = false;
+        synchronized (_backoffLock)
+        {
+            _backoffLock.notifyAll();
+        }
+        try
+        {
+            _thread.join(timeout);
+        }
+        catch (InterruptedException interruptedException)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private class Replayer implements Runnable
+    {
+        @Override
+        public void run()
+        {
+            long delay = 0L;
+            try
+            {
+                while (_running)
+                {
+                    byte[] record = _spillJournal.peek(POLL_INTERVAL);
+                    if (record == null)
+                        continue;
+
+                    try
+                    {
+                        _spillHandler.replay(record);
+                        _spillJournal.remove();
+                        delay = 0L;
+                    }
+                    catch (InterruptedException interruptedException)
+                    {
+                        throw interruptedException;
+                    }
+                    catch (Throwable throwable)
+                    {
+                        if (_resilientExecutor.isTransient(throwable))
+                        {
+                            delay = _resilientExecutor.getRetryPolicy().nextDelay(delay);
+                            logger.log(Level.FINE, "Spill replay failed on " + _name + ", retrying in " + delay + "ms", throwable);
+                            synchronized (_backoffLock)
+                            {
+                                if (_running)
+                                    _backoffLock.wait(delay);
+                            }
+                        }
+                        else
+                        {
+                            logger.log(Level.WARNING, "Spill replay failed on " + _name + ", discarding record", throwable);
+                            _spillJournal.remove();
+                        }
+                    }
+                }
+            }
+            catch (InterruptedException interruptedException)
+            {
+                logger.log(Level.FINE, "Spill replayer interrupted: " + _name);
+            }
+            catch (Throwable throwable)
+            {
+                logger.log(Level.WARNING, "Problems in spill replayer: " + _name, throwable);
+            }
+        }
+    }
+
+    private String            _name;
+    private SpillJournal      _spillJournal;
+    private ResilientExecutor _resilientExecutor;
+    private SpillHandler      _spillHandler;
+    private Thread            _thread;
+    private Object            _backoffLock;
+    private volatile boolean  _running;
+}
@@ -0,0 +1,274 @@
+/*
+ * Copyright (c) 2015, Arjuna Technologies Limited, Newcastle-upon-Tyne, England. All rights reserved.
+ */
+
+package com.arjuna.dbplugins.azure.common;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SpillJournalTest
+{
+    private static final long MAX_BYTES    = 1024L * 1024L;
+    private static final long SEGMENT_SIZE = 64L * 1024L;
+    private static final int  HEADER_SIZE  = 16;
+
+    @Before
+    public void createDirectory()
+        throws IOException
+    {
+        _directory = Files.createTempDirectory("spilljournal").toFile();
+    }
+
+    @After
+    public void deleteDirectory()
+    {
+        if (_journal != null)
+            _journal.close();
+        delete(_directory);
+    }
+
+    @Test
+    public void appendAndReadInOrder()
+        throws Exception
+    {
+        _journal = new SpillJournal("test", _directory, MAX_BYTES, SEGMENT_SIZE);
+
+        for (int index = 0; index < 3; index++)
+            assertTrue(_journal.append(record(index)));
+        assertEquals(3L, _journal.getPendingCount());
+        assertEquals(3L * (HEADER_SIZE + record(0).length), _journal.getPendingBytes());
+
+        for (int index = 0; index < 3; index++)
+        {
+            assertArrayEquals(record(index), _journal.peek(0L));
+            assertArrayEquals(record(index), _journal.peek(0L));
+            _journal.remove();
+        }
+
+        assertNull(_journal.peek(0L));
+        assertEquals(0L, _journal.getPendingCount());
+        assertEquals(0L, _journal.getPendingBytes());
+        assertEquals(3L, _journal.getAppendedCount());
+        assertEquals(3L, _journal.getReplayedCount());
+    }
+
+    @Test
+    public void appendRejectedOverMaxBytes()
+        throws Exception
+    {
+        _journal = new SpillJournal("test", _directory, 2L * (HEADER_SIZE + record(0).length), SEGMENT_SIZE);
+
+        assertTrue(_journal.append(record(0)));
+        assertTrue(_journal.append(record(1)));
+        assertFalse(_journal.append(record(2)));
+        assertEquals(2L, _journal.getPendingCount());
+        assertEquals(1L, _journal.getRejectedCount());
+
+        _journal.peek(0L);
+        _journal.remove();
+        assertTrue(_journal.append(record(2)));
+    }
+
+    @Test
+    public void readAcrossSegments()
+        throws Exception
+    {
+        _journal = new SpillJournal("test", _directory, MAX_BYTES, 2L * (HEADER_SIZE + record(0).length));
+
+        for (int index = 0; index < 10; index++)
+            assertTrue(_journal.append(record(index)));
+        assertEquals(5, segmentFiles().length);
+
+        for (int index = 0; index < 10; index++)
+        {
+            assertArrayEquals(record(index), _journal.peek(0L));
+            _journal.remove();
+        }
+
+        assertNull(_journal.peek(0L));
+        assertEquals(0L, _journal.getPendingCount());
+        assertEquals(1, segmentFiles().length);
+    }
+
+    @Test
+    public void recoverResumesAfterAcknowledged()
+        throws Exception
+    {
+        _journal = new SpillJournal("test", _directory, MAX_BYTES, 2L * (HEADER_SIZE + record(0).length));
+        for (int index = 0; index < 5; index++)
+            _journal.append(record(index));
+        for (int index = 0; index < 3; index++)
+        {
+            _journal.peek(0L);
+            _journal.remove();
+        }
+        _journal.close();
+
+        _journal = new SpillJournal("test", _directory, MAX_BYTES, 2L * (HEADER_SIZE + record(0).length));
+        assertEquals(2L, _journal.getPendingCount());
+        assertEquals(2L * (HEADER_SIZE + record(0).length), _journal.getPendingBytes());
+        for (int index = 3; index < 5; index++)
+        {
+            assertArrayEquals(record(index), _journal.peek(0L));
+            _journal.remove();
+        }
+        assertNull(_journal.peek(0L));
+        assertEquals(0L, _journal.getPendingCount());
+    }
+
+    @Test
+    public void recoverTruncatesCorruptTail()
+        throws Exception
+    {
+        _journal = new SpillJournal("test", _directory, MAX_BYTES, SEGMENT_SIZE);
+        for (int index = 0; index < 3; index++)
+            _journal.append(record(index));
+        _journal.close();
+
+        File segmentFile = segmentFiles()[0];
+        corrupt(segmentFile, segmentFile.length() - 1L);
+        RandomAccessFile file = new RandomAccessFile(segmentFile, "rw");
+        try
+        {
+            file.seek(file.length());
+            file.write(new byte[] { 0, 0, 0, 100, 1, 2, 3 });
+        }
+        finally
+        {
+            file.close();
+        }
+
+        _journal = new SpillJournal("test", _directory, MAX_BYTES, SEGMENT_SIZE);
+        assertEquals(2L, _journal.getPendingCount());
+        assertEquals(2L * (HEADER_SIZE + record(0).length), segmentFile.length());
+        for (int index = 0; index < 2; index++)
+        {
+            assertArrayEquals(record(index), _journal.peek(0L));
+            _journal.remove();
+        }
+        assertNull(_journal.peek(0L));
+
+        assertTrue(_journal.append(record(3)));
+        assertArrayEquals(record(3), _journal.peek(0L));
+    }
+
+    @Test
+    public void corruptRecordDiscardsRemainderOfSegment()
+        throws Exception
+    {
+        _journal = new SpillJournal("test", _directory, MAX_BYTES, 4L * (HEADER_SIZE + record(0).length));
+        for (int index = 0; index < 6; index++)
+            _journal.append(record(index));
+
+        corrupt(segmentFiles()[0], 2L * (HEADER_SIZE + record(0).length) - 1L);
+
+        assertArrayEquals(record(0), _journal.peek(0L));
+        _journal.remove();
+        assertArrayEquals(record(4), _journal.peek(0L));
+        assertEquals(2L, _journal.getPendingCount());
+        assertEquals(2L * (HEADER_SIZE + record(0).length), _journal.getPendingBytes());
+        _journal.remove();
+        _journal.peek(0L);
+        _journal.remove();
+
+        assertNull(_journal.peek(0L));
+        assertEquals(0L, _journal.getPendingCount());
+        assertEquals(0L, _journal.getPendingBytes());
+        assertEquals(0L, _journal.getLag());
+    }
+
+    @Test
+    public void corruptRecordInLastSegment()
+        throws Exception
+    {
+        _journal = new SpillJournal("test", _directory, MAX_BYTES, SEGMENT_SIZE);
+        for (int index = 0; index < 3; index++)
+            _journal.append(record(index));
+
+        corrupt(segmentFiles()[0], HEADER_SIZE);
+
+        assertNull(_journal.peek(0L));
+        assertEquals(0L, _journal.getPendingCount());
+        assertEquals(0L, _journal.getPendingBytes());
+
+        _journal.append(record(3));
+        assertEquals(1L, _journal.getPendingCount());
+        assertArrayEquals(record(3), _journal.peek(0L));
+        _journal.remove();
+        assertEquals(0L, _journal.getPendingCount());
+    }
+
+    @Test
+    public void directoryLocked()
+        throws Exception
+    {
+        _journal = new SpillJournal("test", _directory, MAX_BYTES, SEGMENT_SIZE);
+        try
+        {
+            new SpillJournal("other", _directory, MAX_BYTES, SEGMENT_SIZE);
+            fail("Journal directory opened twice");
+        }
+        catch (IOException ioException)
+        {
+        }
+    }
+
+    private static byte[] record(int index)
+    {
+        return String.format("record-%04d", index).getBytes();
+    }
+
+    private File[] segmentFiles()
+    {
+        return _directory.listFiles(new FilenameFilter()
+        {
+            @Override
+            public boolean accept(File directory, String name)
+            {
+                return name.endsWith(".journal");
+            }
+        });
+    }
+
+    private static void corrupt(File segmentFile, long position)
+        throws IOException
+    {
+        RandomAccessFile file = new RandomAccessFile(segmentFile, "rw");
+        try
+        {
+            file.seek(position);
+            int value = file.read();
+            file.seek(position);
+            file.write(value ^ 0xFF);
+        }
+        finally
+        {
+            file.close();
+        }
+    }
+
+    private static void delete(File file)
+    {
+        File[] files = file.listFiles();
+        if (files != null)
+            for (File child: files)
+                delete(child);
+        file.delete();
+    }
+
+    private File         _directory;
+    private SpillJournal _journal;
+}
@@ -12,6 +12,7 @@ import javax.ejb.Singleton;
 import javax.ejb.Startup;
 import com.arjuna.databroker.data.DataFlowNodeFactory;
 import com.arjuna.databroker.data.DataFlowNodeFactoryInventory;
+import com.arjuna.dbplugins.azure.sqlserver.AzureSQLServerDataFlowNodeFactory;
 import com.arjuna.dbplugins.azure.storage.AzureStorageDataFlowNodeFactory;
 
 @Startup
@@ -21,15 +22,18 @@ public class AzureDataFlowNodeFactoriesSetup
     @PostConstruct
     public void setup()
     {
-        DataFlowNodeFactory azureStorageDataFlowNodeFactory = new AzureStorageDataFlowNodeFactory("Azure Storage Data Flow Node Factories", Collections.<String, String>emptyMap());
+        DataFlowNodeFactory azureStorageDataFlowNodeFactory   = new AzureStorageDataFlowNodeFactory("Azure Storage Data Flow Node Factories", Collections.<String, String>emptyMap());
+        DataFlowNodeFactory azureSQLServerDataFlowNodeFactory = new AzureSQLServerDataFlowNodeFactory("Azure SQL Server Data Flow Node Factories", Collections.<String, String>emptyMap());
 
         _dataFlowNodeFactoryInventory.addDataFlowNodeFactory(azureStorageDataFlowNodeFactory);
+        _dataFlowNodeFactoryInventory.addDataFlowNodeFactory(azureSQLServerDataFlowNodeFactory);
     }
 
     @PreDestroy
     public void cleanup()
     {
         _dataFlowNodeFactoryInventory.removeDataFlowNodeFactory("Azure Storage Data Flow Node Factories");
+        _dataFlowNodeFactoryInventory.removeDataFlowNodeFactory("Azure SQL Server Data Flow Node Factories");
     }
 
     @EJB(lookup="java:global/databroker/data-core-jee/DataFlowNodeFactoryInventory")
@@ -4,7 +4,8 @@
 
 package com.arjuna.dbplugins.azure.sqlserver;
 
-import java.util.LinkedList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import com.arjuna.databroker.data.DataFlowNode;
@@ -19,6 +20,50 @@ import com.arjuna.databroker.data.MissingPropertyException;
 
 public class AzureSQLServerDataFlowNodeFactory implements DataFlowNodeFactory
 {
+    private static final List<Class<? extends DataFlowNode>> CLASSES = Collections.<Class<? extends DataFlowNode>>singletonList(DataService.class);
+
+    private static final List<String> DATASERVICE_METAPROPERTYNAMES = Collections.emptyList();
+    private static final List<String> DATASERVICE_PROPERTYNAMES     = Collections.unmodifiableList(Arrays.asList(
+        AzureSQLServerDataService.SERVERNAME_PROPERTYNAME,
+        AzureSQLServerDataService.DATABASENAME_PROPERTYNAME,
+        AzureSQLServerDataService.USER_PROPERTYNAME,
+        AzureSQLServerDataService.PASSWORD_PROPERTYNAME,
+        AzureSQLServerDataService.POOLMINSIZE_PROPERTYNAME,
+        AzureSQLServerDataService.POOLMAXSIZE_PROPERTYNAME,
+        AzureSQLServerDataService.POOLMAXWAIT_PROPERTYNAME,
+        AzureSQLServerDataService.POOLIDLETIMEOUT_PROPERTYNAME,
+        AzureSQLServerDataService.POOLVALIDATIONTIMEOUT_PROPERTYNAME,
+        AzureSQLServerDataService.TABLENAME_PROPERTYNAME,
+        AzureSQLServerDataService.COLUMNMAPPING_PROPERTYNAME,
+        AzureSQLServerDataService.RECORDFORMAT_PROPERTYNAME,
+        AzureSQLServerDataService.BATCHSIZE_PROPERTYNAME,
+        AzureSQLServerDataService.BATCHFLUSHINTERVAL_PROPERTYNAME,
+        AzureSQLServerDataService.INSERTMODE_PROPERTYNAME,
+        AzureSQLServerDataService.TABLELOCK_PROPERTYNAME,
+        AzureSQLServerDataService.RETRYMAXATTEMPTS_PROPERTYNAME,
+        AzureSQLServerDataService.RETRYBASEDELAY_PROPERTYNAME,
+        AzureSQLServerDataService.RETRYMAXDELAY_PROPERTYNAME,
+        AzureSQLServerDataService.CIRCUITTHRESHOLD_PROPERTYNAME,
+        AzureSQLServerDataService.CIRCUITOPENTIME_PROPERTYNAME,
+        AzureSQLServerDataService.SPILLDIRECTORY_PROPERTYNAME,
+        AzureSQLServerDataService.SPILLMAXBYTES_PROPERTYNAME,
+        AzureSQLServerDataService.SPILLSEGMENTSIZE_PROPERTYNAME,
+        AzureSQLServerDataService.QUERYMODE_PROPERTYNAME,
+        AzureSQLServerDataService.SOURCETABLENAME_PROPERTYNAME,
+        AzureSQLServerDataService.SOURCECOLUMNS_PROPERTYNAME,
+        AzureSQLServerDataService.WATERMARKCOLUMN_PROPERTYNAME,
+        AzureSQLServerDataService.KEYCOLUMNS_PROPERTYNAME,
+        AzureSQLServerDataService.FETCHSIZE_PROPERTYNAME,
+        AzureSQLServerDataService.SOURCEBATCHSIZE_PROPERTYNAME,
+        AzureSQLServerDataService.POLLINTERVAL_PROPERTYNAME,
+        AzureSQLServerDataService.WATERMARKDIRECTORY_PROPERTYNAME,
+        AzureSQLServerDataService.EXTRACTIONMODE_PROPERTYNAME,
+        AzureSQLServerDataService.SLICECOLUMN_PROPERTYNAME,
+        AzureSQLServerDataService.SLICECOUNT_PROPERTYNAME,
+        AzureSQLServerDataService.EXTRACTIONCONCURRENCY_PROPERTYNAME,
+        AzureSQLServerDataService.EXTRACTIONQUEUEDEPTH_PROPERTYNAME,
+        AzureSQLServerDataService.SLICECHECKPOINT_PROPERTYNAME));
+
     public AzureSQLServerDataFlowNodeFactory(String name, Map<String, String> properties)
     {
         _name       = name;
@@ -40,11 +85,7 @@ public class AzureSQLServerDataFlowNodeFactory implements DataFlowNodeFactory
     @Override
     public List<Class<? extends DataFlowNode>> getClasses()
     {
-        List<Class<? extends DataFlowNode>> classes = new LinkedList<Class<? extends DataFlowNode>>();
-
-        classes.add(DataService.class);
-
-        return classes;
+        return CLASSES;
     }
 
     @Override
@@ -52,11 +93,7 @@ public class AzureSQLServerDataFlowNodeFactory implements DataFlowNodeFactory
         throws InvalidClassException
     {
         if (dataFlowNodeClass.equals(DataService.class))
-        {
-            List<String> metaPropertyNames = new LinkedList<String>();
-
-            return metaPropertyNames;
-        }
+            return DATASERVICE_METAPROPERTYNAMES;
         else
             throw new InvalidClassException("Unsupported class", dataFlowNodeClass.getName());
     }
@@ -68,16 +105,7 @@ public class AzureSQLServerDataFlowNodeFactory implements DataFlowNodeFactory
         if (dataFlowNodeClass.equals(DataService.class))
         {
             if (metaProperties.isEmpty())
-            {
-                List<String> propertyNames = new LinkedList<String>();
-
-                propertyNames.add(AzureSQLServerDataService.SERVERNAME_PROPERTYNAME);
-                propertyNames.add(AzureSQLServerDataService.DATABASENAME_PROPERTYNAME);
-                propertyNames.add(AzureSQLServerDataService.USER_PROPERTYNAME);
-                propertyNames.add(AzureSQLServerDataService.PASSWORD_PROPERTYNAME);
-
-                return propertyNames;
-            }
+                return DATASERVICE_PROPERTYNAMES;
             else
                 throw new MissingMetaPropertyException("No metaproperties expected", null);
         }
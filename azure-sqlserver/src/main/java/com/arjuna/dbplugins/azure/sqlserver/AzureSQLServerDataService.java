@@ -4,21 +4,31 @@
 
 package com.arjuna.dbplugins.azure.sqlserver;
 
-import java.sql.Connection;
-import java.sql.DriverManager;
-import java.sql.Statement;
+import java.io.File;
+import java.io.IOException;
+import java.sql.SQLTransientConnectionException;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import com.arjuna.dbplugins.azure.common.CircuitBreaker;
+import com.arjuna.dbplugins.azure.common.ResilientExecutor;
+import com.arjuna.dbplugins.azure.common.RetryPolicy;
+import com.arjuna.dbplugins.azure.common.ServiceMetrics;
+import com.arjuna.dbplugins.azure.common.SpillHandler;
+import com.arjuna.dbplugins.azure.common.SpillJournal;
+import com.arjuna.dbplugins.azure.common.SpillReplayer;
 import com.arjuna.databroker.data.DataConsumer;
 import com.arjuna.databroker.data.DataFlow;
 import com.arjuna.databroker.data.DataProvider;
 import com.arjuna.databroker.data.DataService;
 import com.arjuna.databroker.data.jee.annotation.DataConsumerInjection;
+import com.arjuna.databroker.data.jee.annotation.DataProviderInjection;
 import com.arjuna.databroker.data.jee.annotation.PostConfig;
 import com.arjuna.databroker.data.jee.annotation.PostCreated;
 import com.arjuna.databroker.data.jee.annotation.PostRecovery;
@@ -29,14 +39,73 @@ public class AzureSQLServerDataService implements DataService
 {
     private static final Logger logger = Logger.getLogger(AzureSQLServerDataService.class.getName());
 
-    public static final String SERVERNAME_PROPERTYNAME   = "Server Name";
-    public static final String DATABASENAME_PROPERTYNAME = "Database Name";
-    public static final String USER_PROPERTYNAME         = "User";
-    public static final String PASSWORD_PROPERTYNAME     = "Password";
+    public static final String SERVERNAME_PROPERTYNAME            = "Server Name";
+    public static final String DATABASENAME_PROPERTYNAME          = "Database Name";
+    public static final String USER_PROPERTYNAME                  = "User";
+    public static final String PASSWORD_PROPERTYNAME              = "Password";
+    public static final String POOLMINSIZE_PROPERTYNAME           = "Pool Min Size";
+    public static final String POOLMAXSIZE_PROPERTYNAME           = "Pool Max Size";
+    public static final String POOLMAXWAIT_PROPERTYNAME           = "Pool Max Wait";
+    public static final String POOLIDLETIMEOUT_PROPERTYNAME       = "Pool Idle Timeout";
+    public static final String POOLVALIDATIONTIMEOUT_PROPERTYNAME = "Pool Validation Timeout";
+    public static final String TABLENAME_PROPERTYNAME             = "Table Name";
+    public static final String COLUMNMAPPING_PROPERTYNAME         = "Column Mapping";
+    public static final String RECORDFORMAT_PROPERTYNAME          = "Record Format";
+    public static final String BATCHSIZE_PROPERTYNAME             = "Batch Size";
+    public static final String BATCHFLUSHINTERVAL_PROPERTYNAME    = "Batch Flush Interval";
+    public static final String INSERTMODE_PROPERTYNAME            = "Insert Mode";
+    public static final String TABLELOCK_PROPERTYNAME             = "Bulk Copy Table Lock";
+    public static final String RETRYMAXATTEMPTS_PROPERTYNAME      = "Retry Max Attempts";
+    public static final String RETRYBASEDELAY_PROPERTYNAME        = "Retry Base Delay";
+    public static final String RETRYMAXDELAY_PROPERTYNAME         = "Retry Max Delay";
+    public static final String CIRCUITTHRESHOLD_PROPERTYNAME      = "Circuit Failure Threshold";
+    public static final String CIRCUITOPENTIME_PROPERTYNAME       = "Circuit Open Duration";
+    public static final String SPILLDIRECTORY_PROPERTYNAME        = "Spill Directory";
+    public static final String SPILLMAXBYTES_PROPERTYNAME         = "Spill Max Bytes";
+    public static final String SPILLSEGMENTSIZE_PROPERTYNAME      = "Spill Segment Size";
+    public static final String QUERYMODE_PROPERTYNAME             = "Query Mode";
+    public static final String SOURCETABLENAME_PROPERTYNAME       = "Source Table Name";
+    public static final String SOURCECOLUMNS_PROPERTYNAME         = "Source Columns";
+    public static final String WATERMARKCOLUMN_PROPERTYNAME       = "Watermark Column";
+    public static final String KEYCOLUMNS_PROPERTYNAME            = "Key Columns";
+    public static final String FETCHSIZE_PROPERTYNAME             = "Fetch Size";
+    public static final String SOURCEBATCHSIZE_PROPERTYNAME       = "Source Batch Size";
+    public static final String POLLINTERVAL_PROPERTYNAME          = "Poll Interval";
+    public static final String WATERMARKDIRECTORY_PROPERTYNAME    = "Watermark Directory";
+    public static final String EXTRACTIONMODE_PROPERTYNAME        = "Extraction Mode";
+    public static final String SLICECOLUMN_PROPERTYNAME           = "Slice Column";
+    public static final String SLICECOUNT_PROPERTYNAME            = "Slice Count";
+    public static final String EXTRACTIONCONCURRENCY_PROPERTYNAME = "Extraction Concurrency";
+    public static final String EXTRACTIONQUEUEDEPTH_PROPERTYNAME  = "Extraction Queue Depth";
+    public static final String SLICECHECKPOINT_PROPERTYNAME       = "Slice Checkpoint Directory";
+
+    private static final int  DEFAULT_POOLMINSIZE           = 1;
+    private static final int  DEFAULT_POOLMAXSIZE           = 10;
+    private static final long DEFAULT_POOLMAXWAIT           = 30000L;
+    private static final long DEFAULT_POOLIDLETIMEOUT       = 600000L;
+    private static final int  DEFAULT_POOLVALIDATIONTIMEOUT = 5;
+    private static final int  DEFAULT_BATCHSIZE             = 1000;
+    private static final long DEFAULT_BATCHFLUSHINTERVAL    = 1000L;
+    private static final int  DEFAULT_RETRYMAXATTEMPTS      = 5;
+    private static final long DEFAULT_RETRYBASEDELAY        = 100L;
+    private static final long DEFAULT_RETRYMAXDELAY         = 30000L;
+    private static final int  DEFAULT_CIRCUITTHRESHOLD      = 5;
+    private static final long DEFAULT_CIRCUITOPENTIME       = 30000L;
+    private static final long DEFAULT_SPILLMAXBYTES         = 1024L * 1024L * 1024L;
+    private static final long DEFAULT_SPILLSEGMENTSIZE      = 64L * 1024L * 1024L;
+    private static final long DEFAULT_SHUTDOWNTIMEOUT       = 30000L;
+    private static final int  DEFAULT_FETCHSIZE             = 1000;
+    private static final int  DEFAULT_SOURCEBATCHSIZE       = 1000;
+    private static final long DEFAULT_POLLINTERVAL          = 5000L;
+    private static final int  DEFAULT_SLICECOUNT            = 16;
+    private static final int  DEFAULT_EXTRACTIONCONCURRENCY = 4;
+    private static final int  DEFAULT_EXTRACTIONQUEUEDEPTH  = 16;
 
     public AzureSQLServerDataService()
     {
         logger.log(Level.FINE, "AzureSQLServerDataService");
+
+        _metrics = createMetrics();
     }
 
     public AzureSQLServerDataService(String name, Map<String, String> properties)
@@ -45,6 +114,7 @@ public class AzureSQLServerDataService implements DataService
 
         _name       = name;
         _properties = properties;
+        _metrics    = createMetrics();
     }
 
     @Override
@@ -93,12 +163,635 @@ public class AzureSQLServerDataService implements DataService
         _user         = _properties.get(USER_PROPERTYNAME);
         _password     = _properties.get(PASSWORD_PROPERTYNAME);
 
+        if (_sliceExtractor != null)
+            _sliceExtractor.shutdown(DEFAULT_SHUTDOWNTIMEOUT);
+        if (_querySource != null)
+            _querySource.shutdown(DEFAULT_SHUTDOWNTIMEOUT);
+        if (_spillReplayer != null)
+            _spillReplayer.shutdown(DEFAULT_SHUTDOWNTIMEOUT);
+        if (_batchWriter != null)
+            _batchWriter.close();
+        if (_spillJournal != null)
+            _spillJournal.close();
+        if (_connectionPool != null)
+            _connectionPool.close();
+        _connectionPool    = createConnectionPool();
+        _resilientExecutor = createResilientExecutor();
+        _spillJournal      = createSpillJournal();
+        _batchWriter       = createBatchWriter();
+        _recordParser      = (_batchWriter == null) ? null : createRecordParser();
+        _spillReplayer     = createSpillReplayer();
+        _querySource       = createQuerySource();
+        _sliceExtractor    = createSliceExtractor();
+
+        _metrics.register((_dataFlow == null) ? null : _dataFlow.getName(), _name);
+    }
+
+    private ServiceMetrics createMetrics()
+    {
+        ServiceMetrics metrics = new ServiceMetrics("AzureSQLServerDataService");
+
+        metrics.addGauge("PoolActive", new ServiceMetrics.Gauge()
+        {
+            @Override
+            public long getValue()
+            {
+                SQLServerConnectionPool connectionPool = _connectionPool;
+
+                return (connectionPool == null) ? 0L : connectionPool.getActiveCount();
+            }
+        });
+        metrics.addGauge("PoolIdle", new ServiceMetrics.Gauge()
+        {
+            @Override
+            public long getValue()
+            {
+                SQLServerConnectionPool connectionPool = _connectionPool;
+
+                return (connectionPool == null) ? 0L : connectionPool.getIdleCount();
+            }
+        });
+        metrics.addGauge("PoolWaits", new ServiceMetrics.Gauge()
+        {
+            @Override
+            public long getValue()
+            {
+                SQLServerConnectionPool connectionPool = _connectionPool;
+
+                return (connectionPool == null) ? 0L : connectionPool.getWaitCount();
+            }
+        });
+        metrics.addGauge("PoolWaitTime", new ServiceMetrics.Gauge()
+        {
+            @Override
+            public long getValue()
+            {
+                SQLServerConnectionPool connectionPool = _connectionPool;
+
+                return (connectionPool == null) ? 0L : connectionPool.getWaitTime();
+            }
+        });
+        metrics.addGauge("PoolTimeouts", new ServiceMetrics.Gauge()
+        {
+            @Override
+            public long getValue()
+            {
+                SQLServerConnectionPool connectionPool = _connectionPool;
+
+                return (connectionPool == null) ? 0L : connectionPool.getTimeoutCount();
+            }
+        });
+        metrics.addGauge("CircuitState", new ServiceMetrics.Gauge()
+        {
+            @Override
+            public long getValue()
+            {
+                ResilientExecutor resilientExecutor = _resilientExecutor;
+
+                return (resilientExecutor == null) ? 0L : resilientExecutor.getCircuitBreaker().getState().ordinal();
+            }
+        });
+        metrics.addGauge("CircuitOpened", new ServiceMetrics.Gauge()
+        {
+            @Override
+            public long getValue()
+            {
+                ResilientExecutor resilientExecutor = _resilientExecutor;
+
+                return (resilientExecutor == null) ? 0L : resilientExecutor.getCircuitBreaker().getOpenedCount();
+            }
+        });
+        metrics.addGauge("CircuitRejected", new ServiceMetrics.Gauge()
+        {
+            @Override
+            public long getValue()
+            {
+                ResilientExecutor resilientExecutor = _resilientExecutor;
+
+                return (resilientExecutor == null) ? 0L : resilientExecutor.getCircuitBreaker().getRejectedCount();
+            }
+        });
+        metrics.addGauge("Retries", new ServiceMetrics.Gauge()
+        {
+            @Override
+            public long getValue()
+            {
+                ResilientExecutor resilientExecutor = _resilientExecutor;
+
+                return (resilientExecutor == null) ? 0L : resilientExecutor.getRetryCount();
+            }
+        });
+        metrics.addGauge("PendingRecords", new ServiceMetrics.Gauge()
+        {
+            @Override
+            public long getValue()
+            {
+                SQLServerBatchWriter batchWriter = _batchWriter;
+
+                return (batchWriter == null) ? 0L : batchWriter.getPendingCount();
+            }
+        });
+        metrics.addGauge("SpillPendingBytes", new ServiceMetrics.Gauge()
+        {
+            @Override
+            public long getValue()
+            {
+                SpillJournal spillJournal = _spillJournal;
+
+                return (spillJournal == null) ? 0L : spillJournal.getPendingBytes();
+            }
+        });
+        metrics.addGauge("SpillPendingRecords", new ServiceMetrics.Gauge()
+        {
+            @Override
+            public long getValue()
+            {
+                SpillJournal spillJournal = _spillJournal;
+
+                return (spillJournal == null) ? 0L : spillJournal.getPendingCount();
+            }
+        });
+        metrics.addGauge("SpillLag", new ServiceMetrics.Gauge()
+        {
+            @Override
+            public long getValue()
+            {
+                SpillJournal spillJournal = _spillJournal;
+
+                return (spillJournal == null) ? 0L : spillJournal.getLag();
+            }
+        });
+        metrics.addGauge("SpillAppended", new ServiceMetrics.Gauge()
+        {
+            @Override
+            public long getValue()
+            {
+                SpillJournal spillJournal = _spillJournal;
+
+                return (spillJournal == null) ? 0L : spillJournal.getAppendedCount();
+            }
+        });
+        metrics.addGauge("SpillReplayed", new ServiceMetrics.Gauge()
+        {
+            @Override
+            public long getValue()
+            {
+                SpillJournal spillJournal = _spillJournal;
+
+                return (spillJournal == null) ? 0L : spillJournal.getReplayedCount();
+            }
+        });
+        metrics.addGauge("SpillRejected", new ServiceMetrics.Gauge()
+        {
+            @Override
+            public long getValue()
+            {
+                SpillJournal spillJournal = _spillJournal;
+
+                return (spillJournal == null) ? 0L : spillJournal.getRejectedCount();
+            }
+        });
+        metrics.addGauge("SourceRows", new ServiceMetrics.Gauge()
+        {
+            @Override
+            public long getValue()
+            {
+                SQLServerQuerySource querySource = _querySource;
+
+                return (querySource == null) ? 0L : querySource.getRowCount();
+            }
+        });
+        metrics.addGauge("SourceBatches", new ServiceMetrics.Gauge()
+        {
+            @Override
+            public long getValue()
+            {
+                SQLServerQuerySource querySource = _querySource;
+
+                return (querySource == null) ? 0L : querySource.getBatchCount();
+            }
+        });
+        metrics.addGauge("SourceFailures", new ServiceMetrics.Gauge()
+        {
+            @Override
+            public long getValue()
+            {
+                SQLServerQuerySource querySource = _querySource;
+
+                return (querySource == null) ? 0L : querySource.getFailedCount();
+            }
+        });
+        metrics.addGauge("ExtractionSlices", new ServiceMetrics.Gauge()
+        {
+            @Override
+            public long getValue()
+            {
+                SQLServerSliceExtractor sliceExtractor = _sliceExtractor;
+
+                return (sliceExtractor == null) ? 0L : sliceExtractor.getSliceCount();
+            }
+        });
+        metrics.addGauge("ExtractionSlicesCompleted", new ServiceMetrics.Gauge()
+        {
+            @Override
+            public long getValue()
+            {
+                SQLServerSliceExtractor sliceExtractor = _sliceExtractor;
+
+                return (sliceExtractor == null) ? 0L : sliceExtractor.getCompletedCount();
+            }
+        });
+        metrics.addGauge("ExtractionRows", new ServiceMetrics.Gauge()
+        {
+            @Override
+            public long getValue()
+            {
+                SQLServerSliceExtractor sliceExtractor = _sliceExtractor;
+
+                return (sliceExtractor == null) ? 0L : sliceExtractor.getRowCount();
+            }
+        });
+        metrics.addGauge("ExtractionFailures", new ServiceMetrics.Gauge()
+        {
+            @Override
+            public long getValue()
+            {
+                SQLServerSliceExtractor sliceExtractor = _sliceExtractor;
+
+                return (sliceExtractor == null) ? 0L : sliceExtractor.getFailedCount();
+            }
+        });
+
+        return metrics;
+    }
+
+    private ResilientExecutor createResilientExecutor()
+    {
+        int  retryMaxAttempts = getIntProperty(RETRYMAXATTEMPTS_PROPERTYNAME, DEFAULT_RETRYMAXATTEMPTS);
+        long retryBaseDelay   = getLongProperty(RETRYBASEDELAY_PROPERTYNAME, DEFAULT_RETRYBASEDELAY);
+        long retryMaxDelay    = getLongProperty(RETRYMAXDELAY_PROPERTYNAME, DEFAULT_RETRYMAXDELAY);
+        int  circuitThreshold = getIntProperty(CIRCUITTHRESHOLD_PROPERTYNAME, DEFAULT_CIRCUITTHRESHOLD);
+        long circuitOpenTime  = getLongProperty(CIRCUITOPENTIME_PROPERTYNAME, DEFAULT_CIRCUITOPENTIME);
+
+        RetryPolicy    retryPolicy    = new RetryPolicy(retryMaxAttempts, retryBaseDelay, retryMaxDelay);
+        CircuitBreaker circuitBreaker = new CircuitBreaker(_name, circuitThreshold, circuitOpenTime);
+
+        return new ResilientExecutor(_name, retryPolicy, circuitBreaker, new SQLServerErrorClassifier());
+    }
+
+    private SpillJournal createSpillJournal()
+    {
+        String spillDirectoryName = _properties.get(SPILLDIRECTORY_PROPERTYNAME);
+        if ((spillDirectoryName == null) || "".equals(spillDirectoryName.trim()))
+            return null;
+
+        long spillMaxBytes    = getLongProperty(SPILLMAXBYTES_PROPERTYNAME, DEFAULT_SPILLMAXBYTES);
+        long spillSegmentSize = getLongProperty(SPILLSEGMENTSIZE_PROPERTYNAME, DEFAULT_SPILLSEGMENTSIZE);
+
+        try
+        {
+            return new SpillJournal(_name, new File(spillDirectoryName.trim()), spillMaxBytes, spillSegmentSize);
+        }
+        catch (IOException ioException)
+        {
+            logger.log(Level.WARNING, "Unable to open spill journal: " + spillDirectoryName, ioException);
+            return null;
+        }
+    }
+
+    private SpillReplayer createSpillReplayer()
+    {
+        if (_spillJournal == null)
+            return null;
+
+        SpillHandler spillHandler = new SpillHandler()
+        {
+            @Override
+            public void replay(byte[] record)
+                throws Exception
+            {
+                SQLServerBatchWriter batchWriter = _batchWriter;
+                if (batchWriter == null)
+                    throw new SQLTransientConnectionException("SQL Server batch writer not configured");
+
+                batchWriter.replay(record);
+            }
+        };
+
+        return new SpillReplayer(_name, _spillJournal, _resilientExecutor, spillHandler);
+    }
+
+    private SQLServerConnectionPool createConnectionPool()
+    {
+        try
+        {
+            Class.forName("com.microsoft.sqlserver.jdbc.SQLServerDriver");
+        }
+        catch (ClassNotFoundException classNotFoundException)
+        {
+            logger.log(Level.WARNING, "Unable to load SQL Server driver", classNotFoundException);
+            return null;
+        }
+
+        String connectionURL = "jdbc:sqlserver://" + _serverName + ":1433;" + "databaseName=" + _databaseName + ";user=" + _user + ";password=" + _password;
+
+        int  poolMinSize           = getIntProperty(POOLMINSIZE_PROPERTYNAME, DEFAULT_POOLMINSIZE);
+        int  poolMaxSize           = getIntProperty(POOLMAXSIZE_PROPERTYNAME, DEFAULT_POOLMAXSIZE);
+        long poolMaxWait           = getLongProperty(POOLMAXWAIT_PROPERTYNAME, DEFAULT_POOLMAXWAIT);
+        long poolIdleTimeout       = getLongProperty(POOLIDLETIMEOUT_PROPERTYNAME, DEFAULT_POOLIDLETIMEOUT);
+        int  poolValidationTimeout = getIntProperty(POOLVALIDATIONTIMEOUT_PROPERTYNAME, DEFAULT_POOLVALIDATIONTIMEOUT);
+
+        return new SQLServerConnectionPool(_name, connectionURL, poolMinSize, poolMaxSize, poolMaxWait, poolValidationTimeout, poolIdleTimeout);
+    }
+
+    private SQLServerBatchWriter createBatchWriter()
+    {
+        String tableName     = _properties.get(TABLENAME_PROPERTYNAME);
+        String columnMapping = _properties.get(COLUMNMAPPING_PROPERTYNAME);
+        if ((_connectionPool == null) || (tableName == null) || "".equals(tableName.trim()) || (columnMapping == null) || "".equals(columnMapping.trim()))
+        {
+            logger.log(Level.WARNING, "Unable to create SQL Server batch writer, missing table name or column mapping");
+            return null;
+        }
+
+        List<String> columnNames = new LinkedList<String>();
+        List<String> fieldNames  = new LinkedList<String>();
+        parseColumnMapping(columnMapping, columnNames, fieldNames);
+
+        int  batchSize          = getIntProperty(BATCHSIZE_PROPERTYNAME, DEFAULT_BATCHSIZE);
+        long batchFlushInterval = getLongProperty(BATCHFLUSHINTERVAL_PROPERTYNAME, DEFAULT_BATCHFLUSHINTERVAL);
+
+        SQLServerBatchWriter.Mode insertMode       = SQLServerBatchWriter.Mode.BATCH;
+        String                    insertModeString = _properties.get(INSERTMODE_PROPERTYNAME);
+        if ((insertModeString != null) && (! "".equals(insertModeString.trim())))
+        {
+            try
+            {
+                insertMode = SQLServerBatchWriter.Mode.valueOf(insertModeString.trim().replace(" ", "").toUpperCase());
+            }
+            catch (IllegalArgumentException illegalArgumentException)
+            {
+                logger.log(Level.WARNING, "Unknown insert mode \"" + insertModeString + "\", using " + insertMode);
+            }
+        }
+
+        String  tableLockString = _properties.get(TABLELOCK_PROPERTYNAME);
+        boolean tableLock       = (tableLockString != null) && Boolean.parseBoolean(tableLockString.trim());
+
+        return new SQLServerBatchWriter(_name, _connectionPool, tableName.trim(), columnNames, batchSize, batchFlushInterval, insertMode, tableLock, _spillJournal, _resilientExecutor, _metrics);
+    }
+
+    // Parses records into values for the batch writer's columns, in column mapping order
+    private RecordParser createRecordParser()
+    {
+        List<String> columnNames = new LinkedList<String>();
+        List<String> fieldNames  = new LinkedList<String>();
+        parseColumnMapping(_properties.get(COLUMNMAPPING_PROPERTYNAME), columnNames, fieldNames);
+
+        RecordParser.Format recordFormat       = RecordParser.Format.JSON;
+        String              recordFormatString = _properties.get(RECORDFORMAT_PROPERTYNAME);
+        if ((recordFormatString != null) && (! "".equals(recordFormatString.trim())))
+        {
+            try
+            {
+                recordFormat = RecordParser.Format.valueOf(recordFormatString.trim().toUpperCase());
+            }
+            catch (IllegalArgumentException illegalArgumentException)
+            {
+                logger.log(Level.WARNING, "Unknown record format \"" + recordFormatString + "\", using " + recordFormat);
+            }
+        }
+
+        return new RecordParser(recordFormat, fieldNames);
+    }
+
+    private static void parseColumnMapping(String columnMapping, List<String> columnNames, List<String> fieldNames)
+    {
+        for (String mapping: columnMapping.split(","))
+        {
+            if ("".equals(mapping.trim()))
+                continue;
+
+            int separatorIndex = mapping.indexOf('=');
+            if (separatorIndex < 0)
+            {
+                columnNames.add(mapping.trim());
+                fieldNames.add(mapping.trim());
+            }
+            else
+            {
+                columnNames.add(mapping.substring(0, separatorIndex).trim());
+                fieldNames.add(mapping.substring(separatorIndex + 1).trim());
+            }
+        }
+    }
+
+    private SQLServerQuerySource createQuerySource()
+    {
+        String queryModeString = _properties.get(QUERYMODE_PROPERTYNAME);
+        if ((queryModeString == null) || "".equals(queryModeString.trim()))
+            return null;
+
+        SQLServerQuerySource.Mode queryMode;
+        try
+        {
+            queryMode = SQLServerQuerySource.Mode.valueOf(queryModeString.trim().replace(" ", "").toUpperCase());
+        }
+        catch (IllegalArgumentException illegalArgumentException)
+        {
+            logger.log(Level.WARNING, "Unknown query mode \"" + queryModeString + "\", not querying");
+            return null;
+        }
+
+        String       tableName       = _properties.get(SOURCETABLENAME_PROPERTYNAME);
+        String       watermarkColumn = _properties.get(WATERMARKCOLUMN_PROPERTYNAME);
+        List<String> columnNames     = splitNames(_properties.get(SOURCECOLUMNS_PROPERTYNAME));
+        List<String> keyColumnNames  = splitNames(_properties.get(KEYCOLUMNS_PROPERTYNAME));
+        if ((_connectionPool == null) || (tableName == null) || "".equals(tableName.trim()))
+        {
+            logger.log(Level.WARNING, "Unable to create SQL Server query source, missing source table name");
+            return null;
+        }
+        if ((queryMode == SQLServerQuerySource.Mode.CHANGETRACKING) && keyColumnNames.isEmpty())
+        {
+            logger.log(Level.WARNING, "Unable to create SQL Server change tracking query source, missing key columns");
+            return null;
+        }
+        if ((queryMode == SQLServerQuerySource.Mode.HIGHWATERMARK) && ((watermarkColumn == null) || "".equals(watermarkColumn.trim())))
+        {
+            logger.log(Level.WARNING, "Unable to create SQL Server high water mark query source, missing watermark column");
+            return null;
+        }
+
+        int  fetchSize       = getIntProperty(FETCHSIZE_PROPERTYNAME, DEFAULT_FETCHSIZE);
+        int  sourceBatchSize = getIntProperty(SOURCEBATCHSIZE_PROPERTYNAME, DEFAULT_SOURCEBATCHSIZE);
+        long pollInterval    = getLongProperty(POLLINTERVAL_PROPERTYNAME, DEFAULT_POLLINTERVAL);
+
+        QueryWatermark queryWatermark     = null;
+        String         watermarkDirectory = _properties.get(WATERMARKDIRECTORY_PROPERTYNAME);
+        if ((watermarkDirectory != null) && (! "".equals(watermarkDirectory.trim())))
+        {
+            try
+            {
+                queryWatermark = new QueryWatermark(new File(watermarkDirectory.trim()));
+            }
+            catch (IOException ioException)
+            {
+                logger.log(Level.WARNING, "Unable to open query watermark: " + watermarkDirectory, ioException);
+            }
+        }
+        if (queryWatermark == null)
+            logger.log(Level.WARNING, "No query watermark directory, query will restart from the beginning after a restart");
+
+        QueryBatchHandler queryBatchHandler = new QueryBatchHandler()
+        {
+            @Override
+            public void emit(List<Map<String, Object>> records)
+            {
+                produceRecords(records);
+            }
+        };
+
+        return new SQLServerQuerySource(_name, _connectionPool, queryMode, tableName.trim(), columnNames, (watermarkColumn == null) ? null : watermarkColumn.trim(), keyColumnNames, fetchSize, sourceBatchSize, pollInterval, queryWatermark, _resilientExecutor, queryBatchHandler);
+    }
+
+    private SQLServerSliceExtractor createSliceExtractor()
+    {
+        String extractionModeString = _properties.get(EXTRACTIONMODE_PROPERTYNAME);
+        if ((extractionModeString == null) || "".equals(extractionModeString.trim()))
+            return null;
+
+        SQLServerSliceExtractor.Mode extractionMode;
+        try
+        {
+            extractionMode = SQLServerSliceExtractor.Mode.valueOf(extractionModeString.trim().replace(" ", "").toUpperCase());
+        }
+        catch (IllegalArgumentException illegalArgumentException)
+        {
+            logger.log(Level.WARNING, "Unknown extraction mode \"" + extractionModeString + "\", not extracting");
+            return null;
+        }
+
+        String       tableName   = _properties.get(SOURCETABLENAME_PROPERTYNAME);
+        String       sliceColumn = _properties.get(SLICECOLUMN_PROPERTYNAME);
+        List<String> columnNames = splitNames(_properties.get(SOURCECOLUMNS_PROPERTYNAME));
+        if ((_connectionPool == null) || (tableName == null) || "".equals(tableName.trim()))
+        {
+            logger.log(Level.WARNING, "Unable to create SQL Server slice extractor, missing source table name");
+            return null;
+        }
+        if ((extractionMode == SQLServerSliceExtractor.Mode.KEYRANGE) && ((sliceColumn == null) || "".equals(sliceColumn.trim())))
+        {
+            logger.log(Level.WARNING, "Unable to create SQL Server key range slice extractor, missing slice column");
+            return null;
+        }
+
+        int sliceCount            = Math.max(1, getIntProperty(SLICECOUNT_PROPERTYNAME, DEFAULT_SLICECOUNT));
+        int extractionConcurrency = Math.max(1, getIntProperty(EXTRACTIONCONCURRENCY_PROPERTYNAME, DEFAULT_EXTRACTIONCONCURRENCY));
+        int extractionQueueDepth  = Math.max(1, getIntProperty(EXTRACTIONQUEUEDEPTH_PROPERTYNAME, DEFAULT_EXTRACTIONQUEUEDEPTH));
+        int fetchSize             = getIntProperty(FETCHSIZE_PROPERTYNAME, DEFAULT_FETCHSIZE);
+        int sourceBatchSize       = getIntProperty(SOURCEBATCHSIZE_PROPERTYNAME, DEFAULT_SOURCEBATCHSIZE);
+
+        SliceCheckpoint sliceCheckpoint          = null;
+        String          sliceCheckpointDirectory = _properties.get(SLICECHECKPOINT_PROPERTYNAME);
+        if ((sliceCheckpointDirectory != null) && (! "".equals(sliceCheckpointDirectory.trim())))
+        {
+            try
+            {
+                sliceCheckpoint = new SliceCheckpoint(new File(sliceCheckpointDirectory.trim()));
+            }
+            catch (IOException ioException)
+            {
+                logger.log(Level.WARNING, "Unable to open slice checkpoint: " + sliceCheckpointDirectory, ioException);
+            }
+        }
+        if (sliceCheckpoint == null)
+            logger.log(Level.WARNING, "No slice checkpoint directory, extraction will restart from the beginning after a restart");
+
+        QueryBatchHandler queryBatchHandler = new QueryBatchHandler()
+        {
+            @Override
+            public void emit(List<Map<String, Object>> records)
+            {
+                produceRecords(records);
+            }
+        };
+
+        return new SQLServerSliceExtractor(_name, _connectionPool, extractionMode, tableName.trim(), columnNames, (sliceColumn == null) ? null : sliceColumn.trim(), sliceCount, extractionConcurrency, fetchSize, sourceBatchSize, extractionQueueDepth, sliceCheckpoint, _resilientExecutor, queryBatchHandler);
+    }
+
+    private static List<String> splitNames(String names)
+    {
+        List<String> splitNames = new LinkedList<String>();
+        if (names != null)
+            for (String name: names.split(","))
+                if (! "".equals(name.trim()))
+                    splitNames.add(name.trim());
+
+        return splitNames;
+    }
+
+    private int getIntProperty(String propertyName, int defaultValue)
+    {
+        return (int) getLongProperty(propertyName, defaultValue);
+    }
+
+    private long getLongProperty(String propertyName, long defaultValue)
+    {
+        String value = _properties.get(propertyName);
+
+        if ((value == null) || "".equals(value.trim()))
+            return defaultValue;
+
+        try
+        {
+            return Long.parseLong(value.trim());
+        }
+        catch (NumberFormatException numberFormatException)
+        {
+            logger.log(Level.WARNING, "Invalid value for \"" + propertyName + "\": \"" + value + "\", using " + defaultValue);
+            return defaultValue;
+        }
     }
 
     @PreConfig
     @PreDelete
     public void teardown()
     {
+        _metrics.unregister();
+
+        SQLServerSliceExtractor sliceExtractor = _sliceExtractor;
+        _sliceExtractor = null;
+        if (sliceExtractor != null)
+            sliceExtractor.shutdown(DEFAULT_SHUTDOWNTIMEOUT);
+
+        SQLServerQuerySource querySource = _querySource;
+        _querySource = null;
+        if (querySource != null)
+            querySource.shutdown(DEFAULT_SHUTDOWNTIMEOUT);
+
+        SpillReplayer spillReplayer = _spillReplayer;
+        _spillReplayer = null;
+        if (spillReplayer != null)
+            spillReplayer.shutdown(DEFAULT_SHUTDOWNTIMEOUT);
+
+        _recordParser = null;
+
+        SQLServerBatchWriter batchWriter = _batchWriter;
+        _batchWriter = null;
+        if (batchWriter != null)
+            batchWriter.close();
+
+        SpillJournal spillJournal = _spillJournal;
+        _spillJournal = null;
+        if (spillJournal != null)
+            spillJournal.close();
+
+        SQLServerConnectionPool connectionPool = _connectionPool;
+        _connectionPool = null;
+        if (connectionPool != null)
+            connectionPool.close();
+
         _serverName   = null;
         _databaseName = null;
         _user         = null;
@@ -111,7 +804,8 @@ public class AzureSQLServerDataService implements DataService
 
         try
         {
-            uploadResource(data.getBytes(), null, null, null, null);
+            _metrics.recordMessage(ServiceMetrics.utf8Length(data));
+            insertRecords(data);
         }
         catch (Throwable throwable)
         {
@@ -125,7 +819,8 @@ public class AzureSQLServerDataService implements DataService
 
         try
         {
-            uploadResource(data, null, null, null, null);
+            _metrics.recordMessage(data.length);
+            insertRecords(data);
         }
         catch (Throwable throwable)
         {
@@ -139,13 +834,25 @@ public class AzureSQLServerDataService implements DataService
 
         try
         {
-            byte[] data                = (byte[]) map.get("data");
-            String fileName            = (String) map.get("filename");
-            String resourceName        = (String) map.get("resourcename");
-            String resourceFormat      = (String) map.get("resourceformat");
-            String resourceDescription = (String) map.get("resourcedescription");
+            Object data = map.get("data");
 
-            uploadResource(data, fileName, resourceName, resourceFormat, resourceDescription);
+            _metrics.recordMessage((data instanceof byte[]) ? ((byte[]) data).length : 0L);
+
+            if (data instanceof byte[])
+                insertRecords((byte[]) data);
+            else
+            {
+                RecordParser recordParser = _recordParser;
+                if (recordParser == null)
+                {
+                    logger.log(Level.WARNING, "Unable to insert into SQL Server, not configured");
+                    return;
+                }
+
+                List<Object[]> records = new LinkedList<Object[]>();
+                records.add(recordParser.map(map));
+                insertRecords(records);
+            }
         }
         catch (Throwable throwable)
         {
@@ -153,83 +860,102 @@ public class AzureSQLServerDataService implements DataService
         }
     }
 
-    private void uploadResource(byte[] data, String blobName, String resourceName, String resourceFormat, String resourceDescription)
+    private void insertRecords(byte[] data)
+        throws Exception
     {
-        logger.log(Level.FINE, "AzureSQLServerDataService.consume");
+        RecordParser recordParser = _recordParser;
+        if (recordParser == null)
+        {
+            logger.log(Level.WARNING, "Unable to insert into SQL Server, not configured");
+            return;
+        }
 
+        List<Object[]> records;
         try
         {
-            String connectionURL = "jdbc:sqlserver://" + _serverName + ":1433;" + "databaseName=" + _databaseName + ";user=" + _user + ";password=" + _password;
+            records = recordParser.parse(data);
+        }
+        catch (Exception exception)
+        {
+            _metrics.recordFailure("Parse " + ServiceMetrics.causeOf(exception));
+            throw exception;
+        }
 
-            Connection connection = null;
-            Statement  statement  = null;
+        insertRecords(records);
+    }
 
-            try
-            {
-                String sql = generateUpdateSQL(data);
-                if (sql != null)
-                {
-                    Class.forName("com.microsoft.sqlserver.jdbc.SQLServerDriver");
-                    connection = DriverManager.getConnection(connectionURL);
+    private void insertRecords(String data)
+        throws Exception
+    {
+        RecordParser recordParser = _recordParser;
+        if (recordParser == null)
+        {
+            logger.log(Level.WARNING, "Unable to insert into SQL Server, not configured");
+            return;
+        }
 
-                    
+        List<Object[]> records;
+        try
+        {
+            records = recordParser.parse(data);
+        }
+        catch (Exception exception)
+        {
+            _metrics.recordFailure("Parse " + ServiceMetrics.causeOf(exception));
+            throw exception;
+        }
 
-                    statement = connection.createStatement();
+        insertRecords(records);
+    }
 
-                    boolean result = statement.execute(sql);
-                    if (! result)
-                        logger.log(Level.WARNING, "Problems during updating");
-                }
-            }
-            catch (Exception exception)
-            {
-                exception.printStackTrace();
-            }
-            finally
-            {
-               if (statement != null)
-                   try
-                   {
-                       statement.close();
-                   }
-                   catch (Exception exception)
-                   {
-                       logger.log(Level.WARNING, "Problems closing SQL Server statement", exception);
-                   }
-               if (connection != null)
-                   try
-                   {
-                       connection.close();
-                   }
-                   catch (Exception exception)
-                   {
-                       logger.log(Level.WARNING, "Problems closing SQL Server connection", exception);
-                   }
-            }
-        }
-        catch (Throwable throwable)
+    private void insertRecords(List<Object[]> records)
+        throws Exception
+    {
+        logger.log(Level.FINE, "AzureSQLServerDataService.insertRecords");
+
+        SQLServerBatchWriter batchWriter = _batchWriter;
+        if (batchWriter == null)
         {
-            logger.log(Level.WARNING, "Problems with Azure SQL Server API invoke", throwable);
+            logger.log(Level.WARNING, "Unable to insert into SQL Server, not configured");
+            return;
         }
+
+        batchWriter.write(records);
     }
 
-    private String generateUpdateSQL(byte[] data)
+    private void produceRecords(List<Map<String, Object>> records)
     {
-        return null;
+        logger.log(Level.FINE, "AzureSQLServerDataService.produceRecords");
+
+        if (_dataProviderList != null)
+            _dataProviderList.produce(records);
+
+        if (_dataProviderMap != null)
+            for (Map<String, Object> record: records)
+                _dataProviderMap.produce(record);
     }
 
     @Override
     public Collection<Class<?>> getDataProviderDataClasses()
     {
-        Set<Class<?>> dataConsumerDataClasses = new HashSet<Class<?>>();
+        Set<Class<?>> dataProviderDataClasses = new HashSet<Class<?>>();
 
-        return dataConsumerDataClasses;
+        dataProviderDataClasses.add(Map.class);
+        dataProviderDataClasses.add(List.class);
+
+        return dataProviderDataClasses;
     }
 
     @Override
+    @SuppressWarnings("unchecked")
     public <T> DataProvider<T> getDataProvider(Class<T> dataClass)
     {
-        return null;
+        if (Map.class.isAssignableFrom(dataClass))
+            return (DataProvider<T>) _dataProviderMap;
+        else if (List.class.isAssignableFrom(dataClass))
+            return (DataProvider<T>) _dataProviderList;
+        else
+            return null;
     }
 
     @Override
@@ -263,6 +989,16 @@ public class AzureSQLServerDataService implements DataService
     private String _user;
     private String _password;
 
+    private volatile SQLServerConnectionPool _connectionPool;
+    private volatile SQLServerBatchWriter    _batchWriter;
+    private volatile RecordParser            _recordParser;
+    private volatile ResilientExecutor       _resilientExecutor;
+    private volatile SpillJournal            _spillJournal;
+    private volatile SpillReplayer           _spillReplayer;
+    private volatile SQLServerQuerySource    _querySource;
+    private volatile SQLServerSliceExtractor _sliceExtractor;
+    private ServiceMetrics                   _metrics;
+
     private DataFlow             _dataFlow;
     private String               _name;
     private Map<String, String>  _properties;
@@ -272,4 +1008,8 @@ public class AzureSQLServerDataService implements DataService
     private DataConsumer<byte[]> _dataConsumerBytes;
     @DataConsumerInjection(methodName="consumeMap")
     private DataConsumer<Map>    _dataConsumerMap;
+    @DataProviderInjection
+    private DataProvider<Map>    _dataProviderMap;
+    @DataProviderInjection
+    private DataProvider<List>   _dataProviderList;
 }
@@ -0,0 +1,181 @@
+/*
+ * Copyright (c) 2015, Arjuna Technologies Limited, Newcastle-upon-Tyne, England. All rights reserved.
+ */
+
+package com.arjuna.dbplugins.azure.sqlserver;
+
+import java.math.BigDecimal;
+import java.sql.Date;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import com.microsoft.sqlserver.jdbc.ISQLServerBulkRecord;
+import com.microsoft.sqlserver.jdbc.SQLServerException;
+
+public class BufferedBulkRecord implements ISQLServerBulkRecord
+{
+    public BufferedBulkRecord(List<String> columnNames, int[] columnTypes, int[] precisions, int[] scales, List<Object[]> records)
+    {
+        _columnNames = columnNames;
+        _columnTypes = columnTypes;
+        _precisions  = precisions;
+        _scales      = scales;
+        _records     = records.iterator();
+
+        _columnOrdinals = new LinkedHashSet<Integer>();
+        for (int columnIndex = 0; columnIndex < columnNames.size(); columnIndex++)
+            _columnOrdinals.add(columnIndex + 1);
+    }
+
+    @Override
+    public Set<Integer> getColumnOrdinals()
+    {
+        return _columnOrdinals;
+    }
+
+    @Override
+    public String getColumnName(int column)
+    {
+        return _columnNames.get(column - 1);
+    }
+
+    @Override
+    public int getColumnType(int column)
+    {
+        return _columnTypes[column - 1];
+    }
+
+    @Override
+    public int getPrecision(int column)
+    {
+        return _precisions[column - 1];
+    }
+
+    @Override
+    public int getScale(int column)
+    {
+        return _scales[column - 1];
+    }
+
+    @Override
+    public boolean isAutoIncrement(int column)
+    {
+        return false;
+    }
+
+    @Override
+    public boolean next()
+        throws SQLServerException
+    {
+        if (_records.hasNext())
+        {
+            _current = _records.next();
+            return true;
+        }
+        else
+        {
+            _current = null;
+            return false;
+        }
+    }
+
+    @Override
+    public Object[] getRowData()
+        throws SQLServerException
+    {
+        Object[] rowData = new Object[_columnTypes.length];
+        for (int columnIndex = 0; columnIndex < rowData.length; columnIndex++)
+        {
+            try
+            {
+                rowData[columnIndex] = convert(_current[columnIndex], _columnTypes[columnIndex]);
+            }
+            catch (IllegalArgumentException illegalArgumentException)
+            {
+                // SQLServerException cannot be constructed outside the driver, so the bulk copy wraps this as an SQLException
+                throw new IllegalArgumentException("Unable to convert value for column \"" + _columnNames.get(columnIndex) + "\"", illegalArgumentException);
+            }
+        }
+
+        return rowData;
+    }
+
+    private static Object convert(Object value, int columnType)
+    {
+        if (value == null)
+            return null;
+
+        switch (columnType)
+        {
+            case Types.BIT:
+            case Types.BOOLEAN:
+                if (value instanceof Boolean)
+                    return value;
+                else if (value instanceof Number)
+                    return Boolean.valueOf(((Number) value).intValue() != 0);
+                else
+                    return Boolean.valueOf("1".equals(value.toString().trim()) || Boolean.parseBoolean(value.toString().trim()));
+            case Types.TINYINT:
+            case Types.SMALLINT:
+            case Types.INTEGER:
+                if (value instanceof Number)
+                    return Integer.valueOf(((Number) value).intValue());
+                else
+                    return Integer.valueOf(value.toString().trim());
+            case Types.BIGINT:
+                if (value instanceof Number)
+                    return Long.valueOf(((Number) value).longValue());
+                else
+                    return Long.valueOf(value.toString().trim());
+            case Types.REAL:
+            case Types.FLOAT:
+            case Types.DOUBLE:
+                if (value instanceof Number)
+                    return Double.valueOf(((Number) value).doubleValue());
+                else
+                    return Double.valueOf(value.toString().trim());
+            case Types.DECIMAL:
+            case Types.NUMERIC:
+                if (value instanceof BigDecimal)
+                    return value;
+                else
+                    return new BigDecimal(value.toString().trim());
+            case Types.DATE:
+                if (value instanceof java.util.Date)
+                    return value;
+                else
+                    return Date.valueOf(value.toString().trim());
+            case Types.TIME:
+                if (value instanceof java.util.Date)
+                    return value;
+                else
+                    return Time.valueOf(value.toString().trim());
+            case Types.TIMESTAMP:
+                if (value instanceof java.util.Date)
+                    return value;
+                else
+                    return Timestamp.valueOf(value.toString().trim().replace('T', ' '));
+            case Types.CHAR:
+            case Types.VARCHAR:
+            case Types.LONGVARCHAR:
+            case Types.NCHAR:
+            case Types.NVARCHAR:
+            case Types.LONGNVARCHAR:
+                return value.toString();
+            default:
+                return value;
+        }
+    }
+
+    private List<String>       _columnNames;
+    private int[]              _columnTypes;
+    private int[]              _precisions;
+    private int[]              _scales;
+    private Set<Integer>       _columnOrdinals;
+    private Iterator<Object[]> _records;
+    private Object[]           _current;
+}
@@ -0,0 +1,13 @@
+/*
+ * Copyright (c) 2015, Arjuna Technologies Limited, Newcastle-upon-Tyne, England. All rights reserved.
+ */
+
+package com.arjuna.dbplugins.azure.sqlserver;
+
+import java.util.List;
+import java.util.Map;
+
+public interface QueryBatchHandler
+{
+    public void emit(List<Map<String, Object>> records);
+}
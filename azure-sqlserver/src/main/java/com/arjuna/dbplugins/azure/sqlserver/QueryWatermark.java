@@ -0,0 +1,49 @@
+/*
+ * Copyright (c) 2015, Arjuna Technologies Limited, Newcastle-upon-Tyne, England. All rights reserved.
+ */
+
+package com.arjuna.dbplugins.azure.sqlserver;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import com.arjuna.dbplugins.azure.common.AtomicFile;
+
+/**
+ * Persists the position of a query source, the ordering column values of the last emitted
+ * row, so that after a restart the query resumes with the following row.
+ */
+public class QueryWatermark
+{
+    private static final String WATERMARKFILE_NAME = "watermark";
+
+    public QueryWatermark(File directory)
+        throws IOException
+    {
+        if ((! directory.isDirectory()) && (! directory.mkdirs()))
+            throw new IOException("Unable to create watermark directory: " + directory);
+
+        _file = new AtomicFile(new File(directory, WATERMARKFILE_NAME));
+    }
+
+    public Object[] load()
+        throws IOException
+    {
+        byte[] data = _file.read();
+        if (data == null)
+            return null;
+
+        List<Object[]> records = RecordBatchCodec.decode(data);
+
+        return records.isEmpty() ? null : records.get(0);
+    }
+
+    public void store(Object[] position)
+        throws IOException
+    {
+        _file.write(RecordBatchCodec.encode(Collections.singletonList(position)));
+    }
+
+    private AtomicFile _file;
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright (c) 2015, Arjuna Technologies Limited, Newcastle-upon-Tyne, England. All rights reserved.
+ */
+
+package com.arjuna.dbplugins.azure.sqlserver;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Encodes batches of records for the spill journal and query watermarks. Values keep the types
+ * produced by the record parser, along with binary and timestamp values read from result sets;
+ * values of any other type are written as their string form.
+ */
+public class RecordBatchCodec
+{
+    private static final byte NULL_TYPE       = 0;
+    private static final byte STRING_TYPE     = 1;
+    private static final byte BOOLEAN_TYPE    = 2;
+    private static final byte INTEGER_TYPE    = 3;
+    private static final byte LONG_TYPE       = 4;
+    private static final byte DOUBLE_TYPE     = 5;
+    private static final byte BIGINTEGER_TYPE = 6;
+    private static final byte BIGDECIMAL_TYPE = 7;
+    private static final byte BYTES_TYPE      = 8;
+    private static final byte TIMESTAMP_TYPE  = 9;
+
+    public static byte[] encode(List<Object[]> records)
+        throws IOException
+    {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        DataOutputStream      output = new DataOutputStream(buffer);
+
+        output.writeInt(records.size());
+        for (Object[] record: records)
+        {
+            output.writeInt(record.length);
+            for (Object value: record)
+                writeValue(output, value);
+        }
+        output.flush();
+
+        return buffer.toByteArray();
+    }
+
+    public static List<Object[]> decode(byte[] data)
+        throws IOException
+    {
+        DataInputStream input = new DataInputStream(new ByteArrayInputStream(data));
+
+        int            recordCount = input.readInt();
+        List<Object[]> records     = new ArrayList<Object[]>(recordCount);
+        for (int recordIndex = 0; recordIndex < recordCount; recordIndex++)
+        {
+            Object[] record = new Object[input.readInt()];
+            for (int valueIndex = 0; valueIndex < record.length; valueIndex++)
+                record[valueIndex] = readValue(input);
+            records.add(record);
+        }
+
+        return records;
+    }
+
+    private static void writeValue(DataOutputStream output, Object value)
+        throws IOException
+    {
+        if (value == null)
+            output.writeByte(NULL_TYPE);
+        else if (value instanceof Boolean)
+        {
+            output.writeByte(BOOLEAN_TYPE);
+            output.writeBoolean((Boolean) value);
+        }
+        else if ((value instanceof Integer) || (value instanceof Short) || (value instanceof Byte))
+        {
+            output.writeByte(INTEGER_TYPE);
+            output.writeInt(((Number) value).intValue());
+        }
+        else if (value instanceof Long)
+        {
+            output.writeByte(LONG_TYPE);
+            output.writeLong((Long) value);
+        }
+        else if ((value instanceof Double) || (value instanceof Float))
+        {
+            output.writeByte(DOUBLE_TYPE);
+            output.writeDouble(((Number) value).doubleValue());
+        }
+        else if (value instanceof BigInteger)
+        {
+            output.writeByte(BIGINTEGER_TYPE);
+            writeLongString(output, value.toString());
+        }
+        else if (value instanceof BigDecimal)
+        {
+            output.writeByte(BIGDECIMAL_TYPE);
+            writeLongString(output, value.toString());
+        }
+        else if (value instanceof byte[])
+        {
+            output.writeByte(BYTES_TYPE);
+            output.writeInt(((byte[]) value).length);
+            output.write((byte[]) value);
+        }
+        else if (value instanceof Timestamp)
+        {
+            output.writeByte(TIMESTAMP_TYPE);
+            output.writeLong(((Timestamp) value).getTime());
+            output.writeInt(((Timestamp) value).getNanos());
+        }
+        else
+        {
+            output.writeByte(STRING_TYPE);
+            writeLongString(output, value.toString());
+        }
+    }
+
+    private static Object readValue(DataInputStream input)
+        throws IOException
+    {
+        byte type = input.readByte();
+        switch (type)
+        {
+            case NULL_TYPE:
+                return null;
+            case STRING_TYPE:
+                return readLongString(input);
+            case BOOLEAN_TYPE:
+                return Boolean.valueOf(input.readBoolean());
+            case INTEGER_TYPE:
+                return Integer.valueOf(input.readInt());
+            case LONG_TYPE:
+                return Long.valueOf(input.readLong());
+            case DOUBLE_TYPE:
+                return Double.valueOf(input.readDouble());
+            case BIGINTEGER_TYPE:
+                return new BigInteger(readLongString(input));
+            case BIGDECIMAL_TYPE:
+                return new BigDecimal(readLongString(input));
+            case BYTES_TYPE:
+                byte[] bytes = new byte[input.readInt()];
+                input.readFully(bytes);
+                return bytes;
+            case TIMESTAMP_TYPE:
+                Timestamp timestamp = new Timestamp(input.readLong());
+                timestamp.setNanos(input.readInt());
+                return timestamp;
+            default:
+                throw new IOException("Unknown record value type: " + type);
+        }
+    }
+
+    // writeUTF is limited to 64K, so strings are written as length prefixed UTF-8
+    private static void writeLongString(DataOutputStream output, String value)
+        throws IOException
+    {
+        byte[] bytes = value.getBytes("UTF-8");
+        output.writeInt(bytes.length);
+        output.write(bytes);
+    }
+
+    private static String readLongString(DataInputStream input)
+        throws IOException
+    {
+        byte[] bytes = new byte[input.readInt()];
+        input.readFully(bytes);
+
+        return new String(bytes, "UTF-8");
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright (c) 2015, Arjuna Technologies Limited, Newcastle-upon-Tyne, England. All rights reserved.
+ */
+
+package com.arjuna.dbplugins.azure.sqlserver;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+public class RecordParser
+{
+    public enum Format
+    {
+        JSON,
+        CSV
+    }
+
+    private static final JsonFactory jsonFactory = new JsonFactory();
+
+    public RecordParser(Format format, List<String> fieldNames)
+    {
+        _format       = format;
+        _fieldNames   = fieldNames.toArray(new String[fieldNames.size()]);
+        _fieldIndexes = new HashMap<String, Integer>();
+        for (int fieldIndex = 0; fieldIndex < _fieldNames.length; fieldIndex++)
+            _fieldIndexes.put(_fieldNames[fieldIndex], fieldIndex);
+    }
+
+    public int getFieldCount()
+    {
+        return _fieldNames.length;
+    }
+
+    public List<Object[]> parse(byte[] data)
+        throws IOException
+    {
+        if (_format == Format.CSV)
+            return parseCSV(new String(data, "UTF-8"));
+        else
+            return parseJSON(jsonFactory.createParser(data));
+    }
+
+    // Parses text directly, rather than encoding it to bytes only for the parser to decode them again
+    public List<Object[]> parse(String data)
+        throws IOException
+    {
+        if (_format == Format.CSV)
+            return parseCSV(data);
+        else
+            return parseJSON(jsonFactory.createParser(data));
+    }
+
+    public Object[] map(Map<?, ?> record)
+    {
+        Object[] values = new Object[_fieldNames.length];
+        for (int fieldIndex = 0; fieldIndex < _fieldNames.length; fieldIndex++)
+            values[fieldIndex] = record.get(_fieldNames[fieldIndex]);
+
+        return values;
+    }
+
+    private List<Object[]> parseJSON(JsonParser parser)
+        throws IOException
+    {
+        List<Object[]> records = new LinkedList<Object[]>();
+        try
+        {
+            JsonToken token = parser.nextToken();
+            while (token != null)
+            {
+                if (token == JsonToken.START_OBJECT)
+                    records.add(parseJSONObject(parser));
+                else if ((token != JsonToken.START_ARRAY) && (token != JsonToken.END_ARRAY))
+                    throw new IOException("Unexpected JSON token: " + token);
+
+                token = parser.nextToken();
+            }
+        }
+        finally
+        {
+            parser.close();
+        }
+
+        return records;
+    }
+
+    private Object[] parseJSONObject(JsonParser parser)
+        throws IOException
+    {
+        Object[] values = new Object[_fieldNames.length];
+
+        while (parser.nextToken() == JsonToken.FIELD_NAME)
+        {
+            Integer   fieldIndex = _fieldIndexes.get(parser.getCurrentName());
+            JsonToken token      = parser.nextToken();
+
+            if ((token == JsonToken.START_OBJECT) || (token == JsonToken.START_ARRAY))
+                parser.skipChildren();
+            else if (fieldIndex != null)
+            {
+                if ((token == JsonToken.VALUE_NUMBER_INT) || (token == JsonToken.VALUE_NUMBER_FLOAT))
+                    values[fieldIndex] = parser.getNumberValue();
+                else if ((token == JsonToken.VALUE_TRUE) || (token == JsonToken.VALUE_FALSE))
+                    values[fieldIndex] = Boolean.valueOf(token == JsonToken.VALUE_TRUE);
+                else if (token == JsonToken.VALUE_STRING)
+                    values[fieldIndex] = parser.getText();
+            }
+        }
+
+        return values;
+    }
+
+    private List<Object[]> parseCSV(String data)
+    {
+        List<Object[]> records = new LinkedList<Object[]>();
+        Object[]       values  = new Object[_fieldNames.length];
+        StringBuilder  value   = new StringBuilder();
+        int            column  = 0;
+        boolean        quoted  = false;
+        boolean        empty   = true;
+
+        for (int index = 0; index < data.length(); index++)
+        {
+            char character = data.charAt(index);
+            if (quoted)
+            {
+                if (character != '"')
+                    value.append(character);
+                else if ((index + 1 < data.length()) && (data.charAt(index + 1) == '"'))
+                {
+                    value.append('"');
+                    index++;
+                }
+                else
+                    quoted = false;
+            }
+            else if (character == '"')
+            {
+                quoted = true;
+                empty  = false;
+            }
+            else if (character == ',')
+            {
+                setCSVValue(values, column++, value);
+                empty = false;
+            }
+            else if ((character == '\n') || (character == '\r'))
+            {
+                if ((! empty) || (value.length() > 0))
+                {
+                    setCSVValue(values, column, value);
+                    records.add(values);
+                    values = new Object[_fieldNames.length];
+                }
+                column = 0;
+                empty  = true;
+            }
+            else
+            {
+                value.append(character);
+                empty = false;
+            }
+        }
+
+        if ((! empty) || (value.length() > 0))
+        {
+            setCSVValue(values, column, value);
+            records.add(values);
+        }
+
+        return records;
+    }
+
+    private void setCSVValue(Object[] values, int column, StringBuilder value)
+    {
+        if (column < values.length)
+            values[column] = value.toString();
+        value.setLength(0);
+    }
+
+    private Format               _format;
+    private String[]             _fieldNames;
+    private Map<String, Integer> _fieldIndexes;
+}
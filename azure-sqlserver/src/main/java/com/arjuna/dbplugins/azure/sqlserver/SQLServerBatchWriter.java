@@ -0,0 +1,513 @@
+/*
+ * Copyright (c) 2015, Arjuna Technologies Limited, Newcastle-upon-Tyne, England. All rights reserved.
+ */
+
+package com.arjuna.dbplugins.azure.sqlserver;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import com.arjuna.dbplugins.azure.common.CircuitBreakerOpenException;
+import com.arjuna.dbplugins.azure.common.ResilientExecutor;
+import com.arjuna.dbplugins.azure.common.ServiceMetrics;
+import com.arjuna.dbplugins.azure.common.SpillJournal;
+import com.microsoft.sqlserver.jdbc.SQLServerBulkCopy;
+import com.microsoft.sqlserver.jdbc.SQLServerBulkCopyOptions;
+
+public class SQLServerBatchWriter
+{
+    private static final Logger logger = Logger.getLogger(SQLServerBatchWriter.class.getName());
+
+    public enum Mode
+    {
+        BATCH,
+        BULKCOPY
+    }
+
+    public SQLServerBatchWriter(final String name, SQLServerConnectionPool connectionPool, String tableName, List<String> columnNames, int batchSize, long flushInterval, Mode mode, boolean tableLock, SpillJournal spillJournal, ResilientExecutor resilientExecutor, ServiceMetrics metrics)
+    {
+        _connectionPool    = connectionPool;
+        _tableName         = quoteTableName(tableName);
+        _columnNames       = columnNames;
+        _insertSQL         = generateInsertSQL(tableName, columnNames);
+        _batchSize         = batchSize;
+        _mode              = mode;
+        _tableLock         = tableLock;
+        _spillJournal      = spillJournal;
+        _resilientExecutor = resilientExecutor;
+        _metrics           = metrics;
+        _pendingRecords    = new ArrayList<Object[]>(batchSize);
+        _flushLock         = new Object();
+
+        _scheduledExecutorService = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable runnable)
+            {
+                Thread thread = new Thread(runnable, "AzureSQLServerBatchWriter-" + name);
+                thread.setDaemon(true);
+
+                return thread;
+            }
+        });
+
+        _scheduledExecutorService.scheduleWithFixedDelay(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    flush();
+                }
+                catch (Throwable throwable)
+                {
+                    logger.log(Level.WARNING, "Problems flushing SQL Server batch", throwable);
+                }
+            }
+        }, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+    }
+
+    public String getInsertSQL()
+    {
+        return _insertSQL;
+    }
+
+    public synchronized int getPendingCount()
+    {
+        return _pendingRecords.size();
+    }
+
+    public void write(List<Object[]> records)
+        throws SQLException, InterruptedException
+    {
+        List<Object[]> batch = null;
+        synchronized (this)
+        {
+            _pendingRecords.addAll(records);
+            if (_pendingRecords.size() >= _batchSize)
+                batch = takePendingRecords();
+        }
+
+        if (batch != null)
+            writeBatch(batch);
+    }
+
+    public void flush()
+        throws SQLException, InterruptedException
+    {
+        List<Object[]> batch = null;
+        synchronized (this)
+        {
+            if (! _pendingRecords.isEmpty())
+                batch = takePendingRecords();
+        }
+
+        if (batch != null)
+            writeBatch(batch);
+    }
+
+    public void replay(byte[] record)
+        throws IOException, SQLException, InterruptedException
+    {
+        deliverBatch(RecordBatchCodec.decode(record));
+    }
+
+    public void close()
+    {
+        _scheduledExecutorService.shutdown();
+        try
+        {
+            _scheduledExecutorService.awaitTermination(30, TimeUnit.SECONDS);
+            flush();
+        }
+        catch (InterruptedException interruptedException)
+        {
+            Thread.currentThread().interrupt();
+        }
+        catch (SQLException sqlException)
+        {
+            logger.log(Level.WARNING, "Problems flushing SQL Server batch on close", sqlException);
+        }
+
+        synchronized (_flushLock)
+        {
+            releaseConnection(false);
+        }
+    }
+
+    public static String generateInsertSQL(String tableName, List<String> columnNames)
+    {
+        StringBuilder sql = new StringBuilder("INSERT INTO ");
+
+        sql.append(quoteTableName(tableName));
+        sql.append(" (");
+        sql.append(quoteColumnNames(columnNames));
+        sql.append(") VALUES (");
+        for (int columnIndex = 0; columnIndex < columnNames.size(); columnIndex++)
+        {
+            if (columnIndex > 0)
+                sql.append(", ");
+            sql.append('?');
+        }
+        sql.append(')');
+
+        return sql.toString();
+    }
+
+    static String quoteTableName(String tableName)
+    {
+        StringBuilder quotedTableName = new StringBuilder();
+
+        String[] tableNameParts = tableName.split("\\.");
+        for (int partIndex = 0; partIndex < tableNameParts.length; partIndex++)
+        {
+            if (partIndex > 0)
+                quotedTableName.append('.');
+            quotedTableName.append(quoteIdentifier(tableNameParts[partIndex].trim()));
+        }
+
+        return quotedTableName.toString();
+    }
+
+    private static String quoteColumnNames(List<String> columnNames)
+    {
+        StringBuilder quotedColumnNames = new StringBuilder();
+
+        for (int columnIndex = 0; columnIndex < columnNames.size(); columnIndex++)
+        {
+            if (columnIndex > 0)
+                quotedColumnNames.append(", ");
+            quotedColumnNames.append(quoteIdentifier(columnNames.get(columnIndex)));
+        }
+
+        return quotedColumnNames.toString();
+    }
+
+    static String quoteIdentifier(String identifier)
+    {
+        if (identifier.startsWith("[") && identifier.endsWith("]"))
+            return identifier;
+        else
+            return "[" + identifier.replace("]", "]]") + "]";
+    }
+
+    private List<Object[]> takePendingRecords()
+    {
+        List<Object[]> batch = _pendingRecords;
+        _pendingRecords = new ArrayList<Object[]>(_batchSize);
+
+        return batch;
+    }
+
+    private void writeBatch(List<Object[]> records)
+        throws SQLException, InterruptedException
+    {
+        // While spilled batches are pending, later batches join the journal so rows reach the table in order
+        if ((_spillJournal != null) && (_spillJournal.getPendingCount() > 0L) && spillBatch(records))
+            return;
+
+        try
+        {
+            deliverBatch(records);
+        }
+        catch (SQLException sqlException)
+        {
+            if ((_spillJournal == null) || (! _resilientExecutor.isTransient(sqlException)) || (! spillBatch(records)))
+                throw sqlException;
+        }
+    }
+
+    private boolean spillBatch(List<Object[]> records)
+    {
+        try
+        {
+            if (_spillJournal.append(RecordBatchCodec.encode(records)))
+            {
+                logger.log(Level.FINE, "Spilled " + records.size() + " records");
+                return true;
+            }
+            else
+                logger.log(Level.WARNING, "Unable to spill SQL Server batch, spill journal full");
+        }
+        catch (IOException ioException)
+        {
+            logger.log(Level.WARNING, "Problems spilling SQL Server batch", ioException);
+        }
+
+        return false;
+    }
+
+    private void deliverBatch(final List<Object[]> records)
+        throws SQLException, InterruptedException
+    {
+        long startTime = _metrics.startRequest();
+        try
+        {
+            // Failed batches are rolled back and their connection released, so a retry replays the whole batch
+            _resilientExecutor.execute(new Callable<Void>()
+            {
+                @Override
+                public Void call()
+                    throws SQLException, InterruptedException
+                {
+                    if (_mode == Mode.BULKCOPY)
+                        writeBulkCopyBatch(records);
+                    else
+                        writeInsertBatch(records);
+
+                    return null;
+                }
+            });
+            _metrics.recordSuccess(startTime);
+        }
+        catch (SQLException sqlException)
+        {
+            _metrics.recordFailure(startTime, "SQLState " + sqlException.getSQLState());
+            throw sqlException;
+        }
+        catch (InterruptedException interruptedException)
+        {
+            _metrics.recordFailure(startTime, ServiceMetrics.causeOf(interruptedException));
+            throw interruptedException;
+        }
+        catch (CircuitBreakerOpenException circuitBreakerOpenException)
+        {
+            _metrics.recordFailure(startTime, ServiceMetrics.causeOf(circuitBreakerOpenException));
+            throw new SQLTransientConnectionException(circuitBreakerOpenException.getMessage(), "08001", circuitBreakerOpenException);
+        }
+        catch (RuntimeException runtimeException)
+        {
+            _metrics.recordFailure(startTime, ServiceMetrics.causeOf(runtimeException));
+            throw runtimeException;
+        }
+        catch (Exception exception)
+        {
+            _metrics.recordFailure(startTime, ServiceMetrics.causeOf(exception));
+            throw new SQLException(exception);
+        }
+    }
+
+    private void writeBulkCopyBatch(List<Object[]> records)
+        throws SQLException, InterruptedException
+    {
+        synchronized (_flushLock)
+        {
+            SQLServerBulkCopy bulkCopy = null;
+            try
+            {
+                if (_connection == null)
+                {
+                    _connection = _connectionPool.getConnection();
+                    _connection.setAutoCommit(false);
+                }
+                if (_columnTypes == null)
+                    loadColumnMetadata();
+
+                SQLServerBulkCopyOptions bulkCopyOptions = new SQLServerBulkCopyOptions();
+                bulkCopyOptions.setBatchSize(_batchSize);
+                bulkCopyOptions.setTableLock(_tableLock);
+
+                bulkCopy = new SQLServerBulkCopy(_connection);
+                bulkCopy.setDestinationTableName(_tableName);
+                bulkCopy.setBulkCopyOptions(bulkCopyOptions);
+                for (int columnIndex = 0; columnIndex < _columnNames.size(); columnIndex++)
+                    bulkCopy.addColumnMapping(columnIndex + 1, _columnNames.get(columnIndex));
+
+                bulkCopy.writeToServer(new BufferedBulkRecord(_columnNames, _columnTypes, _precisions, _scales, records));
+
+                _connection.commit();
+                logger.log(Level.FINE, "Bulk copied " + records.size() + " records");
+            }
+            catch (SQLException sqlException)
+            {
+                rollback();
+                releaseConnection(true);
+
+                throw sqlException;
+            }
+            catch (IllegalArgumentException illegalArgumentException)
+            {
+                rollback();
+                releaseConnection(true);
+
+                throw new SQLException(illegalArgumentException.getMessage(), "22018", illegalArgumentException);
+            }
+            finally
+            {
+                if (bulkCopy != null)
+                    bulkCopy.close();
+            }
+        }
+    }
+
+    private void loadColumnMetadata()
+        throws SQLException
+    {
+        Statement statement = _connection.createStatement();
+        try
+        {
+            ResultSet         resultSet         = statement.executeQuery("SELECT TOP 0 " + quoteColumnNames(_columnNames) + " FROM " + _tableName);
+            ResultSetMetaData resultSetMetaData = resultSet.getMetaData();
+
+            int[] columnTypes = new int[_columnNames.size()];
+            int[] precisions  = new int[_columnNames.size()];
+            int[] scales      = new int[_columnNames.size()];
+            for (int columnIndex = 0; columnIndex < columnTypes.length; columnIndex++)
+            {
+                columnTypes[columnIndex] = resultSetMetaData.getColumnType(columnIndex + 1);
+                precisions[columnIndex]  = resultSetMetaData.getPrecision(columnIndex + 1);
+                scales[columnIndex]      = resultSetMetaData.getScale(columnIndex + 1);
+            }
+            resultSet.close();
+
+            _precisions  = precisions;
+            _scales      = scales;
+            _columnTypes = columnTypes;
+        }
+        finally
+        {
+            statement.close();
+        }
+    }
+
+    private void writeInsertBatch(List<Object[]> records)
+        throws SQLException, InterruptedException
+    {
+        synchronized (_flushLock)
+        {
+            try
+            {
+                PreparedStatement statement  = getStatement();
+                int               batchCount = 0;
+                // A null bound as varchar is not converted to binary columns, so nulls take the column's own type
+                if (_columnTypes == null)
+                    loadColumnMetadata();
+                for (Object[] record: records)
+                {
+                    for (int valueIndex = 0; valueIndex < record.length; valueIndex++)
+                    {
+                        if (record[valueIndex] == null)
+                            statement.setNull(valueIndex + 1, (valueIndex < _columnTypes.length) ? _columnTypes[valueIndex] : Types.VARCHAR);
+                        else
+                            statement.setObject(valueIndex + 1, record[valueIndex]);
+                    }
+                    statement.addBatch();
+
+                    if (++batchCount >= _batchSize)
+                    {
+                        statement.executeBatch();
+                        batchCount = 0;
+                    }
+                }
+                if (batchCount > 0)
+                    statement.executeBatch();
+
+                _connection.commit();
+                logger.log(Level.FINE, "Inserted " + records.size() + " records");
+            }
+            catch (SQLException sqlException)
+            {
+                rollback();
+                releaseConnection(true);
+
+                throw sqlException;
+            }
+        }
+    }
+
+    private void rollback()
+    {
+        if (_connection != null)
+        {
+            try
+            {
+                _connection.rollback();
+            }
+            catch (SQLException sqlException)
+            {
+                logger.log(Level.FINE, "Problems rolling back SQL Server batch", sqlException);
+            }
+        }
+    }
+
+    private PreparedStatement getStatement()
+        throws SQLException, InterruptedException
+    {
+        if (_statement == null)
+        {
+            _connection = _connectionPool.getConnection();
+            _connection.setAutoCommit(false);
+            _statement  = _connection.prepareStatement(_insertSQL);
+        }
+
+        return _statement;
+    }
+
+    private void releaseConnection(boolean broken)
+    {
+        if (_statement != null)
+        {
+            try
+            {
+                _statement.close();
+            }
+            catch (SQLException sqlException)
+            {
+                logger.log(Level.FINE, "Problems closing SQL Server statement", sqlException);
+            }
+            _statement = null;
+        }
+
+        if (_connection != null)
+        {
+            if (! broken)
+            {
+                try
+                {
+                    _connection.setAutoCommit(true);
+                }
+                catch (SQLException sqlException)
+                {
+                    broken = true;
+                }
+            }
+            _connectionPool.releaseConnection(_connection, broken);
+            _connection = null;
+        }
+    }
+
+    private SQLServerConnectionPool  _connectionPool;
+    private String                   _tableName;
+    private List<String>             _columnNames;
+    private String                   _insertSQL;
+    private int                      _batchSize;
+    private Mode                     _mode;
+    private boolean                  _tableLock;
+    private SpillJournal             _spillJournal;
+    private ResilientExecutor        _resilientExecutor;
+    private ServiceMetrics           _metrics;
+    private int[]                    _columnTypes;
+    private int[]                    _precisions;
+    private int[]                    _scales;
+    private List<Object[]>           _pendingRecords;
+    private Object                   _flushLock;
+    private Connection               _connection;
+    private PreparedStatement        _statement;
+    private ScheduledExecutorService _scheduledExecutorService;
+}
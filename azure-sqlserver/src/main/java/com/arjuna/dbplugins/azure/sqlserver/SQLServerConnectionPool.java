@@ -0,0 +1,423 @@
+/*
+ * Copyright (c) 2015, Arjuna Technologies Limited, Newcastle-upon-Tyne, England. All rights reserved.
+ */
+
+package com.arjuna.dbplugins.azure.sqlserver;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+public class SQLServerConnectionPool
+{
+    private static final Logger logger = Logger.getLogger(SQLServerConnectionPool.class.getName());
+
+    // Connections idle for less than this are handed out without a validation round-trip
+    private static final long VALIDATION_IDLETIME = 30000L;
+
+    public SQLServerConnectionPool(final String name, String connectionURL, int minSize, int maxSize, long maxWait, int validationTimeout, long idleTimeout)
+    {
+        _connectionURL     = connectionURL;
+        _minSize           = Math.min(minSize, maxSize);
+        _maxSize           = maxSize;
+        _maxWait           = maxWait;
+        _validationTimeout = validationTimeout;
+        _idleTimeout       = idleTimeout;
+
+        _lock              = new ReentrantLock();
+        _available         = _lock.newCondition();
+        _idleConnections   = new LinkedList<IdleConnection>();
+        _activeCount       = 0;
+        _pendingCount      = 0;
+        _closed            = false;
+
+        _createdCount      = new AtomicLong();
+        _destroyedCount    = new AtomicLong();
+        _waitCount         = new AtomicLong();
+        _waitTime          = new AtomicLong();
+        _timeoutCount      = new AtomicLong();
+
+        _scheduledExecutorService = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable runnable)
+            {
+                Thread thread = new Thread(runnable, "AzureSQLServerPool-" + name);
+                thread.setDaemon(true);
+
+                return thread;
+            }
+        });
+
+        long maintenanceInterval = Math.max(_idleTimeout / 2, 1000L);
+        _scheduledExecutorService.scheduleWithFixedDelay(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                maintain();
+            }
+        }, 0L, maintenanceInterval, TimeUnit.MILLISECONDS);
+    }
+
+    public Connection getConnection()
+        throws SQLException, InterruptedException
+    {
+        long startTime = System.currentTimeMillis();
+        boolean waited = false;
+
+        while (true)
+        {
+            IdleConnection idleConnection = null;
+            boolean        create         = false;
+
+            _lock.lock();
+            try
+            {
+                long deadline = startTime + _maxWait;
+                while ((! _closed) && _idleConnections.isEmpty() && (_activeCount + _pendingCount >= _maxSize))
+                {
+                    if (! waited)
+                    {
+                        waited = true;
+                        _waitCount.incrementAndGet();
+                    }
+
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0L)
+                    {
+                        _timeoutCount.incrementAndGet();
+                        _waitTime.addAndGet(System.currentTimeMillis() - startTime);
+                        throw new SQLTransientConnectionException("Timed out waiting for pooled connection after " + _maxWait + "ms");
+                    }
+                    _available.await(remaining, TimeUnit.MILLISECONDS);
+                }
+
+                if (_closed)
+                    throw new SQLException("Connection pool closed");
+
+                if (! _idleConnections.isEmpty())
+                {
+                    idleConnection = _idleConnections.removeFirst();
+                    _activeCount++;
+                }
+                else
+                {
+                    create = true;
+                    _pendingCount++;
+                }
+            }
+            finally
+            {
+                _lock.unlock();
+            }
+
+            if (waited)
+                _waitTime.addAndGet(System.currentTimeMillis() - startTime);
+
+            if (create)
+                return createConnection();
+            else if ((System.currentTimeMillis() - idleConnection.idleSince < VALIDATION_IDLETIME) || isValid(idleConnection.connection))
+                return idleConnection.connection;
+            else
+            {
+                destroyConnection(idleConnection.connection);
+                _lock.lock();
+                try
+                {
+                    _activeCount--;
+                    _available.signal();
+                }
+                finally
+                {
+                    _lock.unlock();
+                }
+                waited    = false;
+                startTime = System.currentTimeMillis();
+            }
+        }
+    }
+
+    public void releaseConnection(Connection connection, boolean broken)
+    {
+        if (connection == null)
+            return;
+
+        boolean destroy = broken;
+        if (! destroy)
+        {
+            try
+            {
+                destroy = connection.isClosed();
+                if ((! destroy) && (! connection.getAutoCommit()))
+                    connection.rollback();
+            }
+            catch (SQLException sqlException)
+            {
+                destroy = true;
+            }
+        }
+
+        _lock.lock();
+        try
+        {
+            _activeCount--;
+            if (_closed)
+                destroy = true;
+            else if (! destroy)
+                _idleConnections.addFirst(new IdleConnection(connection, System.currentTimeMillis()));
+            _available.signal();
+        }
+        finally
+        {
+            _lock.unlock();
+        }
+
+        if (destroy)
+            destroyConnection(connection);
+    }
+
+    public void close()
+    {
+        _scheduledExecutorService.shutdownNow();
+
+        LinkedList<IdleConnection> idleConnections;
+        _lock.lock();
+        try
+        {
+            _closed = true;
+            idleConnections  = _idleConnections;
+            _idleConnections = new LinkedList<IdleConnection>();
+            _available.signalAll();
+        }
+        finally
+        {
+            _lock.unlock();
+        }
+
+        for (IdleConnection idleConnection: idleConnections)
+            destroyConnection(idleConnection.connection);
+    }
+
+    public int getActiveCount()
+    {
+        _lock.lock();
+        try
+        {
+            return _activeCount;
+        }
+        finally
+        {
+            _lock.unlock();
+        }
+    }
+
+    public int getIdleCount()
+    {
+        _lock.lock();
+        try
+        {
+            return _idleConnections.size();
+        }
+        finally
+        {
+            _lock.unlock();
+        }
+    }
+
+    public long getCreatedCount()
+    {
+        return _createdCount.get();
+    }
+
+    public long getDestroyedCount()
+    {
+        return _destroyedCount.get();
+    }
+
+    public long getWaitCount()
+    {
+        return _waitCount.get();
+    }
+
+    public long getWaitTime()
+    {
+        return _waitTime.get();
+    }
+
+    public long getTimeoutCount()
+    {
+        return _timeoutCount.get();
+    }
+
+    private Connection createConnection()
+        throws SQLException
+    {
+        Connection connection = null;
+        try
+        {
+            connection = DriverManager.getConnection(_connectionURL);
+            _createdCount.incrementAndGet();
+
+            return connection;
+        }
+        finally
+        {
+            _lock.lock();
+            try
+            {
+                _pendingCount--;
+                if (connection != null)
+                    _activeCount++;
+                else
+                    _available.signal();
+            }
+            finally
+            {
+                _lock.unlock();
+            }
+        }
+    }
+
+    private void destroyConnection(Connection connection)
+    {
+        _destroyedCount.incrementAndGet();
+        try
+        {
+            connection.close();
+        }
+        catch (SQLException sqlException)
+        {
+            logger.log(Level.FINE, "Problems closing pooled SQL Server connection", sqlException);
+        }
+    }
+
+    private boolean isValid(Connection connection)
+    {
+        try
+        {
+            return connection.isValid(_validationTimeout);
+        }
+        catch (SQLException sqlException)
+        {
+            return false;
+        }
+    }
+
+    private void maintain()
+    {
+        LinkedList<Connection> evictedConnections = new LinkedList<Connection>();
+        int                    missingCount       = 0;
+
+        _lock.lock();
+        try
+        {
+            if (_closed)
+                return;
+
+            long now       = System.currentTimeMillis();
+            int  totalSize = _activeCount + _pendingCount + _idleConnections.size();
+
+            Iterator<IdleConnection> idleConnectionIterator = _idleConnections.descendingIterator();
+            while (idleConnectionIterator.hasNext() && (totalSize > _minSize))
+            {
+                IdleConnection idleConnection = idleConnectionIterator.next();
+                if (now - idleConnection.idleSince >= _idleTimeout)
+                {
+                    idleConnectionIterator.remove();
+                    evictedConnections.add(idleConnection.connection);
+                    totalSize--;
+                }
+            }
+
+            missingCount   = Math.max(_minSize - totalSize, 0);
+            _pendingCount += missingCount;
+        }
+        finally
+        {
+            _lock.unlock();
+        }
+
+        for (Connection evictedConnection: evictedConnections)
+            destroyConnection(evictedConnection);
+
+        for (int index = 0; index < missingCount; index++)
+        {
+            Connection connection = null;
+            try
+            {
+                connection = DriverManager.getConnection(_connectionURL);
+                _createdCount.incrementAndGet();
+            }
+            catch (SQLException sqlException)
+            {
+                logger.log(Level.WARNING, "Problems creating pooled SQL Server connection", sqlException);
+            }
+
+            _lock.lock();
+            try
+            {
+                _pendingCount--;
+                if ((connection != null) && (! _closed))
+                {
+                    _idleConnections.addLast(new IdleConnection(connection, System.currentTimeMillis()));
+                    connection = null;
+                }
+                _available.signal();
+            }
+            finally
+            {
+                _lock.unlock();
+            }
+
+            if (connection != null)
+                destroyConnection(connection);
+        }
+    }
+
+    private static class IdleConnection
+    {
+        public IdleConnection(Connection connection, long idleSince)
+        {
+            this.connection = connection;
+            this.idleSince  = idleSince;
+        }
+
+        public final Connection connection;
+        public final long       idleSince;
+    }
+
+    private String                     _connectionURL;
+    private int                        _minSize;
+    private int                        _maxSize;
+    private long                       _maxWait;
+    private int                        _validationTimeout;
+    private long                       _idleTimeout;
+
+    private ReentrantLock              _lock;
+    private Condition                  _available;
+    private LinkedList<IdleConnection> _idleConnections;
+    private int                        _activeCount;
+    private int                        _pendingCount;
+    private boolean                    _closed;
+
+    private AtomicLong                 _createdCount;
+    private AtomicLong                 _destroyedCount;
+    private AtomicLong                 _waitCount;
+    private AtomicLong                 _waitTime;
+    private AtomicLong                 _timeoutCount;
+
+    private ScheduledExecutorService   _scheduledExecutorService;
+}
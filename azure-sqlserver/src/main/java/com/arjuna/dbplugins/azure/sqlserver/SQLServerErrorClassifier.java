@@ -0,0 +1,46 @@
+/*
+ * Copyright (c) 2015, Arjuna Technologies Limited, Newcastle-upon-Tyne, England. All rights reserved.
+ */
+
+package com.arjuna.dbplugins.azure.sqlserver;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.sql.SQLRecoverableException;
+import java.sql.SQLTransientException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import com.arjuna.dbplugins.azure.common.ErrorClassifier;
+
+/**
+ * Treats Azure SQL Database throttling, failover and resource limit errors, deadlocks,
+ * connection failures and pool timeouts as transient. Other SQL errors are permanent.
+ */
+public class SQLServerErrorClassifier implements ErrorClassifier
+{
+    private static final Set<Integer> TRANSIENT_ERRORCODES = Collections.unmodifiableSet(new HashSet<Integer>(Arrays.asList(
+        20, 64, 233, 1205, 4060, 4221, 10053, 10054, 10060, 10928, 10929, 40143, 40197, 40501, 40540, 40613, 49918, 49919, 49920)));
+
+    @Override
+    public boolean isTransient(Throwable throwable)
+    {
+        for (Throwable cause = throwable; cause != null; cause = cause.getCause())
+        {
+            if ((cause instanceof SQLTransientException) || (cause instanceof SQLRecoverableException) || (cause instanceof IOException))
+                return true;
+            else if (cause instanceof SQLException)
+            {
+                for (SQLException sqlException = (SQLException) cause; sqlException != null; sqlException = sqlException.getNextException())
+                {
+                    String sqlState = sqlException.getSQLState();
+                    if (TRANSIENT_ERRORCODES.contains(sqlException.getErrorCode()) || ((sqlState != null) && (sqlState.startsWith("08") || sqlState.equals("40001"))))
+                        return true;
+                }
+            }
+        }
+
+        return false;
+    }
+}
@@ -0,0 +1,462 @@
+/*
+ * Copyright (c) 2015, Arjuna Technologies Limited, Newcastle-upon-Tyne, England. All rights reserved.
+ */
+
+package com.arjuna.dbplugins.azure.sqlserver;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import com.arjuna.dbplugins.azure.common.ResilientExecutor;
+import com.microsoft.sqlserver.jdbc.ISQLServerStatement;
+
+/**
+ * Streams the rows added or changed in a table, polling on a single background thread. In
+ * change tracking mode rows come from CHANGETABLE(CHANGES ...), joined back to the table for
+ * current values; in high water mark mode from the table itself, above the last value of an
+ * ascending column. Rows are ordered by their position, the tracking value followed by any
+ * key columns, read through a forward only, read only cursor with adaptive response buffering,
+ * so a result set is never held in memory, and emitted in batches. The position of the last
+ * row of each emitted batch is persisted, so a restarted source resumes at the following row.
+ */
+public class SQLServerQuerySource
+{
+    private static final Logger logger = Logger.getLogger(SQLServerQuerySource.class.getName());
+
+    private static final String VERSION_COLUMN   = "SYS_CHANGE_VERSION";
+    private static final String OPERATION_COLUMN = "SYS_CHANGE_OPERATION";
+
+    public enum Mode
+    {
+        CHANGETRACKING,
+        HIGHWATERMARK
+    }
+
+    public SQLServerQuerySource(String name, SQLServerConnectionPool connectionPool, Mode mode, String tableName, List<String> columnNames, String watermarkColumnName, List<String> keyColumnNames, int fetchSize, int batchSize, long pollInterval, QueryWatermark queryWatermark, ResilientExecutor resilientExecutor, QueryBatchHandler queryBatchHandler)
+    {
+        _name              = name;
+        _connectionPool    = connectionPool;
+        _mode              = mode;
+        _tableName         = tableName;
+        _fetchSize         = fetchSize;
+        _batchSize         = batchSize;
+        _pollInterval      = pollInterval;
+        _queryWatermark    = queryWatermark;
+        _resilientExecutor = resilientExecutor;
+        _queryBatchHandler = queryBatchHandler;
+        _rowCount          = new AtomicLong();
+        _batchCount        = new AtomicLong();
+        _failedCount       = new AtomicLong();
+        _pollLock          = new Object();
+        _running           = true;
+
+        String quotedTableName = SQLServerBatchWriter.quoteTableName(tableName);
+        String positionAlias   = (mode == Mode.CHANGETRACKING) ? "CT." : "T.";
+
+        _positionColumnNames = new ArrayList<String>();
+        if (mode == Mode.CHANGETRACKING)
+            _positionColumnNames.add(positionAlias + SQLServerBatchWriter.quoteIdentifier(VERSION_COLUMN));
+        else
+            _positionColumnNames.add(positionAlias + SQLServerBatchWriter.quoteIdentifier(watermarkColumnName));
+        for (String keyColumnName: keyColumnNames)
+            _positionColumnNames.add(positionAlias + SQLServerBatchWriter.quoteIdentifier(keyColumnName));
+
+        StringBuilder selectSQL = new StringBuilder("SELECT ");
+        for (String positionColumnName: _positionColumnNames)
+            selectSQL.append(positionColumnName).append(", ");
+        if (mode == Mode.CHANGETRACKING)
+            selectSQL.append("CT.").append(SQLServerBatchWriter.quoteIdentifier(OPERATION_COLUMN)).append(", ");
+        if (columnNames.isEmpty())
+            selectSQL.append("T.*");
+        else
+        {
+            for (int columnIndex = 0; columnIndex < columnNames.size(); columnIndex++)
+            {
+                if (columnIndex > 0)
+                    selectSQL.append(", ");
+                selectSQL.append("T.").append(SQLServerBatchWriter.quoteIdentifier(columnNames.get(columnIndex)));
+            }
+        }
+
+        if (mode == Mode.CHANGETRACKING)
+        {
+            selectSQL.append(" FROM CHANGETABLE(CHANGES ").append(quotedTableName).append(", ?) AS CT LEFT OUTER JOIN ").append(quotedTableName).append(" AS T ON ");
+            for (int keyIndex = 0; keyIndex < keyColumnNames.size(); keyIndex++)
+            {
+                String quotedKeyColumnName = SQLServerBatchWriter.quoteIdentifier(keyColumnNames.get(keyIndex));
+                if (keyIndex > 0)
+                    selectSQL.append(" AND ");
+                selectSQL.append("T.").append(quotedKeyColumnName).append(" = CT.").append(quotedKeyColumnName);
+            }
+        }
+        else
+            selectSQL.append(" FROM ").append(quotedTableName).append(" AS T");
+        _selectSQL = selectSQL.toString();
+
+        StringBuilder orderSQL = new StringBuilder(" ORDER BY ");
+        for (int positionIndex = 0; positionIndex < _positionColumnNames.size(); positionIndex++)
+        {
+            if (positionIndex > 0)
+                orderSQL.append(", ");
+            orderSQL.append(_positionColumnNames.get(positionIndex));
+        }
+        _orderSQL = orderSQL.toString();
+
+        if (queryWatermark != null)
+        {
+            try
+            {
+                _position = queryWatermark.load();
+            }
+            catch (IOException ioException)
+            {
+                logger.log(Level.WARNING, "Unable to load query watermark for " + name + ", starting afresh", ioException);
+            }
+        }
+
+        _thread = new Thread(new Poller(), "AzureSQLServerQuerySource-" + name);
+        _thread.setDaemon(true);
+        _thread.start();
+    }
+
+    public long getRowCount()
+    {
+        return _rowCount.get();
+    }
+
+    public long getBatchCount()
+    {
+        return _batchCount.get();
+    }
+
+    public long getFailedCount()
+    {
+        return _failedCount.get();
+    }
+
+    public void shutdown(long timeout)
+    {
+        _running = false;
+        synchronized (_pollLock)
+        {
+            _pollLock.notifyAll();
+        }
+
+        Statement statement = _statement;
+        if (statement != null)
+        {
+            try
+            {
+                statement.cancel();
+            }
+            catch (SQLException sqlException)
+            {
+                logger.log(Level.FINE, "Problems cancelling SQL Server query", sqlException);
+            }
+        }
+
+        try
+        {
+            _thread.join(timeout);
+        }
+        catch (InterruptedException interruptedException)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // The rows after a position are those whose position columns compare greater, column by column
+    private String generateQuerySQL(Object[] position)
+    {
+        StringBuilder querySQL = new StringBuilder(_selectSQL);
+
+        if ((position != null) && (position.length == _positionColumnNames.size()))
+        {
+            querySQL.append(" WHERE ");
+            for (int positionIndex = 0; positionIndex < position.length; positionIndex++)
+            {
+                if (positionIndex > 0)
+                    querySQL.append(" OR ");
+                querySQL.append('(');
+                for (int equalIndex = 0; equalIndex < positionIndex; equalIndex++)
+                    querySQL.append(_positionColumnNames.get(equalIndex)).append(" = ? AND ");
+                querySQL.append(_positionColumnNames.get(positionIndex)).append(" > ?)");
+            }
+        }
+        querySQL.append(_orderSQL);
+
+        return querySQL.toString();
+    }
+
+    private void bindQueryParameters(PreparedStatement statement, Object[] position)
+        throws SQLException
+    {
+        int parameterIndex = 1;
+
+        if (_mode == Mode.CHANGETRACKING)
+        {
+            // CHANGES returns versions above the one given, so resuming within a version starts from the one before
+            long version = ((Number) position[0]).longValue();
+            if (position.length == _positionColumnNames.size())
+                version--;
+            statement.setLong(parameterIndex++, version);
+        }
+
+        if ((position != null) && (position.length == _positionColumnNames.size()))
+            for (int positionIndex = 0; positionIndex < position.length; positionIndex++)
+                for (int valueIndex = 0; valueIndex <= positionIndex; valueIndex++)
+                    statement.setObject(parameterIndex++, position[valueIndex]);
+    }
+
+    private void poll()
+        throws SQLException, IOException, InterruptedException
+    {
+        Connection connection = _connectionPool.getConnection();
+        boolean    broken     = false;
+        try
+        {
+            if (_mode == Mode.CHANGETRACKING)
+                checkChangeTracking(connection);
+
+            Object[]          position  = _position;
+            PreparedStatement statement = connection.prepareStatement(generateQuerySQL(position), ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            _statement = statement;
+            try
+            {
+                if (statement.isWrapperFor(ISQLServerStatement.class))
+                    statement.unwrap(ISQLServerStatement.class).setResponseBuffering("adaptive");
+                statement.setFetchSize(_fetchSize);
+                bindQueryParameters(statement, position);
+
+                ResultSet resultSet = statement.executeQuery();
+                try
+                {
+                    readRows(resultSet);
+                }
+                finally
+                {
+                    resultSet.close();
+                }
+            }
+            finally
+            {
+                _statement = null;
+                statement.close();
+            }
+        }
+        catch (SQLException sqlException)
+        {
+            broken = true;
+            throw sqlException;
+        }
+        finally
+        {
+            _connectionPool.releaseConnection(connection, broken);
+        }
+    }
+
+    private void readRows(ResultSet resultSet)
+        throws SQLException, IOException
+    {
+        ResultSetMetaData resultSetMetaData = resultSet.getMetaData();
+        int               positionCount     = _positionColumnNames.size();
+        int               tableStart        = (_mode == Mode.CHANGETRACKING) ? positionCount + 2 : positionCount + 1;
+        int               columnCount       = resultSetMetaData.getColumnCount();
+
+        String[] columnLabels = new String[columnCount + 1];
+        for (int columnIndex = 1; columnIndex <= columnCount; columnIndex++)
+            columnLabels[columnIndex] = resultSetMetaData.getColumnLabel(columnIndex);
+
+        List<Map<String, Object>> records  = new ArrayList<Map<String, Object>>(_batchSize);
+        Object[]                  position = null;
+        while (_running && resultSet.next())
+        {
+            // Table columns first, so for deleted rows the change table's keys replace the missing values
+            Map<String, Object> record = new LinkedHashMap<String, Object>();
+            for (int columnIndex = tableStart; columnIndex <= columnCount; columnIndex++)
+                record.put(columnLabels[columnIndex], resultSet.getObject(columnIndex));
+
+            position = new Object[positionCount];
+            for (int positionIndex = 0; positionIndex < positionCount; positionIndex++)
+            {
+                position[positionIndex] = resultSet.getObject(positionIndex + 1);
+                record.put(columnLabels[positionIndex + 1], position[positionIndex]);
+            }
+            if (_mode == Mode.CHANGETRACKING)
+                record.put(OPERATION_COLUMN, resultSet.getObject(positionCount + 1));
+
+            records.add(record);
+            if (records.size() >= _batchSize)
+            {
+                emit(records, position);
+                records = new ArrayList<Map<String, Object>>(_batchSize);
+            }
+        }
+
+        if (! records.isEmpty())
+            emit(records, position);
+    }
+
+    private void emit(List<Map<String, Object>> records, Object[] position)
+        throws IOException
+    {
+        _queryBatchHandler.emit(records);
+        _rowCount.addAndGet(records.size());
+        _batchCount.incrementAndGet();
+
+        _position = position;
+        if (_queryWatermark != null)
+            _queryWatermark.store(position);
+    }
+
+    private void checkChangeTracking(Connection connection)
+        throws SQLException, IOException
+    {
+        Object[] position = _position;
+        if (position == null)
+        {
+            // Rows present before the first poll are not emitted, changes are followed from now on
+            position = new Object[] { Long.valueOf(queryVersion(connection, "SELECT CHANGE_TRACKING_CURRENT_VERSION()", null)) };
+            logger.log(Level.INFO, "Following changes to " + _tableName + " from version " + position[0]);
+        }
+        else
+        {
+            long minValidVersion = queryVersion(connection, "SELECT CHANGE_TRACKING_MIN_VALID_VERSION(OBJECT_ID(?))", _tableName);
+            if (((Number) position[0]).longValue() < minValidVersion)
+            {
+                position = new Object[] { Long.valueOf(queryVersion(connection, "SELECT CHANGE_TRACKING_CURRENT_VERSION()", null)) };
+                logger.log(Level.WARNING, "Change tracking for " + _tableName + " retained from version " + minValidVersion + ", changes have been lost, following from version " + position[0]);
+            }
+            else
+                return;
+        }
+
+        _position = position;
+        if (_queryWatermark != null)
+            _queryWatermark.store(position);
+    }
+
+    private static long queryVersion(Connection connection, String sql, String parameter)
+        throws SQLException
+    {
+        PreparedStatement statement = connection.prepareStatement(sql);
+        try
+        {
+            if (parameter != null)
+                statement.setString(1, parameter);
+
+            ResultSet resultSet = statement.executeQuery();
+            try
+            {
+                if (resultSet.next())
+                {
+                    long version = resultSet.getLong(1);
+                    if (! resultSet.wasNull())
+                        return version;
+                }
+
+                throw new SQLException("Change tracking not enabled", "42000");
+            }
+            finally
+            {
+                resultSet.close();
+            }
+        }
+        finally
+        {
+            statement.close();
+        }
+    }
+
+    private class Poller implements Runnable
+    {
+        @Override
+        public void run()
+        {
+            long delay = 0L;
+            try
+            {
+                while (_running)
+                {
+                    try
+                    {
+                        _resilientExecutor.executeOnce(new Callable<Void>()
+                        {
+                            @Override
+                            public Void call()
+                                throws SQLException, IOException, InterruptedException
+                            {
+                                poll();
+
+                                return null;
+                            }
+                        });
+                        delay = 0L;
+                    }
+                    catch (InterruptedException interruptedException)
+                    {
+                        throw interruptedException;
+                    }
+                    catch (Throwable throwable)
+                    {
+                        if (! _running)
+                            break;
+
+                        _failedCount.incrementAndGet();
+                        if (_resilientExecutor.isTransient(throwable))
+                        {
+                            delay = _resilientExecutor.getRetryPolicy().nextDelay(delay);
+                            logger.log(Level.FINE, "Query failed on " + _name + ", retrying in " + delay + "ms", throwable);
+                        }
+                        else
+                            logger.log(Level.WARNING, "Query failed on " + _name, throwable);
+                    }
+
+                    synchronized (_pollLock)
+                    {
+                        if (_running)
+                            _pollLock.wait((delay > 0L) ? delay : _pollInterval);
+                    }
+                }
+            }
+            catch (InterruptedException interruptedException)
+            {
+                logger.log(Level.FINE, "Query source interrupted: " + _name);
+            }
+        }
+    }
+
+    private String                  _name;
+    private SQLServerConnectionPool _connectionPool;
+    private Mode                    _mode;
+    private String                  _tableName;
+    private List<String>            _positionColumnNames;
+    private String                  _selectSQL;
+    private String                  _orderSQL;
+    private int                     _fetchSize;
+    private int                     _batchSize;
+    private long                    _pollInterval;
+    private QueryWatermark          _queryWatermark;
+    private ResilientExecutor       _resilientExecutor;
+    private QueryBatchHandler       _queryBatchHandler;
+    private volatile Object[]       _position;
+    private volatile Statement      _statement;
+    private AtomicLong              _rowCount;
+    private AtomicLong              _batchCount;
+    private AtomicLong              _failedCount;
+    private Thread                  _thread;
+    private Object                  _pollLock;
+    private volatile boolean        _running;
+}
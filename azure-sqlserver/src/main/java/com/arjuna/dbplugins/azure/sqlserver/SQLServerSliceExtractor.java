@@ -0,0 +1,705 @@
+/*
+ * Copyright (c) 2015, Arjuna Technologies Limited, Newcastle-upon-Tyne, England. All rights reserved.
+ */
+
+package com.arjuna.dbplugins.azure.sqlserver;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import com.arjuna.dbplugins.azure.common.ResilientExecutor;
+import com.microsoft.sqlserver.jdbc.ISQLServerStatement;
+
+/**
+ * Reads a whole table once, split into slices read concurrently over pooled connections. In
+ * key range mode the range of an integer column is divided into equal slices, plus one for
+ * rows where it is null; in partition mode there is a slice per partition of the table's
+ * partition function, so each read touches one partition. Slices are read by a bounded pool of
+ * threads through forward only, read only cursors with adaptive response buffering, and their
+ * batches pass through a bounded queue to a single emitting thread, so readers wait when the
+ * data flow falls behind. A slice is recorded as complete once all its batches are emitted; a
+ * slice that fails is read again from its start, after a transient read failure straight away
+ * and otherwise, including when a batch cannot be emitted, on restart, so its earlier batches
+ * may be emitted twice.
+ */
+public class SQLServerSliceExtractor
+{
+    private static final Logger logger = Logger.getLogger(SQLServerSliceExtractor.class.getName());
+
+    private static final long POLL_INTERVAL = 1000L;
+
+    private static final String PARTITIONING_SQL = "SELECT PF.name, C.name, PF.fanout FROM sys.indexes AS I"
+                                                 + " JOIN sys.partition_schemes AS PS ON PS.data_space_id = I.data_space_id"
+                                                 + " JOIN sys.partition_functions AS PF ON PF.function_id = PS.function_id"
+                                                 + " JOIN sys.index_columns AS IC ON IC.object_id = I.object_id AND IC.index_id = I.index_id AND IC.partition_ordinal = 1"
+                                                 + " JOIN sys.columns AS C ON C.object_id = IC.object_id AND C.column_id = IC.column_id"
+                                                 + " WHERE I.object_id = OBJECT_ID(?) AND I.index_id IN (0, 1)";
+
+    public enum Mode
+    {
+        KEYRANGE,
+        PARTITION
+    }
+
+    public SQLServerSliceExtractor(String name, SQLServerConnectionPool connectionPool, Mode mode, String tableName, List<String> columnNames, String sliceColumnName, int sliceCount, int concurrency, int fetchSize, int batchSize, int queueDepth, SliceCheckpoint sliceCheckpoint, ResilientExecutor resilientExecutor, QueryBatchHandler queryBatchHandler)
+    {
+        _name              = name;
+        _connectionPool    = connectionPool;
+        _mode              = mode;
+        _tableName         = tableName;
+        _sliceColumnName   = sliceColumnName;
+        _sliceCount        = sliceCount;
+        _fetchSize         = fetchSize;
+        _batchSize         = batchSize;
+        _sliceCheckpoint   = sliceCheckpoint;
+        _resilientExecutor = resilientExecutor;
+        _queryBatchHandler = queryBatchHandler;
+        _slices            = Collections.emptyList();
+        _batchQueue        = new ArrayBlockingQueue<SliceBatch>(queueDepth);
+        _statements        = Collections.newSetFromMap(new ConcurrentHashMap<Statement, Boolean>());
+        _remainingCount    = new AtomicInteger();
+        _completedCount    = new AtomicInteger();
+        _rowCount          = new AtomicLong();
+        _failedCount       = new AtomicLong();
+        _running           = true;
+
+        StringBuilder selectSQL = new StringBuilder("SELECT ");
+        if (columnNames.isEmpty())
+            selectSQL.append("T.*");
+        else
+        {
+            for (int columnIndex = 0; columnIndex < columnNames.size(); columnIndex++)
+            {
+                if (columnIndex > 0)
+                    selectSQL.append(", ");
+                selectSQL.append("T.").append(SQLServerBatchWriter.quoteIdentifier(columnNames.get(columnIndex)));
+            }
+        }
+        selectSQL.append(" FROM ").append(SQLServerBatchWriter.quoteTableName(tableName)).append(" AS T");
+        _selectSQL = selectSQL.toString();
+
+        _sliceExecutor = new ScheduledThreadPoolExecutor(concurrency, new ExtractorThreadFactory("AzureSQLServerSliceReader-" + name));
+        _sliceExecutor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+
+        _emitter = new Thread(new Emitter(), "AzureSQLServerSliceEmitter-" + name);
+        _emitter.setDaemon(true);
+        _emitter.start();
+
+        _sliceExecutor.execute(new Planner());
+    }
+
+    public int getSliceCount()
+    {
+        return _slices.size();
+    }
+
+    public int getCompletedCount()
+    {
+        return _completedCount.get();
+    }
+
+    public long getRowCount()
+    {
+        return _rowCount.get();
+    }
+
+    public long getFailedCount()
+    {
+        return _failedCount.get();
+    }
+
+    public void shutdown(long timeout)
+    {
+        _running = false;
+
+        for (Statement statement: _statements)
+        {
+            try
+            {
+                statement.cancel();
+            }
+            catch (SQLException sqlException)
+            {
+                logger.log(Level.FINE, "Problems cancelling SQL Server slice query", sqlException);
+            }
+        }
+
+        long deadline = System.currentTimeMillis() + timeout;
+        _sliceExecutor.shutdown();
+        try
+        {
+            if (! _sliceExecutor.awaitTermination(Math.max(0L, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS))
+                _sliceExecutor.shutdownNow();
+
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining > 0)
+                _emitter.join(remaining);
+            if (_emitter.isAlive())
+                _emitter.interrupt();
+        }
+        catch (InterruptedException interruptedException)
+        {
+            _sliceExecutor.shutdownNow();
+            _emitter.interrupt();
+            Thread.currentThread().interrupt();
+        }
+
+        // Slices whose last batch was not emitted stay incomplete, so are read again on restart
+        _batchQueue.clear();
+    }
+
+    private void plan()
+        throws SQLException, IOException, InterruptedException
+    {
+        Connection connection = _connectionPool.getConnection();
+        boolean    broken     = false;
+        try
+        {
+            if (_mode == Mode.PARTITION)
+                discoverPartitioning(connection);
+
+            List<Slice> slices = loadSlices();
+            if (slices == null)
+            {
+                if (_mode == Mode.PARTITION)
+                    slices = planPartitions();
+                else
+                    slices = planKeyRanges(connection);
+                storeSlices(slices);
+                logger.log(Level.INFO, "Extracting " + _tableName + " in " + slices.size() + " slices");
+            }
+            _slices = slices;
+        }
+        catch (SQLException sqlException)
+        {
+            broken = true;
+            throw sqlException;
+        }
+        finally
+        {
+            _connectionPool.releaseConnection(connection, broken);
+        }
+
+        List<Slice> incompleteSlices = new ArrayList<Slice>();
+        for (Slice slice: _slices)
+        {
+            if (slice.complete)
+                _completedCount.incrementAndGet();
+            else
+                incompleteSlices.add(slice);
+        }
+
+        if (incompleteSlices.isEmpty())
+            logger.log(Level.INFO, "Extraction of " + _tableName + " already complete");
+        else
+        {
+            _remainingCount.set(incompleteSlices.size());
+            for (Slice slice: incompleteSlices)
+                _sliceExecutor.execute(new SliceReader(slice));
+        }
+    }
+
+    private void discoverPartitioning(Connection connection)
+        throws SQLException
+    {
+        PreparedStatement statement = connection.prepareStatement(PARTITIONING_SQL);
+        try
+        {
+            statement.setString(1, _tableName);
+
+            ResultSet resultSet = statement.executeQuery();
+            try
+            {
+                if (! resultSet.next())
+                    throw new SQLException("Table not partitioned: " + _tableName, "42000");
+
+                _partitionFunctionName = resultSet.getString(1);
+                _sliceColumnName       = resultSet.getString(2);
+                _partitionCount        = resultSet.getInt(3);
+            }
+            finally
+            {
+                resultSet.close();
+            }
+        }
+        finally
+        {
+            statement.close();
+        }
+    }
+
+    private List<Slice> planPartitions()
+    {
+        List<Slice> slices = new ArrayList<Slice>(_partitionCount);
+        for (long partitionNumber = 1; partitionNumber <= _partitionCount; partitionNumber++)
+            slices.add(new Slice(Long.valueOf(partitionNumber), Long.valueOf(partitionNumber), false));
+
+        return slices;
+    }
+
+    private List<Slice> planKeyRanges(Connection connection)
+        throws SQLException
+    {
+        String      quotedSliceColumnName = SQLServerBatchWriter.quoteIdentifier(_sliceColumnName);
+        List<Slice> slices                = new ArrayList<Slice>(_sliceCount + 1);
+
+        PreparedStatement statement = connection.prepareStatement("SELECT MIN(T." + quotedSliceColumnName + "), MAX(T." + quotedSliceColumnName + ") FROM " + SQLServerBatchWriter.quoteTableName(_tableName) + " AS T");
+        try
+        {
+            ResultSet resultSet = statement.executeQuery();
+            try
+            {
+                resultSet.next();
+                long minimumValue = resultSet.getLong(1);
+                if (! resultSet.wasNull())
+                {
+                    long maximumValue = resultSet.getLong(2);
+
+                    // Bounds are computed exactly, as the range of a bigint column overflows a long
+                    BigInteger lower = BigInteger.valueOf(minimumValue);
+                    BigInteger span  = BigInteger.valueOf(maximumValue).subtract(lower).add(BigInteger.ONE);
+                    BigInteger count = BigInteger.valueOf(_sliceCount);
+                    for (int sliceIndex = 0; sliceIndex < _sliceCount; sliceIndex++)
+                    {
+                        BigInteger sliceLower = lower.add(span.multiply(BigInteger.valueOf(sliceIndex)).divide(count));
+                        BigInteger sliceUpper = lower.add(span.multiply(BigInteger.valueOf(sliceIndex + 1)).divide(count)).subtract(BigInteger.ONE);
+                        if (sliceUpper.compareTo(sliceLower) >= 0)
+                            slices.add(new Slice(Long.valueOf(sliceLower.longValue()), Long.valueOf(sliceUpper.longValue()), false));
+                    }
+                }
+            }
+            finally
+            {
+                resultSet.close();
+            }
+        }
+        finally
+        {
+            statement.close();
+        }
+        slices.add(new Slice(null, null, false));
+
+        return slices;
+    }
+
+    private Object[] createHeader()
+    {
+        return new Object[] { _mode.name(), _tableName, _sliceColumnName, Integer.valueOf(_sliceCount) };
+    }
+
+    private List<Slice> loadSlices()
+    {
+        if (_sliceCheckpoint == null)
+            return null;
+
+        try
+        {
+            List<Object[]> records = _sliceCheckpoint.load();
+            if ((records == null) || records.isEmpty())
+                return null;
+
+            if (! Arrays.equals(records.get(0), createHeader()))
+            {
+                logger.log(Level.INFO, "Slice checkpoint of " + _name + " is for a different extraction, starting afresh");
+                return null;
+            }
+
+            List<Slice> slices = new ArrayList<Slice>(records.size() - 1);
+            for (Object[] record: records.subList(1, records.size()))
+                slices.add(new Slice((Long) record[0], (Long) record[1], Boolean.TRUE.equals(record[2])));
+
+            return slices;
+        }
+        catch (IOException ioException)
+        {
+            logger.log(Level.WARNING, "Unable to load slice checkpoint of " + _name + ", starting afresh", ioException);
+            return null;
+        }
+    }
+
+    private synchronized void storeSlices(List<Slice> slices)
+        throws IOException
+    {
+        if (_sliceCheckpoint == null)
+            return;
+
+        List<Object[]> records = new ArrayList<Object[]>(slices.size() + 1);
+        records.add(createHeader());
+        for (Slice slice: slices)
+            records.add(new Object[] { slice.lowerBound, slice.upperBound, Boolean.valueOf(slice.complete) });
+
+        _sliceCheckpoint.store(records);
+    }
+
+    private String generateSliceSQL(Slice slice)
+    {
+        String quotedSliceColumnName = SQLServerBatchWriter.quoteIdentifier(_sliceColumnName);
+
+        if (_mode == Mode.PARTITION)
+            return _selectSQL + " WHERE $PARTITION." + SQLServerBatchWriter.quoteIdentifier(_partitionFunctionName) + "(T." + quotedSliceColumnName + ") = ?";
+        else if (slice.lowerBound == null)
+            return _selectSQL + " WHERE T." + quotedSliceColumnName + " IS NULL";
+        else
+            return _selectSQL + " WHERE T." + quotedSliceColumnName + " BETWEEN ? AND ?";
+    }
+
+    private void read(Slice slice)
+        throws SQLException, InterruptedException
+    {
+        Connection connection = _connectionPool.getConnection();
+        boolean    broken     = false;
+        try
+        {
+            PreparedStatement statement = connection.prepareStatement(generateSliceSQL(slice), ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            _statements.add(statement);
+            try
+            {
+                if (statement.isWrapperFor(ISQLServerStatement.class))
+                    statement.unwrap(ISQLServerStatement.class).setResponseBuffering("adaptive");
+                statement.setFetchSize(_fetchSize);
+                if (slice.lowerBound != null)
+                {
+                    statement.setLong(1, slice.lowerBound.longValue());
+                    if (_mode == Mode.KEYRANGE)
+                        statement.setLong(2, slice.upperBound.longValue());
+                }
+
+                ResultSet resultSet = statement.executeQuery();
+                try
+                {
+                    readRows(slice, resultSet);
+                }
+                finally
+                {
+                    resultSet.close();
+                }
+            }
+            finally
+            {
+                _statements.remove(statement);
+                statement.close();
+            }
+        }
+        catch (SQLException sqlException)
+        {
+            broken = true;
+            throw sqlException;
+        }
+        finally
+        {
+            _connectionPool.releaseConnection(connection, broken);
+        }
+    }
+
+    private void readRows(Slice slice, ResultSet resultSet)
+        throws SQLException, InterruptedException
+    {
+        ResultSetMetaData resultSetMetaData = resultSet.getMetaData();
+        int               columnCount       = resultSetMetaData.getColumnCount();
+
+        String[] columnLabels = new String[columnCount + 1];
+        for (int columnIndex = 1; columnIndex <= columnCount; columnIndex++)
+            columnLabels[columnIndex] = resultSetMetaData.getColumnLabel(columnIndex);
+
+        List<Map<String, Object>> records = new ArrayList<Map<String, Object>>(_batchSize);
+        while (_running && resultSet.next())
+        {
+            Map<String, Object> record = new LinkedHashMap<String, Object>();
+            for (int columnIndex = 1; columnIndex <= columnCount; columnIndex++)
+                record.put(columnLabels[columnIndex], resultSet.getObject(columnIndex));
+
+            records.add(record);
+            if (records.size() >= _batchSize)
+            {
+                if (! enqueue(new SliceBatch(slice, records, false)))
+                    return;
+                records = new ArrayList<Map<String, Object>>(_batchSize);
+            }
+        }
+
+        if (_running)
+            enqueue(new SliceBatch(slice, records, true));
+    }
+
+    private boolean enqueue(SliceBatch sliceBatch)
+        throws InterruptedException
+    {
+        while (_running)
+            if (_batchQueue.offer(sliceBatch, POLL_INTERVAL, TimeUnit.MILLISECONDS))
+                return true;
+
+        return false;
+    }
+
+    private void completeSlice(Slice slice)
+    {
+        slice.complete = true;
+        _completedCount.incrementAndGet();
+        try
+        {
+            storeSlices(_slices);
+        }
+        catch (IOException ioException)
+        {
+            logger.log(Level.WARNING, "Unable to store slice checkpoint of " + _name, ioException);
+        }
+
+        if (_remainingCount.decrementAndGet() == 0)
+            logger.log(Level.INFO, "Extraction of " + _tableName + " complete, " + _rowCount.get() + " rows");
+    }
+
+    private void reschedule(Runnable runnable, long delay)
+    {
+        try
+        {
+            _sliceExecutor.schedule(runnable, delay, TimeUnit.MILLISECONDS);
+        }
+        catch (RejectedExecutionException rejectedExecutionException)
+        {
+            logger.log(Level.FINE, "Extraction not retried, shutting down: " + _name);
+        }
+    }
+
+    private class Planner implements Runnable
+    {
+        @Override
+        public void run()
+        {
+            if (! _running)
+                return;
+
+            try
+            {
+                _resilientExecutor.executeOnce(new Callable<Void>()
+                {
+                    @Override
+                    public Void call()
+                        throws SQLException, IOException, InterruptedException
+                    {
+                        plan();
+
+                        return null;
+                    }
+                });
+            }
+            catch (Throwable throwable)
+            {
+                if (! _running)
+                    return;
+
+                _failedCount.incrementAndGet();
+                if (_resilientExecutor.isTransient(throwable))
+                {
+                    _delay = _resilientExecutor.getRetryPolicy().nextDelay(_delay);
+                    logger.log(Level.FINE, "Problems planning extraction of " + _tableName + ", retrying in " + _delay + "ms", throwable);
+                    reschedule(this, _delay);
+                }
+                else
+                    logger.log(Level.WARNING, "Unable to plan extraction of " + _tableName, throwable);
+            }
+        }
+
+        private long _delay;
+    }
+
+    private class SliceReader implements Runnable
+    {
+        public SliceReader(Slice slice)
+        {
+            _slice = slice;
+        }
+
+        @Override
+        public void run()
+        {
+            if (! _running)
+                return;
+
+            try
+            {
+                _resilientExecutor.executeOnce(new Callable<Void>()
+                {
+                    @Override
+                    public Void call()
+                        throws SQLException, InterruptedException
+                    {
+                        read(_slice);
+
+                        return null;
+                    }
+                });
+            }
+            catch (Throwable throwable)
+            {
+                if (! _running)
+                    return;
+
+                _failedCount.incrementAndGet();
+                if (_resilientExecutor.isTransient(throwable))
+                {
+                    _delay = _resilientExecutor.getRetryPolicy().nextDelay(_delay);
+                    logger.log(Level.FINE, "Problems reading slice " + _slice + " of " + _tableName + ", retrying in " + _delay + "ms", throwable);
+                    reschedule(this, _delay);
+                }
+                else
+                    logger.log(Level.WARNING, "Unable to read slice " + _slice + " of " + _tableName + ", left for restart", throwable);
+            }
+        }
+
+        private Slice _slice;
+        private long  _delay;
+    }
+
+    private class Emitter implements Runnable
+    {
+        @Override
+        public void run()
+        {
+            try
+            {
+                while (_running)
+                {
+                    SliceBatch sliceBatch = _batchQueue.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+
+                    if (sliceBatch != null)
+                    {
+                        // Once a batch of a slice is lost the rest are too, as the whole slice is read again
+                        if ((! sliceBatch.slice.failed) && (! sliceBatch.records.isEmpty()))
+                        {
+                            try
+                            {
+                                _queryBatchHandler.emit(sliceBatch.records);
+                                _rowCount.addAndGet(sliceBatch.records.size());
+                            }
+                            catch (Throwable throwable)
+                            {
+                                logger.log(Level.WARNING, "Problems emitting slice " + sliceBatch.slice + " of " + _tableName, throwable);
+                                _failedCount.incrementAndGet();
+                                sliceBatch.slice.failed = true;
+                            }
+                        }
+
+                        if (sliceBatch.last)
+                        {
+                            if (sliceBatch.slice.failed)
+                                logger.log(Level.WARNING, "Unable to emit slice " + sliceBatch.slice + " of " + _tableName + ", left for restart");
+                            else
+                                completeSlice(sliceBatch.slice);
+                        }
+                    }
+                }
+            }
+            catch (InterruptedException interruptedException)
+            {
+                logger.log(Level.FINE, "Slice emitter interrupted: " + _name);
+            }
+        }
+    }
+
+    // Bounds are inclusive, a partition number in both in partition mode, and null for the slice of null keys
+    private static class Slice
+    {
+        public Slice(Long lowerBound, Long upperBound, boolean complete)
+        {
+            this.lowerBound = lowerBound;
+            this.upperBound = upperBound;
+            this.complete   = complete;
+            this.failed     = false;
+        }
+
+        @Override
+        public String toString()
+        {
+            return (lowerBound == null) ? "[null]" : "[" + lowerBound + ", " + upperBound + "]";
+        }
+
+        public final Long       lowerBound;
+        public final Long       upperBound;
+        public volatile boolean complete;
+        public volatile boolean failed;
+    }
+
+    private static class SliceBatch
+    {
+        public SliceBatch(Slice slice, List<Map<String, Object>> records, boolean last)
+        {
+            this.slice   = slice;
+            this.records = records;
+            this.last    = last;
+        }
+
+        public final Slice                     slice;
+        public final List<Map<String, Object>> records;
+        public final boolean                   last;
+    }
+
+    private static class ExtractorThreadFactory implements ThreadFactory
+    {
+        public ExtractorThreadFactory(String name)
+        {
+            _name        = name;
+            _threadCount = new AtomicInteger();
+        }
+
+        @Override
+        public Thread newThread(Runnable runnable)
+        {
+            Thread thread = new Thread(runnable, _name + "-" + _threadCount.getAndIncrement());
+            thread.setDaemon(true);
+
+            return thread;
+        }
+
+        private String        _name;
+        private AtomicInteger _threadCount;
+    }
+
+    private String                      _name;
+    private SQLServerConnectionPool     _connectionPool;
+    private Mode                        _mode;
+    private String                      _tableName;
+    private volatile String             _sliceColumnName;
+    private volatile String             _partitionFunctionName;
+    private int                         _partitionCount;
+    private int                         _sliceCount;
+    private String                      _selectSQL;
+    private int                         _fetchSize;
+    private int                         _batchSize;
+    private SliceCheckpoint             _sliceCheckpoint;
+    private ResilientExecutor           _resilientExecutor;
+    private QueryBatchHandler           _queryBatchHandler;
+    private volatile List<Slice>        _slices;
+    private BlockingQueue<SliceBatch>   _batchQueue;
+    private Set<Statement>              _statements;
+    private ScheduledThreadPoolExecutor _sliceExecutor;
+    private Thread                      _emitter;
+    private AtomicInteger               _remainingCount;
+    private AtomicInteger               _completedCount;
+    private AtomicLong                  _rowCount;
+    private AtomicLong                  _failedCount;
+    private volatile boolean            _running;
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright (c) 2015, Arjuna Technologies Limited, Newcastle-upon-Tyne, England. All rights reserved.
+ */
+
+package com.arjuna.dbplugins.azure.sqlserver;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import com.arjuna.dbplugins.azure.common.AtomicFile;
+
+/**
+ * Persists the slice plan of a parallel extraction, a header record identifying the table and
+ * slicing followed by a record per slice with its bounds and whether it has been emitted, so
+ * that after a restart only incomplete slices are read again.
+ */
+public class SliceCheckpoint
+{
+    private static final String CHECKPOINTFILE_NAME = "slices";
+
+    public SliceCheckpoint(File directory)
+        throws IOException
+    {
+        if ((! directory.isDirectory()) && (! directory.mkdirs()))
+            throw new IOException("Unable to create slice checkpoint directory: " + directory);
+
+        _file = new AtomicFile(new File(directory, CHECKPOINTFILE_NAME));
+    }
+
+    public List<Object[]> load()
+        throws IOException
+    {
+        byte[] data = _file.read();
+        if (data == null)
+            return null;
+
+        return RecordBatchCodec.decode(data);
+    }
+
+    public void store(List<Object[]> records)
+        throws IOException
+    {
+        _file.write(RecordBatchCodec.encode(records));
+    }
+
+    private AtomicFile _file;
+}
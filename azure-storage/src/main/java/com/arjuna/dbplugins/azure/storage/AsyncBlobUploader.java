@@ -0,0 +1,184 @@
+/*
+ * Copyright (c) 2015, Arjuna Technologies Limited, Newcastle-upon-Tyne, England. All rights reserved.
+ */
+
+package com.arjuna.dbplugins.azure.storage;
+
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+public class AsyncBlobUploader
+{
+    private static final Logger logger = Logger.getLogger(AsyncBlobUploader.class.getName());
+
+    private static final long POLL_INTERVAL    = 500L;
+    private static final long SUBMIT_WAIT_TIME = 10L;
+
+    public enum OverflowPolicy
+    {
+        BLOCK,
+        DROP,
+        SPILL
+    }
+
+    public AsyncBlobUploader(String name, int queueCapacity, int workerCount, OverflowPolicy overflowPolicy, BlobUploadJournal blobUploadJournal, BlobUploadHandler blobUploadHandler)
+    {
+        _queue             = new ArrayBlockingQueue<BlobUpload>(queueCapacity);
+        _overflowPolicy    = overflowPolicy;
+        _blobUploadJournal = blobUploadJournal;
+        _blobUploadHandler = blobUploadHandler;
+        _dropCount         = new AtomicLong();
+        _spillCount        = new AtomicLong();
+        _submitterCount    = new AtomicInteger();
+        _running           = true;
+
+        _workers = new LinkedList<Thread>();
+        for (int workerIndex = 0; workerIndex < workerCount; workerIndex++)
+        {
+            Thread worker = new Thread(new Worker(), "AzureStorageUploader-" + name + "-" + workerIndex);
+            worker.setDaemon(true);
+            _workers.add(worker);
+        }
+        for (Thread worker: _workers)
+            worker.start();
+    }
+
+    // Returns false, once shutdown has started, so the caller uploads itself
+    public boolean submit(BlobUpload blobUpload)
+        throws InterruptedException
+    {
+        _submitterCount.incrementAndGet();
+        try
+        {
+            if (! _running)
+                return false;
+
+            if (_queue.offer(blobUpload))
+                return true;
+
+            if (_overflowPolicy == OverflowPolicy.BLOCK)
+            {
+                while (_running)
+                    if (_queue.offer(blobUpload, POLL_INTERVAL, TimeUnit.MILLISECONDS))
+                        return true;
+
+                return false;
+            }
+            else if ((_overflowPolicy == OverflowPolicy.SPILL) && (_blobUploadJournal != null) && _blobUploadJournal.spill(blobUpload))
+                _spillCount.incrementAndGet();
+            else
+            {
+                _dropCount.incrementAndGet();
+                logger.log(Level.WARNING, "Upload queue full, dropping blob upload: " + blobUpload.getBlobName());
+            }
+
+            return true;
+        }
+        finally
+        {
+            _submitterCount.decrementAndGet();
+        }
+    }
+
+    public int getQueueDepth()
+    {
+        return _queue.size();
+    }
+
+    public long getDropCount()
+    {
+        return _dropCount.get();
+    }
+
+    public long getSpillCount()
+    {
+        return _spillCount.get();
+    }
+
+    public void shutdown(long timeout)
+    {
+        _running = false;
+
+        long deadline = System.currentTimeMillis() + timeout;
+        try
+        {
+            // Submissions already past the running check finish first, so anything they queue is uploaded or drained below
+            while (_submitterCount.get() > 0)
+                Thread.sleep(SUBMIT_WAIT_TIME);
+
+            for (Thread worker: _workers)
+            {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining > 0)
+                    worker.join(remaining);
+                if (worker.isAlive())
+                    worker.interrupt();
+            }
+        }
+        catch (InterruptedException interruptedException)
+        {
+            Thread.currentThread().interrupt();
+        }
+
+        List<BlobUpload> remainingBlobUploads = new LinkedList<BlobUpload>();
+        _queue.drainTo(remainingBlobUploads);
+        if (! remainingBlobUploads.isEmpty())
+        {
+            int unspilled = 0;
+            for (BlobUpload blobUpload: remainingBlobUploads)
+                if ((_blobUploadJournal == null) || (! _blobUploadJournal.spill(blobUpload)))
+                    unspilled++;
+
+            if (unspilled > 0)
+                logger.log(Level.WARNING, "Upload queue not drained on shutdown, dropped " + unspilled + " blob uploads");
+        }
+    }
+
+    private class Worker implements Runnable
+    {
+        @Override
+        public void run()
+        {
+            try
+            {
+                while (_running || (! _queue.isEmpty()))
+                {
+                    BlobUpload blobUpload = _queue.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+
+                    if (blobUpload != null)
+                    {
+                        try
+                        {
+                            _blobUploadHandler.upload(blobUpload);
+                        }
+                        catch (Throwable throwable)
+                        {
+                            logger.log(Level.WARNING, "Problems in upload worker", throwable);
+                        }
+                    }
+                }
+            }
+            catch (InterruptedException interruptedException)
+            {
+                logger.log(Level.FINE, "Upload worker interrupted");
+            }
+        }
+    }
+
+    private BlockingQueue<BlobUpload> _queue;
+    private OverflowPolicy            _overflowPolicy;
+    private BlobUploadJournal         _blobUploadJournal;
+    private BlobUploadHandler         _blobUploadHandler;
+    private List<Thread>              _workers;
+    private AtomicLong                _dropCount;
+    private AtomicLong                _spillCount;
+    private AtomicInteger             _submitterCount;
+    private volatile boolean          _running;
+}
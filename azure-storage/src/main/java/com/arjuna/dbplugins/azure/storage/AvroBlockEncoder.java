@@ -0,0 +1,323 @@
+/*
+ * Copyright (c) 2015, Arjuna Technologies Limited, Newcastle-upon-Tyne, England. All rights reserved.
+ */
+
+package com.arjuna.dbplugins.azure.storage;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Array;
+import java.nio.charset.Charset;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.Deflater;
+import com.microsoft.azure.storage.core.Base64;
+
+/**
+ * Encodes records as an Avro object container file: a header carrying the schema, then blocks
+ * of records, each compressed as a whole and followed by the file's sync marker. Records are
+ * encoded into a block buffer, which the caller writes out once it reaches the block size, so
+ * a file is produced as a sequence of independent pieces rather than held whole in memory.
+ */
+public class AvroBlockEncoder
+{
+    public static final String AVRO_FORMAT = "avro";
+
+    private static final byte[]  MAGIC               = { 'O', 'b', 'j', 1 };
+    private static final int     SYNC_LENGTH         = 16;
+    private static final int     MIN_BUFFER_CAPACITY = 8 * 1024;
+    private static final Charset UTF8_CHARSET        = Charset.forName("UTF-8");
+
+    public enum Codec
+    {
+        NULL("null"),
+        DEFLATE("deflate");
+
+        private Codec(String avroCodec)
+        {
+            _avroCodec = avroCodec;
+        }
+
+        public String getAvroCodec()
+        {
+            return _avroCodec;
+        }
+
+        private String _avroCodec;
+    }
+
+    public AvroBlockEncoder(RecordSchema recordSchema, Codec codec, int level)
+    {
+        _recordSchema     = recordSchema;
+        _codec            = codec;
+        _sync             = new byte[SYNC_LENGTH];
+        _blockBuffer      = new CompressionBuffer(MIN_BUFFER_CAPACITY);
+        _compressedBuffer = new CompressionBuffer(MIN_BUFFER_CAPACITY);
+        _varIntBuffer     = new byte[10];
+        _blockRecordCount = 0;
+        if (codec == Codec.DEFLATE)
+            _deflater = new Deflater(level, true);
+
+        new Random().nextBytes(_sync);
+    }
+
+    public RecordSchema getRecordSchema()
+    {
+        return _recordSchema;
+    }
+
+    public int getBlockRecordCount()
+    {
+        return _blockRecordCount;
+    }
+
+    public int getBlockLength()
+    {
+        return _blockBuffer.getLength();
+    }
+
+    public long writeHeader(OutputStream output)
+        throws IOException
+    {
+        CompressionBuffer header = new CompressionBuffer(MIN_BUFFER_CAPACITY);
+        header.write(MAGIC, 0, MAGIC.length);
+        writeLong(header, 2);
+        writeBytes(header, "avro.schema".getBytes(UTF8_CHARSET));
+        writeBytes(header, _recordSchema.toJSON().getBytes(UTF8_CHARSET));
+        writeBytes(header, "avro.codec".getBytes(UTF8_CHARSET));
+        writeBytes(header, _codec.getAvroCodec().getBytes(UTF8_CHARSET));
+        writeLong(header, 0);
+        header.write(_sync, 0, SYNC_LENGTH);
+
+        output.write(header.getBuffer(), 0, header.getLength());
+
+        return header.getLength();
+    }
+
+    public void encode(Map<?, ?> record)
+    {
+        for (int fieldIndex = 0; fieldIndex < _recordSchema.getFieldCount(); fieldIndex++)
+        {
+            Object value = record.get(_recordSchema.getKey(fieldIndex));
+            if (value == null)
+                writeLong(_blockBuffer, 0);
+            else
+            {
+                writeLong(_blockBuffer, 1);
+                writeValue(_blockBuffer, _recordSchema.getFieldType(fieldIndex), value);
+            }
+        }
+        _blockRecordCount++;
+    }
+
+    public long writeBlock(OutputStream output)
+        throws IOException
+    {
+        if (_blockRecordCount == 0)
+            return 0L;
+
+        CompressionBuffer blockData = _blockBuffer;
+        if (_deflater != null)
+        {
+            _compressedBuffer.reset();
+            _deflater.reset();
+            _deflater.setInput(_blockBuffer.getBuffer(), 0, _blockBuffer.getLength());
+            _deflater.finish();
+            while (! _deflater.finished())
+            {
+                _compressedBuffer.ensureCapacity(_compressedBuffer.getLength() + MIN_BUFFER_CAPACITY);
+
+                int length = _compressedBuffer.getLength();
+                int count  = _deflater.deflate(_compressedBuffer.getBuffer(), length, _compressedBuffer.getCapacity() - length);
+                _compressedBuffer.setLength(length + count);
+            }
+            blockData = _compressedBuffer;
+        }
+
+        int countLength = encodeLong(_blockRecordCount);
+        output.write(_varIntBuffer, 0, countLength);
+        int sizeLength = encodeLong(blockData.getLength());
+        output.write(_varIntBuffer, 0, sizeLength);
+        output.write(blockData.getBuffer(), 0, blockData.getLength());
+        output.write(_sync, 0, SYNC_LENGTH);
+
+        _blockBuffer.reset();
+        _blockRecordCount = 0;
+
+        return countLength + sizeLength + blockData.getLength() + SYNC_LENGTH;
+    }
+
+    public void end()
+    {
+        if (_deflater != null)
+            _deflater.end();
+    }
+
+    private void writeValue(CompressionBuffer buffer, RecordSchema.FieldType fieldType, Object value)
+    {
+        switch (fieldType)
+        {
+            case BOOLEAN:
+                buffer.ensureCapacity(buffer.getLength() + 1);
+                buffer.getBuffer()[buffer.getLength()] = (byte) (((Boolean) value) ? 1 : 0);
+                buffer.setLength(buffer.getLength() + 1);
+                break;
+            case INT:
+            case LONG:
+                writeLong(buffer, ((Number) value).longValue());
+                break;
+            case FLOAT:
+                writeFixed(buffer, Float.floatToIntBits(((Number) value).floatValue()), 4);
+                break;
+            case DOUBLE:
+                writeFixed(buffer, Double.doubleToLongBits(((Number) value).doubleValue()), 8);
+                break;
+            case BYTES:
+                writeBytes(buffer, (byte[]) value);
+                break;
+            case TIMESTAMP:
+                writeLong(buffer, ((Date) value).getTime());
+                break;
+            default:
+                writeBytes(buffer, toText(value).getBytes(UTF8_CHARSET));
+        }
+    }
+
+    private static String toText(Object value)
+    {
+        if ((value instanceof Map) || (value instanceof Collection) || (value instanceof byte[]) || ((value != null) && value.getClass().isArray()))
+        {
+            StringBuilder json = new StringBuilder();
+            appendJSON(json, value);
+
+            return json.toString();
+        }
+        else
+            return String.valueOf(value);
+    }
+
+    private static void appendJSON(StringBuilder json, Object value)
+    {
+        if (value == null)
+            json.append("null");
+        else if ((value instanceof Boolean) || (value instanceof Integer) || (value instanceof Long) || (value instanceof Short) || (value instanceof Byte))
+            json.append(value);
+        else if (((value instanceof Double) || (value instanceof Float)) && (! Double.isNaN(((Number) value).doubleValue())) && (! Double.isInfinite(((Number) value).doubleValue())))
+            json.append(value);
+        else if (value instanceof Date)
+            json.append(((Date) value).getTime());
+        else if (value instanceof byte[])
+            appendJSONString(json, Base64.encode((byte[]) value));
+        else if (value instanceof Map)
+        {
+            json.append('{');
+            boolean first = true;
+            for (Map.Entry<?, ?> entry: ((Map<?, ?>) value).entrySet())
+            {
+                if (! first)
+                    json.append(',');
+                first = false;
+                appendJSONString(json, String.valueOf(entry.getKey()));
+                json.append(':');
+                appendJSON(json, entry.getValue());
+            }
+            json.append('}');
+        }
+        else if (value instanceof Collection)
+        {
+            json.append('[');
+            boolean first = true;
+            for (Object element: (Collection<?>) value)
+            {
+                if (! first)
+                    json.append(',');
+                first = false;
+                appendJSON(json, element);
+            }
+            json.append(']');
+        }
+        else if (value.getClass().isArray())
+        {
+            json.append('[');
+            for (int index = 0; index < Array.getLength(value); index++)
+            {
+                if (index > 0)
+                    json.append(',');
+                appendJSON(json, Array.get(value, index));
+            }
+            json.append(']');
+        }
+        else
+            appendJSONString(json, value.toString());
+    }
+
+    private static void appendJSONString(StringBuilder json, String value)
+    {
+        json.append('"');
+        for (int index = 0; index < value.length(); index++)
+        {
+            char character = value.charAt(index);
+            if ((character == '"') || (character == '\\'))
+                json.append('\\').append(character);
+            else if (character == '\n')
+                json.append("\\n");
+            else if (character == '\r')
+                json.append("\\r");
+            else if (character == '\t')
+                json.append("\\t");
+            else if (character < 0x20)
+                json.append(String.format("\\u%04x", (int) character));
+            else
+                json.append(character);
+        }
+        json.append('"');
+    }
+
+    private void writeBytes(CompressionBuffer buffer, byte[] data)
+    {
+        writeLong(buffer, data.length);
+        buffer.write(data, 0, data.length);
+    }
+
+    private void writeLong(CompressionBuffer buffer, long value)
+    {
+        buffer.write(_varIntBuffer, 0, encodeLong(value));
+    }
+
+    private static void writeFixed(CompressionBuffer buffer, long bits, int length)
+    {
+        buffer.ensureCapacity(buffer.getLength() + length);
+
+        byte[] data   = buffer.getBuffer();
+        int    offset = buffer.getLength();
+        for (int index = 0; index < length; index++)
+            data[offset + index] = (byte) (bits >>> (8 * index));
+        buffer.setLength(offset + length);
+    }
+
+    // Zig-zag variable length encoding, as Avro uses for int and long
+    private int encodeLong(long value)
+    {
+        long encoded = (value << 1) ^ (value >> 63);
+        int  length  = 0;
+        while ((encoded & ~0x7FL) != 0)
+        {
+            _varIntBuffer[length++] = (byte) ((encoded & 0x7F) | 0x80);
+            encoded >>>= 7;
+        }
+        _varIntBuffer[length++] = (byte) encoded;
+
+        return length;
+    }
+
+    private RecordSchema      _recordSchema;
+    private Codec             _codec;
+    private byte[]            _sync;
+    private CompressionBuffer _blockBuffer;
+    private CompressionBuffer _compressedBuffer;
+    private byte[]            _varIntBuffer;
+    private int               _blockRecordCount;
+    private Deflater          _deflater;
+}
@@ -0,0 +1,657 @@
+/*
+ * Copyright (c) 2015, Arjuna Technologies Limited, Newcastle-upon-Tyne, England. All rights reserved.
+ */
+
+package com.arjuna.dbplugins.azure.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.Charset;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import com.arjuna.dbplugins.azure.common.CircuitBreaker;
+import com.arjuna.dbplugins.azure.common.ResilientExecutor;
+import com.arjuna.dbplugins.azure.common.RetryPolicy;
+import com.arjuna.dbplugins.azure.common.ServiceMetrics;
+import com.arjuna.dbplugins.azure.common.SpillHandler;
+import com.arjuna.dbplugins.azure.common.SpillJournal;
+import com.arjuna.dbplugins.azure.common.SpillReplayer;
+import com.arjuna.databroker.data.DataConsumer;
+import com.arjuna.databroker.data.DataFlow;
+import com.arjuna.databroker.data.DataProvider;
+import com.arjuna.databroker.data.DataService;
+import com.arjuna.databroker.data.jee.annotation.DataConsumerInjection;
+import com.arjuna.databroker.data.jee.annotation.DataProviderInjection;
+import com.arjuna.databroker.data.jee.annotation.PostConfig;
+import com.arjuna.databroker.data.jee.annotation.PostCreated;
+import com.arjuna.databroker.data.jee.annotation.PostRecovery;
+import com.arjuna.databroker.data.jee.annotation.PreConfig;
+import com.arjuna.databroker.data.jee.annotation.PreDelete;
+import com.microsoft.azure.storage.CloudStorageAccount;
+import com.microsoft.azure.storage.RetryNoRetry;
+import com.microsoft.azure.storage.StorageCredentialsSharedAccessSignature;
+import com.microsoft.azure.storage.queue.CloudQueue;
+import com.microsoft.azure.storage.queue.CloudQueueClient;
+
+public class AzureQueueStorageDataService implements DataService
+{
+    private static final Logger logger = Logger.getLogger(AzureQueueStorageDataService.class.getName());
+
+    public static final String SERVICEBASEURL_PROPERTYNAME     = "Service Base URL";
+    public static final String QUEUENAME_PROPERTYNAME          = "Queue Name";
+    public static final String ACCOUNTNAME_PROPERTYNAME        = "Account Name";
+    public static final String ACCOUNTKEY_PROPERTYNAME         = "Account Key";
+    public static final String STORAGECONNECTION_PROPERTYNAME  = "Storage Connection";
+    public static final String QUEUESAS_PROPERTYNAME           = "Queue SAS";
+    public static final String SENDCONCURRENCY_PROPERTYNAME    = "Send Concurrency";
+    public static final String SENDMAXINFLIGHT_PROPERTYNAME    = "Send Max In Flight";
+    public static final String SPILLDIRECTORY_PROPERTYNAME     = "Spill Directory";
+    public static final String SPILLMAXBYTES_PROPERTYNAME      = "Spill Max Bytes";
+    public static final String SPILLSEGMENTSIZE_PROPERTYNAME   = "Spill Segment Size";
+    public static final String RECEIVECONCURRENCY_PROPERTYNAME = "Receive Concurrency";
+    public static final String PREFETCHDEPTH_PROPERTYNAME      = "Prefetch Depth";
+    public static final String VISIBILITYTIMEOUT_PROPERTYNAME  = "Visibility Timeout";
+    public static final String DELETECONCURRENCY_PROPERTYNAME  = "Delete Concurrency";
+    public static final String POLLINTERVAL_PROPERTYNAME       = "Receive Poll Interval";
+    public static final String SHUTDOWNTIMEOUT_PROPERTYNAME    = "Shutdown Timeout";
+    public static final String RETRYMAXATTEMPTS_PROPERTYNAME   = "Retry Max Attempts";
+    public static final String RETRYBASEDELAY_PROPERTYNAME     = "Retry Base Delay";
+    public static final String RETRYMAXDELAY_PROPERTYNAME      = "Retry Max Delay";
+    public static final String CIRCUITTHRESHOLD_PROPERTYNAME   = "Circuit Failure Threshold";
+    public static final String CIRCUITOPENTIME_PROPERTYNAME    = "Circuit Open Duration";
+
+    private static final int  DEFAULT_SENDCONCURRENCY    = 8;
+    private static final int  DEFAULT_SENDMAXINFLIGHT    = 256;
+    private static final long DEFAULT_SPILLMAXBYTES      = 1024L * 1024L * 1024L;
+    private static final long DEFAULT_SPILLSEGMENTSIZE   = 64L * 1024L * 1024L;
+    private static final int  DEFAULT_RECEIVECONCURRENCY = 0;
+    private static final int  DEFAULT_PREFETCHDEPTH      = 256;
+    private static final long DEFAULT_VISIBILITYTIMEOUT  = 60000L;
+    private static final int  DEFAULT_DELETECONCURRENCY  = 8;
+    private static final long DEFAULT_POLLINTERVAL       = 1000L;
+    private static final long DEFAULT_SHUTDOWNTIMEOUT    = 30000L;
+    private static final int  DEFAULT_RETRYMAXATTEMPTS   = 5;
+    private static final long DEFAULT_RETRYBASEDELAY     = 100L;
+    private static final long DEFAULT_RETRYMAXDELAY      = 30000L;
+    private static final int  DEFAULT_CIRCUITTHRESHOLD   = 5;
+    private static final long DEFAULT_CIRCUITOPENTIME    = 30000L;
+
+    private static final Charset UTF8_CHARSET = Charset.forName("UTF-8");
+
+    public AzureQueueStorageDataService()
+    {
+        logger.log(Level.FINE, "AzureQueueStorageDataService");
+
+        _metrics = createMetrics();
+    }
+
+    public AzureQueueStorageDataService(String name, Map<String, String> properties)
+    {
+        logger.log(Level.FINE, "AzureQueueStorageDataService: " + name + ", " + properties);
+
+        _name       = name;
+        _properties = properties;
+        _metrics    = createMetrics();
+    }
+
+    @Override
+    public DataFlow getDataFlow()
+    {
+        return _dataFlow;
+    }
+
+    @Override
+    public void setDataFlow(DataFlow dataFlow)
+    {
+        _dataFlow = dataFlow;
+    }
+
+    @Override
+    public String getName()
+    {
+        return _name;
+    }
+
+    @Override
+    public void setName(String name)
+    {
+        _name = name;
+    }
+
+    @Override
+    public Map<String, String> getProperties()
+    {
+        return Collections.unmodifiableMap(_properties);
+    }
+
+    @Override
+    public void setProperties(Map<String, String> properties)
+    {
+        _properties = properties;
+    }
+
+    @PostConfig
+    @PostCreated
+    @PostRecovery
+    public void setup()
+    {
+        _shutdownTimeout = getLongProperty(SHUTDOWNTIMEOUT_PROPERTYNAME, DEFAULT_SHUTDOWNTIMEOUT);
+
+        if (_queueSource != null)
+            _queueSource.shutdown(_shutdownTimeout);
+        if (_spillReplayer != null)
+            _spillReplayer.shutdown(_shutdownTimeout);
+        if (_queueSender != null)
+            _queueSender.shutdown(_shutdownTimeout);
+        if (_spillJournal != null)
+            _spillJournal.close();
+
+        CloudQueue queue = createQueue();
+        _resilientExecutor = createResilientExecutor();
+        _spillJournal      = createSpillJournal();
+        _queueSender       = createQueueSender(queue);
+        _spillReplayer     = createSpillReplayer();
+        _queueSource       = createQueueSource(queue);
+
+        _metrics.register((_dataFlow == null) ? null : _dataFlow.getName(), _name);
+    }
+
+    private ServiceMetrics createMetrics()
+    {
+        ServiceMetrics metrics = new ServiceMetrics("AzureQueueStorageDataService");
+
+        metrics.addGauge("CircuitState", new ServiceMetrics.Gauge()
+        {
+            @Override
+            public long getValue()
+            {
+                ResilientExecutor resilientExecutor = _resilientExecutor;
+
+                return (resilientExecutor == null) ? 0L : resilientExecutor.getCircuitBreaker().getState().ordinal();
+            }
+        });
+        metrics.addGauge("Retries", new ServiceMetrics.Gauge()
+        {
+            @Override
+            public long getValue()
+            {
+                ResilientExecutor resilientExecutor = _resilientExecutor;
+
+                return (resilientExecutor == null) ? 0L : resilientExecutor.getRetryCount();
+            }
+        });
+        metrics.addGauge("InFlightSends", new ServiceMetrics.Gauge()
+        {
+            @Override
+            public long getValue()
+            {
+                QueueSender queueSender = _queueSender;
+
+                return (queueSender == null) ? 0L : queueSender.getInFlightCount();
+            }
+        });
+        metrics.addGauge("SentMessages", new ServiceMetrics.Gauge()
+        {
+            @Override
+            public long getValue()
+            {
+                QueueSender queueSender = _queueSender;
+
+                return (queueSender == null) ? 0L : queueSender.getSentCount();
+            }
+        });
+        metrics.addGauge("SpilledMessages", new ServiceMetrics.Gauge()
+        {
+            @Override
+            public long getValue()
+            {
+                QueueSender queueSender = _queueSender;
+
+                return (queueSender == null) ? 0L : queueSender.getSpilledCount();
+            }
+        });
+        metrics.addGauge("SendFailures", new ServiceMetrics.Gauge()
+        {
+            @Override
+            public long getValue()
+            {
+                QueueSender queueSender = _queueSender;
+
+                return (queueSender == null) ? 0L : queueSender.getFailedCount();
+            }
+        });
+        metrics.addGauge("SpillPendingBytes", new ServiceMetrics.Gauge()
+        {
+            @Override
+            public long getValue()
+            {
+                SpillJournal spillJournal = _spillJournal;
+
+                return (spillJournal == null) ? 0L : spillJournal.getPendingBytes();
+            }
+        });
+        metrics.addGauge("SpillPendingRecords", new ServiceMetrics.Gauge()
+        {
+            @Override
+            public long getValue()
+            {
+                SpillJournal spillJournal = _spillJournal;
+
+                return (spillJournal == null) ? 0L : spillJournal.getPendingCount();
+            }
+        });
+        metrics.addGauge("SpillLag", new ServiceMetrics.Gauge()
+        {
+            @Override
+            public long getValue()
+            {
+                SpillJournal spillJournal = _spillJournal;
+
+                return (spillJournal == null) ? 0L : spillJournal.getLag();
+            }
+        });
+        metrics.addGauge("SpillRejected", new ServiceMetrics.Gauge()
+        {
+            @Override
+            public long getValue()
+            {
+                SpillJournal spillJournal = _spillJournal;
+
+                return (spillJournal == null) ? 0L : spillJournal.getRejectedCount();
+            }
+        });
+        metrics.addGauge("ReceivedMessages", new ServiceMetrics.Gauge()
+        {
+            @Override
+            public long getValue()
+            {
+                QueueSource queueSource = _queueSource;
+
+                return (queueSource == null) ? 0L : queueSource.getReceivedCount();
+            }
+        });
+        metrics.addGauge("EmittedMessages", new ServiceMetrics.Gauge()
+        {
+            @Override
+            public long getValue()
+            {
+                QueueSource queueSource = _queueSource;
+
+                return (queueSource == null) ? 0L : queueSource.getEmittedCount();
+            }
+        });
+        metrics.addGauge("DeletedMessages", new ServiceMetrics.Gauge()
+        {
+            @Override
+            public long getValue()
+            {
+                QueueSource queueSource = _queueSource;
+
+                return (queueSource == null) ? 0L : queueSource.getDeletedCount();
+            }
+        });
+        metrics.addGauge("ExtendedMessages", new ServiceMetrics.Gauge()
+        {
+            @Override
+            public long getValue()
+            {
+                QueueSource queueSource = _queueSource;
+
+                return (queueSource == null) ? 0L : queueSource.getExtendedCount();
+            }
+        });
+        metrics.addGauge("ReceiveFailures", new ServiceMetrics.Gauge()
+        {
+            @Override
+            public long getValue()
+            {
+                QueueSource queueSource = _queueSource;
+
+                return (queueSource == null) ? 0L : queueSource.getFailedCount();
+            }
+        });
+        metrics.addGauge("PrefetchCount", new ServiceMetrics.Gauge()
+        {
+            @Override
+            public long getValue()
+            {
+                QueueSource queueSource = _queueSource;
+
+                return (queueSource == null) ? 0L : queueSource.getPrefetchCount();
+            }
+        });
+
+        return metrics;
+    }
+
+    private CloudQueue createQueue()
+    {
+        String queueName         = _properties.get(QUEUENAME_PROPERTYNAME);
+        String serviceBaseURL    = _properties.get(SERVICEBASEURL_PROPERTYNAME);
+        String storageConnection = _properties.get(STORAGECONNECTION_PROPERTYNAME);
+        String accountName       = _properties.get(ACCOUNTNAME_PROPERTYNAME);
+        String accountKey        = _properties.get(ACCOUNTKEY_PROPERTYNAME);
+        String queueSAS          = _properties.get(QUEUESAS_PROPERTYNAME);
+        if ((queueName == null) || "".equals(queueName.trim()))
+        {
+            logger.log(Level.WARNING, "Unable to create Azure queue reference, missing queue name");
+            return null;
+        }
+
+        if (((storageConnection == null) || "".equals(storageConnection.trim())) && (accountName != null) && (! "".equals(accountName.trim())) && (accountKey != null) && (! "".equals(accountKey.trim())))
+            storageConnection = "DefaultEndpointsProtocol=https;AccountName=" + accountName + ";AccountKey=" + accountKey;
+
+        try
+        {
+            if ((queueSAS != null) && (! "".equals(queueSAS.trim())) && (serviceBaseURL != null))
+            {
+                CloudQueueClient queueClient = new CloudQueueClient(new URI(serviceBaseURL), new StorageCredentialsSharedAccessSignature(queueSAS));
+                queueClient.getDefaultRequestOptions().setRetryPolicyFactory(new RetryNoRetry());
+
+                return queueClient.getQueueReference(queueName.trim());
+            }
+            else if ((storageConnection != null) && (! "".equals(storageConnection.trim())))
+            {
+                CloudStorageAccount storageAccount = CloudStorageAccount.parse(storageConnection);
+                CloudQueueClient    queueClient    = storageAccount.createCloudQueueClient();
+                queueClient.getDefaultRequestOptions().setRetryPolicyFactory(new RetryNoRetry());
+                CloudQueue          queue          = queueClient.getQueueReference(queueName.trim());
+                try
+                {
+                    queue.createIfNotExists();
+                }
+                catch (Throwable throwable)
+                {
+                    logger.log(Level.WARNING, "Problems creating Azure queue: " + queueName, throwable);
+                }
+
+                return queue;
+            }
+            else
+            {
+                logger.log(Level.WARNING, "Unable to create Azure queue reference, missing credentials");
+                return null;
+            }
+        }
+        catch (Throwable throwable)
+        {
+            logger.log(Level.WARNING, "Problems with Azure queue reference", throwable);
+            return null;
+        }
+    }
+
+    private ResilientExecutor createResilientExecutor()
+    {
+        int  retryMaxAttempts = getIntProperty(RETRYMAXATTEMPTS_PROPERTYNAME, DEFAULT_RETRYMAXATTEMPTS);
+        long retryBaseDelay   = getLongProperty(RETRYBASEDELAY_PROPERTYNAME, DEFAULT_RETRYBASEDELAY);
+        long retryMaxDelay    = getLongProperty(RETRYMAXDELAY_PROPERTYNAME, DEFAULT_RETRYMAXDELAY);
+        int  circuitThreshold = getIntProperty(CIRCUITTHRESHOLD_PROPERTYNAME, DEFAULT_CIRCUITTHRESHOLD);
+        long circuitOpenTime  = getLongProperty(CIRCUITOPENTIME_PROPERTYNAME, DEFAULT_CIRCUITOPENTIME);
+
+        RetryPolicy    retryPolicy    = new RetryPolicy(retryMaxAttempts, retryBaseDelay, retryMaxDelay);
+        CircuitBreaker circuitBreaker = new CircuitBreaker(_name, circuitThreshold, circuitOpenTime);
+
+        return new ResilientExecutor(_name, retryPolicy, circuitBreaker, new StorageErrorClassifier());
+    }
+
+    private SpillJournal createSpillJournal()
+    {
+        String spillDirectoryName = _properties.get(SPILLDIRECTORY_PROPERTYNAME);
+        if ((spillDirectoryName == null) || "".equals(spillDirectoryName.trim()))
+            return null;
+
+        long spillMaxBytes    = getLongProperty(SPILLMAXBYTES_PROPERTYNAME, DEFAULT_SPILLMAXBYTES);
+        long spillSegmentSize = getLongProperty(SPILLSEGMENTSIZE_PROPERTYNAME, DEFAULT_SPILLSEGMENTSIZE);
+
+        try
+        {
+            return new SpillJournal(_name, new File(spillDirectoryName.trim()), spillMaxBytes, spillSegmentSize);
+        }
+        catch (IOException ioException)
+        {
+            logger.log(Level.WARNING, "Unable to open spill journal: " + spillDirectoryName, ioException);
+            return null;
+        }
+    }
+
+    private QueueSender createQueueSender(CloudQueue queue)
+    {
+        if (queue == null)
+            return null;
+
+        int sendConcurrency = Math.max(1, getIntProperty(SENDCONCURRENCY_PROPERTYNAME, DEFAULT_SENDCONCURRENCY));
+        int sendMaxInFlight = getIntProperty(SENDMAXINFLIGHT_PROPERTYNAME, DEFAULT_SENDMAXINFLIGHT);
+
+        return new QueueSender(_name, queue, sendConcurrency, sendMaxInFlight, _spillJournal, _resilientExecutor, _metrics);
+    }
+
+    private SpillReplayer createSpillReplayer()
+    {
+        if (_spillJournal == null)
+            return null;
+
+        SpillHandler spillHandler = new SpillHandler()
+        {
+            @Override
+            public void replay(byte[] record)
+                throws Exception
+            {
+                QueueSender queueSender = _queueSender;
+                if (queueSender == null)
+                    throw new IOException("Azure queue not configured, replay postponed");
+
+                queueSender.replay(record);
+            }
+        };
+
+        return new SpillReplayer(_name, _spillJournal, _resilientExecutor, spillHandler);
+    }
+
+    private QueueSource createQueueSource(CloudQueue queue)
+    {
+        int receiveConcurrency = getIntProperty(RECEIVECONCURRENCY_PROPERTYNAME, DEFAULT_RECEIVECONCURRENCY);
+        if ((queue == null) || (receiveConcurrency <= 0))
+            return null;
+
+        int  prefetchDepth     = getIntProperty(PREFETCHDEPTH_PROPERTYNAME, DEFAULT_PREFETCHDEPTH);
+        long visibilityTimeout = getLongProperty(VISIBILITYTIMEOUT_PROPERTYNAME, DEFAULT_VISIBILITYTIMEOUT);
+        int  deleteConcurrency = Math.max(1, getIntProperty(DELETECONCURRENCY_PROPERTYNAME, DEFAULT_DELETECONCURRENCY));
+        long pollInterval      = getLongProperty(POLLINTERVAL_PROPERTYNAME, DEFAULT_POLLINTERVAL);
+
+        QueueMessageHandler queueMessageHandler = new QueueMessageHandler()
+        {
+            @Override
+            public void received(QueueMessage queueMessage)
+            {
+                produceMessage(queueMessage);
+            }
+        };
+
+        return new QueueSource(_name, queue, receiveConcurrency, prefetchDepth, visibilityTimeout, deleteConcurrency, pollInterval, _resilientExecutor, queueMessageHandler);
+    }
+
+    private int getIntProperty(String propertyName, int defaultValue)
+    {
+        return (int) getLongProperty(propertyName, defaultValue);
+    }
+
+    private long getLongProperty(String propertyName, long defaultValue)
+    {
+        String value = _properties.get(propertyName);
+
+        if ((value == null) || "".equals(value.trim()))
+            return defaultValue;
+
+        try
+        {
+            return Long.parseLong(value.trim());
+        }
+        catch (NumberFormatException numberFormatException)
+        {
+            logger.log(Level.WARNING, "Invalid value for \"" + propertyName + "\": \"" + value + "\", using " + defaultValue);
+            return defaultValue;
+        }
+    }
+
+    @PreConfig
+    @PreDelete
+    public void teardown()
+    {
+        _metrics.unregister();
+
+        QueueSource queueSource = _queueSource;
+        _queueSource = null;
+        if (queueSource != null)
+            queueSource.shutdown(_shutdownTimeout);
+
+        SpillReplayer spillReplayer = _spillReplayer;
+        _spillReplayer = null;
+        if (spillReplayer != null)
+            spillReplayer.shutdown(_shutdownTimeout);
+
+        QueueSender queueSender = _queueSender;
+        _queueSender = null;
+        if (queueSender != null)
+            queueSender.shutdown(_shutdownTimeout);
+
+        SpillJournal spillJournal = _spillJournal;
+        _spillJournal = null;
+        if (spillJournal != null)
+            spillJournal.close();
+    }
+
+    public void consumeString(String data)
+    {
+        logger.log(Level.FINE, "AzureQueueStorageDataService.consumeString");
+
+        try
+        {
+            // Sent as bytes, a string message is base64 encoded from its UTF-8 form in the same way
+            byte[] bytes = data.getBytes(UTF8_CHARSET);
+            _metrics.recordMessage(bytes.length);
+            send(bytes);
+        }
+        catch (Throwable throwable)
+        {
+            logger.log(Level.WARNING, "Problems with Azure queue api invoke", throwable);
+        }
+    }
+
+    public void consumeBytes(byte[] data)
+    {
+        logger.log(Level.FINE, "AzureQueueStorageDataService.consumeBytes");
+
+        try
+        {
+            _metrics.recordMessage(data.length);
+            send(data);
+        }
+        catch (Throwable throwable)
+        {
+            logger.log(Level.WARNING, "Problems with Azure queue api invoke", throwable);
+        }
+    }
+
+    private void send(byte[] data)
+        throws InterruptedException
+    {
+        QueueSender queueSender = _queueSender;
+        if (queueSender != null)
+            queueSender.send(data);
+        else
+            logger.log(Level.WARNING, "Unable to send to Azure queue, not configured");
+    }
+
+    private void produceMessage(QueueMessage queueMessage)
+    {
+        logger.log(Level.FINE, "AzureQueueStorageDataService.produceMessage");
+
+        if (_dataProviderBytes != null)
+            _dataProviderBytes.produce(queueMessage.getData());
+
+        if (_dataProviderMap != null)
+        {
+            Map<String, Object> map = new HashMap<String, Object>();
+            map.put("data", queueMessage.getData());
+            map.put("messageid", queueMessage.getMessageId());
+            map.put("dequeuecount", queueMessage.getDequeueCount());
+            map.put("insertiontime", queueMessage.getInsertionTime());
+
+            _dataProviderMap.produce(map);
+        }
+    }
+
+    @Override
+    public Collection<Class<?>> getDataProviderDataClasses()
+    {
+        Set<Class<?>> dataProviderDataClasses = new HashSet<Class<?>>();
+
+        dataProviderDataClasses.add(byte[].class);
+        dataProviderDataClasses.add(Map.class);
+
+        return dataProviderDataClasses;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> DataProvider<T> getDataProvider(Class<T> dataClass)
+    {
+        if (dataClass == byte[].class)
+            return (DataProvider<T>) _dataProviderBytes;
+        else if (dataClass == Map.class)
+            return (DataProvider<T>) _dataProviderMap;
+        else
+            return null;
+    }
+
+    @Override
+    public Collection<Class<?>> getDataConsumerDataClasses()
+    {
+        Set<Class<?>> dataConsumerDataClasses = new HashSet<Class<?>>();
+
+        dataConsumerDataClasses.add(String.class);
+        dataConsumerDataClasses.add(byte[].class);
+
+        return dataConsumerDataClasses;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> DataConsumer<T> getDataConsumer(Class<T> dataClass)
+    {
+        if (dataClass == String.class)
+            return (DataConsumer<T>) _dataConsumerString;
+        else if (dataClass == byte[].class)
+            return (DataConsumer<T>) _dataConsumerBytes;
+        else
+            return null;
+    }
+
+    private long _shutdownTimeout;
+
+    private volatile ResilientExecutor _resilientExecutor;
+    private volatile SpillJournal      _spillJournal;
+    private volatile QueueSender       _queueSender;
+    private volatile SpillReplayer     _spillReplayer;
+    private volatile QueueSource       _queueSource;
+    private ServiceMetrics             _metrics;
+
+    private DataFlow             _dataFlow;
+    private String               _name;
+    private Map<String, String>  _properties;
+    @DataConsumerInjection(methodName="consumeString")
+    private DataConsumer<String> _dataConsumerString;
+    @DataConsumerInjection(methodName="consumeBytes")
+    private DataConsumer<byte[]> _dataConsumerBytes;
+    @DataProviderInjection
+    private DataProvider<byte[]> _dataProviderBytes;
+    @DataProviderInjection
+    private DataProvider<Map>    _dataProviderMap;
+}
@@ -4,7 +4,8 @@
 
 package com.arjuna.dbplugins.azure.storage;
 
-import java.util.LinkedList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import com.arjuna.databroker.data.DataFlowNode;
@@ -19,6 +20,102 @@ import com.arjuna.databroker.data.MissingPropertyException;
 
 public class AzureStorageDataFlowNodeFactory implements DataFlowNodeFactory
 {
+    private static final List<Class<? extends DataFlowNode>> CLASSES = Collections.unmodifiableList(Arrays.<Class<? extends DataFlowNode>>asList(DataService.class, AzureTableStorageDataService.class, AzureQueueStorageDataService.class));
+
+    private static final List<String> DATASERVICE_METAPROPERTYNAMES = Collections.emptyList();
+    private static final List<String> DATASERVICE_PROPERTYNAMES     = Collections.unmodifiableList(Arrays.asList(
+        AzureStorageDataService.SERVICEBASEURL_PROPERTYNAME,
+        AzureStorageDataService.CONTAINERNAME_PROPERTYNAME,
+        AzureStorageDataService.ACCOUNTNAME_PROPERTYNAME,
+        AzureStorageDataService.ACCOUNTKEY_PROPERTYNAME,
+        AzureStorageDataService.STORAGECONNECTION_PROPERTYNAME,
+        AzureStorageDataService.CONTAINERSAS_PROPERTYNAME,
+        AzureStorageDataService.UPLOADMODE_PROPERTYNAME,
+        AzureStorageDataService.QUEUECAPACITY_PROPERTYNAME,
+        AzureStorageDataService.WORKERCOUNT_PROPERTYNAME,
+        AzureStorageDataService.QUEUEOVERFLOW_PROPERTYNAME,
+        AzureStorageDataService.SPILLDIRECTORY_PROPERTYNAME,
+        AzureStorageDataService.SPILLMAXBYTES_PROPERTYNAME,
+        AzureStorageDataService.SPILLSEGMENTSIZE_PROPERTYNAME,
+        AzureStorageDataService.SHUTDOWNTIMEOUT_PROPERTYNAME,
+        AzureStorageDataService.CHUNKTHRESHOLD_PROPERTYNAME,
+        AzureStorageDataService.BLOCKSIZE_PROPERTYNAME,
+        AzureStorageDataService.BLOCKCONCURRENCY_PROPERTYNAME,
+        AzureStorageDataService.BATCHMAXRECORDS_PROPERTYNAME,
+        AzureStorageDataService.BATCHMAXBYTES_PROPERTYNAME,
+        AzureStorageDataService.BATCHLINGERTIME_PROPERTYNAME,
+        AzureStorageDataService.SASLIFETIME_PROPERTYNAME,
+        AzureStorageDataService.SASRENEWALMARGIN_PROPERTYNAME,
+        AzureStorageDataService.COMPRESSION_PROPERTYNAME,
+        AzureStorageDataService.COMPRESSIONLEVEL_PROPERTYNAME,
+        AzureStorageDataService.RETRYMAXATTEMPTS_PROPERTYNAME,
+        AzureStorageDataService.RETRYBASEDELAY_PROPERTYNAME,
+        AzureStorageDataService.RETRYMAXDELAY_PROPERTYNAME,
+        AzureStorageDataService.CIRCUITTHRESHOLD_PROPERTYNAME,
+        AzureStorageDataService.CIRCUITOPENTIME_PROPERTYNAME,
+        AzureStorageDataService.DEDUPLICATION_PROPERTYNAME,
+        AzureStorageDataService.DEDUPCACHESIZE_PROPERTYNAME,
+        AzureStorageDataService.BLOBNAMING_PROPERTYNAME,
+        AzureStorageDataService.BLOBNAMEBUCKET_PROPERTYNAME,
+        AzureStorageDataService.BLOBNAMEHASH_PROPERTYNAME,
+        AzureStorageDataService.LISTINGMODE_PROPERTYNAME,
+        AzureStorageDataService.LISTINGPREFIXES_PROPERTYNAME,
+        AzureStorageDataService.LISTINGPAGESIZE_PROPERTYNAME,
+        AzureStorageDataService.LISTINGINTERVAL_PROPERTYNAME,
+        AzureStorageDataService.LISTINGCHECKPOINT_PROPERTYNAME,
+        AzureStorageDataService.RANGESIZE_PROPERTYNAME,
+        AzureStorageDataService.DOWNLOADTHREADS_PROPERTYNAME,
+        AzureStorageDataService.PREFETCHDEPTH_PROPERTYNAME,
+        AzureStorageDataService.PREFETCHMAXBYTES_PROPERTYNAME,
+        AzureStorageDataService.OUTPUTFORMAT_PROPERTYNAME,
+        AzureStorageDataService.OUTPUTCODEC_PROPERTYNAME,
+        AzureStorageDataService.OUTPUTBLOCKSIZE_PROPERTYNAME,
+        AzureStorageDataService.OUTPUTMAXBYTES_PROPERTYNAME,
+        AzureStorageDataService.OUTPUTROLLTIME_PROPERTYNAME,
+        AzureStorageDataService.WARMUPTIMEOUT_PROPERTYNAME));
+    private static final List<String> TABLESERVICE_PROPERTYNAMES    = Collections.unmodifiableList(Arrays.asList(
+        AzureTableStorageDataService.SERVICEBASEURL_PROPERTYNAME,
+        AzureTableStorageDataService.TABLENAME_PROPERTYNAME,
+        AzureTableStorageDataService.ACCOUNTNAME_PROPERTYNAME,
+        AzureTableStorageDataService.ACCOUNTKEY_PROPERTYNAME,
+        AzureTableStorageDataService.STORAGECONNECTION_PROPERTYNAME,
+        AzureTableStorageDataService.TABLESAS_PROPERTYNAME,
+        AzureTableStorageDataService.PARTITIONKEY_PROPERTYNAME,
+        AzureTableStorageDataService.ROWKEY_PROPERTYNAME,
+        AzureTableStorageDataService.WRITEMODE_PROPERTYNAME,
+        AzureTableStorageDataService.BATCHLINGERTIME_PROPERTYNAME,
+        AzureTableStorageDataService.BATCHCONCURRENCY_PROPERTYNAME,
+        AzureTableStorageDataService.MAXPENDING_PROPERTYNAME,
+        AzureTableStorageDataService.SHUTDOWNTIMEOUT_PROPERTYNAME,
+        AzureTableStorageDataService.RETRYMAXATTEMPTS_PROPERTYNAME,
+        AzureTableStorageDataService.RETRYBASEDELAY_PROPERTYNAME,
+        AzureTableStorageDataService.RETRYMAXDELAY_PROPERTYNAME,
+        AzureTableStorageDataService.CIRCUITTHRESHOLD_PROPERTYNAME,
+        AzureTableStorageDataService.CIRCUITOPENTIME_PROPERTYNAME));
+    private static final List<String> QUEUESERVICE_PROPERTYNAMES    = Collections.unmodifiableList(Arrays.asList(
+        AzureQueueStorageDataService.SERVICEBASEURL_PROPERTYNAME,
+        AzureQueueStorageDataService.QUEUENAME_PROPERTYNAME,
+        AzureQueueStorageDataService.ACCOUNTNAME_PROPERTYNAME,
+        AzureQueueStorageDataService.ACCOUNTKEY_PROPERTYNAME,
+        AzureQueueStorageDataService.STORAGECONNECTION_PROPERTYNAME,
+        AzureQueueStorageDataService.QUEUESAS_PROPERTYNAME,
+        AzureQueueStorageDataService.SENDCONCURRENCY_PROPERTYNAME,
+        AzureQueueStorageDataService.SENDMAXINFLIGHT_PROPERTYNAME,
+        AzureQueueStorageDataService.SPILLDIRECTORY_PROPERTYNAME,
+        AzureQueueStorageDataService.SPILLMAXBYTES_PROPERTYNAME,
+        AzureQueueStorageDataService.SPILLSEGMENTSIZE_PROPERTYNAME,
+        AzureQueueStorageDataService.RECEIVECONCURRENCY_PROPERTYNAME,
+        AzureQueueStorageDataService.PREFETCHDEPTH_PROPERTYNAME,
+        AzureQueueStorageDataService.VISIBILITYTIMEOUT_PROPERTYNAME,
+        AzureQueueStorageDataService.DELETECONCURRENCY_PROPERTYNAME,
+        AzureQueueStorageDataService.POLLINTERVAL_PROPERTYNAME,
+        AzureQueueStorageDataService.SHUTDOWNTIMEOUT_PROPERTYNAME,
+        AzureQueueStorageDataService.RETRYMAXATTEMPTS_PROPERTYNAME,
+        AzureQueueStorageDataService.RETRYBASEDELAY_PROPERTYNAME,
+        AzureQueueStorageDataService.RETRYMAXDELAY_PROPERTYNAME,
+        AzureQueueStorageDataService.CIRCUITTHRESHOLD_PROPERTYNAME,
+        AzureQueueStorageDataService.CIRCUITOPENTIME_PROPERTYNAME));
+
     public AzureStorageDataFlowNodeFactory(String name, Map<String, String> properties)
     {
         _name       = name;
@@ -40,23 +137,15 @@ public class AzureStorageDataFlowNodeFactory implements DataFlowNodeFactory
     @Override
     public List<Class<? extends DataFlowNode>> getClasses()
     {
-        List<Class<? extends DataFlowNode>> classes = new LinkedList<Class<? extends DataFlowNode>>();
-
-        classes.add(DataService.class);
-
-        return classes;
+        return CLASSES;
     }
 
     @Override
     public <T extends DataFlowNode> List<String> getMetaPropertyNames(Class<T> dataFlowNodeClass)
         throws InvalidClassException
     {
-        if (dataFlowNodeClass.equals(DataService.class))
-        {
-            List<String> metaPropertyNames = new LinkedList<String>();
-
-            return metaPropertyNames;
-        }
+        if (dataFlowNodeClass.equals(DataService.class) || dataFlowNodeClass.equals(AzureTableStorageDataService.class) || dataFlowNodeClass.equals(AzureQueueStorageDataService.class))
+            return DATASERVICE_METAPROPERTYNAMES;
         else
             throw new InvalidClassException("Unsupported class", dataFlowNodeClass.getName());
     }
@@ -68,18 +157,21 @@ public class AzureStorageDataFlowNodeFactory implements DataFlowNodeFactory
         if (dataFlowNodeClass.equals(DataService.class))
         {
             if (metaProperties.isEmpty())
-            {
-                List<String> propertyNames = new LinkedList<String>();
-
-                propertyNames.add(AzureStorageDataService.SERVICEBASEURL_PROPERTYNAME);
-                propertyNames.add(AzureStorageDataService.CONTAINERNAME_PROPERTYNAME);
-                propertyNames.add(AzureStorageDataService.ACCOUNTNAME_PROPERTYNAME);
-                propertyNames.add(AzureStorageDataService.ACCOUNTKEY_PROPERTYNAME);
-                propertyNames.add(AzureStorageDataService.STORAGECONNECTION_PROPERTYNAME);
-                propertyNames.add(AzureStorageDataService.CONTAINERSAS_PROPERTYNAME);
-
-                return propertyNames;
-            }
+                return DATASERVICE_PROPERTYNAMES;
+            else
+                throw new MissingMetaPropertyException("No metaproperties expected", null);
+        }
+        else if (dataFlowNodeClass.equals(AzureTableStorageDataService.class))
+        {
+            if (metaProperties.isEmpty())
+                return TABLESERVICE_PROPERTYNAMES;
+            else
+                throw new MissingMetaPropertyException("No metaproperties expected", null);
+        }
+        else if (dataFlowNodeClass.equals(AzureQueueStorageDataService.class))
+        {
+            if (metaProperties.isEmpty())
+                return QUEUESERVICE_PROPERTYNAMES;
             else
                 throw new MissingMetaPropertyException("No metaproperties expected", null);
         }
@@ -99,6 +191,20 @@ public class AzureStorageDataFlowNodeFactory implements DataFlowNodeFactory
             else
                 throw new InvalidMetaPropertyException("No metaproperties expected", null, null);
         }
+        else if (dataFlowNodeClass.equals(AzureTableStorageDataService.class))
+        {
+            if (metaProperties.isEmpty())
+                return (T) new AzureTableStorageDataService(name, properties);
+            else
+                throw new InvalidMetaPropertyException("No metaproperties expected", null, null);
+        }
+        else if (dataFlowNodeClass.equals(AzureQueueStorageDataService.class))
+        {
+            if (metaProperties.isEmpty())
+                return (T) new AzureQueueStorageDataService(name, properties);
+            else
+                throw new InvalidMetaPropertyException("No metaproperties expected", null, null);
+        }
         else
             throw new InvalidClassException("Unsupported class", dataFlowNodeClass.getName());
     }
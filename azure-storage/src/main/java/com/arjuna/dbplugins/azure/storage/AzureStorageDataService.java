@@ -4,38 +4,55 @@
 
 package com.arjuna.dbplugins.azure.storage;
 
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
 import java.net.URI;
-import java.util.Calendar;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
-import java.util.EnumSet;
-import java.util.GregorianCalendar;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.zip.Deflater;
+import com.arjuna.dbplugins.azure.common.CircuitBreaker;
+import com.arjuna.dbplugins.azure.common.ResilientExecutor;
+import com.arjuna.dbplugins.azure.common.RetryPolicy;
+import com.arjuna.dbplugins.azure.common.ServiceMetrics;
+import com.arjuna.dbplugins.azure.common.SpillHandler;
+import com.arjuna.dbplugins.azure.common.SpillJournal;
+import com.arjuna.dbplugins.azure.common.SpillReplayer;
 import com.arjuna.databroker.data.DataConsumer;
 import com.arjuna.databroker.data.DataFlow;
 import com.arjuna.databroker.data.DataProvider;
 import com.arjuna.databroker.data.DataService;
 import com.arjuna.databroker.data.jee.annotation.DataConsumerInjection;
+import com.arjuna.databroker.data.jee.annotation.DataProviderInjection;
 import com.arjuna.databroker.data.jee.annotation.PostConfig;
 import com.arjuna.databroker.data.jee.annotation.PostCreated;
 import com.arjuna.databroker.data.jee.annotation.PostRecovery;
 import com.arjuna.databroker.data.jee.annotation.PreConfig;
 import com.arjuna.databroker.data.jee.annotation.PreDelete;
-import com.microsoft.azure.storage.CloudStorageAccount;
-import com.microsoft.azure.storage.blob.BlobContainerPermissions;
-import com.microsoft.azure.storage.blob.BlobContainerPublicAccessType;
+import com.microsoft.azure.storage.RetryNoRetry;
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.StorageCredentialsSharedAccessSignature;
 import com.microsoft.azure.storage.blob.CloudBlobClient;
 import com.microsoft.azure.storage.blob.CloudBlobContainer;
 import com.microsoft.azure.storage.blob.CloudBlockBlob;
-import com.microsoft.azure.storage.blob.SharedAccessBlobPermissions;
-import com.microsoft.azure.storage.blob.SharedAccessBlobPolicy;
+import com.microsoft.azure.storage.blob.CopyStatus;
 
 public class AzureStorageDataService implements DataService
 {
@@ -47,10 +64,98 @@ public class AzureStorageDataService implements DataService
     public static final String ACCOUNTKEY_PROPERTYNAME        = "Account Key";
     public static final String STORAGECONNECTION_PROPERTYNAME = "Storage Connection";
     public static final String CONTAINERSAS_PROPERTYNAME      = "Container SAS";
+    public static final String UPLOADMODE_PROPERTYNAME        = "Upload Mode";
+    public static final String QUEUECAPACITY_PROPERTYNAME     = "Upload Queue Capacity";
+    public static final String WORKERCOUNT_PROPERTYNAME       = "Upload Worker Count";
+    public static final String QUEUEOVERFLOW_PROPERTYNAME     = "Upload Queue Overflow";
+    public static final String SPILLDIRECTORY_PROPERTYNAME    = "Spill Directory";
+    public static final String SPILLMAXBYTES_PROPERTYNAME     = "Spill Max Bytes";
+    public static final String SPILLSEGMENTSIZE_PROPERTYNAME  = "Spill Segment Size";
+    public static final String SHUTDOWNTIMEOUT_PROPERTYNAME   = "Upload Shutdown Timeout";
+    public static final String CHUNKTHRESHOLD_PROPERTYNAME    = "Chunked Upload Threshold";
+    public static final String BLOCKSIZE_PROPERTYNAME         = "Block Size";
+    public static final String BLOCKCONCURRENCY_PROPERTYNAME  = "Block Concurrency";
+    public static final String BATCHMAXRECORDS_PROPERTYNAME   = "Batch Max Records";
+    public static final String BATCHMAXBYTES_PROPERTYNAME     = "Batch Max Bytes";
+    public static final String BATCHLINGERTIME_PROPERTYNAME   = "Batch Linger Time";
+    public static final String SASLIFETIME_PROPERTYNAME       = "SAS Lifetime";
+    public static final String SASRENEWALMARGIN_PROPERTYNAME  = "SAS Renewal Margin";
+    public static final String COMPRESSION_PROPERTYNAME       = "Compression";
+    public static final String COMPRESSIONLEVEL_PROPERTYNAME  = "Compression Level";
+    public static final String RETRYMAXATTEMPTS_PROPERTYNAME  = "Retry Max Attempts";
+    public static final String RETRYBASEDELAY_PROPERTYNAME    = "Retry Base Delay";
+    public static final String RETRYMAXDELAY_PROPERTYNAME     = "Retry Max Delay";
+    public static final String CIRCUITTHRESHOLD_PROPERTYNAME  = "Circuit Failure Threshold";
+    public static final String CIRCUITOPENTIME_PROPERTYNAME   = "Circuit Open Duration";
+    public static final String DEDUPLICATION_PROPERTYNAME     = "Deduplication";
+    public static final String DEDUPCACHESIZE_PROPERTYNAME    = "Deduplication Cache Size";
+    public static final String BLOBNAMING_PROPERTYNAME        = "Blob Naming";
+    public static final String BLOBNAMEBUCKET_PROPERTYNAME    = "Blob Name Time Bucket";
+    public static final String BLOBNAMEHASH_PROPERTYNAME      = "Blob Name Hash Prefix";
+    public static final String LISTINGMODE_PROPERTYNAME       = "Listing Mode";
+    public static final String LISTINGPREFIXES_PROPERTYNAME   = "Listing Prefixes";
+    public static final String LISTINGPAGESIZE_PROPERTYNAME   = "Listing Page Size";
+    public static final String LISTINGINTERVAL_PROPERTYNAME   = "Listing Poll Interval";
+    public static final String LISTINGCHECKPOINT_PROPERTYNAME = "Listing Checkpoint Directory";
+    public static final String RANGESIZE_PROPERTYNAME         = "Download Range Size";
+    public static final String DOWNLOADTHREADS_PROPERTYNAME   = "Download Concurrency";
+    public static final String PREFETCHDEPTH_PROPERTYNAME     = "Prefetch Depth";
+    public static final String PREFETCHMAXBYTES_PROPERTYNAME  = "Prefetch Max Bytes";
+    public static final String OUTPUTFORMAT_PROPERTYNAME      = "Output Format";
+    public static final String OUTPUTCODEC_PROPERTYNAME       = "Output Codec";
+    public static final String OUTPUTBLOCKSIZE_PROPERTYNAME   = "Output Block Size";
+    public static final String OUTPUTMAXBYTES_PROPERTYNAME    = "Output File Max Bytes";
+    public static final String OUTPUTROLLTIME_PROPERTYNAME    = "Output File Roll Time";
+    public static final String WARMUPTIMEOUT_PROPERTYNAME     = "Warm Up Timeout";
+
+    public static final String SYNCHRONOUS_UPLOADMODE  = "Synchronous";
+    public static final String ASYNCHRONOUS_UPLOADMODE = "Asynchronous";
+    public static final String NONE_COMPRESSION        = "None";
+    public static final String SEQUENCE_BLOBNAMING     = "Sequence";
+    public static final String UUID_BLOBNAMING         = "UUID";
+    public static final String NONE_LISTINGMODE        = "None";
+    public static final String INCREMENTAL_LISTINGMODE = "Incremental";
+    public static final String NONE_OUTPUTFORMAT       = "None";
+    public static final String AVRO_OUTPUTFORMAT       = "Avro";
+
+    private static final int  DEFAULT_QUEUECAPACITY    = 1000;
+    private static final int  DEFAULT_WORKERCOUNT      = 4;
+    private static final long DEFAULT_SHUTDOWNTIMEOUT  = 30000L;
+    private static final long DEFAULT_SPILLMAXBYTES    = 1024L * 1024L * 1024L;
+    private static final long DEFAULT_SPILLSEGMENTSIZE = 64L * 1024L * 1024L;
+    private static final int  DEFAULT_BLOCKSIZE        = 4 * 1024 * 1024;
+    private static final int  DEFAULT_BLOCKCONCURRENCY = 4;
+    private static final int  DEFAULT_BATCHMAXBYTES    = 4 * 1024 * 1024;
+    private static final long DEFAULT_BATCHLINGERTIME  = 1000L;
+    private static final long DEFAULT_SASLIFETIME      = 6L * 60L * 60L * 1000L;
+    private static final long DEFAULT_SASRENEWALMARGIN = 60L * 60L * 1000L;
+    private static final int  DEFAULT_RETRYMAXATTEMPTS = 5;
+    private static final long DEFAULT_RETRYBASEDELAY   = 100L;
+    private static final long DEFAULT_RETRYMAXDELAY    = 30000L;
+    private static final int  DEFAULT_CIRCUITTHRESHOLD = 5;
+    private static final long DEFAULT_CIRCUITOPENTIME  = 30000L;
+    private static final int  DEFAULT_DEDUPCACHESIZE   = 10000;
+    private static final int  DEFAULT_LISTINGPAGESIZE  = 5000;
+    private static final long DEFAULT_LISTINGINTERVAL  = 10000L;
+    private static final int  DEFAULT_RANGESIZE        = 4 * 1024 * 1024;
+    private static final int  DEFAULT_DOWNLOADTHREADS  = 4;
+    private static final int  DEFAULT_PREFETCHDEPTH    = 64;
+    private static final long DEFAULT_PREFETCHMAXBYTES = 256L * 1024L * 1024L;
+    private static final int  DEFAULT_OUTPUTBLOCKSIZE  = 1024 * 1024;
+    private static final long DEFAULT_OUTPUTMAXBYTES   = 256L * 1024L * 1024L;
+    private static final long DEFAULT_OUTPUTROLLTIME   = 60000L;
+    private static final long DEFAULT_WARMUPTIMEOUT    = 30000L;
+
+    private static final long COPY_POLLINTERVAL = 100L;
+    private static final long COPY_TIMEOUT      = 30000L;
+
+    private static final Charset UTF8_CHARSET = Charset.forName("UTF-8");
 
     public AzureStorageDataService()
     {
         logger.log(Level.FINE, "AzureStorageDataService");
+
+        _metrics = createMetrics();
     }
 
     public AzureStorageDataService(String name, Map<String, String> properties)
@@ -59,6 +164,7 @@ public class AzureStorageDataService implements DataService
 
         _name       = name;
         _properties = properties;
+        _metrics    = createMetrics();
     }
 
     @Override
@@ -97,6 +203,9 @@ public class AzureStorageDataService implements DataService
         _properties = properties;
     }
 
+    // Only local work is done here, so many nodes can be set up or recovered quickly. Without a
+    // cached SAS, the first is generated in the background; uploads until then wait, up to the
+    // warm-up timeout, for it, while in asynchronous mode callers are not held up at all.
     @PostConfig
     @PostCreated
     @PostRecovery
@@ -109,6 +218,14 @@ public class AzureStorageDataService implements DataService
         _accountKey        = _properties.get(ACCOUNTKEY_PROPERTYNAME);
         _containerSAS      = _properties.get(CONTAINERSAS_PROPERTYNAME);
 
+        _warmUpTimeout     = getLongProperty(WARMUPTIMEOUT_PROPERTYNAME, DEFAULT_WARMUPTIMEOUT);
+
+        if (_containerSASRenewer != null)
+            _containerSASRenewer.shutdown();
+        _containerSASRenewer = null;
+
+        CountDownLatch warmUpLatch = new CountDownLatch(1);
+        _warmUpLatch = warmUpLatch;
         if ((_containerSAS == null) || "".equals(_containerSAS.trim()))
         {
             String storageConnection = null;
@@ -118,34 +235,759 @@ public class AzureStorageDataService implements DataService
                 storageConnection = "DefaultEndpointsProtocol=https;AccountName=" + _accountName + ";AccountKey=" + _accountKey;
 
             if (storageConnection != null)
+            {
+                _blobContainer       = null;
+                _containerSASRenewer = createContainerSASRenewer(storageConnection);
+            }
+        }
+
+        if (_containerSASRenewer == null)
+        {
+            _blobContainer = createBlobContainer(_containerSAS);
+            warmUpLatch.countDown();
+        }
+
+        if (_blobSource != null)
+            _blobSource.shutdown(_shutdownTimeout);
+        if (_recordFileWriter != null)
+            _recordFileWriter.shutdown(_shutdownTimeout);
+        if (_blobBatcher != null)
+            _blobBatcher.shutdown();
+        if (_asyncBlobUploader != null)
+            _asyncBlobUploader.shutdown(_shutdownTimeout);
+        if (_spillReplayer != null)
+            _spillReplayer.shutdown(_shutdownTimeout);
+        if (_blobUploadJournal != null)
+            _blobUploadJournal.getSpillJournal().close();
+        if (_blockBlobUploader != null)
+            _blockBlobUploader.shutdown();
+        if (_blobCompressor != null)
+            _blobCompressor.shutdown();
+
+        _resilientExecutor = createResilientExecutor();
+        _blobCompressor    = createBlobCompressor();
+        _blobDeduplicator  = createBlobDeduplicator();
+        _blobNamer         = createBlobNamer();
+        _blockBlobUploader = createBlockBlobUploader();
+        _blobUploadJournal = createBlobUploadJournal();
+        _spillReplayer     = createSpillReplayer();
+        _asyncBlobUploader = createAsyncBlobUploader();
+        _blobBatcher       = createBlobBatcher();
+        _blobSource        = createBlobSource();
+        _recordFileWriter  = createRecordFileWriter();
+
+        // Started once the components it hands renewed containers to exist
+        if (_containerSASRenewer != null)
+        {
+            _containerSAS = _containerSASRenewer.start();
+            if (_containerSAS != null)
+            {
+                setBlobContainer(createBlobContainer(_containerSAS));
+                warmUpLatch.countDown();
+            }
+        }
+
+        _metrics.register((_dataFlow == null) ? null : _dataFlow.getName(), _name);
+    }
+
+    private ServiceMetrics createMetrics()
+    {
+        ServiceMetrics metrics = new ServiceMetrics("AzureStorageDataService");
+
+        metrics.addGauge("SASTimeLeft", new ServiceMetrics.Gauge()
+        {
+            @Override
+            public long getValue()
+            {
+                ContainerSASRenewer containerSASRenewer = _containerSASRenewer;
+
+                return (containerSASRenewer == null) ? -1L : containerSASRenewer.getTimeLeft();
+            }
+        });
+        metrics.addGauge("WarmingUp", new ServiceMetrics.Gauge()
+        {
+            @Override
+            public long getValue()
+            {
+                CountDownLatch warmUpLatch = _warmUpLatch;
+
+                return (warmUpLatch == null) ? 0L : warmUpLatch.getCount();
+            }
+        });
+        metrics.addGauge("CircuitState", new ServiceMetrics.Gauge()
+        {
+            @Override
+            public long getValue()
+            {
+                ResilientExecutor resilientExecutor = _resilientExecutor;
+
+                return (resilientExecutor == null) ? 0L : resilientExecutor.getCircuitBreaker().getState().ordinal();
+            }
+        });
+        metrics.addGauge("CircuitOpened", new ServiceMetrics.Gauge()
+        {
+            @Override
+            public long getValue()
+            {
+                ResilientExecutor resilientExecutor = _resilientExecutor;
+
+                return (resilientExecutor == null) ? 0L : resilientExecutor.getCircuitBreaker().getOpenedCount();
+            }
+        });
+        metrics.addGauge("CircuitRejected", new ServiceMetrics.Gauge()
+        {
+            @Override
+            public long getValue()
+            {
+                ResilientExecutor resilientExecutor = _resilientExecutor;
+
+                return (resilientExecutor == null) ? 0L : resilientExecutor.getCircuitBreaker().getRejectedCount();
+            }
+        });
+        metrics.addGauge("Retries", new ServiceMetrics.Gauge()
+        {
+            @Override
+            public long getValue()
+            {
+                ResilientExecutor resilientExecutor = _resilientExecutor;
+
+                return (resilientExecutor == null) ? 0L : resilientExecutor.getRetryCount();
+            }
+        });
+        metrics.addGauge("DedupLookups", new ServiceMetrics.Gauge()
+        {
+            @Override
+            public long getValue()
+            {
+                BlobDeduplicator blobDeduplicator = _blobDeduplicator;
+
+                return (blobDeduplicator == null) ? 0L : blobDeduplicator.getLookupCount();
+            }
+        });
+        metrics.addGauge("DedupHits", new ServiceMetrics.Gauge()
+        {
+            @Override
+            public long getValue()
+            {
+                BlobDeduplicator blobDeduplicator = _blobDeduplicator;
+
+                return (blobDeduplicator == null) ? 0L : blobDeduplicator.getHitCount();
+            }
+        });
+        metrics.addGauge("DedupHitPercent", new ServiceMetrics.Gauge()
+        {
+            @Override
+            public long getValue()
+            {
+                BlobDeduplicator blobDeduplicator = _blobDeduplicator;
+
+                return (blobDeduplicator == null) ? 0L : blobDeduplicator.getHitPercent();
+            }
+        });
+        metrics.addGauge("DedupLinks", new ServiceMetrics.Gauge()
+        {
+            @Override
+            public long getValue()
+            {
+                BlobDeduplicator blobDeduplicator = _blobDeduplicator;
+
+                return (blobDeduplicator == null) ? 0L : blobDeduplicator.getLinkCount();
+            }
+        });
+        metrics.addGauge("DedupBytesSaved", new ServiceMetrics.Gauge()
+        {
+            @Override
+            public long getValue()
+            {
+                BlobDeduplicator blobDeduplicator = _blobDeduplicator;
+
+                return (blobDeduplicator == null) ? 0L : blobDeduplicator.getBytesSaved();
+            }
+        });
+        metrics.addGauge("QueueDepth", new ServiceMetrics.Gauge()
+        {
+            @Override
+            public long getValue()
+            {
+                AsyncBlobUploader asyncBlobUploader = _asyncBlobUploader;
+
+                return (asyncBlobUploader == null) ? 0L : asyncBlobUploader.getQueueDepth();
+            }
+        });
+        metrics.addGauge("QueueDrops", new ServiceMetrics.Gauge()
+        {
+            @Override
+            public long getValue()
+            {
+                AsyncBlobUploader asyncBlobUploader = _asyncBlobUploader;
+
+                return (asyncBlobUploader == null) ? 0L : asyncBlobUploader.getDropCount();
+            }
+        });
+        metrics.addGauge("QueueSpills", new ServiceMetrics.Gauge()
+        {
+            @Override
+            public long getValue()
+            {
+                AsyncBlobUploader asyncBlobUploader = _asyncBlobUploader;
+
+                return (asyncBlobUploader == null) ? 0L : asyncBlobUploader.getSpillCount();
+            }
+        });
+        metrics.addGauge("SpillPendingBytes", new ServiceMetrics.Gauge()
+        {
+            @Override
+            public long getValue()
+            {
+                BlobUploadJournal blobUploadJournal = _blobUploadJournal;
+
+                return (blobUploadJournal == null) ? 0L : blobUploadJournal.getSpillJournal().getPendingBytes();
+            }
+        });
+        metrics.addGauge("SpillPendingRecords", new ServiceMetrics.Gauge()
+        {
+            @Override
+            public long getValue()
+            {
+                BlobUploadJournal blobUploadJournal = _blobUploadJournal;
+
+                return (blobUploadJournal == null) ? 0L : blobUploadJournal.getSpillJournal().getPendingCount();
+            }
+        });
+        metrics.addGauge("SpillLag", new ServiceMetrics.Gauge()
+        {
+            @Override
+            public long getValue()
+            {
+                BlobUploadJournal blobUploadJournal = _blobUploadJournal;
+
+                return (blobUploadJournal == null) ? 0L : blobUploadJournal.getSpillJournal().getLag();
+            }
+        });
+        metrics.addGauge("SpillAppended", new ServiceMetrics.Gauge()
+        {
+            @Override
+            public long getValue()
+            {
+                BlobUploadJournal blobUploadJournal = _blobUploadJournal;
+
+                return (blobUploadJournal == null) ? 0L : blobUploadJournal.getSpillJournal().getAppendedCount();
+            }
+        });
+        metrics.addGauge("SpillReplayed", new ServiceMetrics.Gauge()
+        {
+            @Override
+            public long getValue()
+            {
+                BlobUploadJournal blobUploadJournal = _blobUploadJournal;
+
+                return (blobUploadJournal == null) ? 0L : blobUploadJournal.getSpillJournal().getReplayedCount();
+            }
+        });
+        metrics.addGauge("SpillRejected", new ServiceMetrics.Gauge()
+        {
+            @Override
+            public long getValue()
+            {
+                BlobUploadJournal blobUploadJournal = _blobUploadJournal;
+
+                return (blobUploadJournal == null) ? 0L : blobUploadJournal.getSpillJournal().getRejectedCount();
+            }
+        });
+        metrics.addGauge("ListedBlobs", new ServiceMetrics.Gauge()
+        {
+            @Override
+            public long getValue()
+            {
+                BlobSource blobSource = _blobSource;
+
+                return (blobSource == null) ? 0L : blobSource.getListedCount();
+            }
+        });
+        metrics.addGauge("DownloadedBlobs", new ServiceMetrics.Gauge()
+        {
+            @Override
+            public long getValue()
+            {
+                BlobSource blobSource = _blobSource;
+
+                return (blobSource == null) ? 0L : blobSource.getDownloadedCount();
+            }
+        });
+        metrics.addGauge("DownloadedBytes", new ServiceMetrics.Gauge()
+        {
+            @Override
+            public long getValue()
+            {
+                BlobSource blobSource = _blobSource;
+
+                return (blobSource == null) ? 0L : blobSource.getDownloadedBytes();
+            }
+        });
+        metrics.addGauge("DownloadFailures", new ServiceMetrics.Gauge()
+        {
+            @Override
+            public long getValue()
+            {
+                BlobSource blobSource = _blobSource;
+
+                return (blobSource == null) ? 0L : blobSource.getFailedCount();
+            }
+        });
+        metrics.addGauge("PrefetchCount", new ServiceMetrics.Gauge()
+        {
+            @Override
+            public long getValue()
+            {
+                BlobSource blobSource = _blobSource;
+
+                return (blobSource == null) ? 0L : blobSource.getPrefetchCount();
+            }
+        });
+        metrics.addGauge("PrefetchBytes", new ServiceMetrics.Gauge()
+        {
+            @Override
+            public long getValue()
+            {
+                BlobSource blobSource = _blobSource;
+
+                return (blobSource == null) ? 0L : blobSource.getPrefetchBytes();
+            }
+        });
+        metrics.addGauge("OutputRecords", new ServiceMetrics.Gauge()
+        {
+            @Override
+            public long getValue()
+            {
+                RecordFileWriter recordFileWriter = _recordFileWriter;
+
+                return (recordFileWriter == null) ? 0L : recordFileWriter.getWrittenCount();
+            }
+        });
+        metrics.addGauge("OutputFiles", new ServiceMetrics.Gauge()
+        {
+            @Override
+            public long getValue()
+            {
+                RecordFileWriter recordFileWriter = _recordFileWriter;
+
+                return (recordFileWriter == null) ? 0L : recordFileWriter.getFileCount();
+            }
+        });
+        metrics.addGauge("OutputFailures", new ServiceMetrics.Gauge()
+        {
+            @Override
+            public long getValue()
+            {
+                RecordFileWriter recordFileWriter = _recordFileWriter;
+
+                return (recordFileWriter == null) ? 0L : recordFileWriter.getFailedCount();
+            }
+        });
+        metrics.addGauge("OutputOpenRecords", new ServiceMetrics.Gauge()
+        {
+            @Override
+            public long getValue()
+            {
+                RecordFileWriter recordFileWriter = _recordFileWriter;
+
+                return (recordFileWriter == null) ? 0L : recordFileWriter.getOpenRecordCount();
+            }
+        });
+
+        return metrics;
+    }
+
+    private ContainerSASRenewer createContainerSASRenewer(String storageConnection)
+    {
+        long sasLifetime      = getLongProperty(SASLIFETIME_PROPERTYNAME, DEFAULT_SASLIFETIME);
+        long sasRenewalMargin = getLongProperty(SASRENEWALMARGIN_PROPERTYNAME, DEFAULT_SASRENEWALMARGIN);
+
+        ContainerSASHandler containerSASHandler = new ContainerSASHandler()
+        {
+            @Override
+            public void renewed(String containerSAS, long expiryTime)
+            {
+                logger.log(Level.FINE, "Renewed Azure blob store SAS, expires " + new Date(expiryTime));
+
+                CloudBlobContainer blobContainer = createBlobContainer(containerSAS);
+                if (blobContainer != null)
+                {
+                    setBlobContainer(blobContainer);
+
+                    CountDownLatch warmUpLatch = _warmUpLatch;
+                    if (warmUpLatch != null)
+                        warmUpLatch.countDown();
+                }
+            }
+        };
+
+        return new ContainerSASRenewer(_name, storageConnection, _containerName, sasLifetime, sasRenewalMargin, containerSASHandler);
+    }
+
+    private void setBlobContainer(CloudBlobContainer blobContainer)
+    {
+        _blobContainer = blobContainer;
+
+        BlobSource blobSource = _blobSource;
+        if (blobSource != null)
+            blobSource.setBlobContainer(blobContainer);
+
+        RecordFileWriter recordFileWriter = _recordFileWriter;
+        if (recordFileWriter != null)
+            recordFileWriter.setBlobContainer(blobContainer);
+    }
+
+    private CloudBlobContainer createBlobContainer(String containerSAS)
+    {
+        String serviceBaseURL = _serviceBaseURL;
+        String containerName  = _containerName;
+        if ((serviceBaseURL == null) || (containerName == null) || (containerSAS == null))
+        {
+            logger.log(Level.WARNING, "Unable to create Azure blob store container reference, missing properties");
+            return null;
+        }
+
+        try
+        {
+            CloudBlobClient blobClient = new CloudBlobClient(new URI(serviceBaseURL), new StorageCredentialsSharedAccessSignature(containerSAS));
+            // Retries are made, with backoff and circuit breaking, by the resilient executor, so the client makes none of its own
+            blobClient.getDefaultRequestOptions().setRetryPolicyFactory(new RetryNoRetry());
+
+            return blobClient.getContainerReference(containerName);
+        }
+        catch (Throwable throwable)
+        {
+            logger.log(Level.WARNING, "Problems with Azure blob store container reference", throwable);
+            return null;
+        }
+    }
+
+    private ResilientExecutor createResilientExecutor()
+    {
+        int  retryMaxAttempts = getIntProperty(RETRYMAXATTEMPTS_PROPERTYNAME, DEFAULT_RETRYMAXATTEMPTS);
+        long retryBaseDelay   = getLongProperty(RETRYBASEDELAY_PROPERTYNAME, DEFAULT_RETRYBASEDELAY);
+        long retryMaxDelay    = getLongProperty(RETRYMAXDELAY_PROPERTYNAME, DEFAULT_RETRYMAXDELAY);
+        int  circuitThreshold = getIntProperty(CIRCUITTHRESHOLD_PROPERTYNAME, DEFAULT_CIRCUITTHRESHOLD);
+        long circuitOpenTime  = getLongProperty(CIRCUITOPENTIME_PROPERTYNAME, DEFAULT_CIRCUITOPENTIME);
+
+        RetryPolicy    retryPolicy    = new RetryPolicy(retryMaxAttempts, retryBaseDelay, retryMaxDelay);
+        CircuitBreaker circuitBreaker = new CircuitBreaker(_name, circuitThreshold, circuitOpenTime);
+
+        return new ResilientExecutor(_name, retryPolicy, circuitBreaker, new StorageErrorClassifier());
+    }
+
+    private BlobDeduplicator createBlobDeduplicator()
+    {
+        String deduplication = _properties.get(DEDUPLICATION_PROPERTYNAME);
+        if ((deduplication == null) || (! Boolean.parseBoolean(deduplication.trim())))
+            return null;
+
+        return new BlobDeduplicator(getIntProperty(DEDUPCACHESIZE_PROPERTYNAME, DEFAULT_DEDUPCACHESIZE));
+    }
+
+    private BlobNamer createBlobNamer()
+    {
+        BlobNamingStrategy blobNamingStrategy;
+        String             blobNaming = _properties.get(BLOBNAMING_PROPERTYNAME);
+        if ((blobNaming != null) && SEQUENCE_BLOBNAMING.equalsIgnoreCase(blobNaming.trim()))
+            blobNamingStrategy = new SequenceBlobNamingStrategy();
+        else
+        {
+            if ((blobNaming != null) && (! "".equals(blobNaming.trim())) && (! UUID_BLOBNAMING.equalsIgnoreCase(blobNaming.trim())))
+                logger.log(Level.WARNING, "Unknown blob naming \"" + blobNaming + "\", using " + UUID_BLOBNAMING);
+            blobNamingStrategy = new UUIDBlobNamingStrategy();
+        }
+
+        String blobNameTimeBucket = _properties.get(BLOBNAMEBUCKET_PROPERTYNAME);
+        if ((blobNameTimeBucket != null) && (! "".equals(blobNameTimeBucket.trim())))
+        {
+            try
+            {
+                blobNamingStrategy = new TimeBucketBlobNamingStrategy(blobNameTimeBucket.trim(), blobNamingStrategy);
+            }
+            catch (IllegalArgumentException illegalArgumentException)
+            {
+                logger.log(Level.WARNING, "Invalid blob name time bucket \"" + blobNameTimeBucket + "\", ignoring");
+            }
+        }
+
+        int blobNameHashPrefix = getIntProperty(BLOBNAMEHASH_PROPERTYNAME, 0);
+        if (blobNameHashPrefix > 0)
+            blobNamingStrategy = new HashPrefixBlobNamingStrategy(blobNameHashPrefix, blobNamingStrategy);
+
+        return new BlobNamer(blobNamingStrategy);
+    }
+
+    private BlobCompressor createBlobCompressor()
+    {
+        String compression = _properties.get(COMPRESSION_PROPERTYNAME);
+        if ((compression == null) || "".equals(compression.trim()) || NONE_COMPRESSION.equalsIgnoreCase(compression.trim()))
+            return null;
+
+        BlobCompressor.Codec codec;
+        try
+        {
+            codec = BlobCompressor.Codec.valueOf(compression.trim().toUpperCase());
+        }
+        catch (IllegalArgumentException illegalArgumentException)
+        {
+            logger.log(Level.WARNING, "Unknown compression \"" + compression + "\", not compressing");
+            return null;
+        }
+
+        int compressionLevel = getIntProperty(COMPRESSIONLEVEL_PROPERTYNAME, Deflater.DEFAULT_COMPRESSION);
+        if ((compressionLevel < Deflater.DEFAULT_COMPRESSION) || (compressionLevel > Deflater.BEST_COMPRESSION))
+        {
+            logger.log(Level.WARNING, "Invalid compression level " + compressionLevel + ", using default");
+            compressionLevel = Deflater.DEFAULT_COMPRESSION;
+        }
+
+        int poolSize = getIntProperty(WORKERCOUNT_PROPERTYNAME, DEFAULT_WORKERCOUNT) + 1;
+
+        return new BlobCompressor(codec, compressionLevel, poolSize);
+    }
+
+    private BlockBlobUploader createBlockBlobUploader()
+    {
+        long chunkThreshold   = getLongProperty(CHUNKTHRESHOLD_PROPERTYNAME, Long.MAX_VALUE);
+        int  blockSize        = getIntProperty(BLOCKSIZE_PROPERTYNAME, DEFAULT_BLOCKSIZE);
+        int  blockConcurrency = getIntProperty(BLOCKCONCURRENCY_PROPERTYNAME, DEFAULT_BLOCKCONCURRENCY);
+
+        return new BlockBlobUploader(_name, chunkThreshold, blockSize, blockConcurrency);
+    }
+
+    private AsyncBlobUploader createAsyncBlobUploader()
+    {
+        _shutdownTimeout = getLongProperty(SHUTDOWNTIMEOUT_PROPERTYNAME, DEFAULT_SHUTDOWNTIMEOUT);
+
+        String uploadMode = _properties.get(UPLOADMODE_PROPERTYNAME);
+        if ((uploadMode == null) || (! ASYNCHRONOUS_UPLOADMODE.equalsIgnoreCase(uploadMode.trim())))
+            return null;
+
+        int queueCapacity = getIntProperty(QUEUECAPACITY_PROPERTYNAME, DEFAULT_QUEUECAPACITY);
+        int workerCount   = getIntProperty(WORKERCOUNT_PROPERTYNAME, DEFAULT_WORKERCOUNT);
+
+        AsyncBlobUploader.OverflowPolicy overflowPolicy = AsyncBlobUploader.OverflowPolicy.BLOCK;
+        String                           queueOverflow  = _properties.get(QUEUEOVERFLOW_PROPERTYNAME);
+        if ((queueOverflow != null) && (! "".equals(queueOverflow.trim())))
+        {
+            try
+            {
+                overflowPolicy = AsyncBlobUploader.OverflowPolicy.valueOf(queueOverflow.trim().toUpperCase());
+            }
+            catch (IllegalArgumentException illegalArgumentException)
+            {
+                logger.log(Level.WARNING, "Unknown upload queue overflow policy \"" + queueOverflow + "\", using " + overflowPolicy);
+            }
+        }
+
+        if ((_blobUploadJournal == null) && (overflowPolicy == AsyncBlobUploader.OverflowPolicy.SPILL))
+            logger.log(Level.WARNING, "Upload queue overflow policy is spill, but no spill directory specified");
+
+        BlobUploadHandler blobUploadHandler = new BlobUploadHandler()
+        {
+            @Override
+            public void upload(BlobUpload blobUpload)
+            {
+                uploadResource(blobUpload.getData(), blobUpload.getBlobName(), blobUpload.getResourceName(), blobUpload.getResourceFormat(), blobUpload.getResourceDescription());
+            }
+        };
+
+        return new AsyncBlobUploader(_name, queueCapacity, workerCount, overflowPolicy, _blobUploadJournal, blobUploadHandler);
+    }
+
+    private BlobUploadJournal createBlobUploadJournal()
+    {
+        String spillDirectoryName = _properties.get(SPILLDIRECTORY_PROPERTYNAME);
+        if ((spillDirectoryName == null) || "".equals(spillDirectoryName.trim()))
+            return null;
+
+        long spillMaxBytes    = getLongProperty(SPILLMAXBYTES_PROPERTYNAME, DEFAULT_SPILLMAXBYTES);
+        long spillSegmentSize = getLongProperty(SPILLSEGMENTSIZE_PROPERTYNAME, DEFAULT_SPILLSEGMENTSIZE);
+
+        try
+        {
+            return new BlobUploadJournal(new SpillJournal(_name, new File(spillDirectoryName.trim()), spillMaxBytes, spillSegmentSize));
+        }
+        catch (IOException ioException)
+        {
+            logger.log(Level.WARNING, "Unable to open spill journal: " + spillDirectoryName, ioException);
+            return null;
+        }
+    }
+
+    private SpillReplayer createSpillReplayer()
+    {
+        if (_blobUploadJournal == null)
+            return null;
+
+        SpillHandler spillHandler = new SpillHandler()
+        {
+            @Override
+            public void replay(byte[] record)
+                throws Exception
+            {
+                BlobUpload blobUpload = BlobUploadJournal.decode(record);
+
+                // Replay starts on recovery, so a record must not be discarded because warm-up is still in progress
+                if (awaitBlobContainer() == null)
+                    throw new IOException("Azure blob store not configured, replay postponed");
+                transferResource(blobUpload.getData(), blobUpload.getBlobName(), blobUpload.getResourceName(), blobUpload.getResourceFormat(), blobUpload.getResourceDescription());
+            }
+        };
+
+        return new SpillReplayer(_name, _blobUploadJournal.getSpillJournal(), _resilientExecutor, spillHandler);
+    }
+
+    private BlobBatcher createBlobBatcher()
+    {
+        int  batchMaxRecords = getIntProperty(BATCHMAXRECORDS_PROPERTYNAME, 0);
+        int  batchMaxBytes   = getIntProperty(BATCHMAXBYTES_PROPERTYNAME, 0);
+        long batchLingerTime = getLongProperty(BATCHLINGERTIME_PROPERTYNAME, 0L);
+        if ((batchMaxRecords <= 0) && (batchMaxBytes <= 0) && (batchLingerTime <= 0L))
+            return null;
+
+        if (batchMaxRecords <= 0)
+            batchMaxRecords = Integer.MAX_VALUE;
+        if (batchMaxBytes <= 0)
+            batchMaxBytes = DEFAULT_BATCHMAXBYTES;
+        if (batchLingerTime <= 0L)
+            batchLingerTime = DEFAULT_BATCHLINGERTIME;
+
+        BlobUploadHandler blobUploadHandler = new BlobUploadHandler()
+        {
+            @Override
+            public void upload(BlobUpload blobUpload)
             {
                 try
                 {
-                    CloudStorageAccount storageAccount = CloudStorageAccount.parse(storageConnection);
-                    CloudBlobClient     blobClient     = storageAccount.createCloudBlobClient();
-                    CloudBlobContainer  blobContainer  = blobClient.getContainerReference(_containerName);
-                    blobContainer.createIfNotExists();
-
-                    SharedAccessBlobPolicy blobPolicy   = new SharedAccessBlobPolicy();
-                    GregorianCalendar      calendar = new GregorianCalendar(TimeZone.getTimeZone("UTC"));
-                    calendar.setTime(new Date());
-                    blobPolicy.setSharedAccessStartTime(calendar.getTime());
-                    calendar.add(Calendar.HOUR, 6);
-                    blobPolicy.setSharedAccessExpiryTime(calendar.getTime());
-                    blobPolicy.setPermissions(EnumSet.of(SharedAccessBlobPermissions.READ, SharedAccessBlobPermissions.WRITE));
-
-                    BlobContainerPermissions containerPermissions = new BlobContainerPermissions();
-                    containerPermissions.setPublicAccess(BlobContainerPublicAccessType.OFF);
-                    containerPermissions.getSharedAccessPolicies().put("accesspolicy", blobPolicy);
-                    blobContainer.uploadPermissions(containerPermissions);
-
-                    _containerSAS = blobContainer.generateSharedAccessSignature(blobPolicy, null);
+                    submitUpload(blobUpload.getData(), blobUpload.getBlobName(), blobUpload.getResourceName(), blobUpload.getResourceFormat(), blobUpload.getResourceDescription());
                 }
-                catch (Throwable throwable)
+                catch (InterruptedException interruptedException)
                 {
-                    logger.log(Level.WARNING, "Problems with Azure blob store SAS", throwable);
+                    logger.log(Level.WARNING, "Interrupted submitting batch upload: " + blobUpload.getBlobName());
+                    Thread.currentThread().interrupt();
                 }
             }
+        };
+
+        return new BlobBatcher(_name, _blobNamer, batchMaxRecords, batchMaxBytes, batchLingerTime, blobUploadHandler);
+    }
+
+    private BlobSource createBlobSource()
+    {
+        String listingMode = _properties.get(LISTINGMODE_PROPERTYNAME);
+        if ((listingMode == null) || "".equals(listingMode.trim()) || NONE_LISTINGMODE.equalsIgnoreCase(listingMode.trim()))
+            return null;
+        if (! INCREMENTAL_LISTINGMODE.equalsIgnoreCase(listingMode.trim()))
+        {
+            logger.log(Level.WARNING, "Unknown listing mode \"" + listingMode + "\", not listing");
+            return null;
+        }
+
+        List<String> prefixes        = new LinkedList<String>();
+        String       listingPrefixes = _properties.get(LISTINGPREFIXES_PROPERTYNAME);
+        if (listingPrefixes != null)
+            for (String listingPrefix: listingPrefixes.split(","))
+                if (! "".equals(listingPrefix.trim()))
+                    prefixes.add(listingPrefix.trim());
+        if (prefixes.isEmpty())
+            prefixes.add("");
+
+        int  pageSize            = getIntProperty(LISTINGPAGESIZE_PROPERTYNAME, DEFAULT_LISTINGPAGESIZE);
+        long pollInterval        = getLongProperty(LISTINGINTERVAL_PROPERTYNAME, DEFAULT_LISTINGINTERVAL);
+        int  rangeSize           = getIntProperty(RANGESIZE_PROPERTYNAME, DEFAULT_RANGESIZE);
+        int  downloadConcurrency = getIntProperty(DOWNLOADTHREADS_PROPERTYNAME, DEFAULT_DOWNLOADTHREADS);
+        int  prefetchDepth       = getIntProperty(PREFETCHDEPTH_PROPERTYNAME, DEFAULT_PREFETCHDEPTH);
+        long prefetchMaxBytes    = getLongProperty(PREFETCHMAXBYTES_PROPERTYNAME, DEFAULT_PREFETCHMAXBYTES);
+
+        BlobListingCheckpoint blobListingCheckpoint = null;
+        String                checkpointDirectory   = _properties.get(LISTINGCHECKPOINT_PROPERTYNAME);
+        if ((checkpointDirectory != null) && (! "".equals(checkpointDirectory.trim())))
+        {
+            try
+            {
+                blobListingCheckpoint = new BlobListingCheckpoint(new File(checkpointDirectory.trim()));
+            }
+            catch (IOException ioException)
+            {
+                logger.log(Level.WARNING, "Unable to open listing checkpoint: " + checkpointDirectory, ioException);
+            }
+        }
+        if (blobListingCheckpoint == null)
+            logger.log(Level.WARNING, "No listing checkpoint, container will be listed from the start after a restart");
+
+        BlobDownloadHandler blobDownloadHandler = new BlobDownloadHandler()
+        {
+            @Override
+            public void downloaded(BlobDownload blobDownload)
+            {
+                produceResource(blobDownload);
+            }
+        };
+
+        return new BlobSource(_name, _blobContainer, prefixes, pageSize, pollInterval, rangeSize, downloadConcurrency, prefetchDepth, prefetchMaxBytes, blobListingCheckpoint, _resilientExecutor, blobDownloadHandler);
+    }
+
+    private RecordFileWriter createRecordFileWriter()
+    {
+        String outputFormat = _properties.get(OUTPUTFORMAT_PROPERTYNAME);
+        if ((outputFormat == null) || "".equals(outputFormat.trim()) || NONE_OUTPUTFORMAT.equalsIgnoreCase(outputFormat.trim()))
+            return null;
+        if (! AVRO_OUTPUTFORMAT.equalsIgnoreCase(outputFormat.trim()))
+        {
+            logger.log(Level.WARNING, "Unknown output format \"" + outputFormat + "\", not writing record files");
+            return null;
+        }
+
+        AvroBlockEncoder.Codec codec       = AvroBlockEncoder.Codec.DEFLATE;
+        String                 outputCodec = _properties.get(OUTPUTCODEC_PROPERTYNAME);
+        if ((outputCodec != null) && (! "".equals(outputCodec.trim())))
+        {
+            try
+            {
+                codec = AvroBlockEncoder.Codec.valueOf(outputCodec.trim().toUpperCase());
+            }
+            catch (IllegalArgumentException illegalArgumentException)
+            {
+                logger.log(Level.WARNING, "Unknown output codec \"" + outputCodec + "\", using " + codec);
+            }
+        }
+
+        int compressionLevel = getIntProperty(COMPRESSIONLEVEL_PROPERTYNAME, Deflater.DEFAULT_COMPRESSION);
+        if ((compressionLevel < Deflater.DEFAULT_COMPRESSION) || (compressionLevel > Deflater.BEST_COMPRESSION))
+            compressionLevel = Deflater.DEFAULT_COMPRESSION;
+
+        int  outputBlockSize  = getIntProperty(OUTPUTBLOCKSIZE_PROPERTYNAME, DEFAULT_OUTPUTBLOCKSIZE);
+        int  blockSize        = getIntProperty(BLOCKSIZE_PROPERTYNAME, DEFAULT_BLOCKSIZE);
+        int  blockConcurrency = getIntProperty(BLOCKCONCURRENCY_PROPERTYNAME, DEFAULT_BLOCKCONCURRENCY);
+        long outputMaxBytes   = getLongProperty(OUTPUTMAXBYTES_PROPERTYNAME, DEFAULT_OUTPUTMAXBYTES);
+        long outputRollTime   = getLongProperty(OUTPUTROLLTIME_PROPERTYNAME, DEFAULT_OUTPUTROLLTIME);
+
+        return new RecordFileWriter(_name, _blobContainer, _blobNamer, codec, compressionLevel, outputBlockSize, blockSize, blockConcurrency, outputMaxBytes, outputRollTime, _resilientExecutor, _metrics);
+    }
+
+    private int getIntProperty(String propertyName, int defaultValue)
+    {
+        return (int) getLongProperty(propertyName, defaultValue);
+    }
+
+    private long getLongProperty(String propertyName, long defaultValue)
+    {
+        String value = _properties.get(propertyName);
+
+        if ((value == null) || "".equals(value.trim()))
+            return defaultValue;
+
+        try
+        {
+            return Long.parseLong(value.trim());
+        }
+        catch (NumberFormatException numberFormatException)
+        {
+            logger.log(Level.WARNING, "Invalid value for \"" + propertyName + "\": \"" + value + "\", using " + defaultValue);
+            return defaultValue;
         }
     }
 
@@ -153,6 +995,53 @@ public class AzureStorageDataService implements DataService
     @PreDelete
     public void teardown()
     {
+        _metrics.unregister();
+
+        BlobSource blobSource = _blobSource;
+        _blobSource = null;
+        if (blobSource != null)
+            blobSource.shutdown(_shutdownTimeout);
+
+        RecordFileWriter recordFileWriter = _recordFileWriter;
+        _recordFileWriter = null;
+        if (recordFileWriter != null)
+            recordFileWriter.shutdown(_shutdownTimeout);
+
+        ContainerSASRenewer containerSASRenewer = _containerSASRenewer;
+        _containerSASRenewer = null;
+        if (containerSASRenewer != null)
+            containerSASRenewer.shutdown();
+
+        BlobBatcher blobBatcher = _blobBatcher;
+        _blobBatcher = null;
+        if (blobBatcher != null)
+            blobBatcher.shutdown();
+
+        AsyncBlobUploader asyncBlobUploader = _asyncBlobUploader;
+        _asyncBlobUploader = null;
+        if (asyncBlobUploader != null)
+            asyncBlobUploader.shutdown(_shutdownTimeout);
+
+        SpillReplayer spillReplayer = _spillReplayer;
+        _spillReplayer = null;
+        if (spillReplayer != null)
+            spillReplayer.shutdown(_shutdownTimeout);
+
+        BlobUploadJournal blobUploadJournal = _blobUploadJournal;
+        _blobUploadJournal = null;
+        if (blobUploadJournal != null)
+            blobUploadJournal.getSpillJournal().close();
+
+        BlockBlobUploader blockBlobUploader = _blockBlobUploader;
+        _blockBlobUploader = null;
+        if (blockBlobUploader != null)
+            blockBlobUploader.shutdown();
+
+        BlobCompressor blobCompressor = _blobCompressor;
+        _blobCompressor = null;
+        if (blobCompressor != null)
+            blobCompressor.shutdown();
+
         _serviceBaseURL    = null;
         _containerName     = null;
         _storageConnection = null;
@@ -167,7 +1056,15 @@ public class AzureStorageDataService implements DataService
 
         try
         {
-            uploadResource(data.getBytes(), null, null, null, null);
+            BlobBatcher blobBatcher = _blobBatcher;
+            if (blobBatcher != null)
+                _metrics.recordMessage(blobBatcher.add(data));
+            else
+            {
+                byte[] bytes = data.getBytes(UTF8_CHARSET);
+                _metrics.recordMessage(bytes.length);
+                submitUpload(bytes, null, null, null, null);
+            }
         }
         catch (Throwable throwable)
         {
@@ -181,7 +1078,8 @@ public class AzureStorageDataService implements DataService
 
         try
         {
-            uploadResource(data, null, null, null, null);
+            _metrics.recordMessage(data.length);
+            submitUpload(data, null, null, null, null);
         }
         catch (Throwable throwable)
         {
@@ -195,13 +1093,41 @@ public class AzureStorageDataService implements DataService
 
         try
         {
-            byte[] data                = (byte[]) map.get("data");
+            Object data                = map.get("data");
             String fileName            = (String) map.get("filename");
             String resourceName        = (String) map.get("resourcename");
             String resourceFormat      = (String) map.get("resourceformat");
             String resourceDescription = (String) map.get("resourcedescription");
 
-            uploadResource(data, fileName, resourceName, resourceFormat, resourceDescription);
+            _metrics.recordMessage((data instanceof byte[]) ? ((byte[]) data).length : 0L);
+
+            RecordFileWriter recordFileWriter = _recordFileWriter;
+            if ((recordFileWriter != null) && (! (data instanceof byte[])) && (! (data instanceof InputStream)) && (! (data instanceof ReadableByteChannel)))
+            {
+                awaitBlobContainer();
+                recordFileWriter.add(map);
+            }
+            else if (data instanceof InputStream)
+                uploadStream((InputStream) data, fileName, resourceName, resourceFormat, resourceDescription);
+            else if (data instanceof ReadableByteChannel)
+                uploadStream(Channels.newInputStream((ReadableByteChannel) data), fileName, resourceName, resourceFormat, resourceDescription);
+            else
+                submitUpload((byte[]) data, fileName, resourceName, resourceFormat, resourceDescription);
+        }
+        catch (Throwable throwable)
+        {
+            logger.log(Level.WARNING, "Problems with Azure blob store api invoke", throwable);
+        }
+    }
+
+    public void consumeInputStream(InputStream data)
+    {
+        logger.log(Level.FINE, "AzureStorageDataService.consumeInputStream");
+
+        try
+        {
+            _metrics.recordMessage(0L);
+            uploadStream(data, null, null, null, null);
         }
         catch (Throwable throwable)
         {
@@ -209,45 +1135,371 @@ public class AzureStorageDataService implements DataService
         }
     }
 
+    public void consumeReadableByteChannel(ReadableByteChannel data)
+    {
+        logger.log(Level.FINE, "AzureStorageDataService.consumeReadableByteChannel");
+
+        try
+        {
+            _metrics.recordMessage(0L);
+            uploadStream(Channels.newInputStream(data), null, null, null, null);
+        }
+        catch (Throwable throwable)
+        {
+            logger.log(Level.WARNING, "Problems with Azure blob store api invoke", throwable);
+        }
+    }
+
+    private void submitUpload(byte[] data, String blobName, String resourceName, String resourceFormat, String resourceDescription)
+        throws InterruptedException
+    {
+        AsyncBlobUploader asyncBlobUploader = _asyncBlobUploader;
+
+        if ((asyncBlobUploader == null) || (! asyncBlobUploader.submit(new BlobUpload(data, blobName, resourceName, resourceFormat, resourceDescription))))
+            uploadResource(data, blobName, resourceName, resourceFormat, resourceDescription);
+    }
+
     private void uploadResource(byte[] data, String blobName, String resourceName, String resourceFormat, String resourceDescription)
     {
         logger.log(Level.FINE, "AzureStorageDataService.consume");
 
+        // While spilled uploads are pending, later uploads join the journal, so a replay never overwrites a newer blob of the same name
+        BlobUploadJournal pendingJournal = _blobUploadJournal;
+        if ((pendingJournal != null) && (pendingJournal.getSpillJournal().getPendingCount() > 0L) && pendingJournal.spill(new BlobUpload(data, blobName, resourceName, resourceFormat, resourceDescription)))
+        {
+            logger.log(Level.FINE, "Spilled blob upload behind pending uploads: " + blobName);
+            return;
+        }
+
+        try
+        {
+            transferResource(data, blobName, resourceName, resourceFormat, resourceDescription);
+        }
+        catch (Throwable throwable)
+        {
+            BlobUploadJournal blobUploadJournal = _blobUploadJournal;
+            ResilientExecutor resilientExecutor = _resilientExecutor;
+            if ((blobUploadJournal != null) && (resilientExecutor != null) && resilientExecutor.isTransient(throwable) && blobUploadJournal.spill(new BlobUpload(data, blobName, resourceName, resourceFormat, resourceDescription)))
+                logger.log(Level.FINE, "Spilled blob upload after failure: " + blobName, throwable);
+            else
+                logger.log(Level.WARNING, "Problems with Azure blob store api invoke", throwable);
+        }
+    }
+
+    private void transferResource(final byte[] data, String blobName, String resourceName, String resourceFormat, String resourceDescription)
+        throws Exception
+    {
+        BlobCompressor          blobCompressor   = _blobCompressor;
+        BlobDeduplicator        blobDeduplicator = _blobDeduplicator;
+        BlobDeduplicator.Digest digest           = null;
+        if (blobDeduplicator != null)
+        {
+            digest = blobDeduplicator.digest(data);
+            if (blobName == null)
+                blobName = digest.getName();
+
+            String uploadedBlobName = blobDeduplicator.lookup(digest);
+            if (blobName.equals(uploadedBlobName))
+            {
+                logger.log(Level.FINE, "Skipping upload of duplicate blob: " + blobName);
+                blobDeduplicator.recordSkipped(digest);
+                return;
+            }
+
+            blobDeduplicator.invalidate(blobName);
+            if ((uploadedBlobName != null) && linkResource(uploadedBlobName, blobName, resourceName, resourceFormat, resourceDescription, blobCompressor))
+            {
+                logger.log(Level.FINE, "Linked duplicate blob: " + blobName + ", to " + uploadedBlobName);
+                blobDeduplicator.recordLinked(digest);
+                return;
+            }
+        }
+        else if (blobName == null)
+            blobName = createBlobName();
+
+        final CloudBlockBlob    blockBlob         = createBlockBlob(blobName, resourceName, resourceFormat, resourceDescription, blobCompressor);
+        final BlockBlobUploader blockBlobUploader = _blockBlobUploader;
+        ResilientExecutor       resilientExecutor = _resilientExecutor;
+        if ((blockBlob == null) || (blockBlobUploader == null) || (resilientExecutor == null))
+        {
+            logger.log(Level.WARNING, "Unable to upload to Azure blob store, not configured");
+            return;
+        }
+
+        final CompressionBuffer compressionBuffer;
+        if (blobCompressor != null)
+            compressionBuffer = blobCompressor.compress(data);
+        else
+            compressionBuffer = null;
+
+        final BitSet stagedBlocks = new BitSet();
+        long         startTime    = _metrics.startRequest();
+        try
+        {
+            resilientExecutor.execute(new Callable<Void>()
+            {
+                @Override
+                public Void call()
+                    throws Exception
+                {
+                    if (compressionBuffer != null)
+                        blockBlobUploader.upload(blockBlob, compressionBuffer.getBuffer(), compressionBuffer.getLength(), stagedBlocks);
+                    else
+                        blockBlobUploader.upload(blockBlob, data, stagedBlocks);
+
+                    return null;
+                }
+            });
+            _metrics.recordSuccess(startTime);
+        }
+        catch (Exception exception)
+        {
+            _metrics.recordFailure(startTime, failureCause(exception));
+            throw exception;
+        }
+        finally
+        {
+            if (compressionBuffer != null)
+                blobCompressor.release(compressionBuffer);
+        }
+
+        if (digest != null)
+            blobDeduplicator.add(digest, blobName);
+    }
+
+    private boolean linkResource(String sourceBlobName, String blobName, String resourceName, String resourceFormat, String resourceDescription, BlobCompressor blobCompressor)
+    {
         try
         {
-            CloudBlobClient blobClient = new CloudBlobClient(new URI(_serviceBaseURL));
-            URI             blobURI    = new URI(blobClient.getEndpoint().toString() + "/" + _containerName + "/" + blobName + "?" + _containerSAS);
-            CloudBlockBlob  blockBlob  = new CloudBlockBlob(blobURI);
+            CloudBlobContainer   blobContainer     = _blobContainer;
+            ResilientExecutor    resilientExecutor = _resilientExecutor;
+            final CloudBlockBlob blockBlob         = createBlockBlob(blobName, resourceName, resourceFormat, resourceDescription, blobCompressor);
+            if ((blobContainer == null) || (resilientExecutor == null) || (blockBlob == null))
+                return false;
+
+            // A server side copy, within the container, so the payload is not sent again
+            final CloudBlockBlob sourceBlob = blobContainer.getBlockBlobReference(sourceBlobName);
+            String copyId = resilientExecutor.execute(new Callable<String>()
+            {
+                @Override
+                public String call()
+                    throws Exception
+                {
+                    return blockBlob.startCopyFromBlob(sourceBlob);
+                }
+            });
 
-            HashMap<String, String> metadata = new HashMap<String, String>();
-            if (resourceName != null)
-                metadata.put("resourceName", resourceName);
-            if (resourceFormat != null)
-                metadata.put("resourceFormat", resourceFormat);
-            if (resourceDescription != null)
-                metadata.put("resourceDescription", resourceDescription);
-            blockBlob.setMetadata(metadata);
+            // The copy completes asynchronously, so is only relied on once the service reports it succeeded
+            long deadline = System.currentTimeMillis() + COPY_TIMEOUT;
+            blockBlob.downloadAttributes();
+            while ((blockBlob.getCopyState() != null) && (blockBlob.getCopyState().getStatus() == CopyStatus.PENDING))
+            {
+                if (System.currentTimeMillis() > deadline)
+                {
+                    logger.log(Level.FINE, "Copy of blob: " + sourceBlobName + ", to " + blobName + ", not complete, aborting");
+                    blockBlob.abortCopy(copyId);
+                    return false;
+                }
+                Thread.sleep(COPY_POLLINTERVAL);
+                blockBlob.downloadAttributes();
+            }
 
-            blockBlob.uploadFromByteArray(data, 0, data.length);
+            if ((blockBlob.getCopyState() == null) || (blockBlob.getCopyState().getStatus() != CopyStatus.SUCCESS))
+            {
+                logger.log(Level.FINE, "Copy of blob: " + sourceBlobName + ", to " + blobName + ", failed: " + ((blockBlob.getCopyState() == null) ? null : blockBlob.getCopyState().getStatusDescription()));
+                return false;
+            }
+
+            return true;
+        }
+        catch (InterruptedException interruptedException)
+        {
+            Thread.currentThread().interrupt();
+            return false;
         }
         catch (Throwable throwable)
         {
-            logger.log(Level.WARNING, "Problems with Azure blob store api invoke", throwable);
+            logger.log(Level.FINE, "Unable to link blob: " + blobName + ", to " + sourceBlobName + ", uploading", throwable);
+            return false;
+        }
+    }
+
+    private void uploadStream(final InputStream data, String blobName, String resourceName, String resourceFormat, String resourceDescription)
+        throws Exception
+    {
+        logger.log(Level.FINE, "AzureStorageDataService.uploadStream");
+
+        if (blobName == null)
+            blobName = createBlobName();
+
+        BlobDeduplicator blobDeduplicator = _blobDeduplicator;
+        if (blobDeduplicator != null)
+            blobDeduplicator.invalidate(blobName);
+
+        BlobCompressor          blobCompressor    = _blobCompressor;
+        final CloudBlockBlob    blockBlob         = createBlockBlob(blobName, resourceName, resourceFormat, resourceDescription, blobCompressor);
+        final BlockBlobUploader blockBlobUploader = _blockBlobUploader;
+        ResilientExecutor       resilientExecutor = _resilientExecutor;
+        if ((blockBlob == null) || (blockBlobUploader == null) || (resilientExecutor == null))
+        {
+            logger.log(Level.WARNING, "Unable to upload to Azure blob store, not configured");
+            return;
+        }
+
+        final CompressingInputStream compressingInputStream;
+        if (blobCompressor != null)
+            compressingInputStream = blobCompressor.compress(data);
+        else
+            compressingInputStream = null;
+
+        long startTime = _metrics.startRequest();
+        try
+        {
+            // A partially consumed stream cannot be replayed, so streams get the circuit breaker but no retries
+            long length = resilientExecutor.executeOnce(new Callable<Long>()
+            {
+                @Override
+                public Long call()
+                    throws Exception
+                {
+                    if (compressingInputStream != null)
+                    {
+                        blockBlobUploader.upload(blockBlob, compressingInputStream);
+                        return compressingInputStream.getInputLength();
+                    }
+                    else
+                        return blockBlobUploader.upload(blockBlob, data);
+                }
+            });
+            _metrics.recordBytes(length);
+            _metrics.recordSuccess(startTime);
+        }
+        catch (Exception exception)
+        {
+            _metrics.recordFailure(startTime, failureCause(exception));
+            throw exception;
+        }
+        finally
+        {
+            if (compressingInputStream != null)
+                compressingInputStream.release();
+        }
+    }
+
+    private static String failureCause(Throwable throwable)
+    {
+        Throwable cause = throwable;
+        while ((cause != null) && (! (cause instanceof StorageException)))
+            cause = cause.getCause();
+
+        if (cause != null)
+            return "HTTP " + ((StorageException) cause).getHttpStatusCode();
+        else
+            return ServiceMetrics.causeOf(throwable);
+    }
+
+    private String createBlobName()
+    {
+        BlobNamer blobNamer = _blobNamer;
+
+        return (blobNamer == null) ? null : blobNamer.createBlobName();
+    }
+
+    // Waits while warm-up is in progress, failing as transient, so the upload is spilled or retried, if it does not complete in time
+    private CloudBlobContainer awaitBlobContainer()
+        throws IOException, InterruptedException
+    {
+        CloudBlobContainer blobContainer = _blobContainer;
+        CountDownLatch     warmUpLatch   = _warmUpLatch;
+        if ((blobContainer == null) && (warmUpLatch != null) && (warmUpLatch.getCount() > 0L))
+        {
+            if (! warmUpLatch.await(_warmUpTimeout, TimeUnit.MILLISECONDS))
+                throw new IOException("Azure blob store warm-up not complete after " + _warmUpTimeout + "ms");
+            blobContainer = _blobContainer;
+        }
+
+        return blobContainer;
+    }
+
+    private CloudBlockBlob createBlockBlob(String blobName, String resourceName, String resourceFormat, String resourceDescription, BlobCompressor blobCompressor)
+        throws Exception
+    {
+        CloudBlobContainer blobContainer = awaitBlobContainer();
+        if (blobContainer == null)
+            return null;
+
+        CloudBlockBlob blockBlob = blobContainer.getBlockBlobReference(String.valueOf(blobName));
+
+        // A new blob reference starts with empty metadata, so plain uploads need no map of their own
+        if ((resourceName == null) && (resourceFormat == null) && (resourceDescription == null) && (blobCompressor == null))
+            return blockBlob;
+
+        HashMap<String, String> metadata = new HashMap<String, String>();
+        if (resourceName != null)
+            metadata.put("resourceName", resourceName);
+        if (resourceFormat != null)
+            metadata.put("resourceFormat", resourceFormat);
+        if (resourceDescription != null)
+            metadata.put("resourceDescription", resourceDescription);
+        if (blobCompressor != null)
+        {
+            metadata.put("compressionCodec", blobCompressor.getCodec().getContentEncoding());
+            blockBlob.getProperties().setContentEncoding(blobCompressor.getCodec().getContentEncoding());
+        }
+        blockBlob.setMetadata(metadata);
+
+        return blockBlob;
+    }
+
+    private void produceResource(BlobDownload blobDownload)
+    {
+        logger.log(Level.FINE, "AzureStorageDataService.produceResource");
+
+        if (_dataProviderBytes != null)
+            _dataProviderBytes.produce(blobDownload.getData());
+
+        if (_dataProviderMap != null)
+        {
+            Map<String, Object> map = new HashMap<String, Object>();
+            map.put("data", blobDownload.getData());
+            map.put("filename", blobDownload.getBlobName());
+            if (blobDownload.getResourceName() != null)
+                map.put("resourcename", blobDownload.getResourceName());
+            if (blobDownload.getResourceFormat() != null)
+                map.put("resourceformat", blobDownload.getResourceFormat());
+            if (blobDownload.getResourceDescription() != null)
+                map.put("resourcedescription", blobDownload.getResourceDescription());
+            _dataProviderMap.produce(map);
         }
+
+        if (_dataProviderInputStream != null)
+            _dataProviderInputStream.produce(new ByteArrayInputStream(blobDownload.getData()));
     }
 
     @Override
     public Collection<Class<?>> getDataProviderDataClasses()
     {
-        Set<Class<?>> dataConsumerDataClasses = new HashSet<Class<?>>();
+        Set<Class<?>> dataProviderDataClasses = new HashSet<Class<?>>();
 
-        return dataConsumerDataClasses;
+        dataProviderDataClasses.add(byte[].class);
+        dataProviderDataClasses.add(Map.class);
+        dataProviderDataClasses.add(InputStream.class);
+
+        return dataProviderDataClasses;
     }
 
     @Override
+    @SuppressWarnings("unchecked")
     public <T> DataProvider<T> getDataProvider(Class<T> dataClass)
     {
-        return null;
+        if (dataClass == byte[].class)
+            return (DataProvider<T>) _dataProviderBytes;
+        else if (dataClass == Map.class)
+            return (DataProvider<T>) _dataProviderMap;
+        else if (dataClass == InputStream.class)
+            return (DataProvider<T>) _dataProviderInputStream;
+        else
+            return null;
     }
 
     @Override
@@ -258,6 +1510,8 @@ public class AzureStorageDataService implements DataService
         dataConsumerDataClasses.add(String.class);
         dataConsumerDataClasses.add(byte[].class);
         dataConsumerDataClasses.add(Map.class);
+        dataConsumerDataClasses.add(InputStream.class);
+        dataConsumerDataClasses.add(ReadableByteChannel.class);
 
         return dataConsumerDataClasses;
     }
@@ -272,6 +1526,10 @@ public class AzureStorageDataService implements DataService
             return (DataConsumer<T>) _dataConsumerBytes;
         else if (dataClass == Map.class)
             return (DataConsumer<T>) _dataConsumerMap;
+        else if (dataClass == InputStream.class)
+            return (DataConsumer<T>) _dataConsumerInputStream;
+        else if (dataClass == ReadableByteChannel.class)
+            return (DataConsumer<T>) _dataConsumerReadableByteChannel;
         else
             return null;
     }
@@ -283,13 +1541,42 @@ public class AzureStorageDataService implements DataService
     private String _accountKey;
     private String _containerSAS;
 
-    private DataFlow             _dataFlow;
-    private String               _name;
-    private Map<String, String>  _properties;
+    // Retained across teardown, so in-flight uploads continue; cleared by setup while a SAS is generated, uploads waiting on the warm-up latch until it is set
+    private volatile CloudBlobContainer  _blobContainer;
+    private volatile ContainerSASRenewer _containerSASRenewer;
+    private volatile AsyncBlobUploader   _asyncBlobUploader;
+    private volatile BlockBlobUploader   _blockBlobUploader;
+    private volatile BlobBatcher         _blobBatcher;
+    private volatile BlobCompressor      _blobCompressor;
+    private volatile BlobDeduplicator    _blobDeduplicator;
+    private volatile BlobNamer           _blobNamer;
+    private volatile ResilientExecutor   _resilientExecutor;
+    private volatile BlobUploadJournal   _blobUploadJournal;
+    private volatile SpillReplayer       _spillReplayer;
+    private volatile BlobSource          _blobSource;
+    private volatile RecordFileWriter    _recordFileWriter;
+    private volatile CountDownLatch      _warmUpLatch;
+    private long                         _shutdownTimeout;
+    private long                         _warmUpTimeout;
+    private ServiceMetrics               _metrics;
+
+    private DataFlow                          _dataFlow;
+    private String                            _name;
+    private Map<String, String>               _properties;
     @DataConsumerInjection(methodName="consumeString")
-    private DataConsumer<String> _dataConsumerString;
+    private DataConsumer<String>              _dataConsumerString;
     @DataConsumerInjection(methodName="consumeBytes")
-    private DataConsumer<byte[]> _dataConsumerBytes;
+    private DataConsumer<byte[]>              _dataConsumerBytes;
     @DataConsumerInjection(methodName="consumeMap")
-    private DataConsumer<Map>    _dataConsumerMap;
+    private DataConsumer<Map>                 _dataConsumerMap;
+    @DataConsumerInjection(methodName="consumeInputStream")
+    private DataConsumer<InputStream>         _dataConsumerInputStream;
+    @DataConsumerInjection(methodName="consumeReadableByteChannel")
+    private DataConsumer<ReadableByteChannel> _dataConsumerReadableByteChannel;
+    @DataProviderInjection
+    private DataProvider<byte[]>              _dataProviderBytes;
+    @DataProviderInjection
+    private DataProvider<Map>                 _dataProviderMap;
+    @DataProviderInjection
+    private DataProvider<InputStream>         _dataProviderInputStream;
 }
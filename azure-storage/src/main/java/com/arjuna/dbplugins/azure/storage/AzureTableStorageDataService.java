@@ -0,0 +1,487 @@
+/*
+ * Copyright (c) 2015, Arjuna Technologies Limited, Newcastle-upon-Tyne, England. All rights reserved.
+ */
+
+package com.arjuna.dbplugins.azure.storage;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.net.URI;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import com.arjuna.dbplugins.azure.common.CircuitBreaker;
+import com.arjuna.dbplugins.azure.common.ResilientExecutor;
+import com.arjuna.dbplugins.azure.common.RetryPolicy;
+import com.arjuna.dbplugins.azure.common.ServiceMetrics;
+import com.arjuna.databroker.data.DataConsumer;
+import com.arjuna.databroker.data.DataFlow;
+import com.arjuna.databroker.data.DataProvider;
+import com.arjuna.databroker.data.DataService;
+import com.arjuna.databroker.data.jee.annotation.DataConsumerInjection;
+import com.arjuna.databroker.data.jee.annotation.PostConfig;
+import com.arjuna.databroker.data.jee.annotation.PostCreated;
+import com.arjuna.databroker.data.jee.annotation.PostRecovery;
+import com.arjuna.databroker.data.jee.annotation.PreConfig;
+import com.arjuna.databroker.data.jee.annotation.PreDelete;
+import com.microsoft.azure.storage.CloudStorageAccount;
+import com.microsoft.azure.storage.RetryNoRetry;
+import com.microsoft.azure.storage.StorageCredentialsSharedAccessSignature;
+import com.microsoft.azure.storage.table.CloudTable;
+import com.microsoft.azure.storage.table.CloudTableClient;
+import com.microsoft.azure.storage.table.DynamicTableEntity;
+import com.microsoft.azure.storage.table.EntityProperty;
+
+public class AzureTableStorageDataService implements DataService
+{
+    private static final Logger logger = Logger.getLogger(AzureTableStorageDataService.class.getName());
+
+    public static final String SERVICEBASEURL_PROPERTYNAME    = "Service Base URL";
+    public static final String TABLENAME_PROPERTYNAME         = "Table Name";
+    public static final String ACCOUNTNAME_PROPERTYNAME       = "Account Name";
+    public static final String ACCOUNTKEY_PROPERTYNAME        = "Account Key";
+    public static final String STORAGECONNECTION_PROPERTYNAME = "Storage Connection";
+    public static final String TABLESAS_PROPERTYNAME          = "Table SAS";
+    public static final String PARTITIONKEY_PROPERTYNAME      = "Partition Key Field";
+    public static final String ROWKEY_PROPERTYNAME            = "Row Key Field";
+    public static final String WRITEMODE_PROPERTYNAME         = "Write Mode";
+    public static final String BATCHLINGERTIME_PROPERTYNAME   = "Batch Linger Time";
+    public static final String BATCHCONCURRENCY_PROPERTYNAME  = "Batch Concurrency";
+    public static final String MAXPENDING_PROPERTYNAME        = "Max Pending Entities";
+    public static final String SHUTDOWNTIMEOUT_PROPERTYNAME   = "Shutdown Timeout";
+    public static final String RETRYMAXATTEMPTS_PROPERTYNAME  = "Retry Max Attempts";
+    public static final String RETRYBASEDELAY_PROPERTYNAME    = "Retry Base Delay";
+    public static final String RETRYMAXDELAY_PROPERTYNAME     = "Retry Max Delay";
+    public static final String CIRCUITTHRESHOLD_PROPERTYNAME  = "Circuit Failure Threshold";
+    public static final String CIRCUITOPENTIME_PROPERTYNAME   = "Circuit Open Duration";
+
+    private static final String DEFAULT_PARTITIONKEY     = "PartitionKey";
+    private static final String DEFAULT_ROWKEY           = "RowKey";
+    private static final long   DEFAULT_BATCHLINGERTIME  = 1000L;
+    private static final int    DEFAULT_BATCHCONCURRENCY = 8;
+    private static final int    DEFAULT_MAXPENDING       = 10000;
+    private static final long   DEFAULT_SHUTDOWNTIMEOUT  = 30000L;
+    private static final int    DEFAULT_RETRYMAXATTEMPTS = 5;
+    private static final long   DEFAULT_RETRYBASEDELAY   = 100L;
+    private static final long   DEFAULT_RETRYMAXDELAY    = 30000L;
+    private static final int    DEFAULT_CIRCUITTHRESHOLD = 5;
+    private static final long   DEFAULT_CIRCUITOPENTIME  = 30000L;
+
+    // Estimated serialized overheads, for keeping entity group transactions under the request size limit
+    private static final int ENTITY_OVERHEAD   = 256;
+    private static final int PROPERTY_OVERHEAD = 64;
+    private static final int VALUE_SIZE        = 32;
+
+    public AzureTableStorageDataService()
+    {
+        logger.log(Level.FINE, "AzureTableStorageDataService");
+
+        _metrics = createMetrics();
+    }
+
+    public AzureTableStorageDataService(String name, Map<String, String> properties)
+    {
+        logger.log(Level.FINE, "AzureTableStorageDataService: " + name + ", " + properties);
+
+        _name       = name;
+        _properties = properties;
+        _metrics    = createMetrics();
+    }
+
+    @Override
+    public DataFlow getDataFlow()
+    {
+        return _dataFlow;
+    }
+
+    @Override
+    public void setDataFlow(DataFlow dataFlow)
+    {
+        _dataFlow = dataFlow;
+    }
+
+    @Override
+    public String getName()
+    {
+        return _name;
+    }
+
+    @Override
+    public void setName(String name)
+    {
+        _name = name;
+    }
+
+    @Override
+    public Map<String, String> getProperties()
+    {
+        return Collections.unmodifiableMap(_properties);
+    }
+
+    @Override
+    public void setProperties(Map<String, String> properties)
+    {
+        _properties = properties;
+    }
+
+    @PostConfig
+    @PostCreated
+    @PostRecovery
+    public void setup()
+    {
+        _partitionKeyField = _properties.get(PARTITIONKEY_PROPERTYNAME);
+        if ((_partitionKeyField == null) || "".equals(_partitionKeyField.trim()))
+            _partitionKeyField = DEFAULT_PARTITIONKEY;
+        _rowKeyField = _properties.get(ROWKEY_PROPERTYNAME);
+        if ((_rowKeyField == null) || "".equals(_rowKeyField.trim()))
+            _rowKeyField = DEFAULT_ROWKEY;
+        _shutdownTimeout = getLongProperty(SHUTDOWNTIMEOUT_PROPERTYNAME, DEFAULT_SHUTDOWNTIMEOUT);
+
+        if (_tableBatchWriter != null)
+            _tableBatchWriter.shutdown(_shutdownTimeout);
+
+        _resilientExecutor = createResilientExecutor();
+        _tableBatchWriter  = createTableBatchWriter(createTable());
+
+        _metrics.register((_dataFlow == null) ? null : _dataFlow.getName(), _name);
+    }
+
+    private ServiceMetrics createMetrics()
+    {
+        ServiceMetrics metrics = new ServiceMetrics("AzureTableStorageDataService");
+
+        metrics.addGauge("CircuitState", new ServiceMetrics.Gauge()
+        {
+            @Override
+            public long getValue()
+            {
+                ResilientExecutor resilientExecutor = _resilientExecutor;
+
+                return (resilientExecutor == null) ? 0L : resilientExecutor.getCircuitBreaker().getState().ordinal();
+            }
+        });
+        metrics.addGauge("Retries", new ServiceMetrics.Gauge()
+        {
+            @Override
+            public long getValue()
+            {
+                ResilientExecutor resilientExecutor = _resilientExecutor;
+
+                return (resilientExecutor == null) ? 0L : resilientExecutor.getRetryCount();
+            }
+        });
+        metrics.addGauge("PendingEntities", new ServiceMetrics.Gauge()
+        {
+            @Override
+            public long getValue()
+            {
+                TableBatchWriter tableBatchWriter = _tableBatchWriter;
+
+                return (tableBatchWriter == null) ? 0L : tableBatchWriter.getPendingCount();
+            }
+        });
+        metrics.addGauge("WrittenEntities", new ServiceMetrics.Gauge()
+        {
+            @Override
+            public long getValue()
+            {
+                TableBatchWriter tableBatchWriter = _tableBatchWriter;
+
+                return (tableBatchWriter == null) ? 0L : tableBatchWriter.getWrittenCount();
+            }
+        });
+        metrics.addGauge("WrittenBatches", new ServiceMetrics.Gauge()
+        {
+            @Override
+            public long getValue()
+            {
+                TableBatchWriter tableBatchWriter = _tableBatchWriter;
+
+                return (tableBatchWriter == null) ? 0L : tableBatchWriter.getBatchCount();
+            }
+        });
+        metrics.addGauge("FailedEntities", new ServiceMetrics.Gauge()
+        {
+            @Override
+            public long getValue()
+            {
+                TableBatchWriter tableBatchWriter = _tableBatchWriter;
+
+                return (tableBatchWriter == null) ? 0L : tableBatchWriter.getFailedCount();
+            }
+        });
+
+        return metrics;
+    }
+
+    private CloudTable createTable()
+    {
+        String tableName         = _properties.get(TABLENAME_PROPERTYNAME);
+        String serviceBaseURL    = _properties.get(SERVICEBASEURL_PROPERTYNAME);
+        String storageConnection = _properties.get(STORAGECONNECTION_PROPERTYNAME);
+        String accountName       = _properties.get(ACCOUNTNAME_PROPERTYNAME);
+        String accountKey        = _properties.get(ACCOUNTKEY_PROPERTYNAME);
+        String tableSAS          = _properties.get(TABLESAS_PROPERTYNAME);
+        if ((tableName == null) || "".equals(tableName.trim()))
+        {
+            logger.log(Level.WARNING, "Unable to create Azure table reference, missing table name");
+            return null;
+        }
+
+        if (((storageConnection == null) || "".equals(storageConnection.trim())) && (accountName != null) && (! "".equals(accountName.trim())) && (accountKey != null) && (! "".equals(accountKey.trim())))
+            storageConnection = "DefaultEndpointsProtocol=https;AccountName=" + accountName + ";AccountKey=" + accountKey;
+
+        try
+        {
+            if ((tableSAS != null) && (! "".equals(tableSAS.trim())) && (serviceBaseURL != null))
+            {
+                CloudTableClient tableClient = new CloudTableClient(new URI(serviceBaseURL), new StorageCredentialsSharedAccessSignature(tableSAS));
+                tableClient.getDefaultRequestOptions().setRetryPolicyFactory(new RetryNoRetry());
+
+                return tableClient.getTableReference(tableName.trim());
+            }
+            else if ((storageConnection != null) && (! "".equals(storageConnection.trim())))
+            {
+                CloudStorageAccount storageAccount = CloudStorageAccount.parse(storageConnection);
+                CloudTableClient    tableClient    = storageAccount.createCloudTableClient();
+                tableClient.getDefaultRequestOptions().setRetryPolicyFactory(new RetryNoRetry());
+                CloudTable          table          = tableClient.getTableReference(tableName.trim());
+                try
+                {
+                    table.createIfNotExists();
+                }
+                catch (Throwable throwable)
+                {
+                    logger.log(Level.WARNING, "Problems creating Azure table: " + tableName, throwable);
+                }
+
+                return table;
+            }
+            else
+            {
+                logger.log(Level.WARNING, "Unable to create Azure table reference, missing credentials");
+                return null;
+            }
+        }
+        catch (Throwable throwable)
+        {
+            logger.log(Level.WARNING, "Problems with Azure table reference", throwable);
+            return null;
+        }
+    }
+
+    private ResilientExecutor createResilientExecutor()
+    {
+        int  retryMaxAttempts = getIntProperty(RETRYMAXATTEMPTS_PROPERTYNAME, DEFAULT_RETRYMAXATTEMPTS);
+        long retryBaseDelay   = getLongProperty(RETRYBASEDELAY_PROPERTYNAME, DEFAULT_RETRYBASEDELAY);
+        long retryMaxDelay    = getLongProperty(RETRYMAXDELAY_PROPERTYNAME, DEFAULT_RETRYMAXDELAY);
+        int  circuitThreshold = getIntProperty(CIRCUITTHRESHOLD_PROPERTYNAME, DEFAULT_CIRCUITTHRESHOLD);
+        long circuitOpenTime  = getLongProperty(CIRCUITOPENTIME_PROPERTYNAME, DEFAULT_CIRCUITOPENTIME);
+
+        RetryPolicy    retryPolicy    = new RetryPolicy(retryMaxAttempts, retryBaseDelay, retryMaxDelay);
+        CircuitBreaker circuitBreaker = new CircuitBreaker(_name, circuitThreshold, circuitOpenTime);
+
+        return new ResilientExecutor(_name, retryPolicy, circuitBreaker, new StorageErrorClassifier());
+    }
+
+    private TableBatchWriter createTableBatchWriter(CloudTable table)
+    {
+        if (table == null)
+            return null;
+
+        TableBatchWriter.Mode writeMode       = TableBatchWriter.Mode.INSERTORREPLACE;
+        String                writeModeString = _properties.get(WRITEMODE_PROPERTYNAME);
+        if ((writeModeString != null) && (! "".equals(writeModeString.trim())))
+        {
+            try
+            {
+                writeMode = TableBatchWriter.Mode.valueOf(writeModeString.trim().replace(" ", "").toUpperCase());
+            }
+            catch (IllegalArgumentException illegalArgumentException)
+            {
+                logger.log(Level.WARNING, "Unknown write mode \"" + writeModeString + "\", using Insert Or Replace");
+            }
+        }
+
+        long batchLingerTime  = getLongProperty(BATCHLINGERTIME_PROPERTYNAME, DEFAULT_BATCHLINGERTIME);
+        int  batchConcurrency = Math.max(1, getIntProperty(BATCHCONCURRENCY_PROPERTYNAME, DEFAULT_BATCHCONCURRENCY));
+        int  maxPending       = Math.max(TableBatchWriter.MAX_BATCH_OPERATIONS, getIntProperty(MAXPENDING_PROPERTYNAME, DEFAULT_MAXPENDING));
+
+        return new TableBatchWriter(_name, table, writeMode, batchConcurrency, maxPending, batchLingerTime, _resilientExecutor, _metrics);
+    }
+
+    private int getIntProperty(String propertyName, int defaultValue)
+    {
+        return (int) getLongProperty(propertyName, defaultValue);
+    }
+
+    private long getLongProperty(String propertyName, long defaultValue)
+    {
+        String value = _properties.get(propertyName);
+
+        if ((value == null) || "".equals(value.trim()))
+            return defaultValue;
+
+        try
+        {
+            return Long.parseLong(value.trim());
+        }
+        catch (NumberFormatException numberFormatException)
+        {
+            logger.log(Level.WARNING, "Invalid value for \"" + propertyName + "\": \"" + value + "\", using " + defaultValue);
+            return defaultValue;
+        }
+    }
+
+    @PreConfig
+    @PreDelete
+    public void teardown()
+    {
+        _metrics.unregister();
+
+        TableBatchWriter tableBatchWriter = _tableBatchWriter;
+        _tableBatchWriter = null;
+        if (tableBatchWriter != null)
+            tableBatchWriter.shutdown(_shutdownTimeout);
+    }
+
+    public void consumeMap(Map map)
+    {
+        logger.log(Level.FINE, "AzureTableStorageDataService.consumeMap");
+
+        try
+        {
+            TableBatchWriter tableBatchWriter = _tableBatchWriter;
+            if (tableBatchWriter == null)
+            {
+                logger.log(Level.WARNING, "Unable to write to Azure table, not configured");
+                return;
+            }
+
+            Object partitionKey = map.get(_partitionKeyField);
+            if (partitionKey == null)
+            {
+                logger.log(Level.WARNING, "Record has no \"" + _partitionKeyField + "\" field, not written");
+                _metrics.recordFailure("Missing partition key");
+                return;
+            }
+            Object rowKey = map.get(_rowKeyField);
+
+            DynamicTableEntity entity = new DynamicTableEntity();
+            entity.setPartitionKey(partitionKey.toString());
+            entity.setRowKey((rowKey != null) ? rowKey.toString() : UUID.randomUUID().toString());
+
+            int                             size       = ENTITY_OVERHEAD + 2 * (entity.getPartitionKey().length() + entity.getRowKey().length());
+            HashMap<String, EntityProperty> properties = new HashMap<String, EntityProperty>();
+            for (Object entryObject: map.entrySet())
+            {
+                Map.Entry<?, ?> entry = (Map.Entry<?, ?>) entryObject;
+                String          field = String.valueOf(entry.getKey());
+                Object          value = entry.getValue();
+                if ((value != null) && (! field.equals(_partitionKeyField)) && (! field.equals(_rowKeyField)))
+                {
+                    properties.put(field, createEntityProperty(value));
+                    size += PROPERTY_OVERHEAD + 2 * field.length() + estimateValueSize(value);
+                }
+            }
+            entity.setProperties(properties);
+
+            _metrics.recordMessage(size);
+            tableBatchWriter.add(entity, size);
+        }
+        catch (Throwable throwable)
+        {
+            logger.log(Level.WARNING, "Problems with Azure table api invoke", throwable);
+        }
+    }
+
+    private static EntityProperty createEntityProperty(Object value)
+    {
+        if (value instanceof String)
+            return new EntityProperty((String) value);
+        else if (value instanceof Boolean)
+            return new EntityProperty((Boolean) value);
+        else if ((value instanceof Integer) || (value instanceof Short) || (value instanceof Byte))
+            return new EntityProperty(Integer.valueOf(((Number) value).intValue()));
+        else if (value instanceof Long)
+            return new EntityProperty((Long) value);
+        else if ((value instanceof Double) || (value instanceof Float))
+            return new EntityProperty(Double.valueOf(((Number) value).doubleValue()));
+        else if ((value instanceof BigDecimal) || (value instanceof BigInteger))
+            return new EntityProperty(value.toString());
+        else if (value instanceof Date)
+            return new EntityProperty((Date) value);
+        else if (value instanceof byte[])
+            return new EntityProperty((byte[]) value);
+        else if (value instanceof UUID)
+            return new EntityProperty((UUID) value);
+        else
+            return new EntityProperty(value.toString());
+    }
+
+    // Strings are escaped and binary base64 encoded in the request body
+    private static int estimateValueSize(Object value)
+    {
+        if (value instanceof String)
+            return 2 * ((String) value).length();
+        else if (value instanceof byte[])
+            return 4 * ((((byte[]) value).length + 2) / 3);
+        else
+            return VALUE_SIZE;
+    }
+
+    @Override
+    public Collection<Class<?>> getDataProviderDataClasses()
+    {
+        Set<Class<?>> dataProviderDataClasses = new HashSet<Class<?>>();
+
+        return dataProviderDataClasses;
+    }
+
+    @Override
+    public <T> DataProvider<T> getDataProvider(Class<T> dataClass)
+    {
+        return null;
+    }
+
+    @Override
+    public Collection<Class<?>> getDataConsumerDataClasses()
+    {
+        Set<Class<?>> dataConsumerDataClasses = new HashSet<Class<?>>();
+
+        dataConsumerDataClasses.add(Map.class);
+
+        return dataConsumerDataClasses;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> DataConsumer<T> getDataConsumer(Class<T> dataClass)
+    {
+        if (dataClass == Map.class)
+            return (DataConsumer<T>) _dataConsumerMap;
+        else
+            return null;
+    }
+
+    private String _partitionKeyField;
+    private String _rowKeyField;
+    private long   _shutdownTimeout;
+
+    private volatile ResilientExecutor _resilientExecutor;
+    private volatile TableBatchWriter  _tableBatchWriter;
+    private ServiceMetrics             _metrics;
+
+    private DataFlow            _dataFlow;
+    private String              _name;
+    private Map<String, String> _properties;
+    @DataConsumerInjection(methodName="consumeMap")
+    private DataConsumer<Map>   _dataConsumerMap;
+}
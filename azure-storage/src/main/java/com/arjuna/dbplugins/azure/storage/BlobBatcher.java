@@ -0,0 +1,219 @@
+/*
+ * Copyright (c) 2015, Arjuna Technologies Limited, Newcastle-upon-Tyne, England. All rights reserved.
+ */
+
+package com.arjuna.dbplugins.azure.storage;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+public class BlobBatcher
+{
+    private static final Logger logger = Logger.getLogger(BlobBatcher.class.getName());
+
+    private static final byte RECORD_DELIMITER     = '\n';
+    private static final long MIN_CHECK_INTERVAL   = 10L;
+    private static final int  MAX_INITIAL_CAPACITY = 64 * 1024;
+
+    private static final Charset UTF8_CHARSET = Charset.forName("UTF-8");
+
+    public BlobBatcher(final String name, BlobNamer blobNamer, int maxRecords, int maxBytes, long lingerTime, BlobUploadHandler blobUploadHandler)
+    {
+        _blobNamer         = blobNamer;
+        _maxRecords        = maxRecords;
+        _maxBytes          = maxBytes;
+        _lingerTime        = lingerTime;
+        _blobUploadHandler = blobUploadHandler;
+        _buffer            = new CompressionBuffer(Math.min(maxBytes, MAX_INITIAL_CAPACITY));
+        _encoder           = UTF8_CHARSET.newEncoder().onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+        _recordCount       = 0;
+
+        _scheduledExecutorService = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable runnable)
+            {
+                Thread thread = new Thread(runnable, "AzureStorageBatcher-" + name);
+                thread.setDaemon(true);
+
+                return thread;
+            }
+        });
+
+        long checkInterval = Math.max(lingerTime / 4, MIN_CHECK_INTERVAL);
+        _scheduledExecutorService.scheduleWithFixedDelay(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                flushLingered();
+            }
+        }, checkInterval, checkInterval, TimeUnit.MILLISECONDS);
+    }
+
+    public void add(byte[] record)
+    {
+        BlobUpload batch = null;
+        synchronized (this)
+        {
+            int recordOffset = _buffer.getLength();
+            _buffer.write(record, 0, record.length);
+
+            batch = appendRecord(recordOffset);
+        }
+
+        if (batch != null)
+            upload(batch);
+    }
+
+    // Encodes the string as UTF-8 straight into the batch buffer, so no copy is made per record, returning its encoded length
+    public int add(String record)
+    {
+        BlobUpload batch = null;
+        int        recordLength;
+        synchronized (this)
+        {
+            int recordOffset = _buffer.getLength();
+            _buffer.ensureCapacity(recordOffset + (int) Math.ceil(record.length() * (double) _encoder.maxBytesPerChar()) + 1);
+            if ((_byteBuffer == null) || (_byteBuffer.array() != _buffer.getBuffer()))
+                _byteBuffer = ByteBuffer.wrap(_buffer.getBuffer());
+            _byteBuffer.clear();
+            _byteBuffer.position(recordOffset);
+
+            _encoder.reset();
+            CoderResult coderResult = _encoder.encode(CharBuffer.wrap(record), _byteBuffer, true);
+            if (coderResult.isUnderflow())
+                coderResult = _encoder.flush(_byteBuffer);
+            if (! coderResult.isUnderflow())
+                throw new IllegalStateException("Unable to encode record: " + coderResult);
+            _buffer.setLength(_byteBuffer.position());
+            recordLength = _byteBuffer.position() - recordOffset;
+
+            batch = appendRecord(recordOffset);
+        }
+
+        if (batch != null)
+            upload(batch);
+
+        return recordLength;
+    }
+
+    public void flush()
+    {
+        BlobUpload batch = null;
+        synchronized (this)
+        {
+            if (_recordCount > 0)
+                batch = takeBatch();
+        }
+
+        if (batch != null)
+            upload(batch);
+    }
+
+    public void shutdown()
+    {
+        _scheduledExecutorService.shutdown();
+        try
+        {
+            _scheduledExecutorService.awaitTermination(_lingerTime + MIN_CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+        }
+        catch (InterruptedException interruptedException)
+        {
+            Thread.currentThread().interrupt();
+        }
+
+        flush();
+    }
+
+    private void flushLingered()
+    {
+        BlobUpload batch = null;
+        synchronized (this)
+        {
+            if ((_recordCount > 0) && (System.currentTimeMillis() - _firstRecordTime >= _lingerTime))
+                batch = takeBatch();
+        }
+
+        if (batch != null)
+            upload(batch);
+    }
+
+    // Called holding the lock, with the record written to the buffer from the offset, a record
+    // that takes the batch past its maximum size is moved to start the next batch
+    private BlobUpload appendRecord(int recordOffset)
+    {
+        BlobUpload batch        = null;
+        int        recordLength = _buffer.getLength() - recordOffset;
+        if ((_recordCount > 0) && (_buffer.getLength() + 1 > _maxBytes))
+        {
+            batch = takeBatch(recordOffset);
+            System.arraycopy(_buffer.getBuffer(), recordOffset, _buffer.getBuffer(), 0, recordLength);
+            _buffer.setLength(recordLength);
+        }
+
+        if (_recordCount == 0)
+            _firstRecordTime = System.currentTimeMillis();
+        _buffer.ensureCapacity(_buffer.getLength() + 1);
+        _buffer.getBuffer()[_buffer.getLength()] = RECORD_DELIMITER;
+        _buffer.setLength(_buffer.getLength() + 1);
+        _recordCount++;
+
+        if ((batch == null) && ((_recordCount >= _maxRecords) || (_buffer.getLength() >= _maxBytes)))
+            batch = takeBatch(_buffer.getLength());
+
+        return batch;
+    }
+
+    private BlobUpload takeBatch()
+    {
+        return takeBatch(_buffer.getLength());
+    }
+
+    private BlobUpload takeBatch(int length)
+    {
+        byte[] data = Arrays.copyOf(_buffer.getBuffer(), length);
+        logger.log(Level.FINE, "Batched " + _recordCount + " records, " + data.length + " bytes");
+
+        _buffer.reset();
+        _recordCount = 0;
+
+        // Named like any other upload, so batches spread over partitions rather than sharing one prefix
+        return new BlobUpload(data, _blobNamer.createBlobName(), null, null, null);
+    }
+
+    private void upload(BlobUpload batch)
+    {
+        try
+        {
+            _blobUploadHandler.upload(batch);
+        }
+        catch (Throwable throwable)
+        {
+            logger.log(Level.WARNING, "Problems uploading batch: " + batch.getBlobName(), throwable);
+        }
+    }
+
+    private BlobNamer                _blobNamer;
+    private int                      _maxRecords;
+    private int                      _maxBytes;
+    private long                     _lingerTime;
+    private BlobUploadHandler        _blobUploadHandler;
+    private CompressionBuffer        _buffer;
+    private CharsetEncoder           _encoder;
+    private ByteBuffer               _byteBuffer;
+    private int                      _recordCount;
+    private long                     _firstRecordTime;
+    private ScheduledExecutorService _scheduledExecutorService;
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright (c) 2015, Arjuna Technologies Limited, Newcastle-upon-Tyne, England. All rights reserved.
+ */
+
+package com.arjuna.dbplugins.azure.storage;
+
+import java.io.InputStream;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses blob content as gzip or zlib deflate, reusing deflaters and output buffers
+ * through bounded pools.
+ */
+public class BlobCompressor
+{
+    private static final byte[] GZIP_HEADER           = { 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff };
+    private static final int    GZIP_TRAILER_LENGTH   = 8;
+    private static final int    MIN_BUFFER_CAPACITY   = 4 * 1024;
+    private static final int    MAX_RETAINED_CAPACITY = 8 * 1024 * 1024;
+
+    public enum Codec
+    {
+        GZIP("gzip"),
+        DEFLATE("deflate");
+
+        private Codec(String contentEncoding)
+        {
+            _contentEncoding = contentEncoding;
+        }
+
+        public String getContentEncoding()
+        {
+            return _contentEncoding;
+        }
+
+        private String _contentEncoding;
+    }
+
+    public BlobCompressor(Codec codec, int level, int poolSize)
+    {
+        _codec         = codec;
+        _level         = level;
+        _poolSize      = poolSize;
+        _deflaters     = new ConcurrentLinkedQueue<Deflater>();
+        _deflaterCount = new AtomicInteger();
+        _buffers       = new ConcurrentLinkedQueue<CompressionBuffer>();
+        _bufferCount   = new AtomicInteger();
+        _closed        = false;
+    }
+
+    public Codec getCodec()
+    {
+        return _codec;
+    }
+
+    public CompressionBuffer compress(byte[] data)
+    {
+        Deflater          deflater          = acquireDeflater();
+        CompressionBuffer compressionBuffer = acquireBuffer(data.length);
+        try
+        {
+            if (_codec == Codec.GZIP)
+                compressionBuffer.write(GZIP_HEADER, 0, GZIP_HEADER.length);
+
+            deflater.setInput(data);
+            deflater.finish();
+            while (! deflater.finished())
+            {
+                compressionBuffer.ensureCapacity(compressionBuffer.getLength() + MIN_BUFFER_CAPACITY);
+
+                int length = compressionBuffer.getLength();
+                int count  = deflater.deflate(compressionBuffer.getBuffer(), length, compressionBuffer.getCapacity() - length);
+                compressionBuffer.setLength(length + count);
+            }
+
+            if (_codec == Codec.GZIP)
+            {
+                CRC32 crc = new CRC32();
+                crc.update(data);
+
+                byte[] trailer = createGzipTrailer(crc.getValue(), data.length);
+                compressionBuffer.write(trailer, 0, trailer.length);
+            }
+
+            return compressionBuffer;
+        }
+        finally
+        {
+            releaseDeflater(deflater);
+        }
+    }
+
+    public CompressingInputStream compress(InputStream input)
+    {
+        return new CompressingInputStream(this, input);
+    }
+
+    public void release(CompressionBuffer compressionBuffer)
+    {
+        if (_closed || (compressionBuffer.getCapacity() > MAX_RETAINED_CAPACITY))
+            return;
+
+        if (_bufferCount.incrementAndGet() <= _poolSize)
+        {
+            compressionBuffer.reset();
+            _buffers.offer(compressionBuffer);
+        }
+        else
+            _bufferCount.decrementAndGet();
+    }
+
+    public void shutdown()
+    {
+        _closed = true;
+
+        Deflater deflater = _deflaters.poll();
+        while (deflater != null)
+        {
+            deflater.end();
+            deflater = _deflaters.poll();
+        }
+        _buffers.clear();
+    }
+
+    Deflater acquireDeflater()
+    {
+        Deflater deflater = _deflaters.poll();
+        if (deflater != null)
+        {
+            _deflaterCount.decrementAndGet();
+            return deflater;
+        }
+        else
+            return new Deflater(_level, _codec == Codec.GZIP);
+    }
+
+    void releaseDeflater(Deflater deflater)
+    {
+        if ((! _closed) && (_deflaterCount.incrementAndGet() <= _poolSize))
+        {
+            deflater.reset();
+            _deflaters.offer(deflater);
+        }
+        else
+        {
+            if (! _closed)
+                _deflaterCount.decrementAndGet();
+            deflater.end();
+        }
+    }
+
+    byte[] createHeader()
+    {
+        if (_codec == Codec.GZIP)
+            return GZIP_HEADER.clone();
+        else
+            return new byte[0];
+    }
+
+    byte[] createTrailer(long crc, long length)
+    {
+        if (_codec == Codec.GZIP)
+            return createGzipTrailer(crc, length);
+        else
+            return new byte[0];
+    }
+
+    private static byte[] createGzipTrailer(long crc, long length)
+    {
+        byte[] trailer = new byte[GZIP_TRAILER_LENGTH];
+        for (int index = 0; index < 4; index++)
+        {
+            trailer[index]     = (byte) (crc >>> (8 * index));
+            trailer[index + 4] = (byte) (length >>> (8 * index));
+        }
+
+        return trailer;
+    }
+
+    private CompressionBuffer acquireBuffer(int dataLength)
+    {
+        CompressionBuffer compressionBuffer = _buffers.poll();
+        if (compressionBuffer != null)
+        {
+            _bufferCount.decrementAndGet();
+            return compressionBuffer;
+        }
+        else
+            return new CompressionBuffer(Math.max(MIN_BUFFER_CAPACITY, dataLength / 2));
+    }
+
+    private Codec                    _codec;
+    private int                      _level;
+    private int                      _poolSize;
+    private Queue<Deflater>          _deflaters;
+    private AtomicInteger            _deflaterCount;
+    private Queue<CompressionBuffer> _buffers;
+    private AtomicInteger            _bufferCount;
+    private volatile boolean         _closed;
+}
@@ -0,0 +1,220 @@
+/*
+ * Copyright (c) 2015, Arjuna Technologies Limited, Newcastle-upon-Tyne, England. All rights reserved.
+ */
+
+package com.arjuna.dbplugins.azure.storage;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers the digests of recently uploaded payloads, for one container, in a bounded LRU
+ * cache keyed by xxHash64. A cache hit is only trusted once the payload's length and MD5
+ * match those recorded, so a collision of the fast hash cannot suppress an upload. MD5s are
+ * only computed on a fast hash hit, so a payload's first repeat is uploaded, recording its
+ * MD5, and later ones are deduplicated. Each blob name maps to at most one digest, the last
+ * uploaded to it, so overwriting a blob forgets what it held.
+ */
+public class BlobDeduplicator
+{
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    public BlobDeduplicator(final int cacheSize)
+    {
+        _blobHashes = new HashMap<String, Long>();
+        _cache      = new LinkedHashMap<Long, CacheEntry>(16, 0.75f, true)
+        {
+            private static final long serialVersionUID = -3308446219627452245L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, CacheEntry> eldest)
+            {
+                if (size() <= cacheSize)
+                    return false;
+
+                _blobHashes.remove(eldest.getValue().blobName);
+
+                return true;
+            }
+        };
+        _lookupCount = new AtomicLong();
+        _hitCount    = new AtomicLong();
+        _linkCount   = new AtomicLong();
+        _bytesSaved  = new AtomicLong();
+    }
+
+    public Digest digest(byte[] data)
+    {
+        return new Digest(ContentHash.hash64(data, 0, data.length, 0L), data);
+    }
+
+    public String lookup(Digest digest)
+    {
+        _lookupCount.incrementAndGet();
+
+        CacheEntry entry;
+        synchronized (_cache)
+        {
+            entry = _cache.get(digest.getHash());
+        }
+
+        if ((entry == null) || (entry.length != digest.getLength()))
+            return null;
+
+        byte[] md5 = digest.getMD5();
+        if ((entry.md5 != null) && Arrays.equals(entry.md5, md5))
+        {
+            _hitCount.incrementAndGet();
+            return entry.blobName;
+        }
+        else
+            return null;
+    }
+
+    public void add(Digest digest, String blobName)
+    {
+        synchronized (_cache)
+        {
+            forget(blobName);
+
+            CacheEntry replacedEntry = _cache.put(digest.getHash(), new CacheEntry(digest.getLength(), digest._md5, blobName));
+            if (replacedEntry != null)
+                _blobHashes.remove(replacedEntry.blobName);
+            _blobHashes.put(blobName, digest.getHash());
+        }
+    }
+
+    // Called before a blob is written, so a failed or partial overwrite is not taken to hold its old content
+    public void invalidate(String blobName)
+    {
+        synchronized (_cache)
+        {
+            forget(blobName);
+        }
+    }
+
+    public void recordSkipped(Digest digest)
+    {
+        _bytesSaved.addAndGet(digest.getLength());
+    }
+
+    public void recordLinked(Digest digest)
+    {
+        _linkCount.incrementAndGet();
+        _bytesSaved.addAndGet(digest.getLength());
+    }
+
+    public long getLookupCount()
+    {
+        return _lookupCount.get();
+    }
+
+    public long getHitCount()
+    {
+        return _hitCount.get();
+    }
+
+    public long getHitPercent()
+    {
+        long lookupCount = _lookupCount.get();
+
+        return (lookupCount == 0L) ? 0L : (100L * _hitCount.get()) / lookupCount;
+    }
+
+    public long getLinkCount()
+    {
+        return _linkCount.get();
+    }
+
+    public long getBytesSaved()
+    {
+        return _bytesSaved.get();
+    }
+
+    private void forget(String blobName)
+    {
+        Long hash = _blobHashes.remove(blobName);
+        if (hash != null)
+            _cache.remove(hash);
+    }
+
+    public static class Digest
+    {
+        public Digest(long hash, byte[] data)
+        {
+            _hash = hash;
+            _data = data;
+            _md5  = null;
+        }
+
+        public long getHash()
+        {
+            return _hash;
+        }
+
+        public int getLength()
+        {
+            return _data.length;
+        }
+
+        public byte[] getMD5()
+        {
+            if (_md5 == null)
+            {
+                try
+                {
+                    _md5 = MessageDigest.getInstance("MD5").digest(_data);
+                }
+                catch (NoSuchAlgorithmException noSuchAlgorithmException)
+                {
+                    throw new IllegalStateException("MD5 not supported", noSuchAlgorithmException);
+                }
+            }
+
+            return _md5;
+        }
+
+        public String getName()
+        {
+            byte[] md5  = getMD5();
+            char[] name = new char[md5.length * 2];
+            for (int index = 0; index < md5.length; index++)
+            {
+                name[2 * index]     = HEX_DIGITS[(md5[index] >> 4) & 0x0F];
+                name[2 * index + 1] = HEX_DIGITS[md5[index] & 0x0F];
+            }
+
+            return new String(name);
+        }
+
+        private long   _hash;
+        private byte[] _data;
+        private byte[] _md5;
+    }
+
+    private static class CacheEntry
+    {
+        public CacheEntry(int length, byte[] md5, String blobName)
+        {
+            this.length   = length;
+            this.md5      = md5;
+            this.blobName = blobName;
+        }
+
+        public final int    length;
+        public final byte[] md5;
+        public final String blobName;
+    }
+
+    private LinkedHashMap<Long, CacheEntry> _cache;
+    private Map<String, Long>               _blobHashes;
+    private AtomicLong                      _lookupCount;
+    private AtomicLong                      _hitCount;
+    private AtomicLong                      _linkCount;
+    private AtomicLong                      _bytesSaved;
+}
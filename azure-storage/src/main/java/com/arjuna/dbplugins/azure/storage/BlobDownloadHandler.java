@@ -0,0 +1,10 @@
+/*
+ * Copyright (c) 2015, Arjuna Technologies Limited, Newcastle-upon-Tyne, England. All rights reserved.
+ */
+
+package com.arjuna.dbplugins.azure.storage;
+
+public interface BlobDownloadHandler
+{
+    public void downloaded(BlobDownload blobDownload);
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2015, Arjuna Technologies Limited, Newcastle-upon-Tyne, England. All rights reserved.
+ */
+
+package com.arjuna.dbplugins.azure.storage;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Properties;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import com.arjuna.dbplugins.azure.common.AtomicFile;
+
+/**
+ * Persists, for each listing prefix, the position of the listing pass in progress, so that
+ * after a restart listing resumes from the last page whose blobs were all emitted rather than
+ * from the start of the container.
+ */
+public class BlobListingCheckpoint
+{
+    private static final Logger logger = Logger.getLogger(BlobListingCheckpoint.class.getName());
+
+    private static final String CHECKPOINTFILE_NAME = "listing.checkpoint";
+    private static final String MARKER_SUFFIX       = ".marker";
+    private static final String PASSSTART_SUFFIX    = ".passStart";
+    private static final String SINCE_SUFFIX        = ".since";
+
+    public BlobListingCheckpoint(File directory)
+        throws IOException
+    {
+        if ((! directory.isDirectory()) && (! directory.mkdirs()))
+            throw new IOException("Unable to create listing checkpoint directory: " + directory);
+
+        _file       = new AtomicFile(new File(directory, CHECKPOINTFILE_NAME));
+        _properties = new Properties();
+
+        byte[] data = _file.read();
+        if (data != null)
+            _properties.load(new ByteArrayInputStream(data));
+    }
+
+    public synchronized Position getPosition(String prefix)
+    {
+        String marker = _properties.getProperty(prefix + MARKER_SUFFIX);
+
+        return new Position(marker, getTime(prefix + PASSSTART_SUFFIX), getTime(prefix + SINCE_SUFFIX));
+    }
+
+    public synchronized void setPosition(String prefix, Position position)
+        throws IOException
+    {
+        if (position.getMarker() != null)
+            _properties.setProperty(prefix + MARKER_SUFFIX, position.getMarker());
+        else
+            _properties.remove(prefix + MARKER_SUFFIX);
+        _properties.setProperty(prefix + PASSSTART_SUFFIX, Long.toString(position.getPassStartTime()));
+        _properties.setProperty(prefix + SINCE_SUFFIX, Long.toString(position.getSinceTime()));
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        _properties.store(output, "Azure blob listing checkpoint");
+        _file.write(output.toByteArray());
+    }
+
+    private long getTime(String key)
+    {
+        String value = _properties.getProperty(key);
+        if (value == null)
+            return 0L;
+
+        try
+        {
+            return Long.parseLong(value);
+        }
+        catch (NumberFormatException numberFormatException)
+        {
+            logger.log(Level.WARNING, "Invalid listing checkpoint value for \"" + key + "\": \"" + value + "\", ignoring");
+            return 0L;
+        }
+    }
+
+    /**
+     * The marker of the next page to list, null at the start of a pass, with the time the
+     * pass started, zero if not yet started, and the last modified time below which blobs
+     * were emitted by earlier passes.
+     */
+    public static class Position
+    {
+        public Position(String marker, long passStartTime, long sinceTime)
+        {
+            _marker        = marker;
+            _passStartTime = passStartTime;
+            _sinceTime     = sinceTime;
+        }
+
+        public String getMarker()
+        {
+            return _marker;
+        }
+
+        public long getPassStartTime()
+        {
+            return _passStartTime;
+        }
+
+        public long getSinceTime()
+        {
+            return _sinceTime;
+        }
+
+        private String _marker;
+        private long   _passStartTime;
+        private long   _sinceTime;
+    }
+
+    private AtomicFile _file;
+    private Properties _properties;
+}
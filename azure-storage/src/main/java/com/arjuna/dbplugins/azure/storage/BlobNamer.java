@@ -0,0 +1,42 @@
+/*
+ * Copyright (c) 2015, Arjuna Technologies Limited, Newcastle-upon-Tyne, England. All rights reserved.
+ */
+
+package com.arjuna.dbplugins.azure.storage;
+
+public class BlobNamer
+{
+    static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    public BlobNamer(BlobNamingStrategy blobNamingStrategy)
+    {
+        _blobNamingStrategy = blobNamingStrategy;
+
+        _blobNameBuilder = new ThreadLocal<StringBuilder>()
+        {
+            @Override
+            protected StringBuilder initialValue()
+            {
+                return new StringBuilder(128);
+            }
+        };
+    }
+
+    public String createBlobName()
+    {
+        StringBuilder blobName = _blobNameBuilder.get();
+        blobName.setLength(0);
+        _blobNamingStrategy.appendBlobName(blobName);
+
+        return blobName.toString();
+    }
+
+    static void appendHex(StringBuilder builder, long value, int digits)
+    {
+        for (int shift = 4 * (digits - 1); shift >= 0; shift -= 4)
+            builder.append(HEX_DIGITS[(int) (value >>> shift) & 0x0F]);
+    }
+
+    private BlobNamingStrategy         _blobNamingStrategy;
+    private ThreadLocal<StringBuilder> _blobNameBuilder;
+}
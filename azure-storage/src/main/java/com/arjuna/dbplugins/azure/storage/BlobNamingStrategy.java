@@ -0,0 +1,14 @@
+/*
+ * Copyright (c) 2015, Arjuna Technologies Limited, Newcastle-upon-Tyne, England. All rights reserved.
+ */
+
+package com.arjuna.dbplugins.azure.storage;
+
+/**
+ * Generates names for blobs uploaded without one. Strategies append to a caller supplied,
+ * reused, builder so that they can be composed without building intermediate strings.
+ */
+public interface BlobNamingStrategy
+{
+    public void appendBlobName(StringBuilder blobName);
+}
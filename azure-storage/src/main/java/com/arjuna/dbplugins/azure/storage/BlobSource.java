@@ -0,0 +1,698 @@
+/*
+ * Copyright (c) 2015, Arjuna Technologies Limited, Newcastle-upon-Tyne, England. All rights reserved.
+ */
+
+package com.arjuna.dbplugins.azure.storage;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+import com.arjuna.dbplugins.azure.common.ResilientExecutor;
+import com.microsoft.azure.storage.AccessCondition;
+import com.microsoft.azure.storage.ResultContinuation;
+import com.microsoft.azure.storage.ResultContinuationType;
+import com.microsoft.azure.storage.ResultSegment;
+import com.microsoft.azure.storage.blob.BlobListingDetails;
+import com.microsoft.azure.storage.blob.BlobProperties;
+import com.microsoft.azure.storage.blob.CloudBlob;
+import com.microsoft.azure.storage.blob.CloudBlobContainer;
+import com.microsoft.azure.storage.blob.ListBlobItem;
+
+/**
+ * Incrementally scans a container, emitting blobs created or modified since the previous
+ * pass. Each prefix is listed a page at a time, prefixes taking turns on the listing threads.
+ * Blobs are downloaded as parallel ranged GETs, conditional on the listed ETag, and held,
+ * up to a count and byte limit, until the single emitter thread hands them downstream; a
+ * slow consumer therefore stalls downloading and then listing. Blobs are emitted whole, so one
+ * larger than the byte limit, stored or once decompressed, is skipped with a warning. A
+ * prefix's checkpoint only advances past a page once all its blobs have been emitted, or have
+ * failed permanently to download; a page with a blob that could not be emitted holds the
+ * checkpoint until restart, when listing resumes before it, so delivery is at least once.
+ */
+public class BlobSource
+{
+    private static final Logger logger = Logger.getLogger(BlobSource.class.getName());
+
+    private static final long POLL_INTERVAL        = 500L;
+    // Passes are timed by the local clock but blobs by the service's, so pass boundaries overlap by this much
+    private static final long CLOCK_SKEW_ALLOWANCE = 5L * 60L * 1000L;
+
+    public BlobSource(String name, CloudBlobContainer blobContainer, List<String> prefixes, int pageSize, long pollInterval, int rangeSize, int downloadConcurrency, int prefetchDepth, long prefetchMaxBytes, BlobListingCheckpoint blobListingCheckpoint, ResilientExecutor resilientExecutor, BlobDownloadHandler blobDownloadHandler)
+    {
+        _blobContainer         = blobContainer;
+        _pageSize              = pageSize;
+        _pollInterval          = pollInterval;
+        _rangeSize             = rangeSize;
+        _prefetchDepth         = prefetchDepth;
+        _prefetchMaxBytes      = prefetchMaxBytes;
+        _blobListingCheckpoint = blobListingCheckpoint;
+        _resilientExecutor     = resilientExecutor;
+        _blobDownloadHandler   = blobDownloadHandler;
+        _prefetchPermits       = new Semaphore(prefetchDepth);
+        _prefetchLock          = new Object();
+        _prefetchBytes         = 0L;
+        _readyQueue            = new LinkedBlockingQueue<PendingBlob>();
+        _listedCount           = new AtomicLong();
+        _downloadedCount       = new AtomicLong();
+        _downloadedBytes       = new AtomicLong();
+        _failedCount           = new AtomicLong();
+        _running               = true;
+
+        _listingExecutor = new ScheduledThreadPoolExecutor(Math.max(1, Math.min(prefixes.size(), downloadConcurrency)), new SourceThreadFactory("AzureBlobLister-" + name));
+        _listingExecutor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        _downloadExecutor = Executors.newFixedThreadPool(downloadConcurrency, new SourceThreadFactory("AzureBlobDownloader-" + name));
+        // Listers can all be waiting on prefetch permits held by blobs awaiting retry, so retries get their own thread
+        _retryExecutor = new ScheduledThreadPoolExecutor(1, new SourceThreadFactory("AzureBlobRetrier-" + name));
+        _retryExecutor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+
+        _emitter = new Thread(new Emitter(), "AzureBlobEmitter-" + name);
+        _emitter.setDaemon(true);
+        _emitter.start();
+
+        for (String prefix: prefixes)
+            _listingExecutor.execute(new Lister(prefix));
+    }
+
+    public void setBlobContainer(CloudBlobContainer blobContainer)
+    {
+        _blobContainer = blobContainer;
+    }
+
+    public long getListedCount()
+    {
+        return _listedCount.get();
+    }
+
+    public long getDownloadedCount()
+    {
+        return _downloadedCount.get();
+    }
+
+    public long getDownloadedBytes()
+    {
+        return _downloadedBytes.get();
+    }
+
+    public long getFailedCount()
+    {
+        return _failedCount.get();
+    }
+
+    public int getPrefetchCount()
+    {
+        return _prefetchDepth - _prefetchPermits.availablePermits();
+    }
+
+    public long getPrefetchBytes()
+    {
+        synchronized (_prefetchLock)
+        {
+            return _prefetchBytes;
+        }
+    }
+
+    public void shutdown(long timeout)
+    {
+        _running = false;
+
+        long deadline = System.currentTimeMillis() + timeout;
+        _retryExecutor.shutdown();
+        _listingExecutor.shutdown();
+        _downloadExecutor.shutdown();
+        try
+        {
+            if (! _listingExecutor.awaitTermination(Math.max(0L, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS))
+                _listingExecutor.shutdownNow();
+            if (! _downloadExecutor.awaitTermination(Math.max(0L, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS))
+                _downloadExecutor.shutdownNow();
+
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining > 0)
+                _emitter.join(remaining);
+            if (_emitter.isAlive())
+                _emitter.interrupt();
+        }
+        catch (InterruptedException interruptedException)
+        {
+            _retryExecutor.shutdownNow();
+            _listingExecutor.shutdownNow();
+            _downloadExecutor.shutdownNow();
+            _emitter.interrupt();
+            Thread.currentThread().interrupt();
+        }
+
+        // Blobs not yet emitted are left before their prefix's checkpoint, so are listed again on restart
+        _readyQueue.clear();
+    }
+
+    private boolean acquirePrefetch(long length)
+        throws InterruptedException
+    {
+        boolean acquired = false;
+        while (_running && (! acquired))
+            acquired = _prefetchPermits.tryAcquire(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+        if (! acquired)
+            return false;
+
+        synchronized (_prefetchLock)
+        {
+            while (_running && (_prefetchBytes + length > _prefetchMaxBytes))
+                _prefetchLock.wait(POLL_INTERVAL);
+
+            if (! _running)
+            {
+                _prefetchPermits.release();
+                return false;
+            }
+            _prefetchBytes += length;
+        }
+
+        return true;
+    }
+
+    private void releasePrefetch(long length)
+    {
+        synchronized (_prefetchLock)
+        {
+            _prefetchBytes -= length;
+            _prefetchLock.notifyAll();
+        }
+        _prefetchPermits.release();
+    }
+
+    private void submitDownload(PendingBlob pendingBlob)
+    {
+        int rangeCount = (int) Math.max(1L, (pendingBlob.length + _rangeSize - 1) / _rangeSize);
+
+        pendingBlob.data        = new byte[(int) pendingBlob.length];
+        pendingBlob.failure     = new AtomicReference<Throwable>();
+        pendingBlob.rangesToGet = new AtomicInteger(rangeCount);
+        for (int rangeIndex = 0; rangeIndex < rangeCount; rangeIndex++)
+        {
+            long offset = (long) rangeIndex * _rangeSize;
+            _downloadExecutor.execute(new RangeDownload(pendingBlob, offset, (int) Math.min(_rangeSize, pendingBlob.length - offset)));
+        }
+    }
+
+    private void rangesDownloaded(final PendingBlob pendingBlob)
+    {
+        if (! _running)
+            return;
+
+        Throwable failure = pendingBlob.failure.get();
+        if (failure == null)
+        {
+            try
+            {
+                pendingBlob.blobDownload = createBlobDownload(pendingBlob, _prefetchMaxBytes);
+                if (pendingBlob.blobDownload != null)
+                    _readyQueue.add(pendingBlob);
+                else
+                {
+                    logger.log(Level.WARNING, "Blob larger than prefetch byte limit once decompressed: " + pendingBlob.name + ", skipping");
+                    _failedCount.incrementAndGet();
+                    releasePrefetch(pendingBlob.length);
+                    pendingBlob.page.complete();
+                }
+
+                return;
+            }
+            catch (IOException ioException)
+            {
+                failure = ioException;
+            }
+        }
+
+        if (_resilientExecutor.isTransient(failure))
+        {
+            logger.log(Level.FINE, "Problems downloading blob: " + pendingBlob.name + ", retrying", failure);
+            try
+            {
+                _retryExecutor.schedule(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        if (_running)
+                            submitDownload(pendingBlob);
+                    }
+                }, _resilientExecutor.getRetryPolicy().getMaxDelay(), TimeUnit.MILLISECONDS);
+            }
+            catch (RejectedExecutionException rejectedExecutionException)
+            {
+                logger.log(Level.FINE, "Blob download not retried, shutting down: " + pendingBlob.name);
+            }
+        }
+        else
+        {
+            logger.log(Level.WARNING, "Unable to download blob: " + pendingBlob.name + ", skipping", failure);
+            _failedCount.incrementAndGet();
+            releasePrefetch(pendingBlob.length);
+            pendingBlob.page.complete();
+        }
+    }
+
+    // Returns null if decompressing the blob would exceed the byte limit
+    private static BlobDownload createBlobDownload(PendingBlob pendingBlob, long maxBytes)
+        throws IOException
+    {
+        Map<String, String> metadata = pendingBlob.blob.getMetadata();
+        if (metadata == null)
+            metadata = new HashMap<String, String>();
+
+        byte[] data             = pendingBlob.data;
+        String compressionCodec = metadata.get("compressionCodec");
+        if (BlobCompressor.Codec.GZIP.getContentEncoding().equals(compressionCodec))
+            data = readFully(new GZIPInputStream(new ByteArrayInputStream(data)), maxBytes);
+        else if (BlobCompressor.Codec.DEFLATE.getContentEncoding().equals(compressionCodec))
+            data = readFully(new InflaterInputStream(new ByteArrayInputStream(data)), maxBytes);
+        if (data == null)
+            return null;
+
+        return new BlobDownload(data, pendingBlob.name, metadata.get("resourceName"), metadata.get("resourceFormat"), metadata.get("resourceDescription"));
+    }
+
+    private static byte[] readFully(InputStream input, long maxBytes)
+        throws IOException
+    {
+        try
+        {
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            byte[]                buffer = new byte[8192];
+            int                   count  = input.read(buffer);
+            while (count >= 0)
+            {
+                if (output.size() + (long) count > Math.min(maxBytes, Integer.MAX_VALUE - 8L))
+                    return null;
+                output.write(buffer, 0, count);
+                count = input.read(buffer);
+            }
+
+            return output.toByteArray();
+        }
+        finally
+        {
+            input.close();
+        }
+    }
+
+    private class Lister implements Runnable
+    {
+        public Lister(String prefix)
+        {
+            BlobListingCheckpoint.Position position;
+            if (_blobListingCheckpoint != null)
+                position = _blobListingCheckpoint.getPosition(prefix);
+            else
+                position = new BlobListingCheckpoint.Position(null, 0L, 0L);
+
+            _prefix        = prefix;
+            _marker        = position.getMarker();
+            _passStartTime = position.getPassStartTime();
+            _sinceTime     = position.getSinceTime();
+            _pages         = new LinkedList<Page>();
+            _recentBlobs   = new HashMap<String, RecentBlob>();
+        }
+
+        @Override
+        public void run()
+        {
+            long delay;
+            try
+            {
+                delay = listPage() ? 0L : _pollInterval;
+            }
+            catch (InterruptedException interruptedException)
+            {
+                return;
+            }
+            catch (Throwable throwable)
+            {
+                logger.log(Level.WARNING, "Problems listing Azure blob store prefix \"" + _prefix + "\"", throwable);
+                delay = _pollInterval;
+            }
+
+            // Rescheduling, rather than looping, lets prefixes take turns on the listing threads
+            if (_running)
+            {
+                try
+                {
+                    _listingExecutor.schedule(this, delay, TimeUnit.MILLISECONDS);
+                }
+                catch (RejectedExecutionException rejectedExecutionException)
+                {
+                    logger.log(Level.FINE, "Listing stopped, shutting down: \"" + _prefix + "\"");
+                }
+            }
+        }
+
+        private boolean listPage()
+            throws Exception
+        {
+            final CloudBlobContainer blobContainer = _blobContainer;
+            if (blobContainer == null)
+                return false;
+
+            if (_passStartTime == 0L)
+                _passStartTime = System.currentTimeMillis();
+
+            final ResultContinuation continuation;
+            if (_marker != null)
+            {
+                continuation = new ResultContinuation();
+                continuation.setNextMarker(_marker);
+                continuation.setContinuationType(ResultContinuationType.BLOB);
+            }
+            else
+                continuation = null;
+
+            ResultSegment<ListBlobItem> resultSegment = _resilientExecutor.execute(new Callable<ResultSegment<ListBlobItem>>()
+            {
+                @Override
+                public ResultSegment<ListBlobItem> call()
+                    throws Exception
+                {
+                    return blobContainer.listBlobsSegmented(_prefix, true, EnumSet.of(BlobListingDetails.METADATA), _pageSize, continuation, null, null);
+                }
+            });
+
+            String nextMarker = null;
+            if (resultSegment.getHasMoreResults() && (resultSegment.getContinuationToken() != null))
+                nextMarker = resultSegment.getContinuationToken().getNextMarker();
+
+            long recentTime = _passStartTime - CLOCK_SKEW_ALLOWANCE;
+            Page page;
+            if (nextMarker != null)
+                page = new Page(new BlobListingCheckpoint.Position(nextMarker, _passStartTime, _sinceTime));
+            else
+                page = new Page(new BlobListingCheckpoint.Position(null, 0L, recentTime));
+            synchronized (_pages)
+            {
+                _pages.add(page);
+            }
+
+            List<PendingBlob> pendingBlobs = new LinkedList<PendingBlob>();
+            for (ListBlobItem listBlobItem: resultSegment.getResults())
+            {
+                if (! (listBlobItem instanceof CloudBlob))
+                    continue;
+
+                CloudBlob      blob         = (CloudBlob) listBlobItem;
+                BlobProperties properties   = blob.getProperties();
+                long           lastModified = (properties.getLastModified() == null) ? 0L : properties.getLastModified().getTime();
+                _listedCount.incrementAndGet();
+
+                if (lastModified < _sinceTime)
+                    continue;
+                RecentBlob recentBlob = _recentBlobs.get(blob.getName());
+                if ((recentBlob != null) && (recentBlob.etag != null) && recentBlob.etag.equals(properties.getEtag()))
+                    continue;
+
+                // Blobs are emitted as a single array, so one larger than the prefetch byte limit would exceed it alone
+                if (properties.getLength() > Math.min(_prefetchMaxBytes, Integer.MAX_VALUE))
+                {
+                    logger.log(Level.WARNING, "Blob larger than prefetch byte limit: " + blob.getName() + ", " + properties.getLength() + " bytes, skipping");
+                    _failedCount.incrementAndGet();
+                }
+                else
+                    pendingBlobs.add(new PendingBlob(blob, blob.getName(), properties.getEtag(), lastModified, properties.getLength(), page));
+            }
+
+            for (PendingBlob pendingBlob: pendingBlobs)
+            {
+                if (! acquirePrefetch(pendingBlob.length))
+                    return false;
+
+                if (pendingBlob.lastModified >= recentTime)
+                    _recentBlobs.put(pendingBlob.name, new RecentBlob(pendingBlob.etag, pendingBlob.lastModified));
+                page.add();
+                submitDownload(pendingBlob);
+            }
+            page.complete();
+
+            if (nextMarker != null)
+            {
+                _marker = nextMarker;
+
+                return true;
+            }
+            else
+            {
+                Iterator<RecentBlob> recentBlobs = _recentBlobs.values().iterator();
+                while (recentBlobs.hasNext())
+                    if (recentBlobs.next().lastModified < recentTime)
+                        recentBlobs.remove();
+
+                _marker        = null;
+                _passStartTime = 0L;
+                _sinceTime     = recentTime;
+
+                return false;
+            }
+        }
+
+        private void commitPages()
+        {
+            synchronized (_pages)
+            {
+                BlobListingCheckpoint.Position position = null;
+                while ((! _pages.isEmpty()) && (_pages.getFirst().pending.get() == 0) && (! _pages.getFirst().failed))
+                    position = _pages.removeFirst().position;
+
+                if ((position != null) && (_blobListingCheckpoint != null))
+                {
+                    try
+                    {
+                        _blobListingCheckpoint.setPosition(_prefix, position);
+                    }
+                    catch (IOException ioException)
+                    {
+                        logger.log(Level.WARNING, "Problems writing listing checkpoint for prefix \"" + _prefix + "\"", ioException);
+                    }
+                }
+            }
+        }
+
+        private class Page
+        {
+            public Page(BlobListingCheckpoint.Position position)
+            {
+                this.position = position;
+                this.pending  = new AtomicInteger(1);
+                this.failed   = false;
+            }
+
+            public void add()
+            {
+                pending.incrementAndGet();
+            }
+
+            public void complete()
+            {
+                if (pending.decrementAndGet() == 0)
+                    commitPages();
+            }
+
+            public final BlobListingCheckpoint.Position position;
+            public final AtomicInteger                  pending;
+            public volatile boolean                     failed;
+        }
+
+        private String                  _prefix;
+        private String                  _marker;
+        private long                    _passStartTime;
+        private long                    _sinceTime;
+        private LinkedList<Page>        _pages;
+        private Map<String, RecentBlob> _recentBlobs;
+    }
+
+    private class RangeDownload implements Runnable
+    {
+        public RangeDownload(PendingBlob pendingBlob, long offset, int length)
+        {
+            _pendingBlob = pendingBlob;
+            _offset      = offset;
+            _length      = length;
+        }
+
+        @Override
+        public void run()
+        {
+            try
+            {
+                if (_running && (_pendingBlob.failure.get() == null) && (_length > 0))
+                {
+                    final CloudBlob       blob            = _pendingBlob.blob;
+                    final byte[]          data            = _pendingBlob.data;
+                    final AccessCondition accessCondition = (_pendingBlob.etag == null) ? null : AccessCondition.generateIfMatchCondition(_pendingBlob.etag);
+                    int count = _resilientExecutor.execute(new Callable<Integer>()
+                    {
+                        @Override
+                        public Integer call()
+                            throws Exception
+                        {
+                            return blob.downloadRangeToByteArray(_offset, Long.valueOf(_length), data, (int) _offset, accessCondition, null, null);
+                        }
+                    });
+                    if (count != _length)
+                        throw new IOException("Short blob range read: " + count + " of " + _length + " bytes");
+                }
+            }
+            catch (Throwable throwable)
+            {
+                _pendingBlob.failure.compareAndSet(null, throwable);
+            }
+
+            if (_pendingBlob.rangesToGet.decrementAndGet() == 0)
+                rangesDownloaded(_pendingBlob);
+        }
+
+        private PendingBlob _pendingBlob;
+        private long        _offset;
+        private int         _length;
+    }
+
+    private class Emitter implements Runnable
+    {
+        @Override
+        public void run()
+        {
+            try
+            {
+                while (_running)
+                {
+                    PendingBlob pendingBlob = _readyQueue.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+
+                    if (pendingBlob != null)
+                    {
+                        try
+                        {
+                            _blobDownloadHandler.downloaded(pendingBlob.blobDownload);
+                            _downloadedCount.incrementAndGet();
+                            _downloadedBytes.addAndGet(pendingBlob.length);
+                        }
+                        catch (Throwable throwable)
+                        {
+                            logger.log(Level.WARNING, "Problems emitting blob: " + pendingBlob.name + ", listing checkpoint held until restart", throwable);
+                            _failedCount.incrementAndGet();
+                            pendingBlob.page.failed = true;
+                        }
+                        finally
+                        {
+                            releasePrefetch(pendingBlob.length);
+                            pendingBlob.page.complete();
+                        }
+                    }
+                }
+            }
+            catch (InterruptedException interruptedException)
+            {
+                logger.log(Level.FINE, "Blob emitter interrupted");
+            }
+        }
+    }
+
+    private static class PendingBlob
+    {
+        public PendingBlob(CloudBlob blob, String name, String etag, long lastModified, long length, Lister.Page page)
+        {
+            this.blob         = blob;
+            this.name         = name;
+            this.etag         = etag;
+            this.lastModified = lastModified;
+            this.length       = length;
+            this.page         = page;
+        }
+
+        public final CloudBlob            blob;
+        public final String               name;
+        public final String               etag;
+        public final long                 lastModified;
+        public final long                 length;
+        public final Lister.Page          page;
+        public byte[]                     data;
+        public AtomicReference<Throwable> failure;
+        public AtomicInteger              rangesToGet;
+        public volatile BlobDownload      blobDownload;
+    }
+
+    private static class RecentBlob
+    {
+        public RecentBlob(String etag, long lastModified)
+        {
+            this.etag         = etag;
+            this.lastModified = lastModified;
+        }
+
+        public final String etag;
+        public final long   lastModified;
+    }
+
+    private static class SourceThreadFactory implements ThreadFactory
+    {
+        public SourceThreadFactory(String name)
+        {
+            _name        = name;
+            _threadCount = new AtomicInteger();
+        }
+
+        @Override
+        public Thread newThread(Runnable runnable)
+        {
+            Thread thread = new Thread(runnable, _name + "-" + _threadCount.getAndIncrement());
+            thread.setDaemon(true);
+
+            return thread;
+        }
+
+        private String        _name;
+        private AtomicInteger _threadCount;
+    }
+
+    private volatile CloudBlobContainer _blobContainer;
+    private int                         _pageSize;
+    private long                        _pollInterval;
+    private int                         _rangeSize;
+    private int                         _prefetchDepth;
+    private long                        _prefetchMaxBytes;
+    private BlobListingCheckpoint       _blobListingCheckpoint;
+    private ResilientExecutor           _resilientExecutor;
+    private BlobDownloadHandler         _blobDownloadHandler;
+    private Semaphore                   _prefetchPermits;
+    private Object                      _prefetchLock;
+    private long                        _prefetchBytes;
+    private BlockingQueue<PendingBlob>  _readyQueue;
+    private ScheduledThreadPoolExecutor _listingExecutor;
+    private ExecutorService             _downloadExecutor;
+    private ScheduledThreadPoolExecutor _retryExecutor;
+    private Thread                      _emitter;
+    private AtomicLong                  _listedCount;
+    private AtomicLong                  _downloadedCount;
+    private AtomicLong                  _downloadedBytes;
+    private AtomicLong                  _failedCount;
+    private volatile boolean            _running;
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright (c) 2015, Arjuna Technologies Limited, Newcastle-upon-Tyne, England. All rights reserved.
+ */
+
+package com.arjuna.dbplugins.azure.storage;
+
+public class BlobUpload
+{
+    public BlobUpload(byte[] data, String blobName, String resourceName, String resourceFormat, String resourceDescription)
+    {
+        _data                = data;
+        _blobName            = blobName;
+        _resourceName        = resourceName;
+        _resourceFormat      = resourceFormat;
+        _resourceDescription = resourceDescription;
+    }
+
+    public byte[] getData()
+    {
+        return _data;
+    }
+
+    public String getBlobName()
+    {
+        return _blobName;
+    }
+
+    public String getResourceName()
+    {
+        return _resourceName;
+    }
+
+    public String getResourceFormat()
+    {
+        return _resourceFormat;
+    }
+
+    public String getResourceDescription()
+    {
+        return _resourceDescription;
+    }
+
+    private byte[] _data;
+    private String _blobName;
+    private String _resourceName;
+    private String _resourceFormat;
+    private String _resourceDescription;
+}
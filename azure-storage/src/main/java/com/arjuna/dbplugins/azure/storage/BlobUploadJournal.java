@@ -0,0 +1,150 @@
+/*
+ * Copyright (c) 2015, Arjuna Technologies Limited, Newcastle-upon-Tyne, England. All rights reserved.
+ */
+
+package com.arjuna.dbplugins.azure.storage;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import com.arjuna.dbplugins.azure.common.SpillJournal;
+
+public class BlobUploadJournal
+{
+    private static final Logger logger = Logger.getLogger(BlobUploadJournal.class.getName());
+
+    private static final String SPILLFILE_SUFFIX = ".spill";
+
+    public BlobUploadJournal(SpillJournal spillJournal)
+    {
+        _spillJournal = spillJournal;
+
+        importSpillFiles();
+    }
+
+    public SpillJournal getSpillJournal()
+    {
+        return _spillJournal;
+    }
+
+    public boolean spill(BlobUpload blobUpload)
+    {
+        try
+        {
+            return _spillJournal.append(encode(blobUpload));
+        }
+        catch (IOException ioException)
+        {
+            logger.log(Level.WARNING, "Problems spilling blob upload", ioException);
+            return false;
+        }
+    }
+
+    public static byte[] encode(BlobUpload blobUpload)
+        throws IOException
+    {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(blobUpload.getData().length + 256);
+        DataOutputStream      output = new DataOutputStream(buffer);
+
+        writeString(output, blobUpload.getBlobName());
+        writeString(output, blobUpload.getResourceName());
+        writeString(output, blobUpload.getResourceFormat());
+        writeString(output, blobUpload.getResourceDescription());
+        output.writeInt(blobUpload.getData().length);
+        output.write(blobUpload.getData());
+        output.flush();
+
+        return buffer.toByteArray();
+    }
+
+    public static BlobUpload decode(byte[] record)
+        throws IOException
+    {
+        return read(new DataInputStream(new ByteArrayInputStream(record)));
+    }
+
+    private static BlobUpload read(DataInputStream input)
+        throws IOException
+    {
+        String blobName            = readString(input);
+        String resourceName        = readString(input);
+        String resourceFormat      = readString(input);
+        String resourceDescription = readString(input);
+        byte[] data                = new byte[input.readInt()];
+        input.readFully(data);
+
+        return new BlobUpload(data, blobName, resourceName, resourceFormat, resourceDescription);
+    }
+
+    private void importSpillFiles()
+    {
+        File[] files = _spillJournal.getDirectory().listFiles(_spillFileFilter);
+        if ((files == null) || (files.length == 0))
+            return;
+
+        Arrays.sort(files);
+        for (File file: files)
+        {
+            try
+            {
+                DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+                try
+                {
+                    if (! spill(read(input)))
+                    {
+                        logger.log(Level.WARNING, "Unable to import spill file, spill journal full: " + file);
+                        return;
+                    }
+                }
+                finally
+                {
+                    input.close();
+                }
+            }
+            catch (IOException ioException)
+            {
+                logger.log(Level.WARNING, "Problems reading spill file, discarding: " + file, ioException);
+            }
+
+            if (! file.delete())
+                logger.log(Level.WARNING, "Unable to delete spill file: " + file);
+        }
+    }
+
+    private static void writeString(DataOutputStream output, String value)
+        throws IOException
+    {
+        output.writeBoolean(value != null);
+        if (value != null)
+            output.writeUTF(value);
+    }
+
+    private static String readString(DataInputStream input)
+        throws IOException
+    {
+        if (input.readBoolean())
+            return input.readUTF();
+        else
+            return null;
+    }
+
+    private static final FilenameFilter _spillFileFilter = new FilenameFilter()
+    {
+        @Override
+        public boolean accept(File directory, String name)
+        {
+            return name.endsWith(SPILLFILE_SUFFIX);
+        }
+    };
+
+    private SpillJournal _spillJournal;
+}
@@ -0,0 +1,300 @@
+/*
+ * Copyright (c) 2015, Arjuna Technologies Limited, Newcastle-upon-Tyne, England. All rights reserved.
+ */
+
+package com.arjuna.dbplugins.azure.storage;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.blob.BlockEntry;
+import com.microsoft.azure.storage.blob.BlockSearchMode;
+import com.microsoft.azure.storage.blob.CloudBlockBlob;
+import com.microsoft.azure.storage.core.Base64;
+
+/**
+ * Uploads blobs in one request below a threshold, otherwise as blocks staged concurrently and
+ * then committed. Failures are not retried here, but by the caller's resilient executor, so
+ * they are classified and backed off once; staged blocks of an upload are recorded so that a
+ * retry of a byte array upload only stages those still missing.
+ */
+public class BlockBlobUploader
+{
+    private static final int     MAX_BLOCKCOUNT   = 50000;
+    private static final Charset BLOCKID_CHARSET  = Charset.forName("UTF-8");
+
+    public BlockBlobUploader(String name, long threshold, int blockSize, int concurrency)
+    {
+        _threshold       = threshold;
+        _blockSize       = blockSize;
+        _bufferPool      = new BlockBufferPool(blockSize, concurrency + 1);
+        _executorService = Executors.newFixedThreadPool(concurrency, new BlockThreadFactory(name));
+    }
+
+    public long getThreshold()
+    {
+        return _threshold;
+    }
+
+    public int getBlockSize()
+    {
+        return _blockSize;
+    }
+
+    // Staged blocks are shared between attempts of the same upload, so start each upload with an empty set
+    public void upload(CloudBlockBlob blockBlob, byte[] data, BitSet stagedBlocks)
+        throws StorageException, IOException, InterruptedException
+    {
+        upload(blockBlob, data, data.length, stagedBlocks);
+    }
+
+    public void upload(CloudBlockBlob blockBlob, byte[] data, int dataLength, BitSet stagedBlocks)
+        throws StorageException, IOException, InterruptedException
+    {
+        if (dataLength <= _threshold)
+            blockBlob.uploadFromByteArray(data, 0, dataLength);
+        else
+            uploadBlocks(blockBlob, data, dataLength, stagedBlocks);
+    }
+
+    public long upload(final CloudBlockBlob blockBlob, InputStream input)
+        throws StorageException, IOException, InterruptedException
+    {
+        List<BlockEntry>                 blockEntries = new ArrayList<BlockEntry>();
+        List<Future<Void>>               futures      = new LinkedList<Future<Void>>();
+        final AtomicReference<Throwable> failure      = new AtomicReference<Throwable>();
+        long                             total        = 0L;
+
+        try
+        {
+            boolean endOfStream = false;
+            while ((! endOfStream) && (failure.get() == null))
+            {
+                final byte[] buffer = _bufferPool.acquire();
+                final int    length;
+                try
+                {
+                    length = readBlock(input, buffer);
+                }
+                catch (IOException ioException)
+                {
+                    _bufferPool.release(buffer);
+                    throw ioException;
+                }
+                endOfStream = length < buffer.length;
+                total      += length;
+
+                if (length == 0)
+                    _bufferPool.release(buffer);
+                else if (blockEntries.size() >= MAX_BLOCKCOUNT)
+                {
+                    _bufferPool.release(buffer);
+                    throw new IOException("Stream exceeds maximum block count of " + MAX_BLOCKCOUNT);
+                }
+                else
+                {
+                    final String blockId = createBlockId(blockEntries.size());
+                    blockEntries.add(new BlockEntry(blockId, BlockSearchMode.UNCOMMITTED));
+
+                    futures.add(_executorService.submit(new Callable<Void>()
+                    {
+                        @Override
+                        public Void call()
+                            throws StorageException, IOException
+                        {
+                            try
+                            {
+                                blockBlob.uploadBlock(blockId, new ByteArrayInputStream(buffer, 0, length), length);
+                            }
+                            catch (StorageException | IOException exception)
+                            {
+                                failure.compareAndSet(null, exception);
+                                throw exception;
+                            }
+                            finally
+                            {
+                                _bufferPool.release(buffer);
+                            }
+
+                            return null;
+                        }
+                    }));
+                }
+            }
+        }
+        finally
+        {
+            for (Future<Void> future: futures)
+            {
+                try
+                {
+                    future.get();
+                }
+                catch (ExecutionException executionException)
+                {
+                    failure.compareAndSet(null, executionException.getCause());
+                }
+            }
+        }
+
+        if (failure.get() != null)
+            throw new IOException("Unable to upload stream blocks", failure.get());
+
+        blockBlob.commitBlockList(blockEntries);
+
+        return total;
+    }
+
+    public void shutdown()
+    {
+        _executorService.shutdown();
+        try
+        {
+            if (! _executorService.awaitTermination(30, TimeUnit.SECONDS))
+                _executorService.shutdownNow();
+        }
+        catch (InterruptedException interruptedException)
+        {
+            _executorService.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public static String createBlockId(int blockIndex)
+    {
+        return Base64.encode(String.format("%08d", blockIndex).getBytes(BLOCKID_CHARSET));
+    }
+
+    private static int readBlock(InputStream input, byte[] buffer)
+        throws IOException
+    {
+        int length = 0;
+        while (length < buffer.length)
+        {
+            int count = input.read(buffer, length, buffer.length - length);
+            if (count < 0)
+                break;
+            length += count;
+        }
+
+        return length;
+    }
+
+    private void uploadBlocks(final CloudBlockBlob blockBlob, final byte[] data, int dataLength, final BitSet stagedBlocks)
+        throws StorageException, IOException, InterruptedException
+    {
+        int blockSize = _blockSize;
+        if (((dataLength + (long) blockSize - 1) / blockSize) > MAX_BLOCKCOUNT)
+            blockSize = (int) ((dataLength + (long) MAX_BLOCKCOUNT - 1) / MAX_BLOCKCOUNT);
+        final int blockCount = (int) ((dataLength + (long) blockSize - 1) / blockSize);
+
+        List<BlockEntry>   blockEntries = new ArrayList<BlockEntry>(blockCount);
+        List<Future<Void>> futures      = new LinkedList<Future<Void>>();
+        for (int blockIndex = 0; blockIndex < blockCount; blockIndex++)
+        {
+            final int    stagedIndex = blockIndex;
+            final int    offset      = blockIndex * blockSize;
+            final int    length      = Math.min(blockSize, dataLength - offset);
+            final String blockId     = createBlockId(blockIndex);
+            blockEntries.add(new BlockEntry(blockId, BlockSearchMode.UNCOMMITTED));
+
+            synchronized (stagedBlocks)
+            {
+                if (stagedBlocks.get(blockIndex))
+                    continue;
+            }
+
+            futures.add(_executorService.submit(new Callable<Void>()
+            {
+                @Override
+                public Void call()
+                    throws StorageException, IOException
+                {
+                    blockBlob.uploadBlock(blockId, new ByteArrayInputStream(data, offset, length), length);
+                    synchronized (stagedBlocks)
+                    {
+                        stagedBlocks.set(stagedIndex);
+                    }
+
+                    return null;
+                }
+            }));
+        }
+
+        Throwable failure = null;
+        for (Future<Void> future: futures)
+        {
+            try
+            {
+                future.get();
+            }
+            catch (ExecutionException executionException)
+            {
+                if (failure == null)
+                    failure = executionException.getCause();
+            }
+        }
+
+        if (failure instanceof StorageException)
+            throw (StorageException) failure;
+        else if (failure instanceof IOException)
+            throw (IOException) failure;
+        else if (failure != null)
+            throw new IOException("Unable to upload blocks", failure);
+
+        try
+        {
+            blockBlob.commitBlockList(blockEntries);
+        }
+        catch (StorageException storageException)
+        {
+            // Uncommitted blocks may have been discarded, say by a competing commit, so a retry stages them all again
+            synchronized (stagedBlocks)
+            {
+                stagedBlocks.clear();
+            }
+            throw storageException;
+        }
+    }
+
+    private static class BlockThreadFactory implements ThreadFactory
+    {
+        public BlockThreadFactory(String name)
+        {
+            _name        = name;
+            _threadCount = new AtomicInteger();
+        }
+
+        @Override
+        public Thread newThread(Runnable runnable)
+        {
+            Thread thread = new Thread(runnable, "AzureStorageBlockUploader-" + _name + "-" + _threadCount.getAndIncrement());
+            thread.setDaemon(true);
+
+            return thread;
+        }
+
+        private String        _name;
+        private AtomicInteger _threadCount;
+    }
+
+    private long            _threshold;
+    private int             _blockSize;
+    private BlockBufferPool _bufferPool;
+    private ExecutorService _executorService;
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright (c) 2015, Arjuna Technologies Limited, Newcastle-upon-Tyne, England. All rights reserved.
+ */
+
+package com.arjuna.dbplugins.azure.storage;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class BlockBufferPool
+{
+    public BlockBufferPool(int bufferSize, int bufferCount)
+    {
+        _bufferSize     = bufferSize;
+        _bufferCount    = bufferCount;
+        _createdBuffers = new AtomicInteger();
+        _freeBuffers    = new LinkedBlockingQueue<byte[]>();
+    }
+
+    public int getBufferSize()
+    {
+        return _bufferSize;
+    }
+
+    public byte[] acquire()
+        throws InterruptedException
+    {
+        byte[] buffer = _freeBuffers.poll();
+        if (buffer != null)
+            return buffer;
+
+        while (true)
+        {
+            int createdBuffers = _createdBuffers.get();
+            if (createdBuffers >= _bufferCount)
+                return _freeBuffers.take();
+            else if (_createdBuffers.compareAndSet(createdBuffers, createdBuffers + 1))
+                return new byte[_bufferSize];
+        }
+    }
+
+    public void release(byte[] buffer)
+    {
+        _freeBuffers.offer(buffer);
+    }
+
+    private int                   _bufferSize;
+    private int                   _bufferCount;
+    private AtomicInteger         _createdBuffers;
+    private BlockingQueue<byte[]> _freeBuffers;
+}
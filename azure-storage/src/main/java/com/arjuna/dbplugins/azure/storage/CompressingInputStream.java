@@ -0,0 +1,134 @@
+/*
+ * Copyright (c) 2015, Arjuna Technologies Limited, Newcastle-upon-Tyne, England. All rights reserved.
+ */
+
+package com.arjuna.dbplugins.azure.storage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses an input stream as it is read, so content of unknown length can be compressed
+ * and uploaded block by block without being held in memory.
+ */
+public class CompressingInputStream extends InputStream
+{
+    private static final int INPUTBUFFER_SIZE = 64 * 1024;
+
+    public CompressingInputStream(BlobCompressor blobCompressor, InputStream input)
+    {
+        _blobCompressor = blobCompressor;
+        _input          = input;
+        _inputBuffer    = new byte[INPUTBUFFER_SIZE];
+        _inputLength    = 0L;
+        _crc            = new CRC32();
+        _deflater       = blobCompressor.acquireDeflater();
+        _header         = blobCompressor.createHeader();
+        _headerOffset   = 0;
+        _trailer        = null;
+        _trailerOffset  = 0;
+    }
+
+    public long getInputLength()
+    {
+        return _inputLength;
+    }
+
+    @Override
+    public int read()
+        throws IOException
+    {
+        byte[] buffer = new byte[1];
+        int    count  = read(buffer, 0, 1);
+        while (count == 0)
+            count = read(buffer, 0, 1);
+
+        return (count < 0) ? -1 : (buffer[0] & 0xff);
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length)
+        throws IOException
+    {
+        if (length == 0)
+            return 0;
+
+        if (_headerOffset < _header.length)
+        {
+            int count = Math.min(length, _header.length - _headerOffset);
+            System.arraycopy(_header, _headerOffset, buffer, offset, count);
+            _headerOffset += count;
+
+            return count;
+        }
+
+        while (_trailer == null)
+        {
+            if (_deflater == null)
+                throw new IOException("Compressing stream released");
+
+            int count = _deflater.deflate(buffer, offset, length);
+            if (count > 0)
+                return count;
+
+            if (_deflater.finished())
+            {
+                _trailer = _blobCompressor.createTrailer(_crc.getValue(), _inputLength);
+                release();
+            }
+            else if (_deflater.needsInput())
+            {
+                int inputCount = _input.read(_inputBuffer);
+                if (inputCount < 0)
+                    _deflater.finish();
+                else if (inputCount > 0)
+                {
+                    _crc.update(_inputBuffer, 0, inputCount);
+                    _inputLength += inputCount;
+                    _deflater.setInput(_inputBuffer, 0, inputCount);
+                }
+            }
+        }
+
+        if (_trailerOffset < _trailer.length)
+        {
+            int count = Math.min(length, _trailer.length - _trailerOffset);
+            System.arraycopy(_trailer, _trailerOffset, buffer, offset, count);
+            _trailerOffset += count;
+
+            return count;
+        }
+
+        return -1;
+    }
+
+    public void release()
+    {
+        if (_deflater != null)
+        {
+            _blobCompressor.releaseDeflater(_deflater);
+            _deflater = null;
+        }
+    }
+
+    @Override
+    public void close()
+        throws IOException
+    {
+        release();
+        _input.close();
+    }
+
+    private BlobCompressor _blobCompressor;
+    private InputStream    _input;
+    private byte[]         _inputBuffer;
+    private long           _inputLength;
+    private CRC32          _crc;
+    private Deflater       _deflater;
+    private byte[]         _header;
+    private int            _headerOffset;
+    private byte[]         _trailer;
+    private int            _trailerOffset;
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright (c) 2015, Arjuna Technologies Limited, Newcastle-upon-Tyne, England. All rights reserved.
+ */
+
+package com.arjuna.dbplugins.azure.storage;
+
+import java.util.Arrays;
+
+public class CompressionBuffer
+{
+    public CompressionBuffer(int capacity)
+    {
+        _buffer = new byte[capacity];
+        _length = 0;
+    }
+
+    public byte[] getBuffer()
+    {
+        return _buffer;
+    }
+
+    public int getLength()
+    {
+        return _length;
+    }
+
+    public int getCapacity()
+    {
+        return _buffer.length;
+    }
+
+    public void write(byte[] data, int offset, int length)
+    {
+        ensureCapacity(_length + length);
+        System.arraycopy(data, offset, _buffer, _length, length);
+        _length += length;
+    }
+
+    public void ensureCapacity(int capacity)
+    {
+        if (capacity > _buffer.length)
+            _buffer = Arrays.copyOf(_buffer, Math.max(capacity, _buffer.length * 2));
+    }
+
+    public void setLength(int length)
+    {
+        _length = length;
+    }
+
+    public void reset()
+    {
+        _length = 0;
+    }
+
+    private byte[] _buffer;
+    private int    _length;
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright (c) 2015, Arjuna Technologies Limited, Newcastle-upon-Tyne, England. All rights reserved.
+ */
+
+package com.arjuna.dbplugins.azure.storage;
+
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.Date;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import com.microsoft.azure.storage.CloudStorageAccount;
+import com.microsoft.azure.storage.blob.CloudBlobClient;
+import com.microsoft.azure.storage.blob.CloudBlobContainer;
+import com.microsoft.azure.storage.blob.SharedAccessBlobPermissions;
+import com.microsoft.azure.storage.blob.SharedAccessBlobPolicy;
+
+/**
+ * Generates container SAS tokens from account credentials and regenerates them, on a
+ * background thread, renewal margin before they expire. Issued tokens, and which containers
+ * have been created, are kept for the life of the process, so a node set up again, after
+ * reconfiguration or recovery, reuses a token with time left rather than waiting on the
+ * storage service; otherwise the first token is generated in the background. They are keyed by
+ * account name and container, so the account key is not held in the key; a token is reused only
+ * if it was issued with the same connection, so one signed with a rotated key is not.
+ */
+public class ContainerSASRenewer
+{
+    private static final Logger logger = Logger.getLogger(ContainerSASRenewer.class.getName());
+
+    private static final long RETRY_INTERVAL = 60000L;
+
+    private static final Charset UTF8_CHARSET = Charset.forName("UTF-8");
+
+    private static final ConcurrentMap<String, IssuedSAS> issuedSASs        = new ConcurrentHashMap<String, IssuedSAS>();
+    private static final Set<String>                      createdContainers = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    public ContainerSASRenewer(final String name, String storageConnection, String containerName, long lifetime, long renewalMargin, ContainerSASHandler containerSASHandler)
+    {
+        byte[] connection = storageConnection.getBytes(UTF8_CHARSET);
+
+        _containerName       = containerName;
+        _lifetime            = lifetime;
+        _renewalMargin       = Math.min(renewalMargin, lifetime / 2);
+        _containerSASHandler = containerSASHandler;
+        _connectionHash      = ContentHash.hash64(connection, 0, connection.length, 0L);
+        _expiryTime          = 0L;
+
+        try
+        {
+            _storageAccount = CloudStorageAccount.parse(storageConnection);
+            _cacheKey       = _storageAccount.getCredentials().getAccountName() + "/" + containerName;
+        }
+        catch (Throwable throwable)
+        {
+            logger.log(Level.WARNING, "Problems with Azure storage connection, unable to generate SAS", throwable);
+        }
+
+        _scheduledExecutorService = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable runnable)
+            {
+                Thread thread = new Thread(runnable, "AzureStorageSASRenewer-" + name);
+                thread.setDaemon(true);
+
+                return thread;
+            }
+        });
+    }
+
+    // Returns a cached token with more than the renewal margin left, otherwise null, having started generating one
+    public String start()
+    {
+        if (_storageAccount == null)
+            return null;
+
+        IssuedSAS issuedSAS = issuedSASs.get(_cacheKey);
+        long      timeLeft  = ((issuedSAS == null) || (issuedSAS.connectionHash != _connectionHash)) ? 0L : issuedSAS.expiryTime - System.currentTimeMillis();
+        if (timeLeft > _renewalMargin)
+        {
+            logger.log(Level.FINE, "Reusing Azure blob store SAS, expires " + new Date(issuedSAS.expiryTime));
+
+            _expiryTime = issuedSAS.expiryTime;
+            scheduleRenewal(timeLeft - _renewalMargin);
+
+            return issuedSAS.containerSAS;
+        }
+        else
+        {
+            scheduleRenewal(0L);
+
+            return null;
+        }
+    }
+
+    public String renew()
+    {
+        try
+        {
+            CloudBlobClient    blobClient    = _storageAccount.createCloudBlobClient();
+            CloudBlobContainer blobContainer = blobClient.getContainerReference(_containerName);
+
+            long startTime  = System.currentTimeMillis();
+            long expiryTime = startTime + _lifetime;
+
+            SharedAccessBlobPolicy blobPolicy = new SharedAccessBlobPolicy();
+            blobPolicy.setSharedAccessStartTime(new Date(startTime));
+            blobPolicy.setSharedAccessExpiryTime(new Date(expiryTime));
+            blobPolicy.setPermissions(EnumSet.of(SharedAccessBlobPermissions.READ, SharedAccessBlobPermissions.WRITE, SharedAccessBlobPermissions.LIST));
+
+            // The token is signed with its own policy, not a stored one, so the container's access policies are left alone
+            if (! createdContainers.contains(_cacheKey))
+            {
+                blobContainer.createIfNotExists();
+                createdContainers.add(_cacheKey);
+            }
+
+            String containerSAS = blobContainer.generateSharedAccessSignature(blobPolicy, null);
+
+            issuedSASs.put(_cacheKey, new IssuedSAS(containerSAS, expiryTime, _connectionHash));
+            _expiryTime = expiryTime;
+            _containerSASHandler.renewed(containerSAS, expiryTime);
+            scheduleRenewal(_lifetime - _renewalMargin);
+
+            return containerSAS;
+        }
+        catch (Throwable throwable)
+        {
+            logger.log(Level.WARNING, "Problems with Azure blob store SAS", throwable);
+
+            scheduleRenewal(RETRY_INTERVAL);
+
+            return null;
+        }
+    }
+
+    public long getTimeLeft()
+    {
+        return Math.max(_expiryTime - System.currentTimeMillis(), 0L);
+    }
+
+    public void shutdown()
+    {
+        _scheduledExecutorService.shutdownNow();
+    }
+
+    private void scheduleRenewal(long delay)
+    {
+        try
+        {
+            _scheduledExecutorService.schedule(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    renew();
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+        catch (RejectedExecutionException rejectedExecutionException)
+        {
+            logger.log(Level.FINE, "SAS renewal not scheduled, renewer shutdown");
+        }
+    }
+
+    private static class IssuedSAS
+    {
+        public IssuedSAS(String containerSAS, long expiryTime, long connectionHash)
+        {
+            this.containerSAS   = containerSAS;
+            this.expiryTime     = expiryTime;
+            this.connectionHash = connectionHash;
+        }
+
+        public final String containerSAS;
+        public final long   expiryTime;
+        public final long   connectionHash;
+    }
+
+    private CloudStorageAccount      _storageAccount;
+    private String                   _containerName;
+    private long                     _lifetime;
+    private long                     _renewalMargin;
+    private ContainerSASHandler      _containerSASHandler;
+    private long                     _connectionHash;
+    private String                   _cacheKey;
+    private volatile long            _expiryTime;
+    private ScheduledExecutorService _scheduledExecutorService;
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 2015, Arjuna Technologies Limited, Newcastle-upon-Tyne, England. All rights reserved.
+ */
+
+package com.arjuna.dbplugins.azure.storage;
+
+/**
+ * xxHash64, a fast non-cryptographic 64 bit hash. Used to key caches of payload digests,
+ * not to identify content on its own.
+ */
+public class ContentHash
+{
+    private static final long PRIME1 = 0x9E3779B185EBCA87L;
+    private static final long PRIME2 = 0xC2B2AE3D27D4EB4FL;
+    private static final long PRIME3 = 0x165667B19E3779F9L;
+    private static final long PRIME4 = 0x85EBCA77C2B2AE63L;
+    private static final long PRIME5 = 0x27D4EB2F165667C5L;
+
+    public static long hash64(byte[] data, int offset, int length, long seed)
+    {
+        int  end      = offset + length;
+        int  position = offset;
+        long hash;
+
+        if (length >= 32)
+        {
+            long value1 = seed + PRIME1 + PRIME2;
+            long value2 = seed + PRIME2;
+            long value3 = seed;
+            long value4 = seed - PRIME1;
+            int  limit  = end - 32;
+            while (position <= limit)
+            {
+                value1    = round(value1, getLong(data, position));
+                value2    = round(value2, getLong(data, position + 8));
+                value3    = round(value3, getLong(data, position + 16));
+                value4    = round(value4, getLong(data, position + 24));
+                position += 32;
+            }
+
+            hash = Long.rotateLeft(value1, 1) + Long.rotateLeft(value2, 7) + Long.rotateLeft(value3, 12) + Long.rotateLeft(value4, 18);
+            hash = mergeRound(hash, value1);
+            hash = mergeRound(hash, value2);
+            hash = mergeRound(hash, value3);
+            hash = mergeRound(hash, value4);
+        }
+        else
+            hash = seed + PRIME5;
+
+        hash += length;
+
+        while (position + 8 <= end)
+        {
+            hash ^= round(0L, getLong(data, position));
+            hash  = Long.rotateLeft(hash, 27) * PRIME1 + PRIME4;
+            position += 8;
+        }
+        if (position + 4 <= end)
+        {
+            hash ^= (getInt(data, position) & 0xFFFFFFFFL) * PRIME1;
+            hash  = Long.rotateLeft(hash, 23) * PRIME2 + PRIME3;
+            position += 4;
+        }
+        while (position < end)
+        {
+            hash ^= (data[position] & 0xFFL) * PRIME5;
+            hash  = Long.rotateLeft(hash, 11) * PRIME1;
+            position++;
+        }
+
+        hash ^= hash >>> 33;
+        hash *= PRIME2;
+        hash ^= hash >>> 29;
+        hash *= PRIME3;
+        hash ^= hash >>> 32;
+
+        return hash;
+    }
+
+    private static long round(long accumulator, long input)
+    {
+        accumulator += input * PRIME2;
+        accumulator  = Long.rotateLeft(accumulator, 31);
+
+        return accumulator * PRIME1;
+    }
+
+    private static long mergeRound(long accumulator, long value)
+    {
+        accumulator ^= round(0L, value);
+
+        return accumulator * PRIME1 + PRIME4;
+    }
+
+    private static long getLong(byte[] data, int position)
+    {
+        return (data[position] & 0xFFL) | ((data[position + 1] & 0xFFL) << 8) | ((data[position + 2] & 0xFFL) << 16) | ((data[position + 3] & 0xFFL) << 24)
+               | ((data[position + 4] & 0xFFL) << 32) | ((data[position + 5] & 0xFFL) << 40) | ((data[position + 6] & 0xFFL) << 48) | ((data[position + 7] & 0xFFL) << 56);
+    }
+
+    private static int getInt(byte[] data, int position)
+    {
+        return (data[position] & 0xFF) | ((data[position + 1] & 0xFF) << 8) | ((data[position + 2] & 0xFF) << 16) | ((data[position + 3] & 0xFF) << 24);
+    }
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright (c) 2015, Arjuna Technologies Limited, Newcastle-upon-Tyne, England. All rights reserved.
+ */
+
+package com.arjuna.dbplugins.azure.storage;
+
+/**
+ * Prefixes names with hex digits of a hash of the rest of the name. Blob storage partitions
+ * by key range, so names sharing a prefix, such as sequential or time bucketed ones, put all
+ * writes on one partition server; a hash prefix spreads them over 16^width ranges.
+ */
+public class HashPrefixBlobNamingStrategy implements BlobNamingStrategy
+{
+    public HashPrefixBlobNamingStrategy(int width, BlobNamingStrategy blobNamingStrategy)
+    {
+        _width              = Math.max(1, Math.min(width, 16));
+        _blobNamingStrategy = blobNamingStrategy;
+    }
+
+    @Override
+    public void appendBlobName(StringBuilder blobName)
+    {
+        int start = blobName.length();
+        _blobNamingStrategy.appendBlobName(blobName);
+
+        // FNV-1a over the appended characters, finished with the MurmurHash3 mixer
+        long hash = 0xCBF29CE484222325L;
+        for (int index = start; index < blobName.length(); index++)
+        {
+            hash ^= blobName.charAt(index);
+            hash *= 0x100000001B3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xFF51AFD7ED558CCDL;
+        hash ^= hash >>> 33;
+
+        // StringBuilder.insert shifts the name within the builder, it does not allocate
+        for (int index = 0; index < _width; index++)
+            blobName.insert(start + index, BlobNamer.HEX_DIGITS[(int) (hash >>> (4 * (_width - 1 - index))) & 0x0F]);
+        blobName.insert(start + _width, '/');
+    }
+
+    private int                _width;
+    private BlobNamingStrategy _blobNamingStrategy;
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright (c) 2015, Arjuna Technologies Limited, Newcastle-upon-Tyne, England. All rights reserved.
+ */
+
+package com.arjuna.dbplugins.azure.storage;
+
+import java.util.Date;
+
+public class QueueMessage
+{
+    public QueueMessage(byte[] data, String messageId, int dequeueCount, Date insertionTime)
+    {
+        _data          = data;
+        _messageId     = messageId;
+        _dequeueCount  = dequeueCount;
+        _insertionTime = insertionTime;
+    }
+
+    public byte[] getData()
+    {
+        return _data;
+    }
+
+    public String getMessageId()
+    {
+        return _messageId;
+    }
+
+    public int getDequeueCount()
+    {
+        return _dequeueCount;
+    }
+
+    public Date getInsertionTime()
+    {
+        return _insertionTime;
+    }
+
+    private byte[] _data;
+    private String _messageId;
+    private int    _dequeueCount;
+    private Date   _insertionTime;
+}
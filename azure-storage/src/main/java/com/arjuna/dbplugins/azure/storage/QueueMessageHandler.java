@@ -0,0 +1,10 @@
+/*
+ * Copyright (c) 2015, Arjuna Technologies Limited, Newcastle-upon-Tyne, England. All rights reserved.
+ */
+
+package com.arjuna.dbplugins.azure.storage;
+
+public interface QueueMessageHandler
+{
+    public void received(QueueMessage queueMessage);
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright (c) 2015, Arjuna Technologies Limited, Newcastle-upon-Tyne, England. All rights reserved.
+ */
+
+package com.arjuna.dbplugins.azure.storage;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import com.arjuna.dbplugins.azure.common.ResilientExecutor;
+import com.arjuna.dbplugins.azure.common.ServiceMetrics;
+import com.arjuna.dbplugins.azure.common.SpillJournal;
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.queue.CloudQueue;
+import com.microsoft.azure.storage.queue.CloudQueueMessage;
+
+/**
+ * Adds messages to a queue on a pool of threads, so callers do not wait for each request.
+ * Messages accepted but not yet added are bounded by the maximum in flight, beyond which
+ * callers wait. Messages are sent base64 encoded, so one whose content is over 48 KiB, 64 KiB
+ * once encoded, is rejected when offered. A message that still fails transiently once the
+ * executor's retries are exhausted is appended to the spill journal, if there is one, and
+ * added again when replayed.
+ */
+public class QueueSender
+{
+    private static final Logger logger = Logger.getLogger(QueueSender.class.getName());
+
+    public static final int MAX_MESSAGE_BYTES = 48 * 1024;
+
+    public QueueSender(final String name, CloudQueue queue, int concurrency, int maxInFlight, SpillJournal spillJournal, ResilientExecutor resilientExecutor, ServiceMetrics metrics)
+    {
+        _queue             = queue;
+        _maxInFlight       = Math.max(maxInFlight, concurrency);
+        _spillJournal      = spillJournal;
+        _resilientExecutor = resilientExecutor;
+        _metrics           = metrics;
+        _inFlightPermits   = new Semaphore(_maxInFlight);
+        _sentCount         = new AtomicLong();
+        _spilledCount      = new AtomicLong();
+        _failedCount       = new AtomicLong();
+
+        _executorService = Executors.newFixedThreadPool(concurrency, new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable runnable)
+            {
+                Thread thread = new Thread(runnable, "AzureQueueSender-" + name + "-" + _threadCount.getAndIncrement());
+                thread.setDaemon(true);
+
+                return thread;
+            }
+
+            private AtomicInteger _threadCount = new AtomicInteger();
+        });
+    }
+
+    public void send(final byte[] data)
+        throws InterruptedException
+    {
+        if (data.length > MAX_MESSAGE_BYTES)
+        {
+            logger.log(Level.WARNING, "Azure queue message of " + data.length + " bytes over the " + MAX_MESSAGE_BYTES + " byte limit, not sent");
+            _failedCount.incrementAndGet();
+            return;
+        }
+
+        _inFlightPermits.acquire();
+        try
+        {
+            _executorService.execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        add(data);
+                    }
+                    finally
+                    {
+                        _inFlightPermits.release();
+                    }
+                }
+            });
+        }
+        catch (RejectedExecutionException rejectedExecutionException)
+        {
+            _inFlightPermits.release();
+            logger.log(Level.WARNING, "Azure queue sender shut down, message not sent");
+            _failedCount.incrementAndGet();
+        }
+    }
+
+    public int getInFlightCount()
+    {
+        return _maxInFlight - _inFlightPermits.availablePermits();
+    }
+
+    public long getSentCount()
+    {
+        return _sentCount.get();
+    }
+
+    public long getSpilledCount()
+    {
+        return _spilledCount.get();
+    }
+
+    public long getFailedCount()
+    {
+        return _failedCount.get();
+    }
+
+    public void replay(byte[] record)
+        throws StorageException
+    {
+        _queue.addMessage(new CloudQueueMessage(record));
+        _sentCount.incrementAndGet();
+    }
+
+    public void shutdown(long timeout)
+    {
+        _executorService.shutdown();
+        try
+        {
+            if (! _executorService.awaitTermination(timeout, TimeUnit.MILLISECONDS))
+            {
+                int unsent = _executorService.shutdownNow().size();
+                logger.log(Level.WARNING, "Azure queue sender shutdown timed out, " + unsent + " messages not sent");
+            }
+        }
+        catch (InterruptedException interruptedException)
+        {
+            _executorService.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void add(final byte[] data)
+    {
+        long startTime = _metrics.startRequest();
+        try
+        {
+            _resilientExecutor.execute(new Callable<Void>()
+            {
+                @Override
+                public Void call()
+                    throws StorageException
+                {
+                    _queue.addMessage(new CloudQueueMessage(data));
+
+                    return null;
+                }
+            });
+            _metrics.recordSuccess(startTime);
+            _sentCount.incrementAndGet();
+        }
+        catch (Throwable throwable)
+        {
+            _metrics.recordFailure(startTime, failureCause(throwable));
+            if ((_spillJournal != null) && _resilientExecutor.isTransient(throwable) && spill(data))
+            {
+                logger.log(Level.FINE, "Spilled Azure queue message after failure", throwable);
+                _spilledCount.incrementAndGet();
+            }
+            else
+            {
+                logger.log(Level.WARNING, "Problems adding Azure queue message", throwable);
+                _failedCount.incrementAndGet();
+            }
+        }
+    }
+
+    private boolean spill(byte[] data)
+    {
+        try
+        {
+            return _spillJournal.append(data);
+        }
+        catch (IOException ioException)
+        {
+            logger.log(Level.WARNING, "Problems spilling Azure queue message", ioException);
+            return false;
+        }
+    }
+
+    private static String failureCause(Throwable throwable)
+    {
+        Throwable cause = throwable;
+        while ((cause != null) && (! (cause instanceof StorageException)))
+            cause = cause.getCause();
+
+        if (cause != null)
+            return "HTTP " + ((StorageException) cause).getHttpStatusCode();
+        else
+            return ServiceMetrics.causeOf(throwable);
+    }
+
+    private CloudQueue        _queue;
+    private int               _maxInFlight;
+    private SpillJournal      _spillJournal;
+    private ResilientExecutor _resilientExecutor;
+    private ServiceMetrics    _metrics;
+    private Semaphore         _inFlightPermits;
+    private AtomicLong        _sentCount;
+    private AtomicLong        _spilledCount;
+    private AtomicLong        _failedCount;
+    private ExecutorService   _executorService;
+}
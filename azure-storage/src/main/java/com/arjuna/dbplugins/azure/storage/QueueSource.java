@@ -0,0 +1,481 @@
+/*
+ * Copyright (c) 2015, Arjuna Technologies Limited, Newcastle-upon-Tyne, England. All rights reserved.
+ */
+
+package com.arjuna.dbplugins.azure.storage;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import com.arjuna.dbplugins.azure.common.ResilientExecutor;
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.queue.CloudQueue;
+import com.microsoft.azure.storage.queue.CloudQueueMessage;
+
+/**
+ * Receives messages from a queue, 32 at a time, the most a single call may return, with
+ * several receive calls in flight at once, and emits them on a single thread. Received
+ * messages not yet emitted are bounded by the prefetch depth. Once emitted, a message is
+ * deleted by a pool of threads, off the emitting thread, so deletes are pipelined rather than
+ * each waiting on the next emit. Messages held for more than half the visibility timeout,
+ * waiting to be emitted, being emitted or waiting to be deleted, have their visibility
+ * extended by the same pool, so they are not delivered again while still held. A message
+ * that fails to emit is left to become visible again, so delivery is at least once.
+ */
+public class QueueSource
+{
+    private static final Logger logger = Logger.getLogger(QueueSource.class.getName());
+
+    public static final int MAX_RECEIVE_MESSAGES = 32;
+
+    private static final long POLL_INTERVAL = 1000L;
+
+    public QueueSource(String name, CloudQueue queue, int receiveConcurrency, int prefetchDepth, long visibilityTimeout, int deleteConcurrency, long pollInterval, ResilientExecutor resilientExecutor, QueueMessageHandler queueMessageHandler)
+    {
+        _queue               = queue;
+        _prefetchDepth       = Math.max(prefetchDepth, MAX_RECEIVE_MESSAGES);
+        _visibilityTimeout   = Math.max(visibilityTimeout, 1000L);
+        _pollInterval        = pollInterval;
+        _resilientExecutor   = resilientExecutor;
+        _queueMessageHandler = queueMessageHandler;
+        _prefetchPermits     = new Semaphore(_prefetchDepth);
+        _readyQueue          = new LinkedBlockingQueue<PendingMessage>();
+        _heldMessages        = Collections.newSetFromMap(new ConcurrentHashMap<PendingMessage, Boolean>());
+        _receivedCount       = new AtomicLong();
+        _emittedCount        = new AtomicLong();
+        _deletedCount        = new AtomicLong();
+        _extendedCount       = new AtomicLong();
+        _failedCount         = new AtomicLong();
+        _pollLock            = new Object();
+        _running             = true;
+
+        _receiveExecutor = Executors.newFixedThreadPool(receiveConcurrency, new SourceThreadFactory("AzureQueueReceiver-" + name));
+        _deleteExecutor  = Executors.newFixedThreadPool(deleteConcurrency, new SourceThreadFactory("AzureQueueDeleter-" + name));
+        _extendExecutor  = Executors.newSingleThreadScheduledExecutor(new SourceThreadFactory("AzureQueueExtender-" + name));
+
+        _emitter = new Thread(new Emitter(), "AzureQueueEmitter-" + name);
+        _emitter.setDaemon(true);
+        _emitter.start();
+
+        for (int receiverIndex = 0; receiverIndex < receiveConcurrency; receiverIndex++)
+            _receiveExecutor.execute(new Receiver());
+
+        long extendInterval = _visibilityTimeout / 4;
+        _extendExecutor.scheduleWithFixedDelay(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                extendVisibility();
+            }
+        }, extendInterval, extendInterval, TimeUnit.MILLISECONDS);
+    }
+
+    public long getReceivedCount()
+    {
+        return _receivedCount.get();
+    }
+
+    public long getEmittedCount()
+    {
+        return _emittedCount.get();
+    }
+
+    public long getDeletedCount()
+    {
+        return _deletedCount.get();
+    }
+
+    public long getExtendedCount()
+    {
+        return _extendedCount.get();
+    }
+
+    public long getFailedCount()
+    {
+        return _failedCount.get();
+    }
+
+    public int getPrefetchCount()
+    {
+        return _prefetchDepth - _prefetchPermits.availablePermits();
+    }
+
+    public void shutdown(long timeout)
+    {
+        _running = false;
+        synchronized (_pollLock)
+        {
+            _pollLock.notifyAll();
+        }
+
+        long deadline = System.currentTimeMillis() + timeout;
+        _receiveExecutor.shutdown();
+        _extendExecutor.shutdownNow();
+        try
+        {
+            if (! _receiveExecutor.awaitTermination(Math.max(0L, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS))
+                _receiveExecutor.shutdownNow();
+
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining > 0)
+                _emitter.join(remaining);
+            if (_emitter.isAlive())
+                _emitter.interrupt();
+
+            // Deletes of emitted messages are completed, so they are not delivered again
+            _deleteExecutor.shutdown();
+            if (! _deleteExecutor.awaitTermination(Math.max(0L, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS))
+                _deleteExecutor.shutdownNow();
+        }
+        catch (InterruptedException interruptedException)
+        {
+            _receiveExecutor.shutdownNow();
+            _deleteExecutor.shutdownNow();
+            _emitter.interrupt();
+            Thread.currentThread().interrupt();
+        }
+
+        // Messages not yet emitted become visible again once their visibility timeout passes
+        _readyQueue.clear();
+        _heldMessages.clear();
+    }
+
+    private int receive()
+        throws Exception
+    {
+        Iterable<CloudQueueMessage> messages = _resilientExecutor.executeOnce(new Callable<Iterable<CloudQueueMessage>>()
+        {
+            @Override
+            public Iterable<CloudQueueMessage> call()
+                throws StorageException
+            {
+                return _queue.retrieveMessages(MAX_RECEIVE_MESSAGES, (int) (_visibilityTimeout / 1000L), null, null);
+            }
+        });
+
+        int  received     = 0;
+        long visibleUntil = System.currentTimeMillis() + _visibilityTimeout;
+        for (CloudQueueMessage message: messages)
+        {
+            PendingMessage pendingMessage = new PendingMessage(message, visibleUntil);
+            _heldMessages.add(pendingMessage);
+            _readyQueue.add(pendingMessage);
+            received++;
+        }
+        _receivedCount.addAndGet(received);
+
+        return received;
+    }
+
+    private void submitDelete(final PendingMessage pendingMessage)
+    {
+        try
+        {
+            _deleteExecutor.execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    delete(pendingMessage);
+                }
+            });
+        }
+        catch (RejectedExecutionException rejectedExecutionException)
+        {
+            logger.log(Level.FINE, "Queue message not deleted, shutting down: " + pendingMessage.message.getMessageId());
+            _heldMessages.remove(pendingMessage);
+        }
+    }
+
+    // Updating a message replaces its pop receipt, so a delete requested while an extend is in flight is left to the extend
+    private void delete(final PendingMessage pendingMessage)
+    {
+        synchronized (pendingMessage)
+        {
+            pendingMessage.deleting = true;
+            if (pendingMessage.extending)
+                return;
+        }
+
+        try
+        {
+            _resilientExecutor.execute(new Callable<Void>()
+            {
+                @Override
+                public Void call()
+                    throws StorageException
+                {
+                    _queue.deleteMessage(pendingMessage.message);
+
+                    return null;
+                }
+            });
+            _deletedCount.incrementAndGet();
+        }
+        catch (Throwable throwable)
+        {
+            logger.log(Level.WARNING, "Problems deleting queue message: " + pendingMessage.message.getMessageId() + ", may be delivered again", throwable);
+            _failedCount.incrementAndGet();
+        }
+        finally
+        {
+            _heldMessages.remove(pendingMessage);
+        }
+    }
+
+    private void extendVisibility()
+    {
+        long now = System.currentTimeMillis();
+        for (final PendingMessage pendingMessage: _heldMessages)
+        {
+            synchronized (pendingMessage)
+            {
+                if (pendingMessage.deleting || pendingMessage.extending || (pendingMessage.visibleUntil - now > _visibilityTimeout / 2))
+                    continue;
+                pendingMessage.extending = true;
+            }
+
+            try
+            {
+                _deleteExecutor.execute(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        extend(pendingMessage);
+                    }
+                });
+            }
+            catch (RejectedExecutionException rejectedExecutionException)
+            {
+                return;
+            }
+        }
+    }
+
+    private void extend(final PendingMessage pendingMessage)
+    {
+        try
+        {
+            if ((! pendingMessage.isDeleting()) && _heldMessages.contains(pendingMessage))
+            {
+                long visibleUntil = System.currentTimeMillis() + _visibilityTimeout;
+                _resilientExecutor.execute(new Callable<Void>()
+                {
+                    @Override
+                    public Void call()
+                        throws StorageException
+                    {
+                        _queue.updateMessage(pendingMessage.message, (int) (_visibilityTimeout / 1000L));
+
+                        return null;
+                    }
+                });
+                pendingMessage.visibleUntil = visibleUntil;
+                _extendedCount.incrementAndGet();
+            }
+        }
+        catch (Throwable throwable)
+        {
+            logger.log(Level.WARNING, "Problems extending visibility of queue message: " + pendingMessage.message.getMessageId(), throwable);
+            _failedCount.incrementAndGet();
+        }
+        finally
+        {
+            boolean deleting;
+            synchronized (pendingMessage)
+            {
+                pendingMessage.extending = false;
+                deleting                 = pendingMessage.deleting;
+            }
+
+            if (deleting)
+                delete(pendingMessage);
+        }
+    }
+
+    private boolean acquirePrefetch()
+        throws InterruptedException
+    {
+        while (_running)
+            if (_prefetchPermits.tryAcquire(MAX_RECEIVE_MESSAGES, POLL_INTERVAL, TimeUnit.MILLISECONDS))
+                return true;
+
+        return false;
+    }
+
+    private class Receiver implements Runnable
+    {
+        @Override
+        public void run()
+        {
+            long delay = 0L;
+            try
+            {
+                while (acquirePrefetch())
+                {
+                    int received = 0;
+                    try
+                    {
+                        received = receive();
+                        delay    = 0L;
+                    }
+                    catch (InterruptedException interruptedException)
+                    {
+                        throw interruptedException;
+                    }
+                    catch (Throwable throwable)
+                    {
+                        if (! _running)
+                            break;
+
+                        _failedCount.incrementAndGet();
+                        if (_resilientExecutor.isTransient(throwable))
+                        {
+                            delay = _resilientExecutor.getRetryPolicy().nextDelay(delay);
+                            logger.log(Level.FINE, "Problems receiving queue messages, retrying in " + delay + "ms", throwable);
+                        }
+                        else
+                        {
+                            delay = _pollInterval;
+                            logger.log(Level.WARNING, "Problems receiving queue messages", throwable);
+                        }
+                    }
+                    finally
+                    {
+                        _prefetchPermits.release(MAX_RECEIVE_MESSAGES - received);
+                    }
+
+                    if (received == 0)
+                    {
+                        synchronized (_pollLock)
+                        {
+                            if (_running)
+                                _pollLock.wait((delay > 0L) ? delay : _pollInterval);
+                        }
+                    }
+                }
+            }
+            catch (InterruptedException interruptedException)
+            {
+                logger.log(Level.FINE, "Queue receiver interrupted");
+            }
+        }
+    }
+
+    private class Emitter implements Runnable
+    {
+        @Override
+        public void run()
+        {
+            try
+            {
+                while (_running)
+                {
+                    PendingMessage pendingMessage = _readyQueue.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+
+                    if (pendingMessage != null)
+                    {
+                        try
+                        {
+                            CloudQueueMessage message = pendingMessage.message;
+                            _queueMessageHandler.received(new QueueMessage(message.getMessageContentAsByte(), message.getMessageId(), message.getDequeueCount(), message.getInsertionTime()));
+                            _emittedCount.incrementAndGet();
+                            submitDelete(pendingMessage);
+                        }
+                        catch (Throwable throwable)
+                        {
+                            logger.log(Level.WARNING, "Problems emitting queue message: " + pendingMessage.message.getMessageId(), throwable);
+                            _failedCount.incrementAndGet();
+                            _heldMessages.remove(pendingMessage);
+                        }
+                        finally
+                        {
+                            _prefetchPermits.release();
+                        }
+                    }
+                }
+            }
+            catch (InterruptedException interruptedException)
+            {
+                logger.log(Level.FINE, "Queue emitter interrupted");
+            }
+        }
+    }
+
+    private static class PendingMessage
+    {
+        public PendingMessage(CloudQueueMessage message, long visibleUntil)
+        {
+            this.message      = message;
+            this.visibleUntil = visibleUntil;
+        }
+
+        public synchronized boolean isDeleting()
+        {
+            return deleting;
+        }
+
+        public final CloudQueueMessage message;
+        public volatile long           visibleUntil;
+        public boolean                 extending;
+        public boolean                 deleting;
+    }
+
+    private static class SourceThreadFactory implements ThreadFactory
+    {
+        public SourceThreadFactory(String name)
+        {
+            _name        = name;
+            _threadCount = new AtomicInteger();
+        }
+
+        @Override
+        public Thread newThread(Runnable runnable)
+        {
+            Thread thread = new Thread(runnable, _name + "-" + _threadCount.getAndIncrement());
+            thread.setDaemon(true);
+
+            return thread;
+        }
+
+        private String        _name;
+        private AtomicInteger _threadCount;
+    }
+
+    private CloudQueue                    _queue;
+    private int                           _prefetchDepth;
+    private long                          _visibilityTimeout;
+    private long                          _pollInterval;
+    private ResilientExecutor             _resilientExecutor;
+    private QueueMessageHandler           _queueMessageHandler;
+    private Semaphore                     _prefetchPermits;
+    private BlockingQueue<PendingMessage> _readyQueue;
+    private Set<PendingMessage>           _heldMessages;
+    private ExecutorService               _receiveExecutor;
+    private ExecutorService               _deleteExecutor;
+    private ScheduledExecutorService      _extendExecutor;
+    private Thread                        _emitter;
+    private AtomicLong                    _receivedCount;
+    private AtomicLong                    _emittedCount;
+    private AtomicLong                    _deletedCount;
+    private AtomicLong                    _extendedCount;
+    private AtomicLong                    _failedCount;
+    private Object                        _pollLock;
+    private volatile boolean              _running;
+}
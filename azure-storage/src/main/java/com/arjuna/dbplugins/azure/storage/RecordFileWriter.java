@@ -0,0 +1,691 @@
+/*
+ * Copyright (c) 2015, Arjuna Technologies Limited, Newcastle-upon-Tyne, England. All rights reserved.
+ */
+
+package com.arjuna.dbplugins.azure.storage;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import com.arjuna.dbplugins.azure.common.ResilientExecutor;
+import com.arjuna.dbplugins.azure.common.ServiceMetrics;
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.blob.BlockEntry;
+import com.microsoft.azure.storage.blob.BlockSearchMode;
+import com.microsoft.azure.storage.blob.CloudBlobContainer;
+import com.microsoft.azure.storage.blob.CloudBlockBlob;
+
+/**
+ * Writes records to rolling Avro files, one blob per file. Records are encoded into blocks of
+ * around the block size, and the encoded file is cut into staged blocks, uploaded by a pool of
+ * threads as each fills, so a file is never held whole in memory; the block list is committed
+ * when the file rolls, once it reaches the maximum size or has been open for the roll time. A
+ * record that does not fit the open file's schema also rolls it. The staged block buffers are
+ * pooled, so callers wait once they are all uploading.
+ *
+ * A file whose staging or commit fails transiently, once the executor's retries are exhausted,
+ * is kept and its commit retried on the roll check: blocks already staged stay uncommitted on
+ * the blob service, and copies of blocks that failed to stage are held, up to the maximum file
+ * size across all kept files, to be staged again. Files that cannot be kept are counted failed.
+ */
+public class RecordFileWriter
+{
+    private static final Logger logger = Logger.getLogger(RecordFileWriter.class.getName());
+
+    public static final String RESOURCESCHEMA_METADATA = "resourceSchema";
+    public static final String RECORDCOUNT_METADATA    = "recordCount";
+
+    private static final String AVRO_CONTENTTYPE    = "avro/binary";
+    private static final String AVRO_EXTENSION      = ".avro";
+    private static final int    MAX_SCHEMA_METADATA = 4 * 1024;
+    private static final int    MAX_BLOCKCOUNT      = 50000;
+    private static final long   MIN_CHECK_INTERVAL  = 10L;
+
+    public RecordFileWriter(final String name, CloudBlobContainer blobContainer, BlobNamer blobNamer, AvroBlockEncoder.Codec codec, int codecLevel, int encoderBlockSize, int stagedBlockSize, int stagingConcurrency, long maxFileBytes, long rollTime, ResilientExecutor resilientExecutor, ServiceMetrics metrics)
+    {
+        _blobContainer     = blobContainer;
+        _blobNamer         = blobNamer;
+        _codec             = codec;
+        _codecLevel        = codecLevel;
+        _encoderBlockSize  = encoderBlockSize;
+        _maxFileBytes      = Math.min(maxFileBytes, (MAX_BLOCKCOUNT - 1) * (long) stagedBlockSize);
+        _rollTime          = rollTime;
+        _resilientExecutor = resilientExecutor;
+        _metrics           = metrics;
+        _bufferPool        = new BlockBufferPool(stagedBlockSize, stagingConcurrency + 1);
+        _writtenCount      = new AtomicLong();
+        _fileCount         = new AtomicLong();
+        _failedCount       = new AtomicLong();
+        _unstagedBytes     = new AtomicLong();
+        _retainedFiles     = new LinkedList<RecordFile>();
+
+        _stagingExecutorService = Executors.newFixedThreadPool(stagingConcurrency, new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable runnable)
+            {
+                Thread thread = new Thread(runnable, "AzureRecordFileStager-" + name + "-" + _threadCount.getAndIncrement());
+                thread.setDaemon(true);
+
+                return thread;
+            }
+
+            private AtomicInteger _threadCount = new AtomicInteger();
+        });
+
+        _commitExecutorService = Executors.newSingleThreadExecutor(new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable runnable)
+            {
+                Thread thread = new Thread(runnable, "AzureRecordFileCommitter-" + name);
+                thread.setDaemon(true);
+
+                return thread;
+            }
+        });
+
+        _scheduledExecutorService = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable runnable)
+            {
+                Thread thread = new Thread(runnable, "AzureRecordFileRoller-" + name);
+                thread.setDaemon(true);
+
+                return thread;
+            }
+        });
+
+        long checkInterval = Math.max(rollTime / 4, MIN_CHECK_INTERVAL);
+        _scheduledExecutorService.scheduleWithFixedDelay(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                rollExpired();
+                commitRetained();
+            }
+        }, checkInterval, checkInterval, TimeUnit.MILLISECONDS);
+    }
+
+    public void setBlobContainer(CloudBlobContainer blobContainer)
+    {
+        _blobContainer = blobContainer;
+    }
+
+    public synchronized void add(Map<?, ?> record)
+        throws Exception
+    {
+        if ((_recordFile != null) && (! _recordFile.encoder.getRecordSchema().fits(record)))
+            roll();
+        if (_recordFile == null)
+            _recordFile = openRecordFile(RecordSchema.infer(record));
+
+        _recordFile.encoder.encode(record);
+        _recordFile.recordCount++;
+
+        if (_recordFile.encoder.getBlockLength() >= _encoderBlockSize)
+        {
+            try
+            {
+                _recordFile.encoder.writeBlock(_recordFile.output);
+            }
+            catch (IOException ioException)
+            {
+                _recordFile.output.failed(ioException);
+                roll();
+                throw ioException;
+            }
+
+            if (_recordFile.output.getLength() >= _maxFileBytes)
+                roll();
+        }
+    }
+
+    public synchronized void flush()
+    {
+        if (_recordFile != null)
+            roll();
+    }
+
+    public long getWrittenCount()
+    {
+        return _writtenCount.get();
+    }
+
+    public long getFileCount()
+    {
+        return _fileCount.get();
+    }
+
+    public long getFailedCount()
+    {
+        return _failedCount.get();
+    }
+
+    public synchronized long getOpenRecordCount()
+    {
+        return (_recordFile == null) ? 0L : _recordFile.recordCount;
+    }
+
+    public void shutdown(long timeout)
+    {
+        _scheduledExecutorService.shutdown();
+        try
+        {
+            _scheduledExecutorService.awaitTermination(_rollTime + MIN_CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+        }
+        catch (InterruptedException interruptedException)
+        {
+            Thread.currentThread().interrupt();
+        }
+
+        flush();
+        commitRetained();
+
+        _commitExecutorService.shutdown();
+        try
+        {
+            if (! _commitExecutorService.awaitTermination(timeout, TimeUnit.MILLISECONDS))
+            {
+                List<Runnable> uncommitted = _commitExecutorService.shutdownNow();
+                logger.log(Level.WARNING, "Azure record file writer shutdown timed out, " + uncommitted.size() + " files not committed");
+            }
+        }
+        catch (InterruptedException interruptedException)
+        {
+            _commitExecutorService.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+        _stagingExecutorService.shutdownNow();
+
+        synchronized (_retainedFiles)
+        {
+            for (RecordFile recordFile: _retainedFiles)
+            {
+                logger.log(Level.WARNING, "Azure record file writer shut down, " + recordFile.blobName + " not committed, " + recordFile.recordCount + " records not written");
+                recordFile.output.discard();
+                _failedCount.addAndGet(recordFile.recordCount);
+            }
+            _retainedFiles.clear();
+        }
+    }
+
+    private void rollExpired()
+    {
+        synchronized (this)
+        {
+            if ((_recordFile != null) && (System.currentTimeMillis() - _recordFile.openTime >= _rollTime))
+                roll();
+        }
+    }
+
+    private RecordFile openRecordFile(RecordSchema recordSchema)
+        throws Exception
+    {
+        CloudBlobContainer blobContainer = _blobContainer;
+        if (blobContainer == null)
+            throw new IllegalStateException("Unable to write Azure record file, not configured");
+
+        String         blobName  = _blobNamer.createBlobName() + AVRO_EXTENSION;
+        CloudBlockBlob blockBlob = blobContainer.getBlockBlobReference(blobName);
+
+        RecordFile recordFile = new RecordFile(blobName, blockBlob, new AvroBlockEncoder(recordSchema, _codec, _codecLevel));
+        recordFile.encoder.writeHeader(recordFile.output);
+
+        return recordFile;
+    }
+
+    // Called holding the lock, the file is detached so records go to a new file while it is committed
+    private void roll()
+    {
+        final RecordFile recordFile = _recordFile;
+        _recordFile = null;
+
+        try
+        {
+            recordFile.encoder.writeBlock(recordFile.output);
+            recordFile.output.close();
+        }
+        catch (Throwable throwable)
+        {
+            logger.log(Level.WARNING, "Problems staging Azure record file: " + recordFile.blobName, throwable);
+            recordFile.output.failed(throwable);
+        }
+        finally
+        {
+            recordFile.encoder.end();
+        }
+
+        submitCommit(recordFile);
+    }
+
+    private void commitRetained()
+    {
+        List<RecordFile> retainedFiles;
+        synchronized (_retainedFiles)
+        {
+            retainedFiles = new ArrayList<RecordFile>(_retainedFiles);
+            _retainedFiles.clear();
+        }
+
+        for (RecordFile recordFile: retainedFiles)
+            submitCommit(recordFile);
+    }
+
+    private void submitCommit(final RecordFile recordFile)
+    {
+        try
+        {
+            _commitExecutorService.execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    commit(recordFile);
+                }
+            });
+        }
+        catch (RejectedExecutionException rejectedExecutionException)
+        {
+            logger.log(Level.WARNING, "Azure record file writer shut down, " + recordFile.recordCount + " records not written");
+            recordFile.output.discard();
+            _failedCount.addAndGet(recordFile.recordCount);
+        }
+    }
+
+    private void commit(final RecordFile recordFile)
+    {
+        long startTime = _metrics.startRequest();
+        try
+        {
+            recordFile.output.awaitStaged();
+            if (recordFile.attemptCount > 0)
+            {
+                // The container may have been replaced, with a renewed SAS, since the file was opened
+                CloudBlobContainer blobContainer = _blobContainer;
+                if (blobContainer != null)
+                    recordFile.blockBlob = blobContainer.getBlockBlobReference(recordFile.blobName);
+                recordFile.output.restage(recordFile.blockBlob);
+            }
+            else if (recordFile.output.hasUnstagedBlocks())
+                throw new IOException("Unable to stage record file blocks", recordFile.output.getStagingFailure());
+
+            RecordSchema            recordSchema = recordFile.encoder.getRecordSchema();
+            HashMap<String, String> metadata     = new HashMap<String, String>();
+            metadata.put("resourceFormat", AvroBlockEncoder.AVRO_FORMAT);
+            metadata.put(RECORDCOUNT_METADATA, Long.toString(recordFile.recordCount));
+            if (recordSchema.toJSON().length() <= MAX_SCHEMA_METADATA)
+                metadata.put(RESOURCESCHEMA_METADATA, recordSchema.toJSON());
+            else
+                logger.log(Level.FINE, "Schema too large for blob metadata, only in file header: " + recordFile.blobName);
+            recordFile.blockBlob.setMetadata(metadata);
+            recordFile.blockBlob.getProperties().setContentType(AVRO_CONTENTTYPE);
+
+            _resilientExecutor.execute(new Callable<Void>()
+            {
+                @Override
+                public Void call()
+                    throws StorageException
+                {
+                    recordFile.blockBlob.commitBlockList(recordFile.output.getBlockEntries());
+
+                    return null;
+                }
+            });
+            _metrics.recordBytes(recordFile.output.getLength());
+            _metrics.recordSuccess(startTime);
+            _writtenCount.addAndGet(recordFile.recordCount);
+            _fileCount.incrementAndGet();
+        }
+        catch (Throwable throwable)
+        {
+            _metrics.recordFailure(startTime, failureCause(throwable));
+            recordFile.attemptCount++;
+            if (recordFile.output.isRecoverable() && _resilientExecutor.isTransient(throwable) && retain(recordFile))
+                logger.log(Level.WARNING, "Problems writing Azure record file: " + recordFile.blobName + ", commit will be retried", throwable);
+            else
+            {
+                logger.log(Level.WARNING, "Problems writing Azure record file: " + recordFile.blobName + ", " + recordFile.recordCount + " records not written", throwable);
+                recordFile.output.discard();
+                _failedCount.addAndGet(recordFile.recordCount);
+            }
+        }
+    }
+
+    private boolean retain(RecordFile recordFile)
+    {
+        synchronized (_retainedFiles)
+        {
+            if (_commitExecutorService.isShutdown())
+                return false;
+
+            _retainedFiles.add(recordFile);
+            return true;
+        }
+    }
+
+    private static String failureCause(Throwable throwable)
+    {
+        Throwable cause = throwable;
+        while ((cause != null) && (! (cause instanceof StorageException)))
+            cause = cause.getCause();
+
+        if (cause != null)
+            return "HTTP " + ((StorageException) cause).getHttpStatusCode();
+        else
+            return ServiceMetrics.causeOf(throwable);
+    }
+
+    private class RecordFile
+    {
+        public RecordFile(String blobName, CloudBlockBlob blockBlob, AvroBlockEncoder encoder)
+        {
+            this.blobName  = blobName;
+            this.blockBlob = blockBlob;
+            this.encoder   = encoder;
+            this.output    = new StagingOutputStream(blockBlob);
+            this.openTime  = System.currentTimeMillis();
+        }
+
+        public String              blobName;
+        public CloudBlockBlob      blockBlob;
+        public AvroBlockEncoder    encoder;
+        public StagingOutputStream output;
+        public long                openTime;
+        public long                recordCount;
+        public int                 attemptCount;
+    }
+
+    // Cuts the file into pooled buffers, each uploaded as an uncommitted block once full
+    private class StagingOutputStream extends OutputStream
+    {
+        public StagingOutputStream(CloudBlockBlob blockBlob)
+        {
+            _blockBlob      = blockBlob;
+            _blockEntries   = new ArrayList<BlockEntry>();
+            _futures        = new ArrayList<Future<Void>>();
+            _unstagedBlocks = new LinkedHashMap<String, byte[]>();
+            _length         = 0L;
+        }
+
+        public long getLength()
+        {
+            return _length;
+        }
+
+        public List<BlockEntry> getBlockEntries()
+        {
+            return _blockEntries;
+        }
+
+        @Override
+        public void write(int value)
+            throws IOException
+        {
+            write(new byte[] { (byte) value }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] data, int offset, int length)
+            throws IOException
+        {
+            while (length > 0)
+            {
+                if (_buffer == null)
+                    _buffer = acquireBuffer();
+
+                int count = Math.min(length, _buffer.length - _bufferLength);
+                System.arraycopy(data, offset, _buffer, _bufferLength, count);
+                _bufferLength += count;
+                _length       += count;
+                offset        += count;
+                length        -= count;
+
+                if (_bufferLength == _buffer.length)
+                    stage();
+            }
+        }
+
+        @Override
+        public void close()
+            throws IOException
+        {
+            if (_bufferLength > 0)
+                stage();
+            else if (_buffer != null)
+                _bufferPool.release(_buffer);
+            _buffer = null;
+        }
+
+        public void failed(Throwable throwable)
+        {
+            if (_failure == null)
+                _failure = throwable;
+            if (_buffer != null)
+                _bufferPool.release(_buffer);
+            _buffer = null;
+        }
+
+        public void awaitStaged()
+            throws IOException, InterruptedException
+        {
+            for (Future<Void> future: _futures)
+            {
+                try
+                {
+                    future.get();
+                }
+                catch (ExecutionException executionException)
+                {
+                    if (_failure == null)
+                        _failure = executionException.getCause();
+                }
+            }
+            _futures.clear();
+
+            if (_failure != null)
+                throw new IOException("Unable to stage record file blocks", _failure);
+        }
+
+        // False once a block has been lost, rather than kept to be staged again
+        public boolean isRecoverable()
+        {
+            return (_failure == null);
+        }
+
+        public boolean hasUnstagedBlocks()
+        {
+            synchronized (_unstagedBlocks)
+            {
+                return ! _unstagedBlocks.isEmpty();
+            }
+        }
+
+        public Throwable getStagingFailure()
+        {
+            return _stagingFailure;
+        }
+
+        public void restage(final CloudBlockBlob blockBlob)
+            throws Exception
+        {
+            List<Map.Entry<String, byte[]>> unstagedBlocks;
+            synchronized (_unstagedBlocks)
+            {
+                unstagedBlocks = new ArrayList<Map.Entry<String, byte[]>>(_unstagedBlocks.entrySet());
+            }
+
+            for (Map.Entry<String, byte[]> unstagedBlock: unstagedBlocks)
+            {
+                final String blockId = unstagedBlock.getKey();
+                final byte[] data    = unstagedBlock.getValue();
+                _resilientExecutor.execute(new Callable<Void>()
+                {
+                    @Override
+                    public Void call()
+                        throws StorageException, IOException
+                    {
+                        blockBlob.uploadBlock(blockId, new ByteArrayInputStream(data), data.length);
+
+                        return null;
+                    }
+                });
+
+                synchronized (_unstagedBlocks)
+                {
+                    _unstagedBlocks.remove(blockId);
+                }
+                _unstagedBytes.addAndGet(- data.length);
+            }
+        }
+
+        public void discard()
+        {
+            synchronized (_unstagedBlocks)
+            {
+                for (byte[] data: _unstagedBlocks.values())
+                    _unstagedBytes.addAndGet(- data.length);
+                _unstagedBlocks.clear();
+            }
+        }
+
+        // Keeps a copy of a block whose staging failed transiently, within the limit on held bytes
+        private boolean retainBlock(String blockId, byte[] buffer, int bufferLength, Throwable throwable)
+        {
+            if (! _resilientExecutor.isTransient(throwable))
+                return false;
+            if (_unstagedBytes.addAndGet(bufferLength) > _maxFileBytes)
+            {
+                _unstagedBytes.addAndGet(- bufferLength);
+                return false;
+            }
+
+            synchronized (_unstagedBlocks)
+            {
+                _unstagedBlocks.put(blockId, Arrays.copyOf(buffer, bufferLength));
+            }
+            _stagingFailure = throwable;
+
+            return true;
+        }
+
+        private byte[] acquireBuffer()
+            throws IOException
+        {
+            try
+            {
+                return _bufferPool.acquire();
+            }
+            catch (InterruptedException interruptedException)
+            {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted waiting for staging buffer", interruptedException);
+            }
+        }
+
+        private void stage()
+            throws IOException
+        {
+            final byte[] buffer       = _buffer;
+            final int    bufferLength = _bufferLength;
+            final String blockId      = BlockBlobUploader.createBlockId(_blockEntries.size());
+            _buffer       = null;
+            _bufferLength = 0;
+
+            _blockEntries.add(new BlockEntry(blockId, BlockSearchMode.UNCOMMITTED));
+            try
+            {
+                _futures.add(_stagingExecutorService.submit(new Callable<Void>()
+                {
+                    @Override
+                    public Void call()
+                        throws Exception
+                    {
+                        try
+                        {
+                            _resilientExecutor.execute(new Callable<Void>()
+                            {
+                                @Override
+                                public Void call()
+                                    throws StorageException, IOException
+                                {
+                                    _blockBlob.uploadBlock(blockId, new ByteArrayInputStream(buffer, 0, bufferLength), bufferLength);
+
+                                    return null;
+                                }
+                            });
+                        }
+                        catch (Exception exception)
+                        {
+                            if (! retainBlock(blockId, buffer, bufferLength, exception))
+                                throw exception;
+                        }
+                        finally
+                        {
+                            _bufferPool.release(buffer);
+                        }
+
+                        return null;
+                    }
+                }));
+            }
+            catch (RejectedExecutionException rejectedExecutionException)
+            {
+                _bufferPool.release(buffer);
+                throw new IOException("Azure record file writer shut down", rejectedExecutionException);
+            }
+        }
+
+        private CloudBlockBlob      _blockBlob;
+        private List<BlockEntry>    _blockEntries;
+        private List<Future<Void>>  _futures;
+        private Map<String, byte[]> _unstagedBlocks;
+        private byte[]              _buffer;
+        private int                 _bufferLength;
+        private long                _length;
+        private volatile Throwable  _failure;
+        private volatile Throwable  _stagingFailure;
+    }
+
+    private volatile CloudBlobContainer _blobContainer;
+    private BlobNamer                   _blobNamer;
+    private AvroBlockEncoder.Codec      _codec;
+    private int                         _codecLevel;
+    private int                         _encoderBlockSize;
+    private long                        _maxFileBytes;
+    private long                        _rollTime;
+    private ResilientExecutor           _resilientExecutor;
+    private ServiceMetrics              _metrics;
+    private BlockBufferPool             _bufferPool;
+    private AtomicLong                  _writtenCount;
+    private AtomicLong                  _fileCount;
+    private AtomicLong                  _failedCount;
+    private AtomicLong                  _unstagedBytes;
+    private List<RecordFile>            _retainedFiles;
+    private RecordFile                  _recordFile;
+    private ExecutorService             _stagingExecutorService;
+    private ExecutorService             _commitExecutorService;
+    private ScheduledExecutorService    _scheduledExecutorService;
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright (c) 2015, Arjuna Technologies Limited, Newcastle-upon-Tyne, England. All rights reserved.
+ */
+
+package com.arjuna.dbplugins.azure.storage;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The Avro schema of a rolling file, inferred from the first record written to it. Every field
+ * is a union of null and the type of the record's value, so later records may omit fields; a
+ * record with a field the schema does not have, or a value its field cannot hold, does not fit.
+ * Keys are made into valid Avro names, and values of types Avro has no equivalent for are
+ * written as strings, maps, collections and arrays as JSON. Byte arrays only fit bytes fields,
+ * so a record with bytes where the schema has a string starts a new file.
+ */
+public class RecordSchema
+{
+    public static final String RECORD_NAME = "Record";
+
+    public enum FieldType
+    {
+        BOOLEAN("boolean"),
+        INT("int"),
+        LONG("long"),
+        FLOAT("float"),
+        DOUBLE("double"),
+        BYTES("bytes"),
+        TIMESTAMP("{\"type\":\"long\",\"logicalType\":\"timestamp-millis\"}"),
+        STRING("string");
+
+        private FieldType(String avroType)
+        {
+            _avroType = avroType;
+        }
+
+        public String getAvroType()
+        {
+            return _avroType;
+        }
+
+        private String _avroType;
+    }
+
+    public static RecordSchema infer(Map<?, ?> record)
+    {
+        List<String>    keys       = new ArrayList<String>(record.size());
+        List<String>    fieldNames = new ArrayList<String>(record.size());
+        List<FieldType> fieldTypes = new ArrayList<FieldType>(record.size());
+        Set<String>     usedNames  = new HashSet<String>();
+        for (Map.Entry<?, ?> entry: record.entrySet())
+        {
+            String key       = String.valueOf(entry.getKey());
+            String fieldName = createFieldName(key);
+            for (int suffix = 1; usedNames.contains(fieldName); suffix++)
+                fieldName = createFieldName(key) + "_" + suffix;
+            usedNames.add(fieldName);
+
+            keys.add(key);
+            fieldNames.add(fieldName);
+            fieldTypes.add(fieldTypeOf(entry.getValue()));
+        }
+
+        return new RecordSchema(keys, fieldNames, fieldTypes);
+    }
+
+    public static FieldType fieldTypeOf(Object value)
+    {
+        if (value instanceof Boolean)
+            return FieldType.BOOLEAN;
+        else if ((value instanceof Integer) || (value instanceof Short) || (value instanceof Byte))
+            return FieldType.INT;
+        else if (value instanceof Long)
+            return FieldType.LONG;
+        else if (value instanceof Float)
+            return FieldType.FLOAT;
+        else if (value instanceof Double)
+            return FieldType.DOUBLE;
+        else if (value instanceof byte[])
+            return FieldType.BYTES;
+        else if (value instanceof Date)
+            return FieldType.TIMESTAMP;
+        else
+            return FieldType.STRING;
+    }
+
+    private RecordSchema(List<String> keys, List<String> fieldNames, List<FieldType> fieldTypes)
+    {
+        _keys       = Collections.unmodifiableList(keys);
+        _fieldNames = Collections.unmodifiableList(fieldNames);
+        _fieldTypes = Collections.unmodifiableList(fieldTypes);
+        _keyIndexes = new HashMap<String, Integer>();
+        for (int fieldIndex = 0; fieldIndex < keys.size(); fieldIndex++)
+            _keyIndexes.put(keys.get(fieldIndex), fieldIndex);
+        _json       = createJSON();
+    }
+
+    public int getFieldCount()
+    {
+        return _keys.size();
+    }
+
+    public String getKey(int fieldIndex)
+    {
+        return _keys.get(fieldIndex);
+    }
+
+    public FieldType getFieldType(int fieldIndex)
+    {
+        return _fieldTypes.get(fieldIndex);
+    }
+
+    public String toJSON()
+    {
+        return _json;
+    }
+
+    public boolean fits(Map<?, ?> record)
+    {
+        for (Map.Entry<?, ?> entry: record.entrySet())
+        {
+            Integer fieldIndex = _keyIndexes.get(String.valueOf(entry.getKey()));
+            if (fieldIndex == null)
+                return false;
+
+            if ((entry.getValue() != null) && (! accepts(_fieldTypes.get(fieldIndex), fieldTypeOf(entry.getValue()))))
+                return false;
+        }
+
+        return true;
+    }
+
+    // As Avro's type promotion, a wider numeric field takes narrower values, and any value but bytes may be written as a string
+    private static boolean accepts(FieldType fieldType, FieldType valueType)
+    {
+        if (fieldType == valueType)
+            return true;
+        else if (fieldType == FieldType.STRING)
+            return valueType != FieldType.BYTES;
+        else if (fieldType == FieldType.LONG)
+            return valueType == FieldType.INT;
+        else if (fieldType == FieldType.DOUBLE)
+            return (valueType == FieldType.INT) || (valueType == FieldType.LONG) || (valueType == FieldType.FLOAT);
+        else if (fieldType == FieldType.FLOAT)
+            return (valueType == FieldType.INT) || (valueType == FieldType.LONG);
+        else
+            return false;
+    }
+
+    private String createJSON()
+    {
+        StringBuilder json = new StringBuilder();
+        json.append("{\"type\":\"record\",\"name\":\"").append(RECORD_NAME).append("\",\"fields\":[");
+        for (int fieldIndex = 0; fieldIndex < _fieldNames.size(); fieldIndex++)
+        {
+            if (fieldIndex > 0)
+                json.append(',');
+            json.append("{\"name\":\"").append(_fieldNames.get(fieldIndex)).append("\",\"type\":[\"null\",").append(avroTypeJSON(_fieldTypes.get(fieldIndex))).append("],\"default\":null}");
+        }
+        json.append("]}");
+
+        return json.toString();
+    }
+
+    private static String avroTypeJSON(FieldType fieldType)
+    {
+        if (fieldType.getAvroType().startsWith("{"))
+            return fieldType.getAvroType();
+        else
+            return "\"" + fieldType.getAvroType() + "\"";
+    }
+
+    private static String createFieldName(String key)
+    {
+        StringBuilder fieldName = new StringBuilder(key.length() + 1);
+        for (int index = 0; index < key.length(); index++)
+        {
+            char character = key.charAt(index);
+            if (((character >= 'A') && (character <= 'Z')) || ((character >= 'a') && (character <= 'z')) || (character == '_') || ((character >= '0') && (character <= '9')))
+                fieldName.append(character);
+            else
+                fieldName.append('_');
+        }
+        if ((fieldName.length() == 0) || Character.isDigit(fieldName.charAt(0)))
+            fieldName.insert(0, '_');
+
+        return fieldName.toString();
+    }
+
+    private List<String>         _keys;
+    private List<String>         _fieldNames;
+    private List<FieldType>      _fieldTypes;
+    private Map<String, Integer> _keyIndexes;
+    private String               _json;
+}
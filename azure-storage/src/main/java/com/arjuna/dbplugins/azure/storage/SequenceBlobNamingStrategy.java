@@ -0,0 +1,32 @@
+/*
+ * Copyright (c) 2015, Arjuna Technologies Limited, Newcastle-upon-Tyne, England. All rights reserved.
+ */
+
+package com.arjuna.dbplugins.azure.storage;
+
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Names blobs with a random run identifier followed by a sequence number, so names sort in
+ * upload order within a run and do not collide with those of other runs.
+ */
+public class SequenceBlobNamingStrategy implements BlobNamingStrategy
+{
+    public SequenceBlobNamingStrategy()
+    {
+        _runId    = new SecureRandom().nextLong();
+        _sequence = new AtomicLong();
+    }
+
+    @Override
+    public void appendBlobName(StringBuilder blobName)
+    {
+        BlobNamer.appendHex(blobName, _runId, 16);
+        blobName.append('-');
+        BlobNamer.appendHex(blobName, _sequence.getAndIncrement(), 16);
+    }
+
+    private long       _runId;
+    private AtomicLong _sequence;
+}
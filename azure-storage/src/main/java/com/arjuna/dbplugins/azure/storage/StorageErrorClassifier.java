@@ -0,0 +1,37 @@
+/*
+ * Copyright (c) 2015, Arjuna Technologies Limited, Newcastle-upon-Tyne, England. All rights reserved.
+ */
+
+package com.arjuna.dbplugins.azure.storage;
+
+import java.io.IOException;
+import com.arjuna.dbplugins.azure.common.ErrorClassifier;
+import com.microsoft.azure.storage.StorageException;
+
+/**
+ * Treats timeouts, throttling (408, 429, 503) and server errors (500, 502, 504) from the blob
+ * service, and network failures, as transient. Other HTTP statuses are permanent.
+ */
+public class StorageErrorClassifier implements ErrorClassifier
+{
+    @Override
+    public boolean isTransient(Throwable throwable)
+    {
+        boolean ioFailure = false;
+        for (Throwable cause = throwable; cause != null; cause = cause.getCause())
+        {
+            if (cause instanceof StorageException)
+            {
+                int httpStatusCode = ((StorageException) cause).getHttpStatusCode();
+                if (httpStatusCode <= 0)
+                    return (cause.getCause() instanceof IOException);
+                else
+                    return (httpStatusCode == 408) || (httpStatusCode == 429) || (httpStatusCode == 500) || (httpStatusCode == 502) || (httpStatusCode == 503) || (httpStatusCode == 504);
+            }
+            else if (cause instanceof IOException)
+                ioFailure = true;
+        }
+
+        return ioFailure;
+    }
+}
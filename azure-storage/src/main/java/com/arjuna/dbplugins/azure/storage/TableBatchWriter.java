@@ -0,0 +1,433 @@
+/*
+ * Copyright (c) 2015, Arjuna Technologies Limited, Newcastle-upon-Tyne, England. All rights reserved.
+ */
+
+package com.arjuna.dbplugins.azure.storage;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import com.arjuna.dbplugins.azure.common.ResilientExecutor;
+import com.arjuna.dbplugins.azure.common.ServiceMetrics;
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.table.CloudTable;
+import com.microsoft.azure.storage.table.DynamicTableEntity;
+import com.microsoft.azure.storage.table.TableBatchOperation;
+import com.microsoft.azure.storage.table.TableOperation;
+
+/**
+ * Groups entities by partition key into entity group transactions of up to 100 operations,
+ * the most a single request may carry, closing a group early before its estimated payload
+ * reaches the 4 MiB request limit or once its first entity has waited the linger time. Groups
+ * are written by a pool of threads, so groups for different partitions are in flight at once,
+ * but a partition has one group in flight at a time, later groups for it queued behind, so that
+ * an older value never replaces a newer one. A transaction fails as a whole, so a group
+ * rejected for a reason other than a transient failure is written again an entity at a time,
+ * to keep the entities that are valid. Callers wait once the maximum number of entities are
+ * pending.
+ */
+public class TableBatchWriter
+{
+    private static final Logger logger = Logger.getLogger(TableBatchWriter.class.getName());
+
+    public static final int MAX_BATCH_OPERATIONS = 100;
+
+    private static final int  MAX_BATCH_BYTES    = 3 * 1024 * 1024;
+    private static final long MIN_CHECK_INTERVAL = 10L;
+
+    public enum Mode
+    {
+        INSERT,
+        INSERTORREPLACE,
+        INSERTORMERGE
+    }
+
+    public TableBatchWriter(final String name, CloudTable table, Mode mode, int concurrency, int maxPending, long lingerTime, ResilientExecutor resilientExecutor, ServiceMetrics metrics)
+    {
+        _table             = table;
+        _mode              = mode;
+        _maxPending        = maxPending;
+        _lingerTime        = lingerTime;
+        _resilientExecutor = resilientExecutor;
+        _metrics           = metrics;
+        _partitionBatches  = new HashMap<String, PartitionBatch>();
+        _queuedBatches     = new HashMap<String, LinkedList<List<DynamicTableEntity>>>();
+        _pendingPermits    = new Semaphore(maxPending);
+        _writtenCount      = new AtomicLong();
+        _batchCount        = new AtomicLong();
+        _failedCount       = new AtomicLong();
+
+        _writerExecutorService = Executors.newFixedThreadPool(concurrency, new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable runnable)
+            {
+                Thread thread = new Thread(runnable, "AzureTableWriter-" + name + "-" + _threadCount.getAndIncrement());
+                thread.setDaemon(true);
+
+                return thread;
+            }
+
+            private AtomicInteger _threadCount = new AtomicInteger();
+        });
+
+        _scheduledExecutorService = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable runnable)
+            {
+                Thread thread = new Thread(runnable, "AzureTableBatcher-" + name);
+                thread.setDaemon(true);
+
+                return thread;
+            }
+        });
+
+        long checkInterval = Math.max(lingerTime / 4, MIN_CHECK_INTERVAL);
+        _scheduledExecutorService.scheduleWithFixedDelay(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                flushLingered();
+            }
+        }, checkInterval, checkInterval, TimeUnit.MILLISECONDS);
+    }
+
+    public void add(DynamicTableEntity entity, int size)
+        throws InterruptedException
+    {
+        _pendingPermits.acquire();
+
+        List<DynamicTableEntity> batch = null;
+        synchronized (this)
+        {
+            PartitionBatch partitionBatch = _partitionBatches.get(entity.getPartitionKey());
+            if (partitionBatch == null)
+            {
+                partitionBatch = new PartitionBatch();
+                _partitionBatches.put(entity.getPartitionKey(), partitionBatch);
+            }
+            else if (partitionBatch.bytes + size > MAX_BATCH_BYTES)
+                batch = partitionBatch.take();
+
+            if (partitionBatch.entities.isEmpty())
+                partitionBatch.firstEntityTime = System.currentTimeMillis();
+            partitionBatch.entities.add(entity);
+            partitionBatch.bytes += size;
+
+            if ((batch == null) && (partitionBatch.entities.size() >= MAX_BATCH_OPERATIONS))
+                batch = partitionBatch.take();
+            if (partitionBatch.entities.isEmpty())
+                _partitionBatches.remove(entity.getPartitionKey());
+        }
+
+        if (batch != null)
+            submit(batch);
+    }
+
+    public void flush()
+    {
+        List<List<DynamicTableEntity>> batches = new ArrayList<List<DynamicTableEntity>>();
+        synchronized (this)
+        {
+            for (PartitionBatch partitionBatch: _partitionBatches.values())
+                batches.add(partitionBatch.take());
+            _partitionBatches.clear();
+        }
+
+        for (List<DynamicTableEntity> batch: batches)
+            submit(batch);
+    }
+
+    public int getPendingCount()
+    {
+        return _maxPending - _pendingPermits.availablePermits();
+    }
+
+    public long getWrittenCount()
+    {
+        return _writtenCount.get();
+    }
+
+    public long getBatchCount()
+    {
+        return _batchCount.get();
+    }
+
+    public long getFailedCount()
+    {
+        return _failedCount.get();
+    }
+
+    public void shutdown(long timeout)
+    {
+        _scheduledExecutorService.shutdown();
+        try
+        {
+            _scheduledExecutorService.awaitTermination(_lingerTime + MIN_CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+        }
+        catch (InterruptedException interruptedException)
+        {
+            Thread.currentThread().interrupt();
+        }
+
+        flush();
+
+        _writerExecutorService.shutdown();
+        try
+        {
+            if (! _writerExecutorService.awaitTermination(timeout, TimeUnit.MILLISECONDS))
+            {
+                List<Runnable> unwritten = _writerExecutorService.shutdownNow();
+                logger.log(Level.WARNING, "Azure table writer shutdown timed out, " + unwritten.size() + " batches not written");
+            }
+        }
+        catch (InterruptedException interruptedException)
+        {
+            _writerExecutorService.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void flushLingered()
+    {
+        List<List<DynamicTableEntity>> batches = new ArrayList<List<DynamicTableEntity>>();
+        synchronized (this)
+        {
+            long now = System.currentTimeMillis();
+
+            Iterator<PartitionBatch> partitionBatchIterator = _partitionBatches.values().iterator();
+            while (partitionBatchIterator.hasNext())
+            {
+                PartitionBatch partitionBatch = partitionBatchIterator.next();
+                if (now - partitionBatch.firstEntityTime >= _lingerTime)
+                {
+                    batches.add(partitionBatch.take());
+                    partitionBatchIterator.remove();
+                }
+            }
+        }
+
+        for (List<DynamicTableEntity> batch: batches)
+            submit(batch);
+    }
+
+    // Queues the batch behind one in flight for the same partition, else starts writing the partition
+    private void submit(final List<DynamicTableEntity> batch)
+    {
+        final String partitionKey = batch.get(0).getPartitionKey();
+        synchronized (_queuedBatches)
+        {
+            LinkedList<List<DynamicTableEntity>> queuedBatches = _queuedBatches.get(partitionKey);
+            if (queuedBatches != null)
+            {
+                queuedBatches.add(batch);
+                return;
+            }
+            _queuedBatches.put(partitionKey, new LinkedList<List<DynamicTableEntity>>());
+        }
+
+        try
+        {
+            _writerExecutorService.execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    writePartition(partitionKey, batch);
+                }
+            });
+        }
+        catch (RejectedExecutionException rejectedExecutionException)
+        {
+            List<List<DynamicTableEntity>> unwritten = new ArrayList<List<DynamicTableEntity>>();
+            unwritten.add(batch);
+            synchronized (_queuedBatches)
+            {
+                unwritten.addAll(_queuedBatches.remove(partitionKey));
+            }
+
+            for (List<DynamicTableEntity> unwrittenBatch: unwritten)
+            {
+                logger.log(Level.WARNING, "Azure table writer shut down, " + unwrittenBatch.size() + " entities not written");
+                _failedCount.addAndGet(unwrittenBatch.size());
+                _pendingPermits.release(unwrittenBatch.size());
+            }
+        }
+    }
+
+    // Writes the partition's queued batches in turn, on the same thread, until none are left
+    private void writePartition(String partitionKey, List<DynamicTableEntity> batch)
+    {
+        while (batch != null)
+        {
+            write(batch);
+
+            synchronized (_queuedBatches)
+            {
+                batch = _queuedBatches.get(partitionKey).poll();
+                if (batch == null)
+                    _queuedBatches.remove(partitionKey);
+            }
+        }
+    }
+
+    private void write(final List<DynamicTableEntity> batch)
+    {
+        long startTime = _metrics.startRequest();
+        try
+        {
+            _resilientExecutor.execute(new Callable<Void>()
+            {
+                @Override
+                public Void call()
+                    throws StorageException
+                {
+                    _table.execute(createBatchOperation(batch));
+
+                    return null;
+                }
+            });
+            _metrics.recordSuccess(startTime);
+            _writtenCount.addAndGet(batch.size());
+            _batchCount.incrementAndGet();
+        }
+        catch (Throwable throwable)
+        {
+            _metrics.recordFailure(startTime, failureCause(throwable));
+            if ((batch.size() > 1) && (! _resilientExecutor.isTransient(throwable)))
+            {
+                logger.log(Level.FINE, "Azure table batch rejected, writing " + batch.size() + " entities singly", throwable);
+                for (DynamicTableEntity entity: batch)
+                    writeSingle(entity);
+            }
+            else
+            {
+                logger.log(Level.WARNING, "Problems writing Azure table batch, " + batch.size() + " entities not written", throwable);
+                _failedCount.addAndGet(batch.size());
+            }
+        }
+        finally
+        {
+            _pendingPermits.release(batch.size());
+        }
+    }
+
+    private void writeSingle(final DynamicTableEntity entity)
+    {
+        long startTime = _metrics.startRequest();
+        try
+        {
+            _resilientExecutor.execute(new Callable<Void>()
+            {
+                @Override
+                public Void call()
+                    throws StorageException
+                {
+                    _table.execute(createOperation(entity));
+
+                    return null;
+                }
+            });
+            _metrics.recordSuccess(startTime);
+            _writtenCount.incrementAndGet();
+        }
+        catch (Throwable throwable)
+        {
+            _metrics.recordFailure(startTime, failureCause(throwable));
+            logger.log(Level.WARNING, "Problems writing Azure table entity: " + entity.getPartitionKey() + "/" + entity.getRowKey(), throwable);
+            _failedCount.incrementAndGet();
+        }
+    }
+
+    private TableBatchOperation createBatchOperation(List<DynamicTableEntity> batch)
+    {
+        TableBatchOperation batchOperation = new TableBatchOperation();
+        for (DynamicTableEntity entity: batch)
+        {
+            if (_mode == Mode.INSERT)
+                batchOperation.insert(entity);
+            else if (_mode == Mode.INSERTORMERGE)
+                batchOperation.insertOrMerge(entity);
+            else
+                batchOperation.insertOrReplace(entity);
+        }
+
+        return batchOperation;
+    }
+
+    private TableOperation createOperation(DynamicTableEntity entity)
+    {
+        if (_mode == Mode.INSERT)
+            return TableOperation.insert(entity);
+        else if (_mode == Mode.INSERTORMERGE)
+            return TableOperation.insertOrMerge(entity);
+        else
+            return TableOperation.insertOrReplace(entity);
+    }
+
+    private static String failureCause(Throwable throwable)
+    {
+        Throwable cause = throwable;
+        while ((cause != null) && (! (cause instanceof StorageException)))
+            cause = cause.getCause();
+
+        if (cause != null)
+            return "HTTP " + ((StorageException) cause).getHttpStatusCode();
+        else
+            return ServiceMetrics.causeOf(throwable);
+    }
+
+    private static class PartitionBatch
+    {
+        public PartitionBatch()
+        {
+            entities = new ArrayList<DynamicTableEntity>(MAX_BATCH_OPERATIONS);
+            bytes    = 0;
+        }
+
+        public List<DynamicTableEntity> take()
+        {
+            List<DynamicTableEntity> batch = entities;
+            entities = new ArrayList<DynamicTableEntity>(MAX_BATCH_OPERATIONS);
+            bytes    = 0;
+
+            return batch;
+        }
+
+        public List<DynamicTableEntity> entities;
+        public int                      bytes;
+        public long                     firstEntityTime;
+    }
+
+    private CloudTable                                        _table;
+    private Mode                                              _mode;
+    private int                                               _maxPending;
+    private long                                              _lingerTime;
+    private ResilientExecutor                                 _resilientExecutor;
+    private ServiceMetrics                                    _metrics;
+    private Map<String, PartitionBatch>                       _partitionBatches;
+    private Map<String, LinkedList<List<DynamicTableEntity>>> _queuedBatches;
+    private Semaphore                                         _pendingPermits;
+    private AtomicLong                                        _writtenCount;
+    private AtomicLong                                        _batchCount;
+    private AtomicLong                                        _failedCount;
+    private ExecutorService                                   _writerExecutorService;
+    private ScheduledExecutorService                          _scheduledExecutorService;
+}
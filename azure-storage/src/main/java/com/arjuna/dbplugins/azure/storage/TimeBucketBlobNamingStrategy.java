@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) 2015, Arjuna Technologies Limited, Newcastle-upon-Tyne, England. All rights reserved.
+ */
+
+package com.arjuna.dbplugins.azure.storage;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * Prefixes names with the current UTC time formatted by a date pattern, such as
+ * "yyyy/MM/dd/HH". The formatted prefix is cached and only reformatted when the time moves
+ * into the next bucket, the bucket size being the finest field in the pattern.
+ */
+public class TimeBucketBlobNamingStrategy implements BlobNamingStrategy
+{
+    private static final long SECOND_BUCKETSIZE = 1000L;
+    private static final long MINUTE_BUCKETSIZE = 60L * SECOND_BUCKETSIZE;
+    private static final long HOUR_BUCKETSIZE   = 60L * MINUTE_BUCKETSIZE;
+    private static final long DAY_BUCKETSIZE    = 24L * HOUR_BUCKETSIZE;
+
+    public TimeBucketBlobNamingStrategy(String pattern, BlobNamingStrategy blobNamingStrategy)
+    {
+        _dateFormat = new SimpleDateFormat(pattern, Locale.US);
+        _dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+        _bucketSize         = bucketSize(pattern);
+        _bucket             = new Bucket(- DAY_BUCKETSIZE, "");
+        _blobNamingStrategy = blobNamingStrategy;
+    }
+
+    @Override
+    public void appendBlobName(StringBuilder blobName)
+    {
+        long   now    = System.currentTimeMillis();
+        Bucket bucket = _bucket;
+        if ((now < bucket.start) || (now - bucket.start >= _bucketSize))
+            bucket = nextBucket(now);
+
+        blobName.append(bucket.prefix);
+        _blobNamingStrategy.appendBlobName(blobName);
+    }
+
+    private synchronized Bucket nextBucket(long now)
+    {
+        long start = now - (now % _bucketSize);
+        if (_bucket.start != start)
+            _bucket = new Bucket(start, _dateFormat.format(new Date(start)) + "/");
+
+        return _bucket;
+    }
+
+    private static long bucketSize(String pattern)
+    {
+        long    bucketSize = DAY_BUCKETSIZE;
+        boolean quoted     = false;
+        for (int index = 0; index < pattern.length(); index++)
+        {
+            char character = pattern.charAt(index);
+            if (character == '\'')
+                quoted = ! quoted;
+            else if (quoted)
+                continue;
+            else if (character == 'S')
+                bucketSize = Math.min(bucketSize, 1L);
+            else if (character == 's')
+                bucketSize = Math.min(bucketSize, SECOND_BUCKETSIZE);
+            else if (character == 'm')
+                bucketSize = Math.min(bucketSize, MINUTE_BUCKETSIZE);
+            else if ((character == 'H') || (character == 'k') || (character == 'K') || (character == 'h'))
+                bucketSize = Math.min(bucketSize, HOUR_BUCKETSIZE);
+        }
+
+        return bucketSize;
+    }
+
+    private static class Bucket
+    {
+        public Bucket(long start, String prefix)
+        {
+            this.start  = start;
+            this.prefix = prefix;
+        }
+
+        public final long   start;
+        public final String prefix;
+    }
+
+    private SimpleDateFormat   _dateFormat;
+    private long               _bucketSize;
+    private volatile Bucket    _bucket;
+    private BlobNamingStrategy _blobNamingStrategy;
+}
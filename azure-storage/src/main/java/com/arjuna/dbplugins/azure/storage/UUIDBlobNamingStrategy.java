@@ -0,0 +1,43 @@
+/*
+ * Copyright (c) 2015, Arjuna Technologies Limited, Newcastle-upon-Tyne, England. All rights reserved.
+ */
+
+package com.arjuna.dbplugins.azure.storage;
+
+import java.security.SecureRandom;
+
+/**
+ * Names blobs with random (version 4) UUIDs, drawn from a SecureRandom per thread rather than
+ * the one shared by UUID.randomUUID, which serialises callers. Each name has 122 random bits,
+ * so names from any number of threads and processes do not collide.
+ */
+public class UUIDBlobNamingStrategy implements BlobNamingStrategy
+{
+    private static final ThreadLocal<SecureRandom> secureRandoms = new ThreadLocal<SecureRandom>()
+    {
+        @Override
+        protected SecureRandom initialValue()
+        {
+            return new SecureRandom();
+        }
+    };
+
+    @Override
+    public void appendBlobName(StringBuilder blobName)
+    {
+        SecureRandom random = secureRandoms.get();
+
+        long mostSignificantBits  = (random.nextLong() & 0xFFFFFFFFFFFF0FFFL) | 0x0000000000004000L;
+        long leastSignificantBits = (random.nextLong() & 0x3FFFFFFFFFFFFFFFL) | 0x8000000000000000L;
+
+        BlobNamer.appendHex(blobName, mostSignificantBits >>> 32, 8);
+        blobName.append('-');
+        BlobNamer.appendHex(blobName, mostSignificantBits >>> 16, 4);
+        blobName.append('-');
+        BlobNamer.appendHex(blobName, mostSignificantBits, 4);
+        blobName.append('-');
+        BlobNamer.appendHex(blobName, leastSignificantBits >>> 48, 4);
+        blobName.append('-');
+        BlobNamer.appendHex(blobName, leastSignificantBits, 12);
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright (c) 2015, Arjuna Technologies Limited, Newcastle-upon-Tyne, England. All rights reserved.
+ */
+
+package com.arjuna.dbplugins.azure.storage;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Deflater;
+import org.apache.avro.file.DataFileReader;
+import org.apache.avro.file.SeekableByteArrayInput;
+import org.apache.avro.generic.GenericDatumReader;
+import org.apache.avro.generic.GenericRecord;
+import org.junit.Test;
+
+public class AvroBlockEncoderTest
+{
+    @Test
+    public void roundTripNullCodec()
+        throws Exception
+    {
+        roundTrip(AvroBlockEncoder.Codec.NULL);
+    }
+
+    @Test
+    public void roundTripDeflateCodec()
+        throws Exception
+    {
+        roundTrip(AvroBlockEncoder.Codec.DEFLATE);
+    }
+
+    @Test
+    public void bytesDoNotFitStringField()
+    {
+        Map<String, Object> first = new LinkedHashMap<String, Object>();
+        first.put("payload", "text");
+        RecordSchema recordSchema = RecordSchema.infer(first);
+
+        Map<String, Object> second = new LinkedHashMap<String, Object>();
+        second.put("payload", new byte[] { 1, 2, 3 });
+
+        assertFalse(recordSchema.fits(second));
+        assertTrue(recordSchema.fits(first));
+    }
+
+    @Test
+    public void nestedValuesWrittenAsJSON()
+        throws Exception
+    {
+        Map<String, Object> nested = new LinkedHashMap<String, Object>();
+        nested.put("name", "a \"quoted\"\nvalue");
+        nested.put("values", Arrays.asList(1, 2L, null));
+
+        Map<String, Object> record = new LinkedHashMap<String, Object>();
+        record.put("nested", nested);
+
+        List<GenericRecord> records = decode(encode(AvroBlockEncoder.Codec.NULL, Arrays.<Map<String, Object>>asList(record)));
+
+        assertEquals(1, records.size());
+        assertEquals("{\"name\":\"a \\\"quoted\\\"\\nvalue\",\"values\":[1,2,null]}", records.get(0).get("nested").toString());
+    }
+
+    private void roundTrip(AvroBlockEncoder.Codec codec)
+        throws Exception
+    {
+        List<Map<String, Object>> records = new ArrayList<Map<String, Object>>();
+        for (int index = 0; index < 300; index++)
+        {
+            Map<String, Object> record = new LinkedHashMap<String, Object>();
+            record.put("flag", (index % 2) == 0);
+            record.put("small", index - 150);
+            record.put("large", ((index % 2) == 0) ? Long.MIN_VALUE + index : Long.MAX_VALUE - index);
+            record.put("ratio", index / 4.0f);
+            record.put("amount", -index * 1.5);
+            record.put("data", new byte[] { (byte) index, (byte) (index >> 8) });
+            record.put("when", new Date(1420070400000L + index));
+            record.put("text", ((index % 3) == 0) ? null : "record-" + index + "-\u00e9");
+            records.add(record);
+        }
+
+        List<GenericRecord> decoded = decode(encode(codec, records));
+
+        assertEquals(records.size(), decoded.size());
+        for (int index = 0; index < records.size(); index++)
+        {
+            Map<String, Object> record        = records.get(index);
+            GenericRecord       decodedRecord = decoded.get(index);
+
+            assertEquals(record.get("flag"), decodedRecord.get("flag"));
+            assertEquals(record.get("small"), decodedRecord.get("small"));
+            assertEquals(record.get("large"), decodedRecord.get("large"));
+            assertEquals(record.get("ratio"), decodedRecord.get("ratio"));
+            assertEquals(record.get("amount"), decodedRecord.get("amount"));
+            assertArrayEquals((byte[]) record.get("data"), toArray((ByteBuffer) decodedRecord.get("data")));
+            assertEquals(((Date) record.get("when")).getTime(), decodedRecord.get("when"));
+            if (record.get("text") == null)
+                assertNull(decodedRecord.get("text"));
+            else
+                assertEquals(record.get("text"), decodedRecord.get("text").toString());
+        }
+    }
+
+    // Blocks of 100 records, so the reader crosses several sync markers
+    private static byte[] encode(AvroBlockEncoder.Codec codec, List<Map<String, Object>> records)
+        throws IOException
+    {
+        AvroBlockEncoder      encoder = new AvroBlockEncoder(RecordSchema.infer(records.get(0)), codec, Deflater.DEFAULT_COMPRESSION);
+        ByteArrayOutputStream output  = new ByteArrayOutputStream();
+        try
+        {
+            encoder.writeHeader(output);
+            for (Map<String, Object> record: records)
+            {
+                encoder.encode(record);
+                if (encoder.getBlockRecordCount() == 100)
+                    encoder.writeBlock(output);
+            }
+            encoder.writeBlock(output);
+        }
+        finally
+        {
+            encoder.end();
+        }
+
+        return output.toByteArray();
+    }
+
+    private static List<GenericRecord> decode(byte[] data)
+        throws IOException
+    {
+        List<GenericRecord>           records = new ArrayList<GenericRecord>();
+        DataFileReader<GenericRecord> reader  = new DataFileReader<GenericRecord>(new SeekableByteArrayInput(data), new GenericDatumReader<GenericRecord>());
+        try
+        {
+            while (reader.hasNext())
+                records.add(reader.next());
+        }
+        finally
+        {
+            reader.close();
+        }
+
+        return records;
+    }
+
+    private static byte[] toArray(ByteBuffer buffer)
+    {
+        byte[] data = new byte[buffer.remaining()];
+        buffer.get(data);
+
+        return data;
+    }
+}